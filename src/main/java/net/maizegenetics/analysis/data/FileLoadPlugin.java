@@ -77,6 +77,7 @@ public class FileLoadPlugin extends AbstractPlugin {
         HaplotypeVCF("Haplotype VCF"), Filter("Filter"), Newick("Newick"),
         NumericGenotype("Numeric Genotype"), TaxaList("Taxa List"), PositionList("Position List"),
         SqrMatrixRaw("Raw MultiBLUP Matrix"), SqrMatrixBin("Binary MultiBLUP Matrix"),
+        SqrMatrixTasselBin("TASSEL Binary Matrix"),
         GOBII("GOBII"), Depth("Depth"), ReferenceProbability("Numeric Genotype"), Report("Report"),
         PlinkPhenotype("Plink Phenotype"), SqrMatrixDARwinDIS("DARwin DIS"), Avro("Avro");
 
@@ -101,6 +102,7 @@ public class FileLoadPlugin extends AbstractPlugin {
     public static final String FILE_EXT_VCF = ".vcf";
     public static final String FILE_EXT_FASTA = ".fasta";
     public static final String FILE_EXT_PHYLIP = ".phy";
+    public static final String FILE_EXT_TASSEL_BIN_MATRIX = ".dm.bin";
 
     /**
      * Creates a new instance of FileLoadPlugin. This only used by TASSEL GUI to bypass dialog and go straight to file
@@ -153,6 +155,7 @@ public class FileLoadPlugin extends AbstractPlugin {
                 TasselFileType.Sequence,
                 TasselFileType.Fasta,
                 TasselFileType.SqrMatrix,
+                TasselFileType.SqrMatrixTasselBin,
                 TasselFileType.Table));
         myFileType = new PluginParameter<>(myFileType, temp);
 
@@ -216,6 +219,10 @@ public class FileLoadPlugin extends AbstractPlugin {
                     myLogger.info("guessAtUnknowns: type: " + TasselFileType.Fasta);
                     alreadyLoaded.add(myOpenFile);
                     tds = processDatum(myOpenFile, TasselFileType.Fasta);
+                } else if (myOpenFile.endsWith(FILE_EXT_TASSEL_BIN_MATRIX) || ReadDistanceMatrix.isBinTasselMatrix(myOpenFile)) {
+                    myLogger.info("guessAtUnknowns: type: " + TasselFileType.SqrMatrixTasselBin);
+                    alreadyLoaded.add(myOpenFile);
+                    tds = processDatum(myOpenFile, TasselFileType.SqrMatrixTasselBin);
                 } else {
                     alreadyLoaded.add(myOpenFile);
                     tds = guessAtUnknowns(myOpenFile);
@@ -412,6 +419,10 @@ public class FileLoadPlugin extends AbstractPlugin {
                     result = ReadDistanceMatrix.readBinMultiBlupMatrix(inFile);
                     break;
                 }
+                case SqrMatrixTasselBin: {
+                    result = ReadDistanceMatrix.readBinTasselMatrix(inFile);
+                    break;
+                }
                 case Phenotype: {
                     List<Phenotype> phenotypes = new PhenotypeBuilder().fromFile(inFile).build();
                     if (phenotypes.size() != 1) {
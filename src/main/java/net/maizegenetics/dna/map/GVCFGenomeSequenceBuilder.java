@@ -1,19 +1,23 @@
 package net.maizegenetics.dna.map;
 
-import com.google.common.base.Splitter;
 import com.google.common.collect.*;
 import net.maizegenetics.dna.snp.NucleotideAlignmentConstants;
 import net.maizegenetics.util.*;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.FileWriter;
 import java.util.*;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Function;
 import java.util.regex.Pattern;
-import java.util.stream.Collectors;
 import net.maizegenetics.util.BitSet;
 import net.maizegenetics.util.OpenBitSet;
 
@@ -22,8 +26,13 @@ import net.maizegenetics.util.OpenBitSet;
  * Created by zrm22 on 3/27/17.
  */
 public class GVCFGenomeSequenceBuilder extends GenomeSequenceBuilder {
+
+    private static final Logger myLogger = LogManager.getLogger(GVCFGenomeSequenceBuilder.class);
+
     private static final Pattern TAB_PATTERN = Pattern.compile("[\\t]+");
 
+    private static final int NUM_LINES_PER_BLOCK = 1 << 14;
+
     /**
      * Builds GenomeSequence from a fasta file and a GVCF file.
      *
@@ -47,54 +56,90 @@ public class GVCFGenomeSequenceBuilder extends GenomeSequenceBuilder {
         long chrPosMapStartTime = System.currentTimeMillis();
         Map<Chromosome, byte[]> chromPositionMap = readReferenceGenomeChr(fastaFileName, charConversion);
         System.out.println("Done Reading in Reference: Total Time Taken: "+(System.currentTimeMillis()-chrPosMapStartTime)+"ms");
-        //need to create a Map<chr,Map<range,Map<AnnotationName,Value>>>
-//        Map<Chromosome, RangeMap<Integer,GeneralAnnotationStorage>> gvcfAnnotationsAndCalls = readGVCFFile(gvcfFileName);
-        System.out.println("Generating Position List");
-        long startTime = System.currentTimeMillis();
-        PositionList gvcfPositionsAndAnnotations = readGVCFFilePositionList(gvcfFileName);
-        System.out.println("Done Creating Pos list. Total Time Taken: "+(System.currentTimeMillis() - startTime)+"ms");
-        return new HalfByteGenomeSequenceGVCF(chromPositionMap,gvcfPositionsAndAnnotations);
+        return instance(chromPositionMap, gvcfFileName);
     }
 
-    public static GenomeSequence instance(GVCFGenomeSequence base, BitSet maskedBitSet, BitSet filteredBitSet) throws Exception{
-        return new HalfByteGenomeSequenceGVCF(base.getChrPosMap(), base.getGVCFPositions(), maskedBitSet, filteredBitSet);
-
-//        Map<Chromosome, byte[]> chromPositionMap = readReferenceGenomeChr(fastaFileName, charConversion);
-//        //need to create a Map<chr,Map<range,Map<AnnotationName,Value>>>
-//        Map<Chromosome, RangeMap<Integer,GeneralAnnotationStorage>> gvcfAnnotationsAndCalls = readGVCFFile(gvcfFileName);
-//        PositionList gvcfPositionsAndAnnotations = readGVCFFilePositionList(gvcfFileName);
-//        return new HalfByteGenomeSequenceGVCF(chromPositionMap,gvcfPositionsAndAnnotations);
+    /**
+     * Builds GenomeSequence for another sample's GVCF file using the same
+     * reference as base.  The reference is shared, so building consensus for
+     * many samples only reads the fasta once.
+     *
+     * @param base GVCF genome sequence built from the reference
+     * @param gvcfFileName full path to GVCF file
+     * @return GenomeSequence object
+     */
+    public static GenomeSequence instance(GVCFGenomeSequence base, String gvcfFileName) {
+        return instance(base.getChrPosMap(), gvcfFileName);
     }
 
+    public static GenomeSequence instance(GVCFGenomeSequence base, BitSet maskedBitSet, BitSet filteredBitSet) throws Exception{
+        GVCFRecordStore records;
+        if (base instanceof HalfByteGenomeSequenceGVCF) {
+            records = ((HalfByteGenomeSequenceGVCF) base).records();
+        } else {
+            records = GVCFRecordStore.instance(base.getGVCFPositions());
+        }
+        return new HalfByteGenomeSequenceGVCF(base.getChrPosMap(), records, maskedBitSet, filteredBitSet);
+    }
 
-    private static Map<Chromosome,RangeMap<Integer,GeneralAnnotationStorage>> readGVCFFile(String gvcfFileName) {
-        HashMap<Chromosome, RangeMap<Integer,GeneralAnnotationStorage>> chromosomeRangeMapHashMap = new HashMap<>();
-        //TODO multithread using similar code to BuilderFromVCF
-
-        return chromosomeRangeMapHashMap;
+    private static GenomeSequence instance(Map<Chromosome, byte[]> chromPositionMap, String gvcfFileName) {
+        System.out.println("Reading GVCF Records");
+        long startTime = System.currentTimeMillis();
+        GVCFRecordStore records = readGVCFFile(gvcfFileName);
+        System.out.println("Done Reading GVCF Records. Total Time Taken: "+(System.currentTimeMillis() - startTime)+"ms");
+        return new HalfByteGenomeSequenceGVCF(chromPositionMap, records);
     }
 
+    /**
+     * Reads GVCF records into compact storage.  Blocks of lines are parsed in
+     * parallel and added to the store in file order.
+     */
+    private static GVCFRecordStore readGVCFFile(String gvcfFileName) {
 
-    private static PositionList readGVCFFilePositionList(String gvcfFileName) throws Exception{
-        ArrayList<Position> positionArrayList = new ArrayList<>();
+        int numThreads = Runtime.getRuntime().availableProcessors();
+        ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+        try (BufferedReader reader = Utils.getBufferedReader(gvcfFileName, -1)) {
 
-//        BufferedReader gvcfFileReader = new BufferedReader(new FileReader(gvcfFileName));
-        BufferedReader gvcfFileReader = Utils.getBufferedReader(gvcfFileName,-1);
-        //Loop through the headers
-        String currentLine = "";
-        while(!(currentLine = gvcfFileReader.readLine()).startsWith("#CHROM")) {
+            String currentLine = reader.readLine();
+            while (currentLine != null && !currentLine.startsWith("#CHROM")) {
+                currentLine = reader.readLine();
+            }
+            if (currentLine == null) {
+                throw new IllegalStateException("GVCFGenomeSequenceBuilder: readGVCFFile: no #CHROM header line in: " + gvcfFileName);
+            }
+            HeaderPositions hp = new HeaderPositions(TAB_PATTERN.split(currentLine));
+
+            GVCFRecordStore.Builder builder = new GVCFRecordStore.Builder();
+            ArrayDeque<Future<ProcessGVCFBlock>> futures = new ArrayDeque<>();
+            ArrayList<String> lines = new ArrayList<>(NUM_LINES_PER_BLOCK);
+            while ((currentLine = reader.readLine()) != null) {
+                if (currentLine.isEmpty() || currentLine.startsWith("#")) continue;
+                lines.add(currentLine);
+                if (lines.size() == NUM_LINES_PER_BLOCK) {
+                    // limit number of blocks held in memory
+                    if (futures.size() >= numThreads * 2) {
+                        futures.poll().get().addTo(builder);
+                    }
+                    futures.add(pool.submit(new ProcessGVCFBlock(hp, lines)));
+                    lines = new ArrayList<>(NUM_LINES_PER_BLOCK);
+                }
+            }
+            if (!lines.isEmpty()) {
+                futures.add(pool.submit(new ProcessGVCFBlock(hp, lines)));
+            }
+            while (!futures.isEmpty()) {
+                futures.poll().get().addTo(builder);
+            }
+            return builder.build();
 
+        } catch (Exception e) {
+            myLogger.debug(e.getMessage(), e);
+            Throwable cause = e.getCause() != null ? e.getCause() : e;
+            throw new IllegalStateException("GVCFGenomeSequenceBuilder: readGVCFFile: problem reading: " + gvcfFileName + ": " + cause.getMessage());
+        } finally {
+            pool.shutdownNow();
         }
-        //parse the header
-        String[] header = TAB_PATTERN.split(currentLine);
-        HeaderPositions hp= new HeaderPositions(header);
-        GVCFPositionRecord gvcfPositionRecord = new GVCFPositionRecord(hp);
 
-        while((currentLine = gvcfFileReader.readLine())!=null) {
-            positionArrayList.add(gvcfPositionRecord.parseGVCFRecords(currentLine));
-        }
-        PositionList instance = new PositionArrayList(positionArrayList, "AGPv4");
-        return instance;
     }
 }
 class HeaderPositions {
@@ -137,86 +182,114 @@ class HeaderPositions {
 
 }
 
+/**
+ * Parses a block of GVCF lines into primitive arrays.  Strings (chromosome,
+ * alleles, and genotype call) are kept until the block is added to the
+ * GVCFRecordStore.Builder, which dictionary encodes them.
+ */
+class ProcessGVCFBlock implements Callable<ProcessGVCFBlock> {
+
+    private final HeaderPositions hp;
+    private List<String> myLines;
+    private final int myNumRecords;
+    private final Chromosome[] myChromosomes;
+    private final int[] myStart;
+    private final int[] myEnd;
+    private final String[] myAlleles;
+    private final String[] myGenotypes;
+    private final int[] myDepth;
+    private final int[] myGQ;
+    private final int[] myRefDepth;
+    private final int[] myAltDepth;
+
+    ProcessGVCFBlock(HeaderPositions hp, List<String> lines) {
+        this.hp = hp;
+        myLines = lines;
+        myNumRecords = lines.size();
+        myChromosomes = new Chromosome[myNumRecords];
+        myStart = new int[myNumRecords];
+        myEnd = new int[myNumRecords];
+        myAlleles = new String[myNumRecords];
+        myGenotypes = new String[myNumRecords];
+        myDepth = new int[myNumRecords];
+        myGQ = new int[myNumRecords];
+        myRefDepth = new int[myNumRecords];
+        myAltDepth = new int[myNumRecords];
+    }
 
+    @Override
+    public ProcessGVCFBlock call() {
+        int[] tabPos = new int[hp.NUM_HAPMAP_NON_TAXA_HEADERS + 1];
+        for (int i = 0; i < myNumRecords; i++) {
+            parseRecord(i, myLines.get(i), tabPos);
+        }
+        myLines = null;
+        return this;
+    }
 
+    void addTo(GVCFRecordStore.Builder builder) {
+        for (int i = 0; i < myNumRecords; i++) {
+            builder.add(myChromosomes[i], myStart[i], myEnd[i], myAlleles[i], myGenotypes[i], myDepth[i], myGQ[i], myRefDepth[i], myAltDepth[i]);
+        }
+    }
 
-class GVCFRecord {
-    //Simple class to hold a gvcf record in a storage efficient manner
-    //Need the following:
-    //the call
-    int[] call = new int[2];
-    //phasing
-    boolean phased = false;
-    //the known variants
-    ArrayList<String> knownVariants = new ArrayList<>();
-    //the depth
-    int depth = 0;
-    //GQ score
-    int gqScore = 0;
-    //GeneralAnnotations for any other in INFO tag
-    GeneralAnnotationStorage generalAnnotationStorage;
-
-
-}
-
-class GVCFPositionRecord {
-    GeneralPosition ap= new GeneralPosition.Builder(new Chromosome("1"),1232)
-            .maf(0.05f)
-            .build();
-    HeaderPositions hp;
-
-    public GVCFPositionRecord(HeaderPositions hp) {
-        this.hp = hp;
+    private void parseRecord(int record, String input, int[] tabPos) {
 
-    }
-    public Position parseGVCFRecords(String input) {
         //Figure out the tab positioning for the header columns
-        int[] tabPos=new int[hp.NUM_HAPMAP_NON_TAXA_HEADERS+1];
-        int tabIndex=0;
-        int len=input.length();
-        for (int i=0; (tabIndex<hp.NUM_HAPMAP_NON_TAXA_HEADERS+1)&&(i<len); i++) {
-            if (input.charAt(i)=='\t') {
-                tabPos[tabIndex++]=i;
+        Arrays.fill(tabPos, 0);
+        int tabIndex = 0;
+        int len = input.length();
+        for (int i = 0; (tabIndex < hp.NUM_HAPMAP_NON_TAXA_HEADERS + 1) && (i < len); i++) {
+            if (input.charAt(i) == '\t') {
+                tabPos[tabIndex++] = i;
             }
         }
-        String chrName=input.substring(0, tabPos[hp.CHROMOSOME_INDEX]);
-        Chromosome currChr=new Chromosome(new String(chrName));
-
-        String snpID=null;
-        if(hp.SNPID_INDEX>0) snpID=input.substring(tabPos[hp.SNPID_INDEX-1]+1, tabPos[hp.SNPID_INDEX]);
-
-        //create the General position
-        GeneralPosition.Builder apb=new GeneralPosition.Builder(currChr, Integer.parseInt(input.substring(tabPos[hp.POSITION_INDEX-1]+1, tabPos[hp.POSITION_INDEX])));
-        if(snpID!=null && !snpID.equals(".")) {
-            apb.snpName(snpID);
+        if (tabIndex < hp.NUM_HAPMAP_NON_TAXA_HEADERS) {
+            throw new IllegalStateException("Error Processing GVCF: too few columns: " + input);
         }
 
+        String chrName = input.substring(0, tabPos[hp.CHROMOSOME_INDEX]);
+        if (record != 0 && myChromosomes[record - 1].getName().equals(chrName)) {
+            myChromosomes[record] = myChromosomes[record - 1];
+        } else {
+            myChromosomes[record] = Chromosome.instance(chrName);
+        }
+        myStart[record] = Integer.parseInt(input.substring(tabPos[hp.POSITION_INDEX - 1] + 1, tabPos[hp.POSITION_INDEX]));
 
-
-        String refS=input.substring(tabPos[hp.REF_INDEX-1]+1, tabPos[hp.REF_INDEX]);
-        String alt=input.substring(tabPos[hp.ALT_INDEX-1]+1, tabPos[hp.ALT_INDEX]);
+        String refS = input.substring(tabPos[hp.REF_INDEX - 1] + 1, tabPos[hp.REF_INDEX]);
+        String alt = input.substring(tabPos[hp.ALT_INDEX - 1] + 1, tabPos[hp.ALT_INDEX]);
         //create an String to hold the list of variants, we will have to parse this on export
-        String allAlleles = refS+"/"+alt.replace(",","/");
-
-        apb = apb.knownVariants(allAlleles);
-
-        //loop through the INFO tag and save off any of those values into positions
-        for(String annoS: Splitter.on(";").split(input.substring(tabPos[hp.INFO_INDEX-1]+1, tabPos[hp.INFO_INDEX]))) {
-            apb.addAnno(annoS);
+        myAlleles[record] = refS + "/" + alt.replace(",", "/");
+
+        //END marks a reference block. INFO DP is used if sample has no DP
+        int end = GVCFRecordStore.MISSING;
+        int infoDepth = GVCFRecordStore.MISSING;
+        int infoStart = tabPos[hp.INFO_INDEX - 1] + 1;
+        int infoEnd = tabPos[hp.INFO_INDEX];
+        while (infoStart < infoEnd) {
+            int next = input.indexOf(';', infoStart);
+            if (next < 0 || next > infoEnd) {
+                next = infoEnd;
+            }
+            if (input.startsWith("END=", infoStart)) {
+                end = GVCFRecordStore.parseInt(input.subSequence(infoStart + 4, next));
+            } else if (input.startsWith("DP=", infoStart)) {
+                infoDepth = GVCFRecordStore.parseInt(input.subSequence(infoStart + 3, next));
+            }
+            infoStart = next + 1;
         }
+        myEnd[record] = end;
 
-
-        final int iGT=0; //genotype index
-        int iAD=-1,iDP=-1,iGQ=-1, iPL=-1;  //alleleDepth, overall depth, genotypeQuality, phredGenotypeLikelihoods
-        if(hp.FORMAT_INDEX>=0) {
+        int iAD = -1, iDP = -1, iGQ = -1;  //alleleDepth, overall depth, genotypeQuality
+        if (hp.FORMAT_INDEX >= 0) {
             //Check to see if FORMAT tag is missing. Only applicable for single taxa files
-            if(tabPos[hp.FORMAT_INDEX]==0) {
+            if (tabPos[hp.FORMAT_INDEX] == 0) {
                 throw new IllegalStateException("Error Processing VCF: Missing FORMAT tag.");
             }
-            String unsplitInput = input.substring(tabPos[hp.FORMAT_INDEX-1]+1, tabPos[hp.FORMAT_INDEX]);
-            if(unsplitInput.length()==0|| !unsplitInput.startsWith("GT")) {
+            String unsplitInput = input.substring(tabPos[hp.FORMAT_INDEX - 1] + 1, tabPos[hp.FORMAT_INDEX]);
+            if (unsplitInput.length() == 0 || !unsplitInput.startsWith("GT")) {
                 //Check to see it has the GT field
-                if(unsplitInput.contains("GT")) {
+                if (unsplitInput.contains("GT")) {
                     throw new IllegalStateException("Error Processing VCF Block: GT field is not in first position of FORMAT.");
                 }
                 //If GT isnt in, we assume that it is missing FORMAT
@@ -225,42 +298,58 @@ class GVCFPositionRecord {
                 }
             }
             String[] formatS = unsplitInput.split(":");
-
-            iAD=firstEqualIndex(formatS,"AD");
-            iDP=firstEqualIndex(formatS,"DP");
-            iGQ=firstEqualIndex(formatS,"GQ");
+            iAD = firstEqualIndex(formatS, "AD");
+            iDP = firstEqualIndex(formatS, "DP");
+            iGQ = firstEqualIndex(formatS, "GQ");
         }
 
-
-
         //after info is recorded we need to record the call section
-        String taxaAllG = input.substring(tabPos[hp.NUM_HAPMAP_NON_TAXA_HEADERS-1]+1);
+        String genotype = ".";
+        int depth = GVCFRecordStore.MISSING;
+        int gq = GVCFRecordStore.MISSING;
+        int refDepth = GVCFRecordStore.MISSING;
+        int altDepth = GVCFRecordStore.MISSING;
+        int fieldStart = tabPos[hp.NUM_HAPMAP_NON_TAXA_HEADERS - 1] + 1;
+        int sampleEnd = tabPos[hp.NUM_HAPMAP_NON_TAXA_HEADERS] > fieldStart ? tabPos[hp.NUM_HAPMAP_NON_TAXA_HEADERS] : len;
         int f = 0;
-        for(String fieldS: Splitter.on(":").split(taxaAllG)) {
-            if (f == iGT) {
-                apb.addAnno("GT",fieldS);
+        while (fieldStart <= sampleEnd && hp.FORMAT_INDEX >= 0) {
+            int next = input.indexOf(':', fieldStart);
+            if (next < 0 || next > sampleEnd) {
+                next = sampleEnd;
             }
-            if(f == iAD) {
-                apb.addAnno("AD",fieldS);
-            }
-            if(f == iDP) {
-                apb.addAnno("DP",fieldS);
-            }
-            if(f == iGQ) {
-                apb.addAnno("GQ",fieldS);
+            if (f == 0) {
+                genotype = input.substring(fieldStart, next);
+            } else if (f == iAD) {
+                int comma = input.indexOf(',', fieldStart);
+                if (comma < 0 || comma > next) {
+                    refDepth = GVCFRecordStore.parseInt(input.subSequence(fieldStart, next));
+                } else {
+                    refDepth = GVCFRecordStore.parseInt(input.subSequence(fieldStart, comma));
+                    int secondComma = input.indexOf(',', comma + 1);
+                    if (secondComma < 0 || secondComma > next) {
+                        secondComma = next;
+                    }
+                    altDepth = GVCFRecordStore.parseInt(input.subSequence(comma + 1, secondComma));
+                }
+            } else if (f == iDP) {
+                depth = GVCFRecordStore.parseInt(input.subSequence(fieldStart, next));
+            } else if (f == iGQ) {
+                gq = GVCFRecordStore.parseInt(input.subSequence(fieldStart, next));
             }
-
+            fieldStart = next + 1;
             f++;
         }
+        myGenotypes[record] = genotype;
+        myDepth[record] = depth == GVCFRecordStore.MISSING ? infoDepth : depth;
+        myGQ[record] = gq;
+        myRefDepth[record] = refDepth;
+        myAltDepth[record] = altDepth;
 
-
-
-        return apb.build();
     }
 
     private static int firstEqualIndex(String[] sa, String match) {
-        for (int i=0; i<sa.length; i++) {
-            if(sa[i].equals(match)) return i;
+        for (int i = 0; i < sa.length; i++) {
+            if (sa[i].equals(match)) return i;
         }
         return -1;
     }
@@ -274,62 +363,30 @@ class GVCFPositionRecord {
  * The class also contains methods to obtain a full or partial genome sequence for a
  * specified stored chromosome.
  *
+ * GVCF records are read from the compact GVCFRecordStore.  Records for the
+ * requested region are found by binary search on the record starts.
+ *
  * @author Lynn Johnson, Zack Miller
  *
  */
-//Try to use an index to quickly grab only the useful positions from the position list.
-//Trying to multithread this.
 class HalfByteGenomeSequenceGVCF implements GVCFGenomeSequence{
+    private static final byte N_ALLELE = NucleotideAlignmentConstants.getNucleotideAlleleByte("N");
+
     private Map<Chromosome, byte[]> chromPositionMap;
     private Map<Chromosome, Integer> chromLengthLookup=new HashMap<>();
     private RangeMap<Long,Chromosome> wholeGenomeIndexMap= TreeRangeMap.create();
-    private  PositionList gvcfAnnotationsAndCalls;
+    private final GVCFRecordStore gvcfRecords;
     private final long genomeSize;
     private BitSet maskBitSet;
     private BitSet filterBitSet;
 
-    //Timing stuff
-    long totalQueryTime = 0;
-
-
-    HashMap<Chromosome,int[]> positionIndex = new HashMap<>();
-    int indexScaleFactor = 10000;
-    protected HalfByteGenomeSequenceGVCF(Map<Chromosome, byte[]>chromPositionMap, PositionList gvcfAnnotationsAndCalls) {
-        this.chromPositionMap = chromPositionMap;
-        this.gvcfAnnotationsAndCalls = gvcfAnnotationsAndCalls;
-        long initialSequenceSetupStart = System.currentTimeMillis();
-        chromPositionMap.entrySet().stream()
-                .forEach(e -> chromLengthLookup.put(e.getKey(),e.getKey().getLength()));
-        LongAdder genomeIndex=new LongAdder();
-        chromosomes().stream().sorted()
-                .forEach(chrom -> {
-                            int length=chromLengthLookup.get(chrom);
-                            wholeGenomeIndexMap.put(Range.closed(genomeIndex.longValue(),
-                                    genomeIndex.longValue()+length-1),chrom);
-                            genomeIndex.add(length);
-                            int[] currentIndexArray = new int[length/indexScaleFactor+2];
-                            Arrays.fill(currentIndexArray,-1);
-                            positionIndex.put(chrom,currentIndexArray);
-                        }
-                );
-        genomeSize=genomeIndex.longValue();
-        maskBitSet = new OpenBitSet(gvcfAnnotationsAndCalls.size());
-        filterBitSet = new OpenBitSet(gvcfAnnotationsAndCalls.size());
-        System.out.println("Initial Startup time for GVCF Sequence: "+(System.currentTimeMillis() - initialSequenceSetupStart)+"ms");
-        long indexInitStart = System.currentTimeMillis();
-        for(int i = 0; i < gvcfAnnotationsAndCalls.size(); i++) {
-            int currentBin = gvcfAnnotationsAndCalls.get(i).getPosition()/indexScaleFactor;
-            //new record.  add it to the index
-            if(positionIndex.get(gvcfAnnotationsAndCalls.get(i).getChromosome())[currentBin] == -1) {
-                positionIndex.get(gvcfAnnotationsAndCalls.get(i).getChromosome())[currentBin] = i;
-            }
-        }
-        System.out.println("Done Creating index: "+(System.currentTimeMillis() - indexInitStart)+"ms");
+    protected HalfByteGenomeSequenceGVCF(Map<Chromosome, byte[]>chromPositionMap, GVCFRecordStore gvcfRecords) {
+        this(chromPositionMap, gvcfRecords, new OpenBitSet(gvcfRecords.numberOfRecords()), new OpenBitSet(gvcfRecords.numberOfRecords()));
     }
 
-    protected HalfByteGenomeSequenceGVCF(Map<Chromosome, byte[]>chromPositionMap, PositionList gvcfAnnotationsAndCalls,BitSet maskBitSet, BitSet filterBitSet) {
+    protected HalfByteGenomeSequenceGVCF(Map<Chromosome, byte[]>chromPositionMap, GVCFRecordStore gvcfRecords,BitSet maskBitSet, BitSet filterBitSet) {
         this.chromPositionMap = chromPositionMap;
-        this.gvcfAnnotationsAndCalls = gvcfAnnotationsAndCalls;
+        this.gvcfRecords = gvcfRecords;
         chromPositionMap.entrySet().stream()
                 .forEach(e -> chromLengthLookup.put(e.getKey(),e.getKey().getLength()));
         LongAdder genomeIndex=new LongAdder();
@@ -339,23 +396,17 @@ class HalfByteGenomeSequenceGVCF implements GVCFGenomeSequence{
                             wholeGenomeIndexMap.put(Range.closed(genomeIndex.longValue(),
                                     genomeIndex.longValue()+length-1),chrom);
                             genomeIndex.add(length);
-                            int[] currentIndexArray = new int[length/indexScaleFactor+2];
-                            Arrays.fill(currentIndexArray,-1);
-                            positionIndex.put(chrom,currentIndexArray);
                         }
                 );
         genomeSize=genomeIndex.longValue();
         this.maskBitSet = maskBitSet;
         this.filterBitSet = filterBitSet;
+    }
 
-        for(int i = 0; i < gvcfAnnotationsAndCalls.size(); i++) {
-            int currentBin = gvcfAnnotationsAndCalls.get(i).getPosition()/indexScaleFactor;
-            //new record.  add it to the index
-            if(positionIndex.get(gvcfAnnotationsAndCalls.get(i).getChromosome())[currentBin] == -1) {
-                positionIndex.get(gvcfAnnotationsAndCalls.get(i).getChromosome())[currentBin] = i;
-            }
-        }
+    GVCFRecordStore records() {
+        return gvcfRecords;
     }
+
     @Override
     public Set<Chromosome> chromosomes() {
         return chromPositionMap.keySet();
@@ -370,744 +421,249 @@ class HalfByteGenomeSequenceGVCF implements GVCFGenomeSequence{
     // Code assumes 1-based coordinates have been passed.  It will catch and return
     // null if the startSite is 0.  Otherwise, the user is on their own to ensure
     // input is 1-based.
-    //TODO add in functionality using GVCF annotations
     public byte[] chromosomeSequence(Chromosome chrom, int startSite, int lastSite) {
-        final int startSiteFinal = startSite;
-        final int lastSiteFinal = lastSite;
+        return consensus(chrom, startSite, lastSite, null);
+    }
 
-        //add one as we grab the last site as well.
-//        regionTotalReferenceBPCount = lastSite - startSite+1;
-
-        //zrm22 new for getting gvcf records.
-        //Basically the loop now changes to loop through the positionList to check if the allele should be the ref or not
-        gvcfAnnotationsAndCalls.chromosomeSiteCount(chrom);
-
-        //use the index to get the currentList of positions
-        int[] currentIndex = positionIndex.get(chrom);
-        int startPositionListIndex = currentIndex[startSite/indexScaleFactor];
-        int endPositionListIndex = currentIndex[lastSite/indexScaleFactor+1];
-
-        int startPositionListCounter = 1;
-        while(startPositionListIndex==-1) {
-            if (startSite / indexScaleFactor - startPositionListCounter >= 0) {
-                startPositionListIndex = currentIndex[startSite / indexScaleFactor - startPositionListCounter];
-                startPositionListCounter++;
-            }
-            else {
-                startPositionListIndex = 0;
-                break;
-            }
-        }
-        ArrayList<Position> listOfChrPositions = new ArrayList<>();
-        if(endPositionListIndex==-1) {
-            for(int i = startPositionListIndex; i < startPositionListIndex+indexScaleFactor && i < gvcfAnnotationsAndCalls.size(); i++) {
 
-                if(gvcfAnnotationsAndCalls.get(i).getPosition()>=startSiteFinal && gvcfAnnotationsAndCalls.get(i).getPosition()<=lastSiteFinal) {
-                    listOfChrPositions.add(gvcfAnnotationsAndCalls.get(i));
-                }
-            }
-        }
-        else {
-            for (int i = startPositionListIndex; i <= endPositionListIndex; i++) {
-                if (gvcfAnnotationsAndCalls.get(i).getPosition() >= startSiteFinal && gvcfAnnotationsAndCalls.get(i).getPosition() <= lastSiteFinal) {
-                    listOfChrPositions.add(gvcfAnnotationsAndCalls.get(i));
-                }
-            }
-        }
+    @Override
+    //Code to get the Sequence in a string as well as the various stats we have collected.
+    // This should allow for safe multithreading for the stats.
+    public HashMap<String, String> chromosomeSequenceAndStats(Chromosome chrom, int startSite, int lastSite) {
 
-        //sort things to make sure we can iterate properly
-        Collections.sort(listOfChrPositions);
+        RegionStats stats = new RegionStats();
+        byte[] fullBytes = consensus(chrom, startSite, lastSite, stats);
 
+        //Compile the HashMap<String,String>();
+        HashMap<String,String> sequenceAndStats = new HashMap<>();
+        sequenceAndStats.put("Sequence",NucleotideAlignmentConstants.nucleotideBytetoString(fullBytes));
 
-        int actualStartPos = 0;
-        int startIndex = 0;
-        int actualEndPos = 0;
-        int endIndex = 0;
+        //add one as we grab the last site as well.
+        sequenceAndStats.put("RefSize",""+(lastSite - startSite+1));
+        sequenceAndStats.put("Size", ""+fullBytes.length);
+        sequenceAndStats.put("HetCount",""+stats.hetCount);
+        sequenceAndStats.put("AltCount",""+stats.altCount);
+        sequenceAndStats.put("Depth",""+stats.depthCount);
+        sequenceAndStats.put("GQ",""+stats.gqCount);
+        sequenceAndStats.put("Min_Depth",""+stats.minDepthCount);
+        sequenceAndStats.put("ZeroCoverageCount",""+stats.zeroCoverageCount);
+        sequenceAndStats.put("HomoRefCount",""+stats.numberHomoRef1Or2Count);
+        sequenceAndStats.put("HomoAltLowDepthCount",""+stats.numberHomoAlt1Or2Count);
+        sequenceAndStats.put("HomoAltHighDepthCount",""+stats.numberHomoAlt3PlusCount);
 
-        boolean addingAtStart = false;
-        if(listOfChrPositions.size()>0) {
-            for (int i = 1; i < gvcfAnnotationsAndCalls.size(); i++) {
-                if (gvcfAnnotationsAndCalls.get(i).getPosition() == listOfChrPositions.get(0).getPosition()) {
-                    if (checkPositionCoverage(gvcfAnnotationsAndCalls.get(i - 1), startSiteFinal)) {
-                        startIndex = i-1;
-                        listOfChrPositions.add(0,gvcfAnnotationsAndCalls.get(startIndex));
-                        addingAtStart = true;
-                    }
-                    break;
-                }
-            }
-        }
+        return sequenceAndStats;
+
+    }
 
-        //loop through from startSite till the first position in the GVCF export these alleles directly from the ref
-        int listOfChrPositionsCounter = 0;
-        ArrayList<Byte> byteList = new ArrayList<>();
+    /**
+     * Counts collected by chromosomeSequenceAndStats()
+     */
+    private static class RegionStats {
+        int hetCount = 0;
+        int altCount = 0;
+        int depthCount = 0;
+        int gqCount = 0;
+        int minDepthCount = 0;
+        int zeroCoverageCount = 0;
+        int numberHomoRef1Or2Count = 0;
+        int numberHomoAlt1Or2Count = 0;
+        int numberHomoAlt3PlusCount = 0;
+    }
 
-        if(listOfChrPositions.size()==0) {
+    /**
+     * Walks the GVCF records starting in [startSite, lastSite] (plus the
+     * record covering startSite) and builds the consensus sequence.  Stats
+     * are collected when not null.  When collecting stats, heterozygous sites
+     * are counted but left out of the sequence.
+     */
+    private byte[] consensus(Chromosome chrom, int startSite, int lastSite, RegionStats stats) {
+
+        if (startSite < 0)
+            throw new IllegalArgumentException("GenomeSequenceBuilder.chromosomeSequence: starting parameter is less than 1 for 1-based method");
+        byte[] packedBytes = chromPositionMap.get(chrom);
+        if (packedBytes == null)
+            throw new IllegalArgumentException("GenomeSequenceBuilder.chromosomeSequence: chromosome not found"); // chromosome not found
+
+        GVCFRecordStore.ChromosomeRecords records = gvcfRecords.records(chrom);
+        int first = records == null ? 0 : records.firstStartingAtOrAfter(startSite);
+        int last = records == null ? 0 : records.firstStartingAtOrAfter(lastSite + 1);
+        if (first >= last) {
             //Export a single N for a missing sequence
-            byteList.add(NucleotideAlignmentConstants.getNucleotideAlleleByte("N"));
+            return new byte[]{N_ALLELE};
         }
-        else {
-            for (int siteCounter = startSite; siteCounter <= lastSite && listOfChrPositionsCounter < listOfChrPositions.size(); siteCounter++) {
-                GeneralAnnotation ga = listOfChrPositions.get(listOfChrPositionsCounter).getAnnotation();
-                Set<String> annotationKeys = ga.getAnnotationKeys();
-                if(addingAtStart) {
-                    if (listOfChrPositionsCounter != 0) {
-                        if (filterBitSet.fastGet(listOfChrPositionsCounter-1)) {
-                            //get the size of the position
-                            if (annotationKeys.contains("END")) {
-                                int lengthOfPosBlock = Integer.parseInt((String) ga.getTextAnnotation("END")[0]) - listOfChrPositions.get(listOfChrPositionsCounter).getPosition();
-                                siteCounter+=lengthOfPosBlock;
-                            }
-                            else{
-                                //check insertion or deletion
-                                String[] variants = listOfChrPositions.get(listOfChrPositionsCounter).getKnownVariants();
-                                siteCounter+=variants[0].length()-1;
-                            }
-                            listOfChrPositionsCounter++;
-                            continue;
-                        }
-                    }
+        //include previous record if it covers the start
+        if (first > 0 && covers(records, first - 1, startSite)) {
+            first--;
+        }
+
+        SequenceBuffer result = new SequenceBuffer(lastSite - startSite + 1);
+        int current = first;
+        for (int siteCounter = startSite; siteCounter <= lastSite && current < last; siteCounter++) {
+
+            int index = records.globalIndex(current);
+            if (filterBitSet.fastGet(index)) {
+                //skip the size of the block or reference allele
+                siteCounter += records.end(current) - records.start(current);
+                current++;
+                continue;
+            }
+
+            if (records.start(current) > siteCounter) {
+                //With 0 coverage we want to export an N
+                result.add(N_ALLELE);
+                if (stats != null) stats.zeroCoverageCount++;
+                continue;
+            }
+
+            boolean masked = maskBitSet.fastGet(index);
+            int depth = Math.max(records.depth(current), 0);
+            if (records.isBlock(current)) {
+                //this means we have a block
+                int endPoint = records.end(current) - 1;
+                //check to see if our requested end point is smaller than the region
+                if (lastSite - 1 < endPoint) {
+                    endPoint = lastSite - 1;
                 }
-                else {
-                    if (filterBitSet.fastGet(listOfChrPositionsCounter)) {
-                        if (annotationKeys.contains("END")) {
-                            int lengthOfPosBlock = Integer.parseInt((String) ga.getTextAnnotation("END")[0]) - listOfChrPositions.get(listOfChrPositionsCounter).getPosition();
-                            siteCounter+=lengthOfPosBlock;
-                        }
-                        else{
-                            //check insertion or deletion
-                            String[] variants = listOfChrPositions.get(listOfChrPositionsCounter).getKnownVariants();
-                            siteCounter+=variants[0].length()-1;
-                        }
-                        listOfChrPositionsCounter++;
-                        continue;
-                    }
+                int startSiteShifted = siteCounter - 1;  //shift over to zero based
+                if (startSiteShifted > packedBytes.length * 2 || endPoint > packedBytes.length * 2) {
+                    throw new IllegalArgumentException("GenomeSequenceBuilder.chromosomeSequence: requested sequence is out of range"); // requested sequence is out of range
                 }
-                if (maskBitSet.fastGet(listOfChrPositionsCounter)) {
-                    //if true it means we have to mask all of these positions
-                    //Check to see if we have an END anno
+                int numSites = endPoint - startSiteShifted + 1;
+
+                if (masked || records.depth(current) == 0) {
+                    result.addN(numSites);
+                    if (stats != null) stats.zeroCoverageCount += Math.max(numSites, 0);
+                } else if (records.leftAllele(current) == 0) {
+                    //fill in with reference sequence
+                    result.addReference(packedBytes, startSiteShifted, endPoint);
+                    if (stats != null) stats.depthCount += depth * Math.max(numSites, 0);
+                } else {
+                    result.addN(numSites);
+                    if (stats != null) {
+                        stats.depthCount += depth * Math.max(numSites, 0);
+                        stats.zeroCoverageCount += Math.max(numSites, 0);
+                    }
                 }
-                if (listOfChrPositions.get(listOfChrPositionsCounter).getPosition() <= siteCounter) {
-                    if (annotationKeys.contains("END")) {
-                        //this means we have a block
-                        //Check the call and grab the corresponding allele values
-                        String call = ga.getTextAnnotation("GT")[0];
-                        boolean phased = true;
-                        boolean haploid = false;
-                        if (call.contains("/")) {
-                            phased = false;
-                        } else if (call.contains("|")) {
-                            phased = true;
-                        } else {
-                            haploid = true;
-                        }
-                        String[] callSplit = phased ? call.split("|") : call.split("/");
-                        int leftAllele = Integer.parseInt(callSplit[0]);
-                        int rightAllele = leftAllele;
-                        if (!haploid) {
-                            rightAllele = Integer.parseInt(callSplit[1]);
-                        }
-                        int endPoint = Integer.parseInt(ga.getTextAnnotation("END")[0]) - 1;
-                        //check to see if our requested end point is smaller than the region
-                        if(lastSite-1<endPoint) {
-                            endPoint = lastSite-1;
-                        }
-                        //Get the known Variants
-                        int startSiteShifted = siteCounter - 1;  //shift over to zero bas
-
-                        if (startSite < 0)
-                            throw new IllegalArgumentException("GenomeSequenceBuilder.chromosomeSequence: starting parameter is less than 1 for 1-based method");
-                        ; // method needs 1-based coordinates.
-                        byte[] packedBytes = chromPositionMap.get(chrom);
-                        if (packedBytes == null)
-                            throw new IllegalArgumentException("GenomeSequenceBuilder.chromosomeSequence: chromosome not found"); // chromosome not found
-                        if (startSiteShifted > packedBytes.length * 2 || endPoint > packedBytes.length * 2) {
-                            throw new IllegalArgumentException("GenomeSequenceBuilder.chromosomeSequence: requested sequence is out of range"); // requested sequence is out of range
-                        }
-                        String[] variants = listOfChrPositions.get(listOfChrPositionsCounter).getKnownVariants();
-                        String leftAlleleString = variants[leftAllele];
-
-                        //check depth
-//                        String dpFullString = (String) annos.get("DP").toArray()[0];
-                        String dpFullString = ga.getTextAnnotation("DP")[0];
-
-                        // String minDPString = (String) annos.get("MIN_DP").toArray()[0];
-                        //TODO check to see if we should assume only Ref or<NON_REF> call for blocks
-                        if (maskBitSet.fastGet(listOfChrPositionsCounter) || dpFullString.equals("0")) {
-
-                            //if true we have a masking
-                            for (int i = startSiteShifted; i <= endPoint; i++) {
-//                                regionDepthCount+=0;
-//                                regionZeroCoverageCount++;
-
-                                byteList.add(NucleotideAlignmentConstants.getNucleotideAlleleByte("N"));
-                            }
-                        } else if (leftAllele == 0) {
-                            //fill in with reference sequence
-                            //pull the sequence from siteCounter till you get to endPoint
-                            //Zrm Apr17 fix for default rules
-                            //check if homozygous or het based on GT calls
-                            int depth = 0;
-                            int minDepth = 0;
-                            if(!dpFullString.equals("")) {
-                                depth = Integer.parseInt(dpFullString);
-                            }
-                            for (int i = startSiteShifted; i <= endPoint; i++) {
-//                                regionDepthCount+=depth;
-//                                regionMinDepthCount+=minDepth;
-                                byteList.add((byte) ((i % 2 == 0) ? ((packedBytes[i / 2] & 0xF0) >> 4) : (packedBytes[i / 2] & 0x0F)));
-                            }
-
-                        } else {
-                            int depth = 0;
-                            if(!dpFullString.equals("")) {
-                                depth = Integer.parseInt(dpFullString);
-                            }
-                            for (int i = startSiteShifted; i <= endPoint; i++) {
-//                                regionDepthCount+=depth;
-//                                regionZeroCoverageCount++;
-                                byteList.add(NucleotideAlignmentConstants.getNucleotideAlleleByte("N"));
-                            }
-                        }
-                        //shift up the siteCounter to match the end
-                        siteCounter = endPoint + 1;
+                //shift up the siteCounter to match the end
+                siteCounter = endPoint + 1;
+            } else {
+                //Calls based on allele depths
+                String[] variants = records.alleles(current);
+                String refAllele = variants[0];
+                int refDepth = records.refDepth(current);
+                int altDepth = records.altDepth(current);
+                if (refDepth > 0 && altDepth > 0) {
+                    //TODO handle hets correctly for indels and such
+                    if (stats == null) {
+                        result.addN(refAllele.length());
                     } else {
-                        //it is likely a snp
-                        //check the call and grab the correct allele
-                        //siteCounter will increment correctly
-                        String call = ga.getTextAnnotation("GT")[0];
-                        boolean phased = true;
-                        boolean haploid = false;
-                        if (call.contains("/")) {
-                            phased = false;
-                        } else if (call.contains("|")) {
-                            phased = true;
-                        } else {
-                            //haploid
-                            haploid = true;
-                        }
-                        String[] callSplit = phased ? call.split("|") : call.split("/");
-                        int leftAllele = Integer.parseInt(callSplit[0]);
-                        int rightAllele = leftAllele;
-                        if (!haploid) {
-                            rightAllele = Integer.parseInt(callSplit[1]);
-                        }
-
-                        //Get the AD field and split it on commas
-                        String adsFullString = ga.getTextAnnotation("AD")[0];
-                        String dpFullString = ga.getTextAnnotation("DP")[0];
-                        String[] adSplit = adsFullString.split(",");
-                        //Get the known Variants
-                        String[] variants = listOfChrPositions.get(listOfChrPositionsCounter).getKnownVariants();
-                        boolean isHet = calcHet(adSplit);
-                        if (isHet) {
-                            //TODO handle hets correctly for indels and such
-                            String leftAlleleString = variants[0];
-                            for(int alleleCounter = 0; alleleCounter < leftAlleleString.length(); alleleCounter++) {
-                                byteList.add(NucleotideAlignmentConstants.getNucleotideAlleleByte("N"));
-                            }
-                            siteCounter+=leftAlleleString.length()-1;
-//                            for(int i = 0; i < leftAlleleString.length();i++) {
-//                                regionHetCount++;
-//                            }
-                        }
-                        //ZRM April17 do calls based on depth only
-                        //This block is not actually used as it has already been handled if it is a het or a homozygous ref(in an allele block)
-                        else if (adSplit[0].equals("1") || adSplit[0].equals("2")) {
-                            if (adSplit[1].equals("0")) {
-                                //export the ref
-                                String leftAlleleString = variants[0];
-
-                                int depth = 0;
-                                if(!dpFullString.equals("")) {
-                                    depth = Integer.parseInt(dpFullString);
-                                }
-
-                                if (maskBitSet.fastGet(listOfChrPositionsCounter)) {
-                                    //if true we have to mask it
-                                    for (int i = 0; i < leftAlleleString.length() && siteCounter+i < lastSite-1; i++) {
-//                                        regionDepthCount+=depth;
-//                                        regionNumberHomoRef1Or2Count++;
-                                        byteList.add(NucleotideAlignmentConstants.getNucleotideAlleleByte("N"));
-                                    }
-                                } else {
-                                    for (int i = 0; i < leftAlleleString.length() && siteCounter+i < lastSite-1; i++) {
-//                                        regionDepthCount+=depth;
-//                                        regionNumberHomoRef1Or2Count++;
-                                        byteList.add(NucleotideAlignmentConstants.getNucleotideAlleleByte(leftAlleleString.charAt(i)));
-                                    }
-                                }
-                            }
-
-                        } else if (adSplit[1].equals("1") || adSplit[1].equals("2")) { //ZRM22 Jun19 ChangeforChristy
-//                        } else if (adSplit[1].equals("0")) {
-                            //call Ns
-                            //export the ref
-                            String leftAlleleString = variants[1];
-                            int depth = 0;
-                            if(!dpFullString.equals("")) {
-                                depth = Integer.parseInt(dpFullString);
-                            }
-                            for (int i = 0; i < leftAlleleString.length(); i++) {
-//                                regionDepthCount+=depth;
-//                                regionNumberHomoAlt1Or2Count++;
-                                byteList.add(NucleotideAlignmentConstants.getNucleotideAlleleByte("N"));
-                            }
-                        } else if (Integer.parseInt(adSplit[1]) >= 3) { //ZRM22 Jun19 change for christy
-//                        } else if (Integer.parseInt(adSplit[1]) >= 1) {
-                            int depth = 0;
-                            if(!dpFullString.equals("")) {
-                                depth = Integer.parseInt(dpFullString);
-                            }
-                            String leftAlleleString = variants[1];
-                            if (maskBitSet.fastGet(listOfChrPositionsCounter)) {
-                                //if true we have to mask it
-                                for (int i = 0; i < leftAlleleString.length(); i++) {
-//                                    regionAltCount++;
-//                                    regionNumberHomoAlt3PlusCount++;
-//                                    regionDepthCount+=depth;
-                                    byteList.add(NucleotideAlignmentConstants.getNucleotideAlleleByte("N"));
-                                }
-                            } else {
-                                for (int i = 0; i < leftAlleleString.length(); i++) {
-//                                    regionAltCount++;
-//                                    regionNumberHomoAlt3PlusCount++;
-//                                    regionDepthCount+=depth;
-                                    byteList.add(NucleotideAlignmentConstants.getNucleotideAlleleByte(leftAlleleString.charAt(i)));
-                                }
-                                siteCounter+=variants[0].length()-1;
-                            }
-                        }
-                        else {
-                            //in the case where we have 0 depth for each allele it will fall through all the cases
-                            //lets stick in Ns for the number of reference basepairs  fix the old method header as well.
-                            String leftAlleleString = variants[0];
-
-                            for (int i = 0; i < leftAlleleString.length(); i++) {
-//                                    regionAltCount++;
-//                                    regionNumberHomoAlt3PlusCount++;
-//                                    regionDepthCount+=depth;
-                                byteList.add(NucleotideAlignmentConstants.getNucleotideAlleleByte(leftAlleleString.charAt(i)));
-                            }
-                            siteCounter+=variants[0].length()-1;
-                        }
+                        stats.hetCount += refAllele.length();
+                    }
+                    siteCounter += refAllele.length() - 1;
+                } else if (refDepth == 1 || refDepth == 2) {
+                    //export the ref
+                    int numSites = 0;
+                    while (numSites < refAllele.length() && siteCounter + numSites < lastSite - 1) {
+                        numSites++;
+                    }
+                    if (masked) {
+                        result.addN(numSites);
+                    } else {
+                        result.add(refAllele, numSites);
+                    }
+                    if (stats != null) {
+                        stats.depthCount += depth * numSites;
+                        stats.numberHomoRef1Or2Count += numSites;
+                    }
+                } else if (altDepth == 1 || altDepth == 2) {
+                    //call Ns
+                    String altAllele = variants[1];
+                    result.addN(altAllele.length());
+                    if (stats != null) {
+                        stats.depthCount += depth * altAllele.length();
+                        stats.numberHomoAlt1Or2Count += altAllele.length();
+                    }
+                } else if (altDepth >= 3) {
+                    String altAllele = variants[1];
+                    if (masked) {
+                        result.addN(altAllele.length());
+                    } else {
+                        result.add(altAllele, altAllele.length());
+                        siteCounter += refAllele.length() - 1;
+                    }
+                    if (stats != null) {
+                        stats.altCount += altAllele.length();
+                        stats.numberHomoAlt3PlusCount += altAllele.length();
+                        stats.depthCount += depth * altAllele.length();
                     }
-                    listOfChrPositionsCounter++;
                 } else {
-                    //grab the reference as we dont have a gvcf for the requested site
-                    //Should this be the breaking point of the sequence??
-                    //TODO should we mark these with Ns?
-
-                    //With 0 coverage we want to export an N
-                    byteList.add(NucleotideAlignmentConstants.getNucleotideAlleleByte("N"));
-//                    regionDepthCount+=0;
-//                    regionZeroCoverageCount++;
-
+                    //in the case where we have 0 depth for each allele it will fall through all the cases
+                    //lets stick in Ns for the number of reference basepairs  fix the old method header as well.
+                    result.add(refAllele, refAllele.length());
+                    siteCounter += refAllele.length() - 1;
                 }
             }
+            current++;
         }
-//        regionTotalExportedBPCount = byteList.size();
-        byte[] fullBytes = new byte[byteList.size()];
-        for(int i = 0; i < fullBytes.length; i++) {
-            fullBytes[i] = byteList.get(i);
-        }
-        return fullBytes;
+
+        return result.toArray();
+
     }
 
+    /**
+     * Growable array of allele bytes.
+     */
+    private static class SequenceBuffer {
 
-    @Override
-    //Code to get the Sequence in a string as well as the various stats we have collected.
-    // This should allow for safe multithreading for the stats.
-    public HashMap<String, String> chromosomeSequenceAndStats(Chromosome chrom, int startSite, int lastSite) {
-        long queryTimeStart = System.currentTimeMillis();
-
-        int regionTotalReferenceBPCount = 0;
-        int regionTotalExportedBPCount = 0;
-        int regionHetCount = 0;
-        int regionAltCount = 0;
-        int regionDepthCount = 0;
-        int regionGQCount = 0;
-        int regionMinDepthCount = 0;
-        int regionZeroCoverageCount = 0;
-        int regionNumberHomoRef1Or2Count = 0;
-        int regionNumberHomoRef3PlusCount = 0;
-        int regionNumberHomoAlt1Or2Count = 0;
-        int regionNumberHomoAlt3PlusCount = 0;
-
-        final int startSiteFinal = startSite;
-        final int lastSiteFinal = lastSite;
+        private byte[] myBytes;
+        private int mySize = 0;
 
-        //add one as we grab the last site as well.
-        regionTotalReferenceBPCount = lastSite - startSite+1;
-
-        //zrm22 new for getting gvcf records.
-        //Basically the loop now changes to loop through the positionList to check if the allele should be the ref or not
-//        gvcfAnnotationsAndCalls.chromosomeSiteCount(chrom);
-
-        long getCurrentSubsetPositionListTimeStart = System.currentTimeMillis();
-        //use the index to get the currentList of positions
-        int[] currentIndex = positionIndex.get(chrom);
-        int startPositionListIndex = currentIndex[startSite/indexScaleFactor];
-        int endPositionListIndex = currentIndex[lastSite/indexScaleFactor+1];
-
-        int startPositionListCounter = 1;
-        while(startPositionListIndex==-1) {
-            startPositionListIndex = currentIndex[startSite/indexScaleFactor-startPositionListCounter];
-            startPositionListCounter++;
-        }
-        ArrayList<Position> listOfChrPositions = new ArrayList<>();
-        int actualStartIndex = Integer.MAX_VALUE;
-        if(endPositionListIndex==-1) {
-            for(int i = startPositionListIndex; i < startPositionListIndex+indexScaleFactor && i < gvcfAnnotationsAndCalls.size(); i++) {
-
-                if(gvcfAnnotationsAndCalls.get(i).getPosition()>=startSiteFinal && gvcfAnnotationsAndCalls.get(i).getPosition()<=lastSiteFinal) {
-                    if(i < actualStartIndex) {
-                        actualStartIndex = i;
-                    }
-                    listOfChrPositions.add(gvcfAnnotationsAndCalls.get(i));
-                }
-            }
+        SequenceBuffer(int initialSize) {
+            myBytes = new byte[Math.max(initialSize, 16)];
         }
-        else {
-            for (int i = startPositionListIndex; i <= endPositionListIndex; i++) {
-                if (gvcfAnnotationsAndCalls.get(i).getPosition() >= startSiteFinal && gvcfAnnotationsAndCalls.get(i).getPosition() <= lastSiteFinal) {
-                    if(i < actualStartIndex) {
-                        actualStartIndex = i;
-                    }
-                    listOfChrPositions.add(gvcfAnnotationsAndCalls.get(i));
-                }
+
+        private void ensureCapacity(int numToAdd) {
+            if (mySize + numToAdd > myBytes.length) {
+                myBytes = Arrays.copyOf(myBytes, Math.max(myBytes.length * 2, mySize + numToAdd));
             }
         }
-        long totalTimeToSubsetPosList = System.currentTimeMillis() - getCurrentSubsetPositionListTimeStart;
-        //sort things to make sure we can iterate properly
-        long sortPosTimeStart = System.currentTimeMillis();
-        Collections.sort(listOfChrPositions);
-        long totalTimeToSortPosList = System.currentTimeMillis() - sortPosTimeStart;
-
-        int actualStartPos = 0;
-        int startIndex = 0;
-        int actualEndPos = 0;
-        int endIndex = 0;
-
-        long addAPositionToStartTime = System.currentTimeMillis();
-        boolean addingAtStart = false;
-        if(listOfChrPositions.size()>0 && startPositionListIndex!=0) {
-            if(checkPositionCoverage(gvcfAnnotationsAndCalls.get(actualStartIndex-1),startSiteFinal)) {
-                startIndex = actualStartIndex -1;
-                listOfChrPositions.add(0,gvcfAnnotationsAndCalls.get(startIndex));
-                addingAtStart = true;
-            }
 
-
-//            for (int i = 1; i < gvcfAnnotationsAndCalls.size(); i++) {
-//            for (int i = startPositionListIndex; i < gvcfAnnotationsAndCalls.size(); i++) {
-//                if (gvcfAnnotationsAndCalls.get(i).getPosition() == listOfChrPositions.get(0).getPosition()) {
-//                    if (checkPositionCoverage(gvcfAnnotationsAndCalls.get(i - 1), startSiteFinal)) {
-//                        startIndex = i-1;
-//                        listOfChrPositions.add(0,gvcfAnnotationsAndCalls.get(startIndex));
-//                        addingAtStart = true;
-//                    }
-//                    break;
-//                }
-//            }
+        void add(byte allele) {
+            ensureCapacity(1);
+            myBytes[mySize++] = allele;
         }
-        long totalTimeToAddStartPosition = System.currentTimeMillis() - addAPositionToStartTime;
-
-        //loop through from startSite till the first position in the GVCF export these alleles directly from the ref
-        int listOfChrPositionsCounter = 0;
-        ArrayList<Byte> byteList = new ArrayList<>();
 
-        if(listOfChrPositions.size()==0) {
-            //Export a single N for a missing sequence
-            byteList.add(NucleotideAlignmentConstants.getNucleotideAlleleByte("N"));
+        void addN(int count) {
+            if (count <= 0) return;
+            ensureCapacity(count);
+            Arrays.fill(myBytes, mySize, mySize + count, N_ALLELE);
+            mySize += count;
         }
-        else {
-            for (int siteCounter = startSite; siteCounter <= lastSite && listOfChrPositionsCounter < listOfChrPositions.size(); siteCounter++) {
-                GeneralAnnotation ga = listOfChrPositions.get(listOfChrPositionsCounter).getAnnotation();
-                Set<String> annotationKeys = ga.getAnnotationKeys();
-                if(addingAtStart) {
-                    if (listOfChrPositionsCounter != 0) {
-                        if (filterBitSet.fastGet(listOfChrPositionsCounter-1)) {
-                            //get the size of the position
-                            if (annotationKeys.contains("END")) {
-                                int lengthOfPosBlock = Integer.parseInt((String) ga.getTextAnnotation("END")[0]) - listOfChrPositions.get(listOfChrPositionsCounter).getPosition();
-                                siteCounter+=lengthOfPosBlock;
-                            }
-                            else{
-                                //check insertion or deletion
-                                String[] variants = listOfChrPositions.get(listOfChrPositionsCounter).getKnownVariants();
-                                siteCounter+=variants[0].length()-1;
-                            }
-                            listOfChrPositionsCounter++;
-                            continue;
-                        }
-                    }
-                }
-                else {
-                    if (filterBitSet.fastGet(listOfChrPositionsCounter)) {
-                        if (annotationKeys.contains("END")) {
-                            int lengthOfPosBlock = Integer.parseInt((String) ga.getTextAnnotation("END")[0]) - listOfChrPositions.get(listOfChrPositionsCounter).getPosition();
-                            siteCounter+=lengthOfPosBlock;
-                        }
-                        else{
-                            //check insertion or deletion
-                            String[] variants = listOfChrPositions.get(listOfChrPositionsCounter).getKnownVariants();
-                            siteCounter+=variants[0].length()-1;
-                        }
-                        listOfChrPositionsCounter++;
-                        continue;
-                    }
-                }
-                if (maskBitSet.fastGet(listOfChrPositionsCounter)) {
-                    //if true it means we have to mask all of these positions
-                    //Check to see if we have an END anno
-                }
-                if (listOfChrPositions.get(listOfChrPositionsCounter).getPosition() <= siteCounter) {
-                    if (annotationKeys.contains("END")) {
-                        //this means we have a block
-                        //Check the call and grab the corresponding allele values
-                        String call = ga.getTextAnnotation("GT")[0];
-                        boolean phased = true;
-                        boolean haploid = false;
-                        if (call.contains("/")) {
-                            phased = false;
-                        } else if (call.contains("|")) {
-                            phased = true;
-                        } else {
-                            haploid = true;
-                        }
-                        String[] callSplit = phased ? call.split("|") : call.split("/");
-                        int leftAllele = Integer.parseInt(callSplit[0]);
-                        int rightAllele = leftAllele;
-                        if (!haploid) {
-                            rightAllele = Integer.parseInt(callSplit[1]);
-                        }
-                        int endPoint = Integer.parseInt(ga.getTextAnnotation("END")[0]) - 1;
-                        //check to see if our requested end point is smaller than the region
-                        if(lastSite-1<endPoint) {
-                            endPoint = lastSite-1;
-                        }
-                        //Get the known Variants
-                        int startSiteShifted = siteCounter - 1;  //shift over to zero bas
-
-                        if (startSite < 0)
-                            throw new IllegalArgumentException("GenomeSequenceBuilder.chromosomeSequence: starting parameter is less than 1 for 1-based method");
-                        ; // method needs 1-based coordinates.
-                        byte[] packedBytes = chromPositionMap.get(chrom);
-                        if (packedBytes == null)
-                            throw new IllegalArgumentException("GenomeSequenceBuilder.chromosomeSequence: chromosome not found"); // chromosome not found
-                        if (startSiteShifted > packedBytes.length * 2 || endPoint > packedBytes.length * 2) {
-                            throw new IllegalArgumentException("GenomeSequenceBuilder.chromosomeSequence: requested sequence is out of range"); // requested sequence is out of range
-                        }
-                        String[] variants = listOfChrPositions.get(listOfChrPositionsCounter).getKnownVariants();
-                        String leftAlleleString = variants[leftAllele];
-
-                        //check depth
-//                        String dpFullString = (String) annos.get("DP").toArray()[0];
-                        String dpFullString = ga.getTextAnnotation("DP")[0];
-
-                        // String minDPString = (String) annos.get("MIN_DP").toArray()[0];
-                        //TODO check to see if we should assume only Ref or<NON_REF> call for blocks
-                        if (maskBitSet.fastGet(listOfChrPositionsCounter) || dpFullString.equals("0")) {
-
-                            //if true we have a masking
-                            for (int i = startSiteShifted; i <= endPoint; i++) {
-                                regionDepthCount+=0;
-                                regionZeroCoverageCount++;
-
-                                byteList.add(NucleotideAlignmentConstants.getNucleotideAlleleByte("N"));
-                            }
-                        } else if (leftAllele == 0) {
-                            //fill in with reference sequence
-                            //pull the sequence from siteCounter till you get to endPoint
-                            //Zrm Apr17 fix for default rules
-                            //check if homozygous or het based on GT calls
-                            int depth = 0;
-                            int minDepth = 0;
-                            if(!dpFullString.equals("")) {
-                                depth = Integer.parseInt(dpFullString);
-                            }
-                            for (int i = startSiteShifted; i <= endPoint; i++) {
-                                regionDepthCount+=depth;
-                                regionMinDepthCount+=minDepth;
-                                byteList.add((byte) ((i % 2 == 0) ? ((packedBytes[i / 2] & 0xF0) >> 4) : (packedBytes[i / 2] & 0x0F)));
-                            }
-
-                        } else {
-                            int depth = 0;
-                            if(!dpFullString.equals("")) {
-                                depth = Integer.parseInt(dpFullString);
-                            }
-                            for (int i = startSiteShifted; i <= endPoint; i++) {
-                                regionDepthCount+=depth;
-                                regionZeroCoverageCount++;
-                                byteList.add(NucleotideAlignmentConstants.getNucleotideAlleleByte("N"));
-                            }
-                        }
-                        //shift up the siteCounter to match the end
-                        siteCounter = endPoint + 1;
-                    } else {
-                        //it is likely a snp
-                        //check the call and grab the correct allele
-                        //siteCounter will increment correctly
-                        String call = ga.getTextAnnotation("GT")[0];
-                        boolean phased = true;
-                        boolean haploid = false;
-                        if (call.contains("/")) {
-                            phased = false;
-                        } else if (call.contains("|")) {
-                            phased = true;
-                        } else {
-                            //haploid
-                            haploid = true;
-                        }
-                        String[] callSplit = phased ? call.split("|") : call.split("/");
-                        int leftAllele = Integer.parseInt(callSplit[0]);
-                        int rightAllele = leftAllele;
-                        if (!haploid) {
-                            rightAllele = Integer.parseInt(callSplit[1]);
-                        }
 
-                        //Get the AD field and split it on commas
-                        String adsFullString = ga.getTextAnnotation("AD")[0];
-                        String dpFullString = ga.getTextAnnotation("DP")[0];
-                        String[] adSplit = adsFullString.split(",");
-                        //Get the known Variants
-                        String[] variants = listOfChrPositions.get(listOfChrPositionsCounter).getKnownVariants();
-                        boolean isHet = calcHet(adSplit);
-                        if (isHet) {
-                            //TODO handle hets correctly for indels and such
-                            String leftAlleleString = variants[0];
-                            siteCounter+=leftAlleleString.length()-1;
-                            for(int i = 0; i < leftAlleleString.length();i++) {
-                                regionHetCount++;
-                            }
-                        }
-                        //ZRM April17 do calls based on depth only
-                        else if (adSplit[0].equals("1") || adSplit[0].equals("2")) {
-                            if (adSplit[1].equals("0")) {
-                                //export the ref
-                                String leftAlleleString = variants[0];
-
-                                int depth = 0;
-                                if(!dpFullString.equals("")) {
-                                    depth = Integer.parseInt(dpFullString);
-                                }
-
-                                if (maskBitSet.fastGet(listOfChrPositionsCounter)) {
-                                    //if true we have to mask it
-                                    for (int i = 0; i < leftAlleleString.length() && siteCounter+i < lastSite-1; i++) {
-                                        regionDepthCount+=depth;
-                                        regionNumberHomoRef1Or2Count++;
-                                        byteList.add(NucleotideAlignmentConstants.getNucleotideAlleleByte("N"));
-                                    }
-                                } else {
-                                    for (int i = 0; i < leftAlleleString.length() && siteCounter+i < lastSite-1; i++) {
-                                        regionDepthCount+=depth;
-                                        regionNumberHomoRef1Or2Count++;
-                                        byteList.add(NucleotideAlignmentConstants.getNucleotideAlleleByte(leftAlleleString.charAt(i)));
-                                    }
-                                }
-                            }
-
-                        } else if (adSplit[1].equals("1") || adSplit[1].equals("2")) {
-                            //call Ns
-                            //export the ref
-                            String leftAlleleString = variants[1];
-                            int depth = 0;
-                            if(!dpFullString.equals("")) {
-                                depth = Integer.parseInt(dpFullString);
-                            }
-                            for (int i = 0; i < leftAlleleString.length(); i++) {
-                                regionDepthCount+=depth;
-                                regionNumberHomoAlt1Or2Count++;
-                                byteList.add(NucleotideAlignmentConstants.getNucleotideAlleleByte("N"));
-                            }
-                        } else if (Integer.parseInt(adSplit[1]) >= 3) {
-                            int depth = 0;
-                            if(!dpFullString.equals("")) {
-                                depth = Integer.parseInt(dpFullString);
-                            }
-                            String leftAlleleString = variants[1];
-                            if (maskBitSet.fastGet(listOfChrPositionsCounter)) {
-                                //if true we have to mask it
-                                for (int i = 0; i < leftAlleleString.length(); i++) {
-                                    regionAltCount++;
-                                    regionNumberHomoAlt3PlusCount++;
-                                    regionDepthCount+=depth;
-                                    byteList.add(NucleotideAlignmentConstants.getNucleotideAlleleByte("N"));
-                                }
-                            } else {
-                                for (int i = 0; i < leftAlleleString.length(); i++) {
-                                    regionAltCount++;
-                                    regionNumberHomoAlt3PlusCount++;
-                                    regionDepthCount+=depth;
-                                    byteList.add(NucleotideAlignmentConstants.getNucleotideAlleleByte(leftAlleleString.charAt(i)));
-                                }
-                                siteCounter+=variants[0].length()-1;
-                            }
-                        }
-                        else {
-                            //in the case where we have 0 depth for each allele it will fall through all the cases
-                            //lets stick in Ns for the number of reference basepairs  fix the old method header as well.
-                            String leftAlleleString = variants[0];
-
-                            for (int i = 0; i < leftAlleleString.length(); i++) {
-//                                    regionAltCount++;
-//                                    regionNumberHomoAlt3PlusCount++;
-//                                    regionDepthCount+=depth;
-                                byteList.add(NucleotideAlignmentConstants.getNucleotideAlleleByte(leftAlleleString.charAt(i)));
-                            }
-                            siteCounter+=variants[0].length()-1;
-                        }
-                    }
-                    listOfChrPositionsCounter++;
-                } else {
-                    //grab the reference as we dont have a gvcf for the requested site
-                    //Should this be the breaking point of the sequence??
-                    //TODO should we mark these with Ns?
-
-                    //With 0 coverage we want to export an N
-                    byteList.add(NucleotideAlignmentConstants.getNucleotideAlleleByte("N"));
-                    regionDepthCount+=0;
-                    regionZeroCoverageCount++;
-
-                }
+        /**
+         * Adds first count alleles of allele string
+         */
+        void add(String alleles, int count) {
+            ensureCapacity(count);
+            for (int i = 0; i < count; i++) {
+                myBytes[mySize++] = NucleotideAlignmentConstants.getNucleotideAlleleByte(alleles.charAt(i));
             }
         }
-        regionTotalExportedBPCount = byteList.size();
-        byte[] fullBytes = new byte[byteList.size()];
-        for(int i = 0; i < fullBytes.length; i++) {
-            fullBytes[i] = byteList.get(i);
-        }
-
-        //Compile the HashMap<String,String>();
-        HashMap<String,String> sequenceAndStats = new HashMap<>();
-        sequenceAndStats.put("Sequence",NucleotideAlignmentConstants.nucleotideBytetoString(fullBytes));
-
-        sequenceAndStats.put("RefSize",""+regionTotalReferenceBPCount);
-        sequenceAndStats.put("Size", ""+regionTotalExportedBPCount);
-        sequenceAndStats.put("HetCount",""+regionHetCount);
-        sequenceAndStats.put("AltCount",""+regionAltCount);
-        sequenceAndStats.put("Depth",""+regionDepthCount);
-        sequenceAndStats.put("GQ",""+regionGQCount);
-        sequenceAndStats.put("Min_Depth",""+regionMinDepthCount);
-        sequenceAndStats.put("ZeroCoverageCount",""+regionZeroCoverageCount);
-        sequenceAndStats.put("HomoRefCount",""+regionNumberHomoRef1Or2Count);
-        sequenceAndStats.put("HomoAltLowDepthCount",""+regionNumberHomoAlt1Or2Count);
-        sequenceAndStats.put("HomoAltHighDepthCount",""+regionNumberHomoAlt3PlusCount);
-
-        long queryTimeEnd = System.currentTimeMillis();
-//        System.out.println("Current Query Time:"+(queryTimeEnd - queryTimeStart)+"ms\n" +
-//                "Time Taken to subset Pos List"+totalTimeToSubsetPosList+"ms\n" +
-//                "Time Taken to sort Pos List"+totalTimeToSortPosList+"ms\n" +
-//                "Time Taken to add a Position to start of List:"+totalTimeToAddStartPosition+"ms\n");
 
-//        System.out.println("Current Query Time:"+(queryTimeEnd - queryTimeStart)+"ms");
-
-
-        return sequenceAndStats;
+        /**
+         * Adds reference from packed half bytes (zero based, inclusive)
+         */
+        void addReference(byte[] packedBytes, int start, int end) {
+            if (end < start) return;
+            ensureCapacity(end - start + 1);
+            for (int i = start; i <= end; i++) {
+                myBytes[mySize++] = (byte) ((i % 2 == 0) ? ((packedBytes[i / 2] & 0xF0) >> 4) : (packedBytes[i / 2] & 0x0F));
+            }
+        }
 
+        byte[] toArray() {
+            return Arrays.copyOf(myBytes, mySize);
+        }
 
     }
 
@@ -1159,46 +715,16 @@ class HalfByteGenomeSequenceGVCF implements GVCFGenomeSequence{
         return mappedCoordinates;
     }
 
-    private boolean checkPositionCoverage(Position pos, int site) {
-//        SetMultimap<String,String> annos = pos.getAnnotation().getAnnotationAsMap();
-        GeneralAnnotation ga = pos.getAnnotation();
-//        if(annos.containsKey("END")) {
-//            int endPoint = Integer.parseInt((String)annos.get("END").toArray()[0]);
-//            if(pos.getPosition()<=site && site <= endPoint) {
-//                return true;
-//            }
-//            else {
-//                return false;
-//            }
-//
-//        }
-
-        String[] endArray = ga.getTextAnnotation("END");
-
-//        if(ga.getAnnotationKeys().contains("END")) {
-        if(endArray.length!=0) {
-//            int endPoint = Integer.parseInt(ga.getTextAnnotation("END")[0]);
-            int endPoint = Integer.parseInt(endArray[0]);
-            if(pos.getPosition()<=site && site <= endPoint) {
-                return true;
-            }
-            else {
-                return false;
-            }
 
-        }
-        else if(pos.getPosition()==site) {
+    private boolean covers(GVCFRecordStore.ChromosomeRecords records, int record, int site) {
+        int start = records.start(record);
+        if (records.isBlock(record)) {
+            return start <= site && site <= records.end(record);
+        } else if (start == site) {
             return true;
-        }
-        else {
-            String[] alleles = pos.getKnownVariants();
+        } else {
             //check to see if we have a deletion and the reference covers the whole
-            if(alleles[0].length()+pos.getPosition()>=site) {
-                return true;
-            }
-            else {
-                return false;
-            }
+            return records.alleles(record)[0].length() + start >= site;
         }
     }
 
@@ -1208,47 +734,22 @@ class HalfByteGenomeSequenceGVCF implements GVCFGenomeSequence{
     public HashMap<Chromosome,ArrayList<ArrayList<Integer>>> getConsecutiveRegions() {
         HashMap<Chromosome,ArrayList<ArrayList<Integer>>> consecRegions = new HashMap<>();
         Set<Chromosome> chromosomeSet = chromosomes();
-        //Loop through each chromosome add to a Map<RangeMap>
-        HashMap<Chromosome,RangeSet<Integer>> rangeMaps = new HashMap<>();
         for(Chromosome chr : chromosomeSet) {
-            rangeMaps.put(chr,TreeRangeSet.create());
             consecRegions.put(chr,new ArrayList<>());
-        }
-
-        for(int i = 0 ; i < gvcfAnnotationsAndCalls.size(); i++) {
-            if(filterBitSet.fastGet(i)) {
-                //if we have a position to filter out, we should probably break the fasta sequence
-                //to do this, just do not add in the range... RangeMap will handle it for you
-                continue;
-            }
-
-            Position currentPosition = gvcfAnnotationsAndCalls.get(i);
-            SetMultimap<String,String> annos = currentPosition.getAnnotation().getAnnotationAsMap();
-            if(annos.containsKey("END")) {
-                int endPoint = Integer.parseInt((String)annos.get("END").toArray()[0]);
-                rangeMaps.get(currentPosition.getChromosome()).add(Range.closed(currentPosition.getPosition(),endPoint+1));
-            }
-            else {
-                //check to make sure that the reference allele is more than one allele(A deletion)
-                String[] variants = currentPosition.getKnownVariants();
-                //TODO handle hets correctly for indels and such
-                String refAlleleString = variants[0];
-                if(refAlleleString.length()>1) {
-                    //we have a deletion or an insertion+deletion as such our END point will need to take into account the size of the deletion
-                    rangeMaps.get(currentPosition.getChromosome()).add(Range.closed(currentPosition.getPosition(),currentPosition.getPosition()+refAlleleString.length()));
-                }
-                else {
-                    //This will cause the index of the next line in the GVCF file to be non consecutive with the previous
-                    rangeMaps.get(currentPosition.getChromosome()).add(Range.closed(currentPosition.getPosition(), currentPosition.getPosition() + 1));
-
+            GVCFRecordStore.ChromosomeRecords records = gvcfRecords.records(chr);
+            if (records == null) continue;
+            RangeSet<Integer> rangeSet = TreeRangeSet.create();
+            for (int i = 0; i < records.numberOfRecords(); i++) {
+                if(filterBitSet.fastGet(records.globalIndex(i))) {
+                    //if we have a position to filter out, we should probably break the fasta sequence
+                    //to do this, just do not add in the range... RangeMap will handle it for you
+                    continue;
                 }
+                //end is the END annotation of blocks or the last site of the reference allele,
+                //so the next record is consecutive if it starts at end+1
+                rangeSet.add(Range.closed(records.start(i), records.end(i) + 1));
             }
-
-        }
-
-        for(Chromosome chr : chromosomeSet) {
-            Set<Range<Integer>> rangeSet = rangeMaps.get(chr).asRanges();
-            for(Range<Integer> currentRange : rangeSet) {
+            for(Range<Integer> currentRange : rangeSet.asRanges()) {
                 ArrayList<Integer> currentList = new ArrayList<Integer>();
                 currentList.add(currentRange.lowerEndpoint());
                 //We need to subtract 1 point so it will be [inclusive,inclusive] instead of [inclusive,exclusive)
@@ -1303,19 +804,8 @@ class HalfByteGenomeSequenceGVCF implements GVCFGenomeSequence{
         filterBitSet.fastFlip(index);
     }
     public PositionList getGVCFPositions() {
-        return gvcfAnnotationsAndCalls;
+        return gvcfRecords.positions();
     }
-
-    private boolean calcHet(String[] adSplit) {
-        boolean isHet = false;
-        int refDepth = Integer.parseInt(adSplit[0]);
-        int altDepth = Integer.parseInt(adSplit[1]);
-        if(refDepth>0 && altDepth>0) {
-            isHet = true;
-        }
-        return isHet;
-    }
-
     @Override
     public void resetCounters() {
 //        regionTotalReferenceBPCount = 0;
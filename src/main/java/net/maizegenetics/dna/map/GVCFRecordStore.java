@@ -0,0 +1,393 @@
+package net.maizegenetics.dna.map;
+
+import net.maizegenetics.util.GeneralAnnotation;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Compact storage of the records of a single sample GVCF file. Records are
+ * kept per chromosome as primitive arrays (start, end, depth, GQ, allele
+ * depths) instead of one Position per record, so reference blocks only cost
+ * a few ints each. Allele strings and genotype calls repeat heavily (i.e.
+ * A/&lt;NON_REF&gt; and 0/0), so they are dictionary encoded.
+ * <p>
+ * Records are numbered across chromosomes in file order. This is the index
+ * used by the mask and filter bit sets of GVCFGenomeSequence.
+ */
+final class GVCFRecordStore {
+
+    static final int MISSING = -1;
+
+    private final Map<Chromosome, ChromosomeRecords> myRecords;
+    private final String[][] myAlleles;
+    private final String[] myGenotypes;
+    private final int[] myGenotypeLeftAllele;
+    private final int myNumRecords;
+    private PositionList myPositions = null;
+
+    private GVCFRecordStore(Map<Chromosome, ChromosomeRecords> records, List<String> alleles, List<String> genotypes, int numRecords) {
+        myRecords = records;
+        myAlleles = new String[alleles.size()][];
+        for (int i = 0; i < myAlleles.length; i++) {
+            myAlleles[i] = alleles.get(i).split("/");
+        }
+        myGenotypes = genotypes.toArray(new String[0]);
+        myGenotypeLeftAllele = new int[myGenotypes.length];
+        for (int i = 0; i < myGenotypes.length; i++) {
+            myGenotypeLeftAllele[i] = leftAllele(myGenotypes[i]);
+        }
+        myNumRecords = numRecords;
+    }
+
+    /**
+     * Converts positions with the annotations created from a GVCF file (END,
+     * GT, AD, DP, GQ and known variants).
+     */
+    static GVCFRecordStore instance(PositionList positions) {
+        Builder builder = new Builder();
+        for (Position current : positions) {
+            GeneralAnnotation annotation = current.getAnnotation();
+            String[] end = annotation.getTextAnnotation("END");
+            String[] variants = current.getKnownVariants();
+            String alleles = variants == null ? "" : String.join("/", variants);
+            String[] ad = first(annotation.getTextAnnotation("AD"), "").split(",");
+            builder.add(current.getChromosome(), current.getPosition(),
+                    end.length == 0 ? MISSING : Integer.parseInt(end[0]),
+                    alleles, first(annotation.getTextAnnotation("GT"), "."),
+                    parseInt(first(annotation.getTextAnnotation("DP"), "")),
+                    parseInt(first(annotation.getTextAnnotation("GQ"), "")),
+                    ad.length > 0 ? parseInt(ad[0]) : MISSING,
+                    ad.length > 1 ? parseInt(ad[1]) : MISSING);
+        }
+        return builder.build();
+    }
+
+    private static String first(String[] values, String defaultValue) {
+        return values.length == 0 ? defaultValue : values[0];
+    }
+
+    /**
+     * Parses non-negative integer. Returns MISSING for empty or non-numeric
+     * values (i.e. '.')
+     */
+    static int parseInt(CharSequence value) {
+        int length = value.length();
+        if (length == 0) {
+            return MISSING;
+        }
+        int result = 0;
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c < '0' || c > '9') {
+                return MISSING;
+            }
+            result = result * 10 + (c - '0');
+        }
+        return result;
+    }
+
+    /**
+     * Returns first allele of a genotype call (i.e. 0 for 0/1) or MISSING
+     */
+    private static int leftAllele(String genotype) {
+        int separator = 0;
+        while (separator < genotype.length() && genotype.charAt(separator) != '/' && genotype.charAt(separator) != '|') {
+            separator++;
+        }
+        return parseInt(genotype.substring(0, separator));
+    }
+
+    int numberOfRecords() {
+        return myNumRecords;
+    }
+
+    Set<Chromosome> chromosomes() {
+        return myRecords.keySet();
+    }
+
+    /**
+     * Records for chromosome or null if GVCF had no records for it.
+     */
+    ChromosomeRecords records(Chromosome chromosome) {
+        return myRecords.get(chromosome);
+    }
+
+    /**
+     * Rebuilds positions with END, GT, AD, DP, and GQ annotations and known
+     * variants. Other INFO annotations are not retained.
+     */
+    synchronized PositionList positions() {
+        if (myPositions == null) {
+            ArrayList<Position> positions = new ArrayList<>(myNumRecords);
+            for (ChromosomeRecords records : myRecords.values()) {
+                for (int i = 0; i < records.numberOfRecords(); i++) {
+                    GeneralPosition.Builder builder = new GeneralPosition.Builder(records.chromosome(), records.start(i))
+                            .knownVariants(myAlleles[records.myAlleleCode[i]]);
+                    if (records.isBlock(i)) {
+                        builder.addAnno("END", String.valueOf(records.end(i)));
+                    }
+                    builder.addAnno("GT", myGenotypes[records.myGenotypeCode[i]]);
+                    if (records.myRefDepth[i] != MISSING) {
+                        builder.addAnno("AD", records.myRefDepth[i] + "," + (records.myAltDepth[i] == MISSING ? 0 : records.myAltDepth[i]));
+                    }
+                    builder.addAnno("DP", records.depth(i) == MISSING ? "" : String.valueOf(records.depth(i)));
+                    if (records.genotypeQuality(i) != MISSING) {
+                        builder.addAnno("GQ", String.valueOf(records.genotypeQuality(i)));
+                    }
+                    positions.add(builder.build());
+                }
+            }
+            myPositions = new PositionArrayList(positions, "AGPv4");
+        }
+        return myPositions;
+    }
+
+    /**
+     * Records of one chromosome sorted by start.
+     */
+    final class ChromosomeRecords {
+
+        private final Chromosome myChromosome;
+        private final int myFirstIndex;
+        private final int myNumRecords;
+        private final int[] myStart;
+        private final int[] myEnd;
+        private final int[] myDepth;
+        private final int[] myGQ;
+        private final int[] myRefDepth;
+        private final int[] myAltDepth;
+        private final int[] myAlleleCode;
+        private final int[] myGenotypeCode;
+        // set for reference blocks (records with an END annotation)
+        private final long[] myBlock;
+
+        private ChromosomeRecords(RecordsBuilder builder) {
+            myChromosome = builder.myChromosome;
+            myFirstIndex = builder.myFirstIndex;
+            myNumRecords = builder.myNumRecords;
+            myStart = Arrays.copyOf(builder.myStart, myNumRecords);
+            myEnd = Arrays.copyOf(builder.myEnd, myNumRecords);
+            myDepth = Arrays.copyOf(builder.myDepth, myNumRecords);
+            myGQ = Arrays.copyOf(builder.myGQ, myNumRecords);
+            myRefDepth = Arrays.copyOf(builder.myRefDepth, myNumRecords);
+            myAltDepth = Arrays.copyOf(builder.myAltDepth, myNumRecords);
+            myAlleleCode = Arrays.copyOf(builder.myAlleleCode, myNumRecords);
+            myGenotypeCode = Arrays.copyOf(builder.myGenotypeCode, myNumRecords);
+            myBlock = Arrays.copyOf(builder.myBlock, (myNumRecords + 63) >>> 6);
+        }
+
+        Chromosome chromosome() {
+            return myChromosome;
+        }
+
+        int numberOfRecords() {
+            return myNumRecords;
+        }
+
+        /**
+         * Record index across all chromosomes (mask and filter bit index)
+         */
+        int globalIndex(int record) {
+            return myFirstIndex + record;
+        }
+
+        int start(int record) {
+            return myStart[record];
+        }
+
+        /**
+         * Last reference site covered by record (inclusive). For blocks, the
+         * END annotation. Otherwise, start plus length of reference allele
+         * minus one.
+         */
+        int end(int record) {
+            return myEnd[record];
+        }
+
+        boolean isBlock(int record) {
+            return (myBlock[record >>> 6] & (1L << record)) != 0;
+        }
+
+        int depth(int record) {
+            return myDepth[record];
+        }
+
+        int genotypeQuality(int record) {
+            return myGQ[record];
+        }
+
+        /**
+         * First value of AD, or zero if missing
+         */
+        int refDepth(int record) {
+            return Math.max(myRefDepth[record], 0);
+        }
+
+        /**
+         * Second value of AD, or zero if missing
+         */
+        int altDepth(int record) {
+            return Math.max(myAltDepth[record], 0);
+        }
+
+        /**
+         * Reference allele followed by alternate alleles
+         */
+        String[] alleles(int record) {
+            return myAlleles[myAlleleCode[record]];
+        }
+
+        /**
+         * First allele of genotype call or MISSING
+         */
+        int leftAllele(int record) {
+            return myGenotypeLeftAllele[myGenotypeCode[record]];
+        }
+
+        /**
+         * Index of first record starting at or after site.
+         */
+        int firstStartingAtOrAfter(int site) {
+            int low = 0;
+            int high = myNumRecords;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (myStart[middle] < site) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return low;
+        }
+
+    }
+
+    /**
+     * Accumulates records in file order. Records must be sorted by chromosome
+     * and position.
+     */
+    static final class Builder {
+
+        private final Map<Chromosome, RecordsBuilder> myBuilders = new LinkedHashMap<>();
+        private final Map<String, Integer> myAlleleCodes = new HashMap<>();
+        private final List<String> myAlleles = new ArrayList<>();
+        private final Map<String, Integer> myGenotypeCodes = new HashMap<>();
+        private final List<String> myGenotypes = new ArrayList<>();
+        private RecordsBuilder myCurrent = null;
+        private int myNumRecords = 0;
+
+        /**
+         * Adds record.
+         *
+         * @param chromosome chromosome
+         * @param start position (1-based)
+         * @param end END annotation or MISSING if record isn't a reference block
+         * @param alleles reference and alternate alleles separated by '/'
+         * @param genotype genotype call (GT)
+         * @param depth DP or MISSING
+         * @param gq GQ or MISSING
+         * @param refDepth first AD value or MISSING
+         * @param altDepth second AD value or MISSING
+         */
+        Builder add(Chromosome chromosome, int start, int end, String alleles, String genotype, int depth, int gq, int refDepth, int altDepth) {
+
+            if (myCurrent == null || !myCurrent.myChromosome.equals(chromosome)) {
+                if (myBuilders.containsKey(chromosome)) {
+                    throw new IllegalStateException("GVCFRecordStore: Builder: add: GVCF must be sorted by chromosome. Records for chromosome: " + chromosome.getName() + " are not together.");
+                }
+                myCurrent = new RecordsBuilder(chromosome, myNumRecords);
+                myBuilders.put(chromosome, myCurrent);
+            } else if (myCurrent.myNumRecords != 0 && start < myCurrent.myStart[myCurrent.myNumRecords - 1]) {
+                throw new IllegalStateException("GVCFRecordStore: Builder: add: GVCF must be sorted by position. Chromosome: " + chromosome.getName() + " position: " + start);
+            }
+
+            int refLength = alleles.indexOf('/');
+            if (refLength < 0) {
+                refLength = alleles.length();
+            }
+            boolean block = end != MISSING;
+            myCurrent.add(start, block ? end : start + Math.max(refLength, 1) - 1, block, depth, gq, refDepth, altDepth,
+                    code(alleles, myAlleleCodes, myAlleles), code(genotype, myGenotypeCodes, myGenotypes));
+            myNumRecords++;
+            return this;
+
+        }
+
+        private static int code(String value, Map<String, Integer> codes, List<String> values) {
+            Integer result = codes.get(value);
+            if (result == null) {
+                result = values.size();
+                codes.put(value, result);
+                values.add(value);
+            }
+            return result;
+        }
+
+        GVCFRecordStore build() {
+            Map<Chromosome, ChromosomeRecords> records = new LinkedHashMap<>();
+            GVCFRecordStore result = new GVCFRecordStore(records, myAlleles, myGenotypes, myNumRecords);
+            for (Map.Entry<Chromosome, RecordsBuilder> current : myBuilders.entrySet()) {
+                records.put(current.getKey(), result.new ChromosomeRecords(current.getValue()));
+            }
+            return result;
+        }
+
+    }
+
+    private static final class RecordsBuilder {
+
+        private final Chromosome myChromosome;
+        private final int myFirstIndex;
+        private int myNumRecords = 0;
+        private int[] myStart = new int[1024];
+        private int[] myEnd = new int[1024];
+        private int[] myDepth = new int[1024];
+        private int[] myGQ = new int[1024];
+        private int[] myRefDepth = new int[1024];
+        private int[] myAltDepth = new int[1024];
+        private int[] myAlleleCode = new int[1024];
+        private int[] myGenotypeCode = new int[1024];
+        private long[] myBlock = new long[16];
+
+        private RecordsBuilder(Chromosome chromosome, int firstIndex) {
+            myChromosome = chromosome;
+            myFirstIndex = firstIndex;
+        }
+
+        private void add(int start, int end, boolean block, int depth, int gq, int refDepth, int altDepth, int alleleCode, int genotypeCode) {
+            if (myNumRecords == myStart.length) {
+                int capacity = myStart.length * 2;
+                myStart = Arrays.copyOf(myStart, capacity);
+                myEnd = Arrays.copyOf(myEnd, capacity);
+                myDepth = Arrays.copyOf(myDepth, capacity);
+                myGQ = Arrays.copyOf(myGQ, capacity);
+                myRefDepth = Arrays.copyOf(myRefDepth, capacity);
+                myAltDepth = Arrays.copyOf(myAltDepth, capacity);
+                myAlleleCode = Arrays.copyOf(myAlleleCode, capacity);
+                myGenotypeCode = Arrays.copyOf(myGenotypeCode, capacity);
+                myBlock = Arrays.copyOf(myBlock, capacity >>> 6);
+            }
+            int index = myNumRecords++;
+            myStart[index] = start;
+            myEnd[index] = end;
+            myDepth[index] = depth;
+            myGQ[index] = gq;
+            myRefDepth[index] = refDepth;
+            myAltDepth[index] = altDepth;
+            myAlleleCode[index] = alleleCode;
+            myGenotypeCode[index] = genotypeCode;
+            if (block) {
+                myBlock[index >>> 6] |= 1L << index;
+            }
+        }
+
+    }
+
+}
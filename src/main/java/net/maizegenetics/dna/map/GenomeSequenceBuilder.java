@@ -59,6 +59,43 @@ public class GenomeSequenceBuilder {
         return new HalfByteGenomeSequence(chromPositionMap);
     }
 
+    /**
+     * Builds GenomeSequence backed by the fasta file and its samtools .fai
+     * index (created if it doesn't exist). Chromosomes are memory mapped and
+     * only requested ranges are decoded.
+     * @param fastaFileName full path to uncompressed fasta file
+     * @return GenomeSequence object
+     */
+    public static GenomeSequence indexedInstance(String fastaFileName) {
+        Function<Character, Character> charConversion = (c) -> c;
+        return indexedInstance(fastaFileName, charConversion, false);
+    }
+
+    /**
+     * Builds GenomeSequence backed by the fasta file and its samtools .fai
+     * index (created if it doesn't exist).  If packAll is false, chromosomes are
+     * memory mapped and only requested ranges are decoded.  If packAll is true,
+     * the whole genome is decoded in parallel into the same half byte packed
+     * storage as instance(). Gzipped fasta files can't be mapped, so those are
+     * read with instance().
+     * @param fastaFileName full path to fasta file
+     * @param charConversion lambda Function to convert characters
+     * @param packAll whether to decode whole genome into memory
+     * @return GenomeSequence object
+     */
+    public static GenomeSequence indexedInstance(String fastaFileName, Function<Character, Character> charConversion, boolean packAll) {
+        if (fastaFileName.endsWith(".gz")) {
+            myLogger.warn("indexedInstance: can't index compressed file: " + fastaFileName + ".  Reading whole file.");
+            return instance(fastaFileName, charConversion);
+        }
+        IndexedGenomeSequence indexed = new IndexedGenomeSequence(fastaFileName, alleleTable(charConversion));
+        if (packAll) {
+            return new HalfByteGenomeSequence(indexed.packedSequences());
+        } else {
+            return indexed;
+        }
+    }
+
     /**
      * Builds GenomeSequence from a String with one Chromosome.
      * @param chromosome chromosome object
@@ -121,19 +158,38 @@ public class GenomeSequenceBuilder {
     }
 
     private static byte[] halfByteCompression(byte[] unpkSequence, Function<Character, Character> charConversion) {
+        return halfByteCompression(unpkSequence, alleleTable(charConversion));
+    }
+
+    private static byte[] halfByteCompression(byte[] unpkSequence, byte[] alleleTable) {
         // Take byte array, turn bytes into NucleotideAlignmentConstant
         // allele values, store as half bytes
         int nBytes = (unpkSequence.length + 1) / 2;
         byte[] packedSequence = new byte[nBytes];
         for (int i = 0; i < unpkSequence.length; i++) {
-            byte halfByte = NucleotideAlignmentConstants.getNucleotideAlleleByte(charConversion.apply((char) unpkSequence[i]));
+            byte halfByte = alleleTable[unpkSequence[i] & 0xFF];
             if (i % 2 == 0) halfByte <<= 4;
             packedSequence[i / 2] |= halfByte;
         }
         return packedSequence;
     }
 
-    private static Chromosome parseChromosome(String chromString) {
+    /**
+     * Applies charConversion once to every possible fasta byte, so sequences
+     * can be converted with a table lookup per base.
+     * @param charConversion lambda Function to convert characters
+     * @return allele value indexed by fasta byte
+     */
+    static byte[] alleleTable(Function<Character, Character> charConversion) {
+        byte[] result = new byte[256];
+        for (int i = 0; i < 256; i++) {
+            char converted = charConversion.apply((char) i);
+            result[i] = converted < 256 ? NucleotideAlignmentConstants.getNucleotideAlleleByte(converted) : NucleotideAlignmentConstants.UNDEFINED_ALLELE;
+        }
+        return result;
+    }
+
+    static Chromosome parseChromosome(String chromString) {
         String chrS = chromString.replace(">", "");
         chrS = chrS.toUpperCase();
         chrS = chrS.replace("CHROMOSOME", "");
@@ -0,0 +1,350 @@
+package net.maizegenetics.dna.map;
+
+import com.google.common.collect.Range;
+import com.google.common.collect.RangeMap;
+import com.google.common.collect.TreeRangeMap;
+import htsjdk.samtools.reference.FastaSequenceIndex;
+import htsjdk.samtools.reference.FastaSequenceIndexCreator;
+import htsjdk.samtools.reference.FastaSequenceIndexEntry;
+import net.maizegenetics.dna.snp.NucleotideAlignmentConstants;
+import net.maizegenetics.util.Tuple;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Genome sequence backed by an uncompressed fasta file and its samtools .fai
+ * index. The index is created if it doesn't exist. Each chromosome is memory
+ * mapped the first time it's used, and only the requested ranges are decoded,
+ * so opening a large genome is immediate and uses little heap.
+ *
+ * @see GenomeSequenceBuilder#indexedInstance(String, java.util.function.Function, boolean)
+ */
+class IndexedGenomeSequence implements GenomeSequence {
+
+    private static final Logger myLogger = LogManager.getLogger(IndexedGenomeSequence.class);
+
+    // number of bases decoded by each task when packing whole genome
+    private static final int PACK_BLOCK_SIZE = 1 << 22;
+
+    private final Path myFasta;
+    private final byte[] myAlleleTable;
+    private final Chromosome[] myChromosomes;
+    private final FastaSequenceIndexEntry[] myEntries;
+    private final Map<Chromosome, Integer> myChromosomeIndex = new LinkedHashMap<>();
+    private final AtomicReferenceArray<MappedByteBuffer> myMappedSequences;
+    private final RangeMap<Long, Chromosome> myWholeGenomeIndexMap = TreeRangeMap.create();
+    private final long myGenomeSize;
+
+    /**
+     * @param fastaFileName uncompressed fasta file
+     * @param alleleTable allele value for each fasta byte (see
+     * GenomeSequenceBuilder.alleleTable())
+     */
+    IndexedGenomeSequence(String fastaFileName, byte[] alleleTable) {
+
+        myFasta = Paths.get(fastaFileName);
+        myAlleleTable = alleleTable;
+
+        FastaSequenceIndex index = readIndex(myFasta);
+        int numChromosomes = index.size();
+        myChromosomes = new Chromosome[numChromosomes];
+        myEntries = new FastaSequenceIndexEntry[numChromosomes];
+        myMappedSequences = new AtomicReferenceArray<>(numChromosomes);
+
+        try (FileChannel channel = FileChannel.open(myFasta, StandardOpenOption.READ)) {
+            int count = 0;
+            for (FastaSequenceIndexEntry entry : index) {
+                if (entry.getSize() > Integer.MAX_VALUE) {
+                    throw new IllegalArgumentException("IndexedGenomeSequence: chromosome: " + entry.getContig() + " is too long: " + entry.getSize());
+                }
+                Chromosome temp = GenomeSequenceBuilder.parseChromosome(headerLine(channel, entry));
+                myChromosomes[count] = new Chromosome(temp.getName(), (int) entry.getSize(), temp.getAnnotation());
+                myEntries[count] = entry;
+                myChromosomeIndex.put(myChromosomes[count], count);
+                count++;
+            }
+        } catch (IOException e) {
+            myLogger.debug(e.getMessage(), e);
+            throw new IllegalStateException("IndexedGenomeSequence: problem reading: " + fastaFileName + ".  " + e.getMessage());
+        }
+
+        long genomeIndex = 0;
+        for (Chromosome chrom : myChromosomeIndex.keySet().stream().sorted().toArray(Chromosome[]::new)) {
+            int length = chrom.getLength();
+            myWholeGenomeIndexMap.put(Range.closed(genomeIndex, genomeIndex + length - 1), chrom);
+            genomeIndex += length;
+        }
+        myGenomeSize = genomeIndex;
+
+    }
+
+    /**
+     * Reads fasta.fai if it exists. Otherwise creates it, or if that's not
+     * possible (i.e. directory not writable), indexes the fasta in memory.
+     */
+    private static FastaSequenceIndex readIndex(Path fasta) {
+        Path fai = Paths.get(fasta.toString() + ".fai");
+        try {
+            if (!Files.exists(fai)) {
+                try {
+                    myLogger.info("readIndex: creating index: " + fai);
+                    FastaSequenceIndexCreator.create(fasta, false);
+                } catch (IOException e) {
+                    myLogger.warn("readIndex: unable to write: " + fai + ".  Indexing in memory.");
+                    return FastaSequenceIndexCreator.buildFromFasta(fasta);
+                }
+            }
+            return new FastaSequenceIndex(fai);
+        } catch (Exception e) {
+            myLogger.debug(e.getMessage(), e);
+            throw new IllegalStateException("IndexedGenomeSequence: readIndex: problem indexing: " + fasta + ".  " + e.getMessage());
+        }
+    }
+
+    /**
+     * Returns the header line (starting with >) preceding the sequence.
+     */
+    private static String headerLine(FileChannel channel, FastaSequenceIndexEntry entry) throws IOException {
+        long end = entry.getLocation();
+        int windowSize = 1024;
+        while (true) {
+            long start = Math.max(0, end - windowSize);
+            ByteBuffer buffer = ByteBuffer.allocate((int) (end - start));
+            while (buffer.hasRemaining() && channel.read(buffer, start + buffer.position()) >= 0) {
+                // keep reading
+            }
+            byte[] bytes = buffer.array();
+            for (int i = bytes.length - 1; i >= 0; i--) {
+                boolean lineStart = i == 0 ? start == 0 : bytes[i - 1] == '\n';
+                if (bytes[i] == '>' && lineStart) {
+                    return new String(bytes, i, bytes.length - i).trim();
+                }
+            }
+            if (start == 0) {
+                return ">" + entry.getContig();
+            }
+            windowSize *= 4;
+        }
+    }
+
+    private int chromosomeIndex(Chromosome chrom) {
+        Integer result = myChromosomeIndex.get(chrom);
+        if (result == null) {
+            throw new IllegalArgumentException("IndexedGenomeSequence: chromosome not found: " + chrom);
+        }
+        return result;
+    }
+
+    /**
+     * Maps chromosome sequence the first time it's requested.
+     */
+    private MappedByteBuffer sequenceBuffer(int index) {
+        MappedByteBuffer result = myMappedSequences.get(index);
+        if (result == null) {
+            FastaSequenceIndexEntry entry = myEntries[index];
+            long size = entry.getSize();
+            long numBytes = size == 0 ? 0 : ((size - 1) / entry.getBasesPerLine()) * entry.getBytesPerLine() + (size - 1) % entry.getBasesPerLine() + 1;
+            if (numBytes > Integer.MAX_VALUE) {
+                throw new IllegalStateException("IndexedGenomeSequence: chromosome too large to map: " + entry.getContig());
+            }
+            try (FileChannel channel = FileChannel.open(myFasta, StandardOpenOption.READ)) {
+                result = channel.map(FileChannel.MapMode.READ_ONLY, entry.getLocation(), numBytes);
+            } catch (IOException e) {
+                myLogger.debug(e.getMessage(), e);
+                throw new IllegalStateException("IndexedGenomeSequence: problem mapping: " + entry.getContig() + ".  " + e.getMessage());
+            }
+            if (!myMappedSequences.compareAndSet(index, null, result)) {
+                result = myMappedSequences.get(index);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Decodes numBases alleles starting at 0-based site of chromosome into
+     * dest.
+     */
+    private void decode(int index, int site, int numBases, byte[] dest, int destOffset) {
+        MappedByteBuffer buffer = sequenceBuffer(index);
+        int basesPerLine = myEntries[index].getBasesPerLine();
+        int bytesPerLine = myEntries[index].getBytesPerLine();
+        int current = site;
+        int destIndex = destOffset;
+        int remaining = numBases;
+        while (remaining > 0) {
+            int column = current % basesPerLine;
+            int count = Math.min(remaining, basesPerLine - column);
+            int position = (current / basesPerLine) * bytesPerLine + column;
+            for (int i = 0; i < count; i++) {
+                dest[destIndex++] = myAlleleTable[buffer.get(position + i) & 0xFF];
+            }
+            current += count;
+            remaining -= count;
+        }
+    }
+
+    /**
+     * Decodes every chromosome into half byte packed arrays (2 alleles per
+     * byte) using all available threads.
+     *
+     * @return packed sequence for each chromosome
+     */
+    Map<Chromosome, byte[]> packedSequences() {
+
+        Map<Chromosome, byte[]> result = new ConcurrentHashMap<>();
+        // each block is chromosome index and start site
+        List<int[]> blocks = new ArrayList<>();
+        for (int c = 0; c < myChromosomes.length; c++) {
+            int length = myChromosomes[c].getLength();
+            result.put(myChromosomes[c], new byte[(length + 1) / 2]);
+            for (int start = 0; start < length; start += PACK_BLOCK_SIZE) {
+                blocks.add(new int[]{c, start});
+            }
+        }
+
+        blocks.parallelStream().forEach(block -> {
+            int c = block[0];
+            int start = block[1];
+            int numBases = Math.min(PACK_BLOCK_SIZE, myChromosomes[c].getLength() - start);
+            byte[] alleles = new byte[numBases];
+            decode(c, start, numBases, alleles, 0);
+            // PACK_BLOCK_SIZE is even, so blocks don't share packed bytes
+            byte[] packed = result.get(myChromosomes[c]);
+            int offset = start / 2;
+            for (int i = 0; i < numBases; i += 2) {
+                int high = alleles[i] << 4;
+                int low = i + 1 < numBases ? alleles[i + 1] & 0x0F : 0;
+                packed[offset + i / 2] = (byte) (high | low);
+            }
+        });
+
+        return result;
+
+    }
+
+    @Override
+    public Set<Chromosome> chromosomes() {
+        return myChromosomeIndex.keySet();
+    }
+
+    @Override
+    public byte[] chromosomeSequence(Chromosome chrom) {
+        return chromosomeSequence(chrom, 1, chromosomeSize(chrom));
+    }
+
+    @Override
+    public byte[] chromosomeSequence(Chromosome chrom, int startSite, int endSite) {
+        int index = chromosomeIndex(chrom);
+        if (startSite < 1) {
+            throw new IllegalArgumentException("IndexedGenomeSequence: chromosomeSequence: starting parameter is less than 1 for 1-based method");
+        }
+        if (endSite > myChromosomes[index].getLength() || endSite < startSite - 1) {
+            throw new IllegalArgumentException("IndexedGenomeSequence: chromosomeSequence: requested sequence is out of range: " + chrom.getName() + ":" + startSite + "-" + endSite + " chromosome size: " + myChromosomes[index].getLength());
+        }
+        byte[] result = new byte[endSite - startSite + 1];
+        decode(index, startSite - 1, result.length, result, 0);
+        return result;
+    }
+
+    @Override
+    public byte[] genomeSequence(long startSite, long lastSite) {
+        if (lastSite - startSite > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Less than " + Integer.MAX_VALUE + " sites must be requested at a time");
+        }
+        byte[] fullBytes = new byte[(int) (lastSite - startSite + 1)];
+        long currentSiteToGet = startSite;
+        while (currentSiteToGet <= lastSite) {
+            Map.Entry<Range<Long>, Chromosome> rangeChromEntry = myWholeGenomeIndexMap.getEntry(currentSiteToGet);
+            if (rangeChromEntry == null) {
+                throw new IllegalArgumentException("IndexedGenomeSequence: genomeSequence: requested site out of range: " + currentSiteToGet);
+            }
+            long chromStart = rangeChromEntry.getKey().lowerEndpoint();
+            int chrStart = (int) (currentSiteToGet - chromStart);
+            int chrLast = (int) (Math.min(rangeChromEntry.getKey().upperEndpoint(), lastSite) - chromStart);
+            int numBases = chrLast - chrStart + 1;
+            decode(chromosomeIndex(rangeChromEntry.getValue()), chrStart, numBases, fullBytes, (int) (currentSiteToGet - startSite));
+            currentSiteToGet += numBases;
+        }
+        return fullBytes;
+    }
+
+    @Override
+    public Map<Long, Tuple<Chromosome, Integer>> fullRefCoordinateToChromCoordinate(ArrayList<Long> coordinates) {
+        Map<Long, Tuple<Chromosome, Integer>> mappedCoordinates = new HashMap<>();
+        for (Long coordinate : coordinates) {
+            Map.Entry<Range<Long>, Chromosome> rangeChromEntry = myWholeGenomeIndexMap.getEntry(coordinate);
+            long chromCoordinate = coordinate - rangeChromEntry.getKey().lowerEndpoint();
+            mappedCoordinates.put(coordinate, new Tuple<>(rangeChromEntry.getValue(), (int) chromCoordinate));
+        }
+        return mappedCoordinates;
+    }
+
+    @Override
+    public int chromosomeSize(Chromosome chromosome) {
+        return myChromosomes[chromosomeIndex(chromosome)].getLength();
+    }
+
+    @Override
+    public long genomeSize() {
+        return myGenomeSize;
+    }
+
+    @Override
+    public int numberOfChromosomes() {
+        return myChromosomes.length;
+    }
+
+    @Override
+    public byte genotype(Chromosome chrom, int position) {
+        int index = chromosomeIndex(chrom);
+        if (position < 1 || position > myChromosomes[index].getLength()) {
+            throw new IllegalArgumentException("IndexedGenomeSequence: genotype: requested position is out of range: " + chrom.getName() + ":" + position);
+        }
+        byte[] result = new byte[1];
+        decode(index, position - 1, 1, result, 0);
+        return result[0];
+    }
+
+    @Override
+    public byte genotype(Chromosome chrom, Position positionObject) {
+        return genotype(chrom, positionObject.getPosition());
+    }
+
+    @Override
+    public String genotypeAsString(Chromosome chrom, int position) {
+        return NucleotideAlignmentConstants.getHaplotypeNucleotide(genotype(chrom, position));
+    }
+
+    @Override
+    public String genotypeAsString(Chromosome chrom, Position positionObject) {
+        return NucleotideAlignmentConstants.getHaplotypeNucleotide(genotype(chrom, positionObject));
+    }
+
+    @Override
+    public String genotypeAsString(Chromosome chrom, int startSite, int endSite) {
+        byte[] chromBytes = chromosomeSequence(chrom, startSite, endSite);
+        StringBuilder builder = new StringBuilder(chromBytes.length);
+        for (byte current : chromBytes) {
+            builder.append(NucleotideAlignmentConstants.getHaplotypeNucleotide(current));
+        }
+        return builder.toString();
+    }
+
+}
@@ -0,0 +1,479 @@
+/*
+ *  PositionColumnList
+ */
+package net.maizegenetics.dna.map;
+
+import net.maizegenetics.dna.WHICH_ALLELE;
+import net.maizegenetics.dna.snp.GenotypeTable;
+import net.maizegenetics.util.GeneralAnnotation;
+import net.maizegenetics.util.GeneralAnnotationStorage;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * In memory immutable instance of {@link PositionList} that stores each
+ * Position field in its own array instead of keeping Position objects.
+ * Chromosomes are stored once per run of sites, positions as an int[],
+ * alleles packed two per byte, SNP names in a single byte array with offsets,
+ * and annotations only for sites that have them. Fields with the default value
+ * at every site (i.e. strand, insertion position, MAF) are not stored. Position
+ * instances are created by get(). Use the {@link PositionListBuilder} to
+ * create the list. This list is sorted by position.
+ */
+final class PositionColumnList extends AbstractList<Position> implements PositionList {
+
+    private static final byte NOT_NUCLEOTIDE = 0x1;
+    private static final byte INDEL = 0x2;
+
+    private final int myNumPositions;
+    private final String myGenomeVersion;
+
+    // chromosome of each run and first site of each run (plus end)
+    private final Chromosome[] myChromosomes;
+    private final int[] myChrStarts;
+    private final Map<Chromosome, Integer> myChrIndices;
+    private final Map<String, Chromosome> myChrNameHash;
+
+    private final int[] myPositions;
+    private final short[] myInsertionPositions;
+    private final byte[] myStrands;
+    private final byte[] myFlags;
+    private final float[] myMAF;
+    private final float[] mySiteCoverage;
+
+    // allele type by site / 2, high nibble is odd site, null if all unknown
+    private final byte[][] myAlleles;
+
+    // SNP names (null if none) and offsets, empty name means default name
+    private final byte[] mySNPIDs;
+    private final int[] mySNPIDOffsets;
+
+    // sorted sites that have annotations
+    private final int[] myAnnotatedSites;
+    private final GeneralAnnotation[] myAnnotations;
+
+    private PositionColumnList(List<Position> positions, String genomeVersion, List<Chromosome> chromosomes, List<Integer> chrStarts) {
+
+        myNumPositions = positions.size();
+        myGenomeVersion = genomeVersion;
+
+        int numChrs = chromosomes.size();
+        myChromosomes = chromosomes.toArray(new Chromosome[0]);
+        myChrStarts = new int[numChrs + 1];
+        myChrIndices = new HashMap<>();
+        myChrNameHash = new HashMap<>();
+        for (int c = 0; c < numChrs; c++) {
+            myChrStarts[c] = chrStarts.get(c);
+            myChrIndices.put(myChromosomes[c], c);
+            myChrNameHash.put(myChromosomes[c].getName(), myChromosomes[c]);
+        }
+        myChrStarts[numChrs] = myNumPositions;
+
+        myPositions = new int[myNumPositions];
+        short[] insertionPositions = null;
+        byte[] strands = null;
+        byte[] flags = null;
+        float[] maf = null;
+        float[] coverage = null;
+        byte[][] alleles = new byte[WHICH_ALLELE.COUNT][];
+        int[] snpIDOffsets = null;
+        List<byte[]> snpIDs = null;
+        long snpIDLength = 0;
+        List<Integer> annotatedSites = new ArrayList<>();
+        List<GeneralAnnotation> annotations = new ArrayList<>();
+
+        for (int i = 0; i < myNumPositions; i++) {
+
+            Position current = positions.get(i);
+            myPositions[i] = current.getPosition();
+
+            if (current.getInsertionPosition() != 0) {
+                if (insertionPositions == null) {
+                    insertionPositions = new short[myNumPositions];
+                }
+                insertionPositions[i] = current.getInsertionPosition();
+            }
+
+            if (current.getStrand() != Position.STRAND_PLUS) {
+                if (strands == null) {
+                    strands = new byte[myNumPositions];
+                    Arrays.fill(strands, Position.STRAND_PLUS);
+                }
+                strands[i] = current.getStrand();
+            }
+
+            byte flag = (byte) ((current.isNucleotide() ? 0 : NOT_NUCLEOTIDE) | (current.isIndel() ? INDEL : 0));
+            if (flag != 0) {
+                if (flags == null) {
+                    flags = new byte[myNumPositions];
+                }
+                flags[i] = flag;
+            }
+
+            if (!Float.isNaN(current.getGlobalMAF())) {
+                if (maf == null) {
+                    maf = new float[myNumPositions];
+                    Arrays.fill(maf, Float.NaN);
+                }
+                maf[i] = current.getGlobalMAF();
+            }
+
+            if (!Float.isNaN(current.getGlobalSiteCoverage())) {
+                if (coverage == null) {
+                    coverage = new float[myNumPositions];
+                    Arrays.fill(coverage, Float.NaN);
+                }
+                coverage[i] = current.getGlobalSiteCoverage();
+            }
+
+            for (WHICH_ALLELE alleleType : WHICH_ALLELE.values()) {
+                byte allele = current.getAllele(alleleType);
+                if (allele != GenotypeTable.UNKNOWN_ALLELE) {
+                    int index = alleleType.index();
+                    if (alleles[index] == null) {
+                        alleles[index] = new byte[(myNumPositions + 1) / 2];
+                        Arrays.fill(alleles[index], (byte) 0xFF);
+                    }
+                    int shift = (i & 0x1) << 2;
+                    alleles[index][i >>> 1] = (byte) ((alleles[index][i >>> 1] & ~(0xF << shift)) | ((allele & 0xF) << shift));
+                }
+            }
+
+            String snpID = current.getActualSNPID();
+            if (snpID != null && !snpID.isEmpty()) {
+                if (snpIDOffsets == null) {
+                    snpIDOffsets = new int[myNumPositions + 1];
+                    snpIDs = new ArrayList<>();
+                }
+                byte[] bytes = snpID.getBytes();
+                snpIDs.add(bytes);
+                snpIDLength += bytes.length;
+                if (snpIDLength > Integer.MAX_VALUE) {
+                    throw new IllegalStateException("PositionColumnList: init: SNP names too long");
+                }
+            }
+            if (snpIDOffsets != null) {
+                snpIDOffsets[i + 1] = (int) snpIDLength;
+            }
+
+            GeneralAnnotation annotation = current.getAnnotation();
+            if (annotation != null && annotation != GeneralAnnotationStorage.EMPTY_ANNOTATION_STORAGE && annotation.numAnnotations() != 0) {
+                annotatedSites.add(i);
+                annotations.add(annotation);
+            }
+
+        }
+
+        myInsertionPositions = insertionPositions;
+        myStrands = strands;
+        myFlags = flags;
+        myMAF = maf;
+        mySiteCoverage = coverage;
+        myAlleles = alleles;
+
+        if (snpIDs == null) {
+            mySNPIDs = null;
+            mySNPIDOffsets = null;
+        } else {
+            mySNPIDs = new byte[(int) snpIDLength];
+            int offset = 0;
+            for (byte[] current : snpIDs) {
+                System.arraycopy(current, 0, mySNPIDs, offset, current.length);
+                offset += current.length;
+            }
+            mySNPIDOffsets = snpIDOffsets;
+        }
+
+        myAnnotatedSites = new int[annotatedSites.size()];
+        for (int i = 0; i < myAnnotatedSites.length; i++) {
+            myAnnotatedSites[i] = annotatedSites.get(i);
+        }
+        myAnnotations = annotations.toArray(new GeneralAnnotation[0]);
+
+    }
+
+    /**
+     * Returns column list of positions or null if a chromosome isn't in one
+     * consecutive run of sites.
+     *
+     * @param positions sorted positions
+     * @param genomeVersion genome version
+     *
+     * @return position list or null
+     */
+    static PositionColumnList getInstance(List<Position> positions, String genomeVersion) {
+
+        List<Chromosome> chromosomes = new ArrayList<>();
+        List<Integer> chrStarts = new ArrayList<>();
+        Set<Chromosome> seen = new HashSet<>();
+        Chromosome current = null;
+        int numPositions = positions.size();
+        for (int i = 0; i < numPositions; i++) {
+            Chromosome chr = positions.get(i).getChromosome();
+            if (current == null || !chr.equals(current)) {
+                if (!seen.add(chr)) {
+                    return null;
+                }
+                chromosomes.add(chr);
+                chrStarts.add(i);
+                current = chr;
+            }
+        }
+
+        return new PositionColumnList(positions, genomeVersion, chromosomes, chrStarts);
+
+    }
+
+    /**
+     * Returns index of chromosome run containing site.
+     */
+    private int chrIndex(int site) {
+        if (site < 0 || site >= myNumPositions) {
+            throw new IndexOutOfBoundsException("PositionColumnList: chrIndex: site: " + site);
+        }
+        int result = Arrays.binarySearch(myChrStarts, 0, myChromosomes.length, site);
+        return result >= 0 ? result : -result - 2;
+    }
+
+    private GeneralAnnotation annotation(int site) {
+        int index = Arrays.binarySearch(myAnnotatedSites, site);
+        return index >= 0 ? myAnnotations[index] : null;
+    }
+
+    private String actualSNPID(int site) {
+        if (mySNPIDOffsets == null) {
+            return null;
+        }
+        int start = mySNPIDOffsets[site];
+        int length = mySNPIDOffsets[site + 1] - start;
+        return length == 0 ? null : new String(mySNPIDs, start, length);
+    }
+
+    @Override
+    public Position get(int site) {
+
+        Chromosome chr = myChromosomes[chrIndex(site)];
+        GeneralAnnotationStorage.Builder annotations = GeneralAnnotationStorage.getBuilder();
+        GeneralAnnotation annotation = annotation(site);
+        if (annotation != null) {
+            annotations.addAnnotations(annotation);
+        }
+
+        GeneralPosition.Builder builder = new GeneralPosition.Builder(chr, myPositions[site], annotations)
+                .insertionPosition(myInsertionPositions == null ? 0 : myInsertionPositions[site])
+                .strand(myStrands == null ? Position.STRAND_PLUS : myStrands[site])
+                .snpName(actualSNPID(site))
+                .nucleotide(myFlags == null || (myFlags[site] & NOT_NUCLEOTIDE) == 0)
+                .indel(myFlags != null && (myFlags[site] & INDEL) != 0)
+                .maf(myMAF == null ? Float.NaN : myMAF[site])
+                .siteCoverage(mySiteCoverage == null ? Float.NaN : mySiteCoverage[site]);
+        for (WHICH_ALLELE alleleType : WHICH_ALLELE.values()) {
+            builder.allele(alleleType, allele(alleleType, site));
+        }
+        return builder.build();
+
+    }
+
+    @Override
+    public byte allele(WHICH_ALLELE alleleType, int site) {
+        byte[] alleles = myAlleles[alleleType.index()];
+        if (alleles == null) {
+            return GenotypeTable.UNKNOWN_ALLELE;
+        }
+        return (byte) ((alleles[site >>> 1] >>> ((site & 0x1) << 2)) & 0xF);
+    }
+
+    @Override
+    public byte[] alleles(WHICH_ALLELE alleleType, int startSite, int endSite) {
+        byte[] result = new byte[endSite - startSite];
+        byte[] alleles = myAlleles[alleleType.index()];
+        if (alleles == null) {
+            Arrays.fill(result, GenotypeTable.UNKNOWN_ALLELE);
+            return result;
+        }
+        for (int site = startSite; site < endSite; site++) {
+            result[site - startSite] = (byte) ((alleles[site >>> 1] >>> ((site & 0x1) << 2)) & 0xF);
+        }
+        return result;
+    }
+
+    @Override
+    public byte[] alleleForAllSites(WHICH_ALLELE alleleType) {
+        return alleles(alleleType, 0, myNumPositions);
+    }
+
+    @Override
+    public boolean hasReference() {
+        return myGenomeVersion != null;
+    }
+
+    @Override
+    public String siteName(int site) {
+        String result = actualSNPID(site);
+        if (result == null) {
+            return (new StringBuilder("S").append(chromosomeName(site)).append("_").append(myPositions[site])).toString();
+        }
+        return result;
+    }
+
+    @Override
+    public int numberOfSites() {
+        return myNumPositions;
+    }
+
+    @Override
+    public int chromosomeSiteCount(Chromosome chromosome) {
+        int index = myChrIndices.get(chromosome);
+        return myChrStarts[index + 1] - myChrStarts[index];
+    }
+
+    @Override
+    public int[] startAndEndOfChromosome(Chromosome chromosome) {
+        if (myNumPositions == 0) {
+            return null;
+        }
+        Integer index = myChrIndices.get(chromosome == null ? myChromosomes[0] : chromosome);
+        if (index == null) {
+            return null;
+        }
+        return new int[]{myChrStarts[index], myChrStarts[index + 1] - 1};
+    }
+
+    @Override
+    public int chromosomalPosition(int site) {
+        return myPositions[site];
+    }
+
+    @Override
+    public int siteOfPhysicalPosition(int physicalPosition, Chromosome chromosome) {
+        if (myNumPositions == 0) {
+            return Integer.MIN_VALUE;
+        }
+        Integer index = myChrIndices.get(chromosome == null ? myChromosomes[0] : chromosome);
+        if (index == null) {
+            return Integer.MIN_VALUE;
+        }
+        int start = myChrStarts[index];
+        int i = Arrays.binarySearch(myPositions, start, myChrStarts[index + 1], physicalPosition);
+        // backup to the first position if there are duplicates
+        while ((i > start) && (physicalPosition == myPositions[i - 1])) {
+            i--;
+        }
+        return i;
+    }
+
+    @Override
+    public int siteOfPhysicalPosition(int physicalPosition, Chromosome chromosome, String snpName) {
+        int result = siteOfPhysicalPosition(physicalPosition, chromosome);
+        if (result < 0) {
+            return result;
+        }
+        int end = myChrStarts[chrIndex(result) + 1];
+        for (int index = result; index < end && myPositions[index] == physicalPosition; index++) {
+            if (snpName.equals(siteName(index))) {
+                return index;
+            }
+        }
+        return -result - 1;
+    }
+
+    @Override
+    public int[] physicalPositions() {
+        return myPositions.clone();
+    }
+
+    @Override
+    public String chromosomeName(int site) {
+        return myChromosomes[chrIndex(site)].getName();
+    }
+
+    @Override
+    public Chromosome chromosome(int site) {
+        return myChromosomes[chrIndex(site)];
+    }
+
+    @Override
+    public Chromosome chromosome(String name) {
+        return myChrNameHash.get(name);
+    }
+
+    @Override
+    public Chromosome[] chromosomes() {
+        return myChromosomes.clone();
+    }
+
+    @Override
+    public int numChromosomes() {
+        return myChromosomes.length;
+    }
+
+    @Override
+    public int[] chromosomesOffsets() {
+        return Arrays.copyOf(myChrStarts, myChromosomes.length);
+    }
+
+    @Override
+    public int indelSize(int site) {
+        return get(site).getKnownVariants()[1].length();
+    }
+
+    @Override
+    public boolean isIndel(int site) {
+        return myFlags != null && (myFlags[site] & INDEL) != 0;
+    }
+
+    @Override
+    public String genomeVersion() {
+        return myGenomeVersion;
+    }
+
+    @Override
+    public boolean isPositiveStrand(int site) {
+        return myStrands == null || myStrands[site] == Position.STRAND_PLUS;
+    }
+
+    // List methods
+
+    @Override
+    public int size() {
+        return myNumPositions;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        Position p = (Position) o;
+        return (siteOfPhysicalPosition(p.getPosition(), p.getChromosome()) > -1);
+    }
+
+    @Override
+    public int indexOf(Object o) {
+        return Collections.binarySearch(this, (Position) o);
+    }
+
+    @Override
+    public List<Position> subList(int fromIndex, int toIndex) {
+        return Collections.unmodifiableList(super.subList(fromIndex, toIndex));
+    }
+
+    // same identity semantics as PositionArrayList, rather than comparing
+    // every Position
+
+    @Override
+    public boolean equals(Object o) {
+        return this == o;
+    }
+
+    @Override
+    public int hashCode() {
+        return System.identityHashCode(this);
+    }
+
+}
@@ -39,6 +39,9 @@ public class PositionListBuilder {
 
     private static final Logger myLogger = LogManager.getLogger(PositionListBuilder.class);
 
+    // lists with at least this many sites are stored as PositionColumnList
+    private static final int MIN_SITES_COLUMN_LIST = 1 << 20;
+
     private ArrayList<Position> myPositions = new ArrayList<>();
     private String genomeVersion = null;
 
@@ -182,18 +185,32 @@ public class PositionListBuilder {
      */
     public PositionList build() {
         Collections.sort(myPositions);
-        return new PositionArrayList(myPositions, genomeVersion);
+        return instance(myPositions, genomeVersion);
     }
 
     public Tuple<PositionList, int[]> buildWithSiteRedirect() {
         int[] siteRedirect = sort();
-        PositionList positions = new PositionArrayList(myPositions, genomeVersion);
+        PositionList positions = instance(myPositions, genomeVersion);
         return new Tuple<>(positions, siteRedirect);
     }
 
     public PositionList build(GenotypeCallTableBuilder genotypes) {
         sortPositions(genotypes);
-        return new PositionArrayList(myPositions, genomeVersion);
+        return instance(myPositions, genomeVersion);
+    }
+
+    /**
+     * Large lists are stored by column (see PositionColumnList), since
+     * Position objects take many times the memory of their values.
+     */
+    private static PositionList instance(ArrayList<Position> positions, String genomeVersion) {
+        if (positions.size() >= MIN_SITES_COLUMN_LIST) {
+            PositionList result = PositionColumnList.getInstance(positions, genomeVersion);
+            if (result != null) {
+                return result;
+            }
+        }
+        return new PositionArrayList(positions, genomeVersion);
     }
 
     public PositionListBuilder sortPositions(GenotypeCallTableBuilder genotypes) {
@@ -0,0 +1,330 @@
+/*
+ *  PositionListUtils
+ */
+package net.maizegenetics.dna.map;
+
+import net.maizegenetics.dna.snp.TranslateIndex;
+import net.maizegenetics.dna.snp.TranslateIndexBuilder;
+import net.maizegenetics.util.GeneralAnnotation;
+import net.maizegenetics.util.GeneralAnnotationStorage;
+import net.maizegenetics.util.Tuple;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Batch lookups of many coordinates against a PositionList. Queries are
+ * grouped by chromosome, sorted by position (unless already sorted), and
+ * merge-joined against the sites of that chromosome, so each chromosome is
+ * read once no matter how many queries it has. Chromosomes are processed in
+ * parallel. Small batches against large lists are binary searched instead.
+ */
+public final class PositionListUtils {
+
+    // use binary search when sites per query exceeds this
+    private static final int MAX_SITES_PER_QUERY_JOIN = 16;
+
+    private PositionListUtils() {
+        // utility
+    }
+
+    /**
+     * Returns site for each chromosome / physical position. Same as calling
+     * PositionList.siteOfPhysicalPosition() for each query: the first matching
+     * site if found, (-(insertion point) - 1) if not found, and
+     * Integer.MIN_VALUE if the chromosome isn't in the list. A null chromosome
+     * means the first chromosome.
+     *
+     * @param positions position list
+     * @param chromosomes chromosome of each query
+     * @param physicalPositions physical position of each query
+     *
+     * @return sites
+     */
+    public static int[] sitesOf(PositionList positions, Chromosome[] chromosomes, int[] physicalPositions) {
+
+        int numQueries = checkQueries(chromosomes, physicalPositions);
+        int[] result = new int[numQueries];
+
+        if ((long) numQueries * MAX_SITES_PER_QUERY_JOIN < positions.numberOfSites()) {
+            IntStream.range(0, numQueries).parallel()
+                    .forEach(q -> result[q] = positions.siteOfPhysicalPosition(physicalPositions[q], chromosomes[q]));
+            return result;
+        }
+
+        int[] sitePositions = positions.physicalPositions();
+        byChromosome(positions, chromosomes).entrySet().parallelStream().forEach(entry -> {
+
+            int[] queries = entry.getValue();
+            int[] range = positions.startAndEndOfChromosome(entry.getKey());
+            if (range == null) {
+                for (int q : queries) {
+                    result[q] = Integer.MIN_VALUE;
+                }
+                return;
+            }
+
+            sortByPosition(queries, physicalPositions);
+            int site = range[0];
+            int end = range[1] + 1;
+            for (int q : queries) {
+                int current = physicalPositions[q];
+                while (site < end && sitePositions[site] < current) {
+                    site++;
+                }
+                result[q] = (site < end && sitePositions[site] == current) ? site : -site - 1;
+            }
+
+        });
+
+        return result;
+
+    }
+
+    /**
+     * Returns the sites within each interval. Intervals are start (inclusive)
+     * to end (exclusive) physical positions on a chromosome (see
+     * ReadBedfile.BedFileRange). The first dimension of the result is the
+     * first site (inclusive) and the second is the end site (exclusive) of
+     * each interval. These are equal if no sites are within an interval.
+     *
+     * @param positions position list
+     * @param chromosomes chromosome of each interval
+     * @param starts start of each interval (inclusive)
+     * @param ends end of each interval (exclusive)
+     *
+     * @return site ranges
+     */
+    public static int[][] siteRanges(PositionList positions, Chromosome[] chromosomes, int[] starts, int[] ends) {
+
+        int numQueries = checkQueries(chromosomes, starts);
+        if (ends.length != numQueries) {
+            throw new IllegalArgumentException("PositionListUtils: siteRanges: number of starts: " + numQueries + " and ends: " + ends.length + " must be equal");
+        }
+
+        int[][] result = new int[2][numQueries];
+        int[] sitePositions = positions.physicalPositions();
+        byChromosome(positions, chromosomes).entrySet().parallelStream().forEach(entry -> {
+
+            int[] queries = entry.getValue();
+            int[] range = positions.startAndEndOfChromosome(entry.getKey());
+            if (range == null) {
+                return;
+            }
+
+            int end = range[1] + 1;
+            int[] byEnd = queries.clone();
+            lowerBounds(queries, starts, sitePositions, range[0], end, result[0]);
+            lowerBounds(byEnd, ends, sitePositions, range[0], end, result[1]);
+            for (int q : queries) {
+                result[1][q] = Math.max(result[0][q], result[1][q]);
+            }
+
+        });
+
+        return result;
+
+    }
+
+    /**
+     * Sets result[q] to first site from start to end with physical position
+     * not less than values[q].
+     */
+    private static void lowerBounds(int[] queries, int[] values, int[] sitePositions, int start, int end, int[] result) {
+        sortByPosition(queries, values);
+        int site = start;
+        for (int q : queries) {
+            int current = values[q];
+            while (site < end && sitePositions[site] < current) {
+                site++;
+            }
+            result[q] = site;
+        }
+    }
+
+    /**
+     * Returns positions moved to new coordinates and sorted, and translation
+     * from sites of the new list to sites of the original. Other fields of
+     * each position are kept. Sites with null new chromosome are dropped.
+     *
+     * @param positions original positions
+     * @param newChromosomes new chromosome for each original site
+     * @param newPositions new physical position for each original site
+     *
+     * @return new position list and translation to original sites
+     */
+    public static Tuple<PositionList, TranslateIndex> newCoordinates(PositionList positions, Chromosome[] newChromosomes, int[] newPositions) {
+
+        int numSites = positions.numberOfSites();
+        if (newChromosomes.length != numSites || newPositions.length != numSites) {
+            throw new IllegalArgumentException("PositionListUtils: newCoordinates: number of new coordinates: " + newChromosomes.length + " must equal number of sites: " + numSites);
+        }
+
+        int[] keptSites = IntStream.range(0, numSites).filter(s -> newChromosomes[s] != null).toArray();
+        Position[] moved = new Position[keptSites.length];
+        IntStream.range(0, keptSites.length).parallel().forEach(i -> {
+            int site = keptSites[i];
+            Position original = positions.get(site);
+            moved[i] = new GeneralPosition.Builder(original)
+                    .chromosome(Chromosome.getCanonicalChromosome(newChromosomes[site]))
+                    .position(newPositions[site])
+                    .snpName(original.getActualSNPID())
+                    .build();
+        });
+
+        PositionListBuilder builder = new PositionListBuilder().genomeVersion(positions.genomeVersion()).addAll(Arrays.asList(moved));
+        Tuple<PositionList, int[]> sorted = builder.buildWithSiteRedirect();
+
+        int[] redirect = sorted.getY();
+        int[] translate = new int[redirect.length];
+        boolean ordered = true;
+        for (int i = 0; i < redirect.length; i++) {
+            translate[i] = keptSites[redirect[i]];
+            if (i != 0 && translate[i] <= translate[i - 1]) {
+                ordered = false;
+            }
+        }
+
+        TranslateIndex translateIndex = ordered
+                ? TranslateIndexBuilder.orderedTranslation(translate, null, numSites)
+                : TranslateIndexBuilder.unorderedTranslation(translate, null);
+        return new Tuple<>(sorted.getX(), translateIndex);
+
+    }
+
+    /**
+     * Same as newCoordinates(PositionList, Chromosome[], int[]) with the map
+     * given as old and new coordinates (i.e. a liftover table). Every site at
+     * an old coordinate is moved. Sites not in the map are dropped.
+     *
+     * @param positions original positions
+     * @param oldChromosomes old chromosomes
+     * @param oldPositions old physical positions
+     * @param newChromosomes new chromosomes
+     * @param newPositions new physical positions
+     *
+     * @return new position list and translation to original sites
+     */
+    public static Tuple<PositionList, TranslateIndex> newCoordinates(PositionList positions, Chromosome[] oldChromosomes, int[] oldPositions, Chromosome[] newChromosomes, int[] newPositions) {
+
+        int numMapped = checkQueries(oldChromosomes, oldPositions);
+        if (newChromosomes.length != numMapped || newPositions.length != numMapped) {
+            throw new IllegalArgumentException("PositionListUtils: newCoordinates: old and new coordinates must be same length");
+        }
+
+        int numSites = positions.numberOfSites();
+        Chromosome[] siteChromosomes = new Chromosome[numSites];
+        int[] sitePositions = new int[numSites];
+        int[] sites = sitesOf(positions, oldChromosomes, oldPositions);
+        for (int i = 0; i < numMapped; i++) {
+            int site = sites[i];
+            if (site < 0) {
+                continue;
+            }
+            Chromosome chr = positions.chromosome(site);
+            int physical = positions.chromosomalPosition(site);
+            while (site < numSites && positions.chromosomalPosition(site) == physical && positions.chromosome(site).equals(chr)) {
+                siteChromosomes[site] = newChromosomes[i];
+                sitePositions[site] = newPositions[i];
+                site++;
+            }
+        }
+
+        return newCoordinates(positions, siteChromosomes, sitePositions);
+
+    }
+
+    /**
+     * Returns average value of annotation for each site (see
+     * GeneralAnnotationStorage.getAverageAnnotations()).
+     *
+     * @param positions position list
+     * @param annoName annotation key
+     *
+     * @return average value for each site (Double.NaN where not present)
+     */
+    public static double[] averageAnnotations(PositionList positions, String annoName) {
+        List<GeneralAnnotation> annotations = positions.parallelStream().map(Position::getAnnotation).collect(Collectors.toList());
+        return GeneralAnnotationStorage.getAverageAnnotations(annotations, annoName);
+    }
+
+    private static int checkQueries(Chromosome[] chromosomes, int[] physicalPositions) {
+        if (chromosomes.length != physicalPositions.length) {
+            throw new IllegalArgumentException("PositionListUtils: number of chromosomes: " + chromosomes.length + " and positions: " + physicalPositions.length + " must be equal");
+        }
+        return chromosomes.length;
+    }
+
+    /**
+     * Groups query indices by chromosome. Null means first chromosome.
+     */
+    private static Map<Chromosome, int[]> byChromosome(PositionList positions, Chromosome[] chromosomes) {
+
+        Chromosome first = positions.isEmpty() ? Chromosome.UNKNOWN : positions.chromosome(0);
+        Map<Chromosome, int[]> counts = new HashMap<>();
+        Chromosome last = null;
+        int[] lastCount = null;
+        for (Chromosome current : chromosomes) {
+            Chromosome chr = current == null ? first : current;
+            if (chr != last) {
+                lastCount = counts.computeIfAbsent(chr, k -> new int[1]);
+                last = chr;
+            }
+            lastCount[0]++;
+        }
+
+        Map<Chromosome, int[]> result = new HashMap<>();
+        for (Map.Entry<Chromosome, int[]> entry : counts.entrySet()) {
+            result.put(entry.getKey(), new int[entry.getValue()[0]]);
+            entry.getValue()[0] = 0;
+        }
+
+        last = null;
+        int[] lastIndices = null;
+        lastCount = null;
+        for (int q = 0; q < chromosomes.length; q++) {
+            Chromosome chr = chromosomes[q] == null ? first : chromosomes[q];
+            if (chr != last) {
+                lastIndices = result.get(chr);
+                lastCount = counts.get(chr);
+                last = chr;
+            }
+            lastIndices[lastCount[0]++] = q;
+        }
+
+        return result;
+
+    }
+
+    /**
+     * Sorts query indices by value, unless already sorted.
+     */
+    private static void sortByPosition(int[] queries, int[] values) {
+
+        boolean sorted = true;
+        for (int i = 1; i < queries.length; i++) {
+            if (values[queries[i]] < values[queries[i - 1]]) {
+                sorted = false;
+                break;
+            }
+        }
+        if (sorted) {
+            return;
+        }
+
+        long[] keys = new long[queries.length];
+        for (int i = 0; i < queries.length; i++) {
+            keys[i] = ((long) values[queries[i]] << 32) | (queries[i] & 0xFFFFFFFFL);
+        }
+        Arrays.sort(keys);
+        for (int i = 0; i < queries.length; i++) {
+            queries[i] = (int) keys[i];
+        }
+
+    }
+
+}
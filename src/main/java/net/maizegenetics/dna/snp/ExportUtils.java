@@ -9,6 +9,7 @@ import net.maizegenetics.dna.WHICH_ALLELE;
 import net.maizegenetics.dna.map.Position;
 import net.maizegenetics.dna.snp.genotypecall.AlleleFreqCache;
 import net.maizegenetics.dna.snp.io.VCFUtil;
+import net.maizegenetics.dna.snp.score.AlleleDepthUtil;
 import net.maizegenetics.taxa.TaxaList;
 import net.maizegenetics.taxa.Taxon;
 import net.maizegenetics.util.*;
@@ -504,16 +505,20 @@ public class ExportUtils {
                             return key + Arrays.stream(annos).collect(Collectors.joining(",", "=", ""));
                         })
                         .collect(Collectors.joining(";"));
+                // depths of all taxa at this site are read together once
+                byte[][] siteDepths = null;
                 if (hasDepth) {
+                    siteDepths = gt.depth().valuesForSiteByte(site);
+                    int siteDepth = Arrays.stream(AlleleDepthUtil.sumDepths(siteDepths)).sum();
                     //bw.write("DP=" + gt.depth().depthForSite(site)); // DP
                     //To Fix bug where ";DP=100" string would occur
                     if (annotationHolder.equals("")) {
-                        annotationHolder += "DP=" + gt.depth().depthForSite(site);
+                        annotationHolder += "DP=" + siteDepth;
                     } else if (annotationHolder.equals(".")) {
                         //Fix bug where we have .;DP=100 showing up.
-                        annotationHolder = "DP=" + gt.depth().depthForSite(site);
+                        annotationHolder = "DP=" + siteDepth;
                     } else {
-                        annotationHolder += ";DP=" + gt.depth().depthForSite(site);
+                        annotationHolder += ";DP=" + siteDepth;
                     }
                 }
                 if (!annotationHolder.equals("")) {
@@ -599,7 +604,10 @@ public class ExportUtils {
                     bw.write(":");
 
                     // AD
-                    int[] siteAlleleDepths = gt.depthForAlleles(taxa, site);
+                    int[] siteAlleleDepths = new int[siteDepths.length];
+                    for (int a = 0; a < siteDepths.length; a++) {
+                        siteAlleleDepths[a] = AlleleDepthUtil.depthByteToInt(siteDepths[a][taxa]);
+                    }
                     int siteTotalDepth = 0;
 
                     ArrayList<Integer> depthsList = new ArrayList<Integer>();
@@ -0,0 +1,787 @@
+/*
+ *  FilterEngine
+ */
+package net.maizegenetics.dna.snp;
+
+import net.maizegenetics.dna.map.Chromosome;
+import net.maizegenetics.dna.map.Position;
+import net.maizegenetics.dna.map.PositionList;
+import net.maizegenetics.dna.map.PositionListBuilder;
+import net.maizegenetics.dna.snp.genotypecall.GenotypeBlock;
+import net.maizegenetics.dna.snp.genotypecall.GenotypeCallTableBuilder;
+import net.maizegenetics.dna.snp.io.ReadBedfile;
+import net.maizegenetics.dna.snp.score.AlleleDepthBuilder;
+import net.maizegenetics.dna.snp.score.AlleleProbabilityBuilder;
+import net.maizegenetics.dna.snp.score.DosageBuilder;
+import net.maizegenetics.dna.snp.score.ReferenceProbabilityBuilder;
+import net.maizegenetics.taxa.TaxaList;
+import net.maizegenetics.taxa.TaxaListBuilder;
+import net.maizegenetics.taxa.Taxon;
+import net.maizegenetics.util.TableReport;
+import net.maizegenetics.util.TableReportBuilder;
+import net.maizegenetics.util.Utils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.stream.IntStream;
+
+/**
+ * Applies a FilterList to a GenotypeTable. The filters are compiled into
+ * site and taxa criteria, which are evaluated in as few passes over the
+ * genotypes as the filter order allows. Each pass reads the genotype blocks
+ * once (in parallel) and computes the site counts needed by the site criteria
+ * together with the taxon counts needed by the taxa criteria that follow them.
+ * Taxon counts only include sites that passed. A new pass is only needed when
+ * a site filter follows a taxa filter, since its site statistics depend on
+ * which taxa remain. Criteria that only depend on names or coordinates don't
+ * read the genotypes.
+ *
+ * The result is a view of the original table (see Translate) and a report of
+ * how many sites or taxa each criterion removed. A site or taxon is counted
+ * against the first criterion (in filter order) that it fails.
+ *
+ * Site statistics: siteMinCount is the minimum number of taxa not missing,
+ * allele frequencies are of known gametes, heterozygous proportions are of
+ * genotypes not missing. Taxa statistics: minNotMissing is the proportion of
+ * remaining sites not missing, heterozygous proportions are of genotypes not
+ * missing.
+ */
+public class FilterEngine {
+
+    private static final Logger myLogger = LogManager.getLogger(FilterEngine.class);
+
+    // per site counts: genotypes not missing, heterozygous genotypes, then
+    // count of each allele code (except unknown)
+    private static final int NOT_MISSING = 0;
+    private static final int HETEROZYGOUS = 1;
+    private static final int FIRST_ALLELE = 2;
+    private static final int NUM_ALLELES = 15;
+    private static final int NUM_SITE_COUNTS = FIRST_ALLELE + NUM_ALLELES;
+
+    private static final byte[] IS_NOT_MISSING = new byte[256];
+    private static final byte[] IS_HETEROZYGOUS = new byte[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            byte genotype = (byte) i;
+            int first = (i >>> 4) & 0xF;
+            int second = i & 0xF;
+            IS_NOT_MISSING[i] = (byte) (genotype == GenotypeTable.UNKNOWN_GENOTYPE ? 0 : 1);
+            IS_HETEROZYGOUS[i] = (byte) (first != GenotypeTable.UNKNOWN_ALLELE && second != GenotypeTable.UNKNOWN_ALLELE && first != second ? 1 : 0);
+        }
+    }
+
+    private final FilterList myFilters;
+    private final List<Stage> myStages;
+    private final List<Criterion> myCriteria = new ArrayList<>();
+
+    private FilterEngine(FilterList filters) {
+        myFilters = filters;
+        myStages = compile(filters);
+    }
+
+    /**
+     * Compiles filters into an engine that can be applied to any number of
+     * genotype tables.
+     *
+     * @param filters filters
+     *
+     * @return filter engine
+     */
+    public static FilterEngine getInstance(FilterList filters) {
+        if (filters == null) {
+            throw new IllegalArgumentException("FilterEngine: getInstance: filters can't be null");
+        }
+        return new FilterEngine(filters);
+    }
+
+    public FilterList filters() {
+        return myFilters;
+    }
+
+    /**
+     * Number of passes over the genotypes needed per table.
+     */
+    public int numPasses() {
+        int result = 0;
+        for (Stage stage : myStages) {
+            if (stage.needsCounts()) {
+                result++;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Applies the filters to genotypes.
+     *
+     * @param genotypes genotype table
+     *
+     * @return filtered view and report
+     */
+    public Result filter(GenotypeTable genotypes) {
+
+        long time = System.nanoTime();
+        int numSites = genotypes.numberOfSites();
+        int numTaxa = genotypes.numberOfTaxa();
+
+        // 0 means kept, otherwise index of removing criterion plus one
+        int[] siteRemovedBy = new int[numSites];
+        int[] taxonRemovedBy = new int[numTaxa];
+
+        for (Stage stage : myStages) {
+
+            SitePredicate[] sitePredicates = new SitePredicate[stage.mySiteCriteria.size()];
+            int[] siteIds = new int[sitePredicates.length];
+            for (int c = 0; c < sitePredicates.length; c++) {
+                Criterion criterion = stage.mySiteCriteria.get(c);
+                sitePredicates[c] = criterion.mySitePredicate.apply(genotypes);
+                siteIds[c] = myCriteria.indexOf(criterion) + 1;
+            }
+
+            TaxonCounts taxonCounts = null;
+            if (stage.needsCounts()) {
+                boolean countTaxa = stage.needsTaxonCounts();
+                boolean[] taxaKept = new boolean[numTaxa];
+                for (int t = 0; t < numTaxa; t++) {
+                    taxaKept[t] = taxonRemovedBy[t] == 0;
+                }
+                taxonCounts = genotypes.genotypeMatrix().blockStream().collect(
+                        () -> new TaxonCounts(numTaxa),
+                        (counts, block) -> evaluateBlock(block, taxaKept, siteRemovedBy, sitePredicates, siteIds, countTaxa ? counts : null),
+                        TaxonCounts::merge);
+            } else if (sitePredicates.length != 0) {
+                IntStream.range(0, numSites).parallel()
+                        .filter(s -> siteRemovedBy[s] == 0)
+                        .forEach(s -> siteRemovedBy[s] = evaluateSite(s, null, 0, sitePredicates, siteIds));
+            }
+
+            int numSitesKept = 0;
+            for (int s = 0; s < numSites; s++) {
+                if (siteRemovedBy[s] == 0) {
+                    numSitesKept++;
+                }
+            }
+
+            for (Criterion criterion : stage.myTaxonCriteria) {
+                TaxonPredicate predicate = criterion.myTaxonPredicate.apply(genotypes);
+                int id = myCriteria.indexOf(criterion) + 1;
+                for (int t = 0; t < numTaxa; t++) {
+                    if (taxonRemovedBy[t] == 0) {
+                        int notMissing = taxonCounts == null ? 0 : taxonCounts.myNotMissing[t];
+                        int heterozygous = taxonCounts == null ? 0 : taxonCounts.myHeterozygous[t];
+                        if (!predicate.keep(t, notMissing, heterozygous, numSitesKept)) {
+                            taxonRemovedBy[t] = id;
+                        }
+                    }
+                }
+            }
+
+        }
+
+        Result result = new Result(genotypes, siteRemovedBy, taxonRemovedBy);
+        myLogger.debug("filter: sites: " + numSites + " kept: " + result.mySitesKept.length + " taxa: " + numTaxa + " kept: " + result.myTaxaKept.length + " passes: " + numPasses() + " time: " + ((System.nanoTime() - time) / 1e9) + " secs.");
+        return result;
+
+    }
+
+    /**
+     * Counts genotypes of kept taxa for each site in block, evaluates site
+     * predicates, and adds genotypes of sites still kept to taxon counts (if
+     * taxonCounts not null).
+     */
+    private static void evaluateBlock(GenotypeBlock block, boolean[] taxaKept, int[] siteRemovedBy, SitePredicate[] predicates, int[] ids, TaxonCounts taxonCounts) {
+
+        int numSites = block.numberOfSites();
+        int numTaxa = block.numberOfTaxa();
+        int startSite = block.startSite();
+        byte[] data = block.data();
+        int siteStride = block.isSiteMajor() ? numTaxa : 1;
+        int taxonStride = block.isSiteMajor() ? 1 : numSites;
+
+        if (predicates.length != 0) {
+            int[] siteCounts = new int[numSites * NUM_SITE_COUNTS];
+            if (block.isSiteMajor()) {
+                for (int s = 0; s < numSites; s++) {
+                    if (siteRemovedBy[startSite + s] == 0) {
+                        countSite(data, s * siteStride, taxonStride, taxaKept, siteCounts, s * NUM_SITE_COUNTS);
+                    }
+                }
+            } else {
+                for (int t = 0; t < numTaxa; t++) {
+                    if (taxaKept[t]) {
+                        int index = t * taxonStride;
+                        for (int s = 0; s < numSites; s++) {
+                            int genotype = data[index++] & 0xFF;
+                            addGenotype(genotype, siteCounts, s * NUM_SITE_COUNTS);
+                        }
+                    }
+                }
+            }
+            for (int s = 0; s < numSites; s++) {
+                if (siteRemovedBy[startSite + s] == 0) {
+                    siteRemovedBy[startSite + s] = evaluateSite(startSite + s, siteCounts, s * NUM_SITE_COUNTS, predicates, ids);
+                }
+            }
+        }
+
+        if (taxonCounts == null) {
+            return;
+        }
+
+        int[] notMissing = taxonCounts.myNotMissing;
+        int[] heterozygous = taxonCounts.myHeterozygous;
+        for (int s = 0; s < numSites; s++) {
+            if (siteRemovedBy[startSite + s] == 0) {
+                int index = s * siteStride;
+                for (int t = 0; t < numTaxa; t++) {
+                    int genotype = data[index] & 0xFF;
+                    notMissing[t] += IS_NOT_MISSING[genotype];
+                    heterozygous[t] += IS_HETEROZYGOUS[genotype];
+                    index += taxonStride;
+                }
+            }
+        }
+
+    }
+
+    private static void countSite(byte[] data, int offset, int taxonStride, boolean[] taxaKept, int[] counts, int countOffset) {
+        int index = offset;
+        for (int t = 0; t < taxaKept.length; t++) {
+            if (taxaKept[t]) {
+                addGenotype(data[index] & 0xFF, counts, countOffset);
+            }
+            index += taxonStride;
+        }
+    }
+
+    private static void addGenotype(int genotype, int[] counts, int offset) {
+        counts[offset + NOT_MISSING] += IS_NOT_MISSING[genotype];
+        counts[offset + HETEROZYGOUS] += IS_HETEROZYGOUS[genotype];
+        int first = genotype >>> 4;
+        int second = genotype & 0xF;
+        if (first != GenotypeTable.UNKNOWN_ALLELE) {
+            counts[offset + FIRST_ALLELE + first]++;
+        }
+        if (second != GenotypeTable.UNKNOWN_ALLELE) {
+            counts[offset + FIRST_ALLELE + second]++;
+        }
+    }
+
+    /**
+     * Returns 0 if site passes all predicates, otherwise id of first failed.
+     */
+    private static int evaluateSite(int site, int[] counts, int offset, SitePredicate[] predicates, int[] ids) {
+        for (int c = 0; c < predicates.length; c++) {
+            if (!predicates[c].keep(site, counts, offset)) {
+                return ids[c];
+            }
+        }
+        return 0;
+    }
+
+    private static double minorAlleleFrequency(int[] counts, int offset) {
+        int total = 0;
+        int highest = 0;
+        int secondHighest = 0;
+        for (int a = offset + FIRST_ALLELE, end = offset + NUM_SITE_COUNTS; a < end; a++) {
+            int current = counts[a];
+            total += current;
+            if (current > highest) {
+                secondHighest = highest;
+                highest = current;
+            } else if (current > secondHighest) {
+                secondHighest = current;
+            }
+        }
+        return total == 0 ? 0.0 : (double) secondHighest / (double) total;
+    }
+
+    private static double proportion(int count, int total) {
+        return total == 0 ? 0.0 : (double) count / (double) total;
+    }
+
+    /**
+     * Groups criteria into stages. A stage is site criteria followed by taxa
+     * criteria, so that a stage needs at most one pass.
+     */
+    private List<Stage> compile(FilterList filters) {
+
+        List<Stage> result = new ArrayList<>();
+        Stage current = new Stage();
+        result.add(current);
+
+        for (Filter filter : filters) {
+            if (filter instanceof FilterSite) {
+                if (!current.myTaxonCriteria.isEmpty()) {
+                    current = new Stage();
+                    result.add(current);
+                }
+                for (Criterion criterion : siteCriteria((FilterSite) filter)) {
+                    current.mySiteCriteria.add(criterion);
+                    myCriteria.add(criterion);
+                }
+            } else if (filter instanceof FilterTaxa) {
+                for (Criterion criterion : taxonCriteria((FilterTaxa) filter)) {
+                    current.myTaxonCriteria.add(criterion);
+                    myCriteria.add(criterion);
+                }
+            } else {
+                throw new IllegalArgumentException("FilterEngine: compile: unknown filter type: " + filter.getClass().getName());
+            }
+        }
+
+        return result;
+
+    }
+
+    private static List<Criterion> siteCriteria(FilterSite filter) {
+
+        List<Criterion> result = new ArrayList<>();
+        String name = filter.filterName();
+
+        if (filter.removeMinorSNPStates()) {
+            throw new IllegalArgumentException("FilterEngine: siteCriteria: removeMinorSNPStates changes genotypes and isn't supported: " + name);
+        }
+
+        if (filter.siteFilterType() == FilterSite.SITE_RANGE_FILTER_TYPES.SITES) {
+            int start = filter.startSite();
+            int end = filter.endSite();
+            result.add(Criterion.site(name, "siteRange", false, genotypes -> (site, counts, offset) -> site >= start && site <= end));
+        } else if (filter.siteFilterType() == FilterSite.SITE_RANGE_FILTER_TYPES.POSITIONS) {
+            result.add(Criterion.site(name, "positionRange", false, genotypes -> positionRange(genotypes.positions(), filter)));
+        }
+
+        boolean include = filter.includeSites();
+
+        List<String> siteNames = filter.siteNames();
+        if (siteNames != null) {
+            Set<String> names = new HashSet<>(siteNames);
+            result.add(Criterion.site(name, "siteNames", false, genotypes -> {
+                PositionList positions = genotypes.positions();
+                return (site, counts, offset) -> names.contains(positions.siteName(site)) == include;
+            }));
+        }
+
+        String chrPosFile = filter.chrPosFile();
+        if (chrPosFile != null) {
+            Map<Chromosome, Set<Integer>> chrPos = readChrPosFile(chrPosFile);
+            result.add(Criterion.site(name, "chrPosFile", false, genotypes -> {
+                PositionList positions = genotypes.positions();
+                return (site, counts, offset) -> {
+                    Set<Integer> current = chrPos.get(positions.chromosome(site));
+                    return (current != null && current.contains(positions.chromosomalPosition(site))) == include;
+                };
+            }));
+        }
+
+        PositionList positionList = filter.positionList();
+        if (positionList != null) {
+            result.add(Criterion.site(name, "positionList", false, genotypes -> {
+                PositionList positions = genotypes.positions();
+                return (site, counts, offset) -> (positionList.siteOfPhysicalPosition(positions.chromosomalPosition(site), positions.chromosome(site)) >= 0) == include;
+            }));
+        }
+
+        String bedFile = filter.bedFile();
+        if (bedFile != null) {
+            Map<Chromosome, int[][]> ranges = readBedFile(bedFile);
+            result.add(Criterion.site(name, "bedFile", false, genotypes -> {
+                PositionList positions = genotypes.positions();
+                return (site, counts, offset) -> inRanges(ranges.get(positions.chromosome(site)), positions.chromosomalPosition(site)) == include;
+            }));
+        }
+
+        int minCount = filter.siteMinCount();
+        if (minCount > 0) {
+            result.add(Criterion.site(name, "siteMinCount", true, genotypes -> (site, counts, offset) -> counts[offset + NOT_MISSING] >= minCount));
+        }
+
+        double minFreq = filter.siteMinAlleleFreq();
+        double maxFreq = filter.siteMaxAlleleFreq();
+        if (minFreq > 0.0 || maxFreq < 1.0) {
+            result.add(Criterion.site(name, "siteAlleleFreq", true, genotypes -> (site, counts, offset) -> {
+                double maf = minorAlleleFrequency(counts, offset);
+                return maf >= minFreq && maf <= maxFreq;
+            }));
+        }
+
+        double minHet = filter.minHeterozygous();
+        double maxHet = filter.maxHeterozygous();
+        if (minHet > 0.0 || maxHet < 1.0) {
+            result.add(Criterion.site(name, "siteHeterozygous", true, genotypes -> (site, counts, offset) -> {
+                double het = proportion(counts[offset + HETEROZYGOUS], counts[offset + NOT_MISSING]);
+                return het >= minHet && het <= maxHet;
+            }));
+        }
+
+        if (filter.removeSitesWithIndels()) {
+            result.add(Criterion.site(name, "removeSitesWithIndels", true, genotypes -> (site, counts, offset) ->
+                    counts[offset + FIRST_ALLELE + NucleotideAlignmentConstants.GAP_ALLELE] == 0
+                    && counts[offset + FIRST_ALLELE + NucleotideAlignmentConstants.INSERT_ALLELE] == 0));
+        }
+
+        return result;
+
+    }
+
+    private static List<Criterion> taxonCriteria(FilterTaxa filter) {
+
+        List<Criterion> result = new ArrayList<>();
+        String name = filter.filterName();
+
+        TaxaList taxaList = filter.taxaList();
+        if (taxaList != null) {
+            boolean include = filter.includeTaxa();
+            Set<String> names = new HashSet<>();
+            for (Taxon taxon : taxaList) {
+                names.add(taxon.getName());
+            }
+            result.add(Criterion.taxon(name, "taxaList", false, genotypes -> {
+                TaxaList taxa = genotypes.taxa();
+                return (taxon, notMissing, heterozygous, numSites) -> names.contains(taxa.taxaName(taxon)) == include;
+            }));
+        }
+
+        double minNotMissing = filter.minNotMissing();
+        if (minNotMissing > 0.0) {
+            result.add(Criterion.taxon(name, "minNotMissing", true, genotypes -> (taxon, notMissing, heterozygous, numSites) -> proportion(notMissing, numSites) >= minNotMissing));
+        }
+
+        double minHet = filter.minHeterozygous();
+        double maxHet = filter.maxHeterozygous();
+        if (minHet > 0.0 || maxHet < 1.0) {
+            result.add(Criterion.taxon(name, "taxaHeterozygous", true, genotypes -> (taxon, notMissing, heterozygous, numSites) -> {
+                double het = proportion(heterozygous, notMissing);
+                return het >= minHet && het <= maxHet;
+            }));
+        }
+
+        return result;
+
+    }
+
+    private static SitePredicate positionRange(PositionList positions, FilterSite filter) {
+        Chromosome startChr = filter.startChr();
+        int startPos = filter.startPos();
+        Chromosome endChr = filter.endChr();
+        int endPos = filter.endPos();
+        return (site, counts, offset) -> {
+            Chromosome chr = positions.chromosome(site);
+            int pos = positions.chromosomalPosition(site);
+            int compareStart = chr.compareTo(startChr);
+            if (compareStart < 0 || (compareStart == 0 && startPos != -1 && pos < startPos)) {
+                return false;
+            }
+            int compareEnd = chr.compareTo(endChr);
+            return compareEnd < 0 || (compareEnd == 0 && (endPos == -1 || pos <= endPos));
+        };
+    }
+
+    /**
+     * Reads chromosome and position (first two columns) of each line. A first
+     * line with a non-numeric position is treated as a header.
+     */
+    private static Map<Chromosome, Set<Integer>> readChrPosFile(String filename) {
+
+        Map<Chromosome, Set<Integer>> result = new HashMap<>();
+        String line = null;
+        try (BufferedReader reader = Utils.getBufferedReader(filename)) {
+            int lineNum = 1;
+            line = reader.readLine();
+            while (line != null) {
+                String[] tokens = line.trim().split("\\s+");
+                if (tokens.length >= 2) {
+                    try {
+                        int pos = Integer.parseInt(tokens[1]);
+                        result.computeIfAbsent(Chromosome.instance(tokens[0]), k -> new HashSet<>()).add(pos);
+                    } catch (NumberFormatException e) {
+                        if (lineNum != 1) {
+                            throw e;
+                        }
+                    }
+                }
+                line = reader.readLine();
+                lineNum++;
+            }
+        } catch (Exception e) {
+            myLogger.debug(e.getMessage(), e);
+            throw new IllegalStateException("FilterEngine: readChrPosFile: problem reading: " + filename + " line: " + line);
+        }
+        return result;
+
+    }
+
+    /**
+     * Reads BED file ranges as sorted, merged start (inclusive) and end
+     * (exclusive) positions for each chromosome.
+     */
+    private static Map<Chromosome, int[][]> readBedFile(String filename) {
+
+        Map<Chromosome, List<int[]>> ranges = new HashMap<>();
+        for (ReadBedfile.BedFileRange range : ReadBedfile.getRanges(filename)) {
+            ranges.computeIfAbsent(Chromosome.instance(range.chr()), k -> new ArrayList<>()).add(new int[]{range.start(), range.end()});
+        }
+
+        Map<Chromosome, int[][]> result = new HashMap<>();
+        for (Map.Entry<Chromosome, List<int[]>> entry : ranges.entrySet()) {
+            List<int[]> current = entry.getValue();
+            current.sort((first, second) -> Integer.compare(first[0], second[0]));
+            List<int[]> merged = new ArrayList<>();
+            for (int[] range : current) {
+                int[] last = merged.isEmpty() ? null : merged.get(merged.size() - 1);
+                if (last != null && range[0] <= last[1]) {
+                    last[1] = Math.max(last[1], range[1]);
+                } else {
+                    merged.add(range.clone());
+                }
+            }
+            int[][] temp = new int[2][merged.size()];
+            for (int i = 0; i < merged.size(); i++) {
+                temp[0][i] = merged.get(i)[0];
+                temp[1][i] = merged.get(i)[1];
+            }
+            result.put(entry.getKey(), temp);
+        }
+        return result;
+
+    }
+
+    private static boolean inRanges(int[][] ranges, int position) {
+        if (ranges == null) {
+            return false;
+        }
+        int index = Arrays.binarySearch(ranges[0], position);
+        if (index < 0) {
+            index = -index - 2;
+        }
+        return index >= 0 && position < ranges[1][index];
+    }
+
+    @FunctionalInterface
+    private interface SitePredicate {
+
+        /**
+         * @param site site
+         * @param counts site counts (null if criterion doesn't use counts)
+         * @param offset offset of site in counts
+         */
+        boolean keep(int site, int[] counts, int offset);
+    }
+
+    @FunctionalInterface
+    private interface TaxonPredicate {
+
+        boolean keep(int taxon, int notMissing, int heterozygous, int numSites);
+    }
+
+    private static class Criterion {
+
+        private final String myFilterName;
+        private final String myName;
+        private final boolean myUsesCounts;
+        private final Function<GenotypeTable, SitePredicate> mySitePredicate;
+        private final Function<GenotypeTable, TaxonPredicate> myTaxonPredicate;
+
+        private Criterion(String filterName, String name, boolean usesCounts, Function<GenotypeTable, SitePredicate> sitePredicate, Function<GenotypeTable, TaxonPredicate> taxonPredicate) {
+            myFilterName = filterName;
+            myName = name;
+            myUsesCounts = usesCounts;
+            mySitePredicate = sitePredicate;
+            myTaxonPredicate = taxonPredicate;
+        }
+
+        static Criterion site(String filterName, String name, boolean usesCounts, Function<GenotypeTable, SitePredicate> predicate) {
+            return new Criterion(filterName, name, usesCounts, predicate, null);
+        }
+
+        static Criterion taxon(String filterName, String name, boolean usesCounts, Function<GenotypeTable, TaxonPredicate> predicate) {
+            return new Criterion(filterName, name, usesCounts, null, predicate);
+        }
+
+        boolean isSite() {
+            return mySitePredicate != null;
+        }
+
+    }
+
+    private static class Stage {
+
+        private final List<Criterion> mySiteCriteria = new ArrayList<>();
+        private final List<Criterion> myTaxonCriteria = new ArrayList<>();
+
+        boolean needsTaxonCounts() {
+            for (Criterion criterion : myTaxonCriteria) {
+                if (criterion.myUsesCounts) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        boolean needsCounts() {
+            if (needsTaxonCounts()) {
+                return true;
+            }
+            for (Criterion criterion : mySiteCriteria) {
+                if (criterion.myUsesCounts) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+    }
+
+    /**
+     * Per taxon counts accumulated by one thread.
+     */
+    private static class TaxonCounts {
+
+        private final int[] myNotMissing;
+        private final int[] myHeterozygous;
+
+        TaxonCounts(int numTaxa) {
+            myNotMissing = new int[numTaxa];
+            myHeterozygous = new int[numTaxa];
+        }
+
+        void merge(TaxonCounts other) {
+            for (int i = 0; i < myNotMissing.length; i++) {
+                myNotMissing[i] += other.myNotMissing[i];
+                myHeterozygous[i] += other.myHeterozygous[i];
+            }
+        }
+
+    }
+
+    /**
+     * Result of applying filters to one genotype table.
+     */
+    public class Result {
+
+        private final GenotypeTable myOriginal;
+        private final int[] mySitesKept;
+        private final int[] myTaxaKept;
+        private final int[] myNumRemoved;
+        private GenotypeTable myFiltered = null;
+
+        private Result(GenotypeTable original, int[] siteRemovedBy, int[] taxonRemovedBy) {
+            myOriginal = original;
+            myNumRemoved = new int[myCriteria.size() + 1];
+            mySitesKept = kept(siteRemovedBy, myNumRemoved);
+            myTaxaKept = kept(taxonRemovedBy, myNumRemoved);
+        }
+
+        private int[] kept(int[] removedBy, int[] numRemoved) {
+            int numKept = 0;
+            for (int current : removedBy) {
+                numRemoved[current]++;
+                if (current == 0) {
+                    numKept++;
+                }
+            }
+            int[] result = new int[numKept];
+            int count = 0;
+            for (int i = 0; i < removedBy.length; i++) {
+                if (removedBy[i] == 0) {
+                    result[count++] = i;
+                }
+            }
+            return result;
+        }
+
+        /**
+         * Returns original site indices kept.
+         */
+        public int[] sitesKept() {
+            return mySitesKept.clone();
+        }
+
+        /**
+         * Returns original taxa indices kept.
+         */
+        public int[] taxaKept() {
+            return myTaxaKept.clone();
+        }
+
+        public TranslateIndex translateSite() {
+            return TranslateIndexBuilder.orderedTranslation(mySitesKept, null, myOriginal.numberOfSites());
+        }
+
+        public TranslateIndex translateTaxa() {
+            return TranslateIndexBuilder.orderedTranslation(myTaxaKept, null, myOriginal.numberOfTaxa());
+        }
+
+        public Translate translate() {
+            return TranslateBuilder.getInstance(translateTaxa(), translateSite());
+        }
+
+        /**
+         * Returns filtered view of the original genotype table. The original
+         * is returned if nothing was removed.
+         */
+        public synchronized GenotypeTable genotypeTable() {
+
+            if (myFiltered != null) {
+                return myFiltered;
+            }
+
+            if (mySitesKept.length == myOriginal.numberOfSites() && myTaxaKept.length == myOriginal.numberOfTaxa()) {
+                myFiltered = myOriginal;
+                return myFiltered;
+            }
+
+            Translate translate = translate();
+
+            PositionList positions = myOriginal.positions();
+            List<Position> keptPositions = new ArrayList<>(mySitesKept.length);
+            for (int site : mySitesKept) {
+                keptPositions.add(positions.get(site));
+            }
+            PositionList filteredPositions = new PositionListBuilder().genomeVersion(positions.genomeVersion()).addAll(keptPositions).build();
+
+            TaxaList taxa = myOriginal.taxa();
+            TaxaListBuilder taxaBuilder = new TaxaListBuilder();
+            for (int taxon : myTaxaKept) {
+                taxaBuilder.add(taxa.get(taxon));
+            }
+
+            myFiltered = GenotypeTableBuilder.getInstance(
+                    GenotypeCallTableBuilder.getFilteredInstance(myOriginal.genotypeMatrix(), translate),
+                    filteredPositions, taxaBuilder.build(),
+                    myOriginal.depth() == null ? null : AlleleDepthBuilder.getFilteredInstance(myOriginal.depth(), translate),
+                    myOriginal.alleleProbability() == null ? null : AlleleProbabilityBuilder.getFilteredInstance(myOriginal.alleleProbability(), translate),
+                    myOriginal.referenceProbability() == null ? null : ReferenceProbabilityBuilder.getFilteredInstance(myOriginal.referenceProbability(), translate),
+                    myOriginal.dosage() == null ? null : DosageBuilder.getFilteredInstance(myOriginal.dosage(), translate),
+                    myOriginal.annotations());
+            return myFiltered;
+
+        }
+
+        /**
+         * Returns number of sites or taxa removed by each criterion.
+         */
+        public TableReport report() {
+            TableReportBuilder builder = TableReportBuilder.getInstance("Filter Results", new Object[]{"Filter", "Criterion", "Type", "Removed"});
+            for (int c = 0; c < myCriteria.size(); c++) {
+                Criterion criterion = myCriteria.get(c);
+                builder.add(new Object[]{criterion.myFilterName, criterion.myName, criterion.isSite() ? "Site" : "Taxa", myNumRemoved[c + 1]});
+            }
+            builder.add(new Object[]{"Total", "Sites Remaining", "Site", mySitesKept.length});
+            builder.add(new Object[]{"Total", "Taxa Remaining", "Taxa", myTaxaKept.length});
+            return builder.build();
+        }
+
+    }
+
+}
@@ -3,9 +3,11 @@
  */
 package net.maizegenetics.dna.snp;
 
+import net.maizegenetics.dna.map.Chromosome;
 import net.maizegenetics.dna.map.Position;
 import net.maizegenetics.dna.map.PositionList;
 import net.maizegenetics.dna.map.PositionListBuilder;
+import net.maizegenetics.dna.map.PositionListUtils;
 import net.maizegenetics.dna.snp.genotypecall.GenotypeCallTable;
 import net.maizegenetics.dna.snp.genotypecall.GenotypeCallTableBuilder;
 import net.maizegenetics.dna.snp.genotypecall.GenotypeMergeRule;
@@ -14,6 +16,7 @@ import net.maizegenetics.taxa.TaxaList;
 import net.maizegenetics.taxa.TaxaListBuilder;
 import net.maizegenetics.taxa.Taxon;
 import net.maizegenetics.util.GeneralAnnotationStorage;
+import net.maizegenetics.util.Tuple;
 
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -250,6 +253,33 @@ public class GenotypeTableBuilder {
         return getInstance(genotype, positionList, taxaList, null, null, null, null, null);
     }
 
+    /**
+     * Returns view of genotype table with sites moved to new coordinates and
+     * resorted (see PositionListUtils.newCoordinates()). Genotypes and scores
+     * aren't copied. Sites with null new chromosome are dropped.
+     *
+     * @param original original genotype table
+     * @param newChromosomes new chromosome for each original site
+     * @param newPositions new physical position for each original site
+     *
+     * @return genotype table in new coordinates
+     */
+    public static GenotypeTable getNewCoordinatesInstance(GenotypeTable original, Chromosome[] newChromosomes, int[] newPositions) {
+
+        Tuple<PositionList, TranslateIndex> moved = PositionListUtils.newCoordinates(original.positions(), newChromosomes, newPositions);
+        Translate translate = TranslateBuilder.getInstance(TranslateIndexBuilder.noTranslation(original.numberOfTaxa()), moved.getY());
+
+        return getInstance(
+                GenotypeCallTableBuilder.getFilteredInstance(original.genotypeMatrix(), translate),
+                moved.getX(), original.taxa(),
+                original.depth() == null ? null : AlleleDepthBuilder.getFilteredInstance(original.depth(), translate),
+                original.alleleProbability() == null ? null : AlleleProbabilityBuilder.getFilteredInstance(original.alleleProbability(), translate),
+                original.referenceProbability() == null ? null : ReferenceProbabilityBuilder.getFilteredInstance(original.referenceProbability(), translate),
+                original.dosage() == null ? null : DosageBuilder.getFilteredInstance(original.dosage(), translate),
+                original.annotations());
+
+    }
+
     /**
      * Creates a GenotypeTable with in-memory instance of GenotypeCallTable.
      * Primarily needed for performance critical situations like imputation.
@@ -41,9 +41,9 @@ public class MaskGenotypeMatrix extends AbstractMaskMatrix {
     protected BitSet taxonMask(int taxon) {
         BitSet result = new OpenBitSet(myNumSites);
         byte[] temp = myGenotype.genotypeForAllSites(taxon);
-        for (int t = 0; t < myNumTaxa; t++) {
-            if (myPredicate.test(temp[t])) {
-                result.fastSet(t);
+        for (int s = 0; s < myNumSites; s++) {
+            if (myPredicate.test(temp[s])) {
+                result.fastSet(s);
             }
         }
         return result;
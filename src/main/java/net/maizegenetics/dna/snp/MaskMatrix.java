@@ -7,6 +7,8 @@ package net.maizegenetics.dna.snp;
 
 import net.maizegenetics.util.BitSet;
 
+import java.util.stream.IntStream;
+
 /**
  *
  * @author Terry Casstevens
@@ -63,4 +65,102 @@ public interface MaskMatrix {
 
     public boolean isSiteOptimized();
 
+    /**
+     * Number of masked genotypes for specified taxon
+     *
+     * @param taxon taxon
+     *
+     * @return number masked
+     */
+    public default long numMaskedForTaxon(int taxon) {
+        return maskForTaxon(taxon).cardinality();
+    }
+
+    /**
+     * Number of masked genotypes for specified site
+     *
+     * @param site site
+     *
+     * @return number masked
+     */
+    public default long numMaskedForSite(int site) {
+        return maskForSite(site).cardinality();
+    }
+
+    public default double fractionMaskedForTaxon(int taxon) {
+        int numSites = numSites();
+        return numSites == 0 ? 0.0 : (double) numMaskedForTaxon(taxon) / (double) numSites;
+    }
+
+    public default double fractionMaskedForSite(int site) {
+        int numTaxa = numTaxa();
+        return numTaxa == 0 ? 0.0 : (double) numMaskedForSite(site) / (double) numTaxa;
+    }
+
+    /**
+     * Total number of masked genotypes
+     *
+     * @return number masked
+     */
+    public default long numMasked() {
+        if (isSiteOptimized()) {
+            return IntStream.range(0, numSites()).parallel().mapToLong(this::numMaskedForSite).sum();
+        } else {
+            return IntStream.range(0, numTaxa()).parallel().mapToLong(this::numMaskedForTaxon).sum();
+        }
+    }
+
+    /**
+     * Sets masked genotypes of taxon from startSite (inclusive) to endSite
+     * (exclusive) to value in dest. Site startSite is at destOffset, and
+     * following sites are destStride apart.
+     */
+    public default void maskTaxon(int taxon, int startSite, int endSite, byte[] dest, int destOffset, int destStride, byte value) {
+        apply(maskForTaxon(taxon), startSite, endSite, dest, destOffset, destStride, value);
+    }
+
+    /**
+     * Sets masked genotypes of site from startTaxon (inclusive) to endTaxon
+     * (exclusive) to value in dest. Taxon startTaxon is at destOffset, and
+     * following taxa are destStride apart.
+     */
+    public default void maskSite(int site, int startTaxon, int endTaxon, byte[] dest, int destOffset, int destStride, byte value) {
+        apply(maskForSite(site), startTaxon, endTaxon, dest, destOffset, destStride, value);
+    }
+
+    /**
+     * Sets dest elements corresponding to the set bits of mask from start
+     * (inclusive) to end (exclusive). Bits are tested a 64 bit word at a time,
+     * so unmasked stretches cost one comparison per word.
+     *
+     * @param mask mask
+     * @param start first bit
+     * @param end last bit (exclusive)
+     * @param dest destination
+     * @param destOffset position in dest of bit start
+     * @param destStride distance in dest between consecutive bits
+     * @param value value for masked elements
+     */
+    public static void apply(BitSet mask, int start, int end, byte[] dest, int destOffset, int destStride, byte value) {
+        if (start >= end) {
+            return;
+        }
+        int firstWord = start >>> 6;
+        int lastWord = Math.min((end - 1) >>> 6, mask.getNumWords() - 1);
+        for (int w = firstWord; w <= lastWord; w++) {
+            long word = mask.getBits(w);
+            if (w == firstWord) {
+                word &= -1L << (start & 63);
+            }
+            if (w == (end - 1) >>> 6) {
+                word &= -1L >>> (63 - ((end - 1) & 63));
+            }
+            while (word != 0) {
+                int index = (w << 6) + Long.numberOfTrailingZeros(word);
+                dest[destOffset + (index - start) * destStride] = value;
+                word &= word - 1;
+            }
+        }
+    }
+
 }
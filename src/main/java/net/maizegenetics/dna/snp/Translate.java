@@ -39,6 +39,22 @@ public class Translate {
         return (long) taxon(taxon) << 32 | site(site);
     }
 
+    /**
+     * Returns number of consecutive sites, starting at site, that translate
+     * to consecutive base sites (up to maxLength).
+     */
+    public int siteRun(int site, int maxLength) {
+        return myTranslateSite.translateRun(site, maxLength);
+    }
+
+    /**
+     * Returns number of consecutive taxa, starting at taxon, that translate
+     * to consecutive base taxa (up to maxLength).
+     */
+    public int taxonRun(int taxon, int maxLength) {
+        return myTranslateTaxa.translateRun(taxon, maxLength);
+    }
+
     public boolean hasSiteTranslations() {
         return myTranslateSite.hasTranslations();
     }
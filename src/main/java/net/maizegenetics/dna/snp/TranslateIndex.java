@@ -45,6 +45,21 @@ public class TranslateIndex {
         return index;
     }
 
+    /**
+     * Returns how many consecutive indices, starting at index, translate to
+     * consecutive base indices (up to maxLength). Bulk readers use this to
+     * copy a whole run from the base with one range request. Always at least
+     * one.
+     *
+     * @param index first index of run
+     * @param maxLength maximum run length to return
+     *
+     * @return run length
+     */
+    public int translateRun(int index, int maxLength) {
+        return Math.max(1, Math.min(maxLength, numIndices() - index));
+    }
+
     /**
      * Number of indices represented by this translation. Number of base indices
      * will be the same or larger.
@@ -1,5 +1,7 @@
 package net.maizegenetics.dna.snp;
 
+import java.util.Arrays;
+
 /**
  * @author Terry Casstevens
  *         Created March 30, 2017
@@ -34,12 +36,20 @@ public class TranslateIndexOffsets extends TranslateIndex {
      */
     @Override
     public int translate(int index) {
-        for (int i = 1; i < myOffsets.length; i++) {
-            if (index < myOffsets[i]) {
-                return i - 1;
-            }
+        if (index >= myOffsets[myOffsets.length - 1]) {
+            throw new IndexOutOfBoundsException("TranslateIndexOffsets: translate: " + index);
         }
-        throw new IndexOutOfBoundsException("TranslateIndexOffsets: translate: " + index);
+        int result = Arrays.binarySearch(myOffsets, index);
+        return result >= 0 ? result : Math.max(0, -result - 2);
+    }
+
+    /**
+     * Consecutive indices within an offset translate to the same base index,
+     * so runs are never longer than one.
+     */
+    @Override
+    public int translateRun(int index, int maxLength) {
+        return 1;
     }
 
     /**
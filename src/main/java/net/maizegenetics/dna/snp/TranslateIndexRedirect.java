@@ -37,6 +37,20 @@ public class TranslateIndexRedirect extends TranslateIndex {
         return myIndexRedirect[index];
     }
 
+    @Override
+    public int translateRun(int index, int maxLength) {
+        int first = myIndexRedirect[index];
+        if (first == -1) {
+            return 1;
+        }
+        int end = Math.min(numIndices(), index + maxLength);
+        int current = index + 1;
+        while (current < end && myIndexRedirect[current] == first + current - index) {
+            current++;
+        }
+        return current - index;
+    }
+
     /**
      * Translates base index to this index. Uses binary search algorithm since
      * indices are ordered.
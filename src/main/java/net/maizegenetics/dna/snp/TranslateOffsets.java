@@ -1,5 +1,7 @@
 package net.maizegenetics.dna.snp;
 
+import java.util.Arrays;
+
 /**
  * @author Terry Casstevens
  *         Created March 30, 2017
@@ -27,12 +29,14 @@ public class TranslateOffsets {
     }
 
     public long translate(int index) {
-        for (int i = 1; i < myOffsets.length; i++) {
-            if (index < myOffsets[i]) {
-                return ((long) (i - 1) << 32) | (long) (index - myOffsets[i - 1]);
-            }
+        if (index < 0 || index >= myNumIndices) {
+            throw new IndexOutOfBoundsException("TranslateOffsets: translate: " + index);
+        }
+        int offset = Arrays.binarySearch(myOffsets, index);
+        if (offset < 0) {
+            offset = -offset - 2;
         }
-        throw new IndexOutOfBoundsException("TranslateOffsets: translate: " + index);
+        return ((long) offset << 32) | (long) (index - myOffsets[offset]);
     }
 
 }
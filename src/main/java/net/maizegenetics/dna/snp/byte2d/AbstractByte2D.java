@@ -34,7 +34,7 @@ public abstract class AbstractByte2D implements Byte2D {
     public byte[] valuesForAllTaxa(int site) {
         byte[] result = new byte[myNumTaxa];
         for (int taxon = 0; taxon < myNumTaxa; taxon++) {
-            result[site] = valueForAllele(taxon, site);
+            result[taxon] = valueForAllele(taxon, site);
         }
         return result;
     }
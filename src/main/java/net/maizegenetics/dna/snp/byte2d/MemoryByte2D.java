@@ -22,4 +22,14 @@ public class MemoryByte2D extends AbstractByte2D {
     public byte valueForAllele(int taxon, int site) {
         return myValues.get(taxon, site);
     }
+
+    @Override
+    public byte[] valuesForAllSites(int taxon) {
+        return myValues.getAllColumns(taxon);
+    }
+
+    @Override
+    public byte[] valuesForAllTaxa(int site) {
+        return myValues.getAllRows(site);
+    }
 }
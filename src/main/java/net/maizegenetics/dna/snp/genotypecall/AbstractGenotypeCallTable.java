@@ -31,6 +31,7 @@ abstract class AbstractGenotypeCallTable implements GenotypeCallTable {
     private final String[][] myAlleleEncodings;
     private final boolean myIsPhased;
     private final AlleleFreqCache myAlleleFreqCache;
+    private volatile StatsCache myStatsCache = null;
 
     AbstractGenotypeCallTable(int numTaxa, int numSites, boolean phased, String[][] alleleEncodings, int maxNumAlleles) {
         myTaxaCount = numTaxa;
@@ -239,6 +240,7 @@ abstract class AbstractGenotypeCallTable implements GenotypeCallTable {
 
     @Override
     public byte[] majorAlleleForAllSites() {
+        myAlleleFreqCache.precompute();
         byte[] result = new byte[mySiteCount];
         for (int i = 0; i < mySiteCount; i++) {
             result[i] = majorAllele(i);
@@ -248,6 +250,7 @@ abstract class AbstractGenotypeCallTable implements GenotypeCallTable {
 
     @Override
     public byte[] minorAlleleForAllSites() {
+        myAlleleFreqCache.precompute();
         byte[] result = new byte[mySiteCount];
         for (int i = 0; i < mySiteCount; i++) {
             result[i] = minorAllele(i);
@@ -257,6 +260,7 @@ abstract class AbstractGenotypeCallTable implements GenotypeCallTable {
 
     @Override
     public byte[] thirdAlleleForAllSites() {
+        myAlleleFreqCache.precompute();
         byte[] result = new byte[mySiteCount];
         for (int i = 0; i < mySiteCount; i++) {
             result[i] = thirdAllele(i);
@@ -266,37 +270,17 @@ abstract class AbstractGenotypeCallTable implements GenotypeCallTable {
 
     @Override
     public byte thirdAllele(int site) {
-        int[][] alleles = allelesSortedByFrequency(site);
-
-        if (alleles[0].length > 2) {
-            return (byte) alleles[0][2];
-        } else {
-            return GenotypeTable.UNKNOWN_ALLELE;
-        }
+        return myAlleleFreqCache.allele(site, 2);
     }
 
     @Override
     public int minorAlleleCount(int site) {
-
-        int[][] alleles = allelesSortedByFrequency(site);
-
-        if (alleles[0].length >= 2) {
-            return alleles[1][1];
-        } else {
-            return 0;
-        }
-
+        return myAlleleFreqCache.alleleCount(site, 1);
     }
 
     @Override
     public byte minorAllele(int site) {
-        int[][] alleles = allelesSortedByFrequency(site);
-
-        if (alleles[0].length >= 2) {
-            return (byte) alleles[0][1];
-        } else {
-            return GenotypeTable.UNKNOWN_ALLELE;
-        }
+        return myAlleleFreqCache.allele(site, 1);
     }
 
     @Override
@@ -317,26 +301,12 @@ abstract class AbstractGenotypeCallTable implements GenotypeCallTable {
 
     @Override
     public int majorAlleleCount(int site) {
-
-        int[][] alleles = allelesSortedByFrequency(site);
-
-        if (alleles[0].length >= 1) {
-            return alleles[1][0];
-        } else {
-            return 0;
-        }
-
+        return myAlleleFreqCache.alleleCount(site, 0);
     }
 
     @Override
     public byte majorAllele(int site) {
-        int[][] alleles = allelesSortedByFrequency(site);
-
-        if (alleles[0].length >= 1) {
-            return (byte) alleles[0][0];
-        } else {
-            return GenotypeTable.UNKNOWN_ALLELE;
-        }
+        return myAlleleFreqCache.allele(site, 0);
     }
 
     @Override
@@ -651,14 +621,36 @@ abstract class AbstractGenotypeCallTable implements GenotypeCallTable {
         return result;
     }
 
+    /**
+     * Site and taxon stats are calculated together the first time either is
+     * requested.
+     */
+    private StatsCache statsCache() {
+        StatsCache result = myStatsCache;
+        if (result == null) {
+            synchronized (this) {
+                result = myStatsCache;
+                if (result == null) {
+                    result = StatsCache.instance(this);
+                    myStatsCache = result;
+                }
+            }
+        }
+        return result;
+    }
+
     @Override
     public Stats siteStats(int site) {
-        return AlleleFreqCache.allelesSortedByFrequencyAndCountsNucleotide(site, genotypeForAllTaxa(site));
+        Stats result = statsCache().siteStats(site);
+        if (result == null) {
+            result = AlleleFreqCache.allelesSortedByFrequencyAndCountsNucleotide(site, genotypeForAllTaxa(site));
+        }
+        return result;
     }
 
     @Override
     public Stats taxonStats(int taxon) {
-        return AlleleFreqCache.allelesSortedByFrequencyAndCountsNucleotide(taxon, genotypeForAllSites(taxon));
+        return statsCache().taxonStats(taxon);
     }
 
     @Override
@@ -671,6 +663,105 @@ abstract class AbstractGenotypeCallTable implements GenotypeCallTable {
         return StreamSupport.stream(new AbstractGenotypeCallTableSpliterator<>(taxon, 0, numberOfSites(), taxon, numberOfSites()), true);
     }
 
+    @Override
+    public GenotypeBlock block(int startSite, int endSite) {
+        int numSites = endSite - startSite;
+        int numTaxa = numberOfTaxa();
+        byte[] data = new byte[numSites * numTaxa];
+        if (isSiteOptimized()) {
+            for (int s = 0; s < numSites; s++) {
+                System.arraycopy(genotypeForAllTaxa(startSite + s), 0, data, s * numTaxa, numTaxa);
+            }
+            return new GenotypeBlock(startSite, numSites, numTaxa, true, data);
+        } else {
+            for (int t = 0; t < numTaxa; t++) {
+                System.arraycopy(genotypeRange(t, startSite, endSite), 0, data, t * numSites, numSites);
+            }
+            return new GenotypeBlock(startSite, numSites, numTaxa, false, data);
+        }
+    }
+
+    @Override
+    public Stream<GenotypeBlock> blockStream() {
+        return blockStream(Math.max(MIN_SITES_PER_BLOCK, BLOCK_SIZE_BYTES / Math.max(1, numberOfTaxa())));
+    }
+
+    @Override
+    public Stream<GenotypeBlock> blockStream(int sitesPerBlock) {
+        if (sitesPerBlock < 1) {
+            throw new IllegalArgumentException("AbstractGenotypeCallTable: blockStream: sites per block must be positive: " + sitesPerBlock);
+        }
+        int numBlocks = (int) (((long) numberOfSites() + sitesPerBlock - 1) / sitesPerBlock);
+        return StreamSupport.stream(new GenotypeBlockSpliterator(0, numBlocks, sitesPerBlock), true);
+    }
+
+    // target size of blocks from blockStream()
+    private static final int BLOCK_SIZE_BYTES = 1 << 20;
+    private static final int MIN_SITES_PER_BLOCK = 64;
+
+    /**
+     * Spliterator over blocks of sites. Splits at block boundaries and only
+     * creates each block when traversed.
+     */
+    private class GenotypeBlockSpliterator implements Spliterator<GenotypeBlock> {
+
+        private int myBlockOrigin;
+        private final int myBlockFence;
+        private final int mySitesPerBlock;
+
+        GenotypeBlockSpliterator(int blockOrigin, int blockFence, int sitesPerBlock) {
+            myBlockOrigin = blockOrigin;
+            myBlockFence = blockFence;
+            mySitesPerBlock = sitesPerBlock;
+        }
+
+        private GenotypeBlock nextBlock() {
+            int startSite = myBlockOrigin * mySitesPerBlock;
+            int endSite = (int) Math.min((long) startSite + mySitesPerBlock, numberOfSites());
+            myBlockOrigin++;
+            return block(startSite, endSite);
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super GenotypeBlock> action) {
+            if (myBlockOrigin < myBlockFence) {
+                action.accept(nextBlock());
+                return true;
+            } else {
+                return false;
+            }
+        }
+
+        @Override
+        public void forEachRemaining(Consumer<? super GenotypeBlock> action) {
+            while (myBlockOrigin < myBlockFence) {
+                action.accept(nextBlock());
+            }
+        }
+
+        @Override
+        public Spliterator<GenotypeBlock> trySplit() {
+            int lo = myBlockOrigin;
+            int mid = (lo + myBlockFence) >>> 1;
+            if (lo < mid) {
+                myBlockOrigin = mid;
+                return new GenotypeBlockSpliterator(lo, mid, mySitesPerBlock);
+            } else {
+                return null;
+            }
+        }
+
+        @Override
+        public long estimateSize() {
+            return myBlockFence - myBlockOrigin;
+        }
+
+        @Override
+        public int characteristics() {
+            return ORDERED | SIZED | IMMUTABLE | SUBSIZED | NONNULL;
+        }
+    }
+
     public Spliterator<Byte> spliterator() {
         return new AbstractGenotypeCallTableSpliterator<>(0, 0, numberOfSites(), numberOfTaxa() - 1, numberOfSites());
     }
@@ -3,81 +3,358 @@
  */
 package net.maizegenetics.dna.snp.genotypecall;
 
-import com.google.common.cache.Cache;
-import com.google.common.cache.CacheBuilder;
-import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.IntStream;
 import net.maizegenetics.dna.snp.GenotypeTable;
 import net.maizegenetics.dna.snp.GenotypeTableUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 
 /**
  * Cache for allele frequency statistics. Allele frequency can be expensive to
  * recalculate at large scale, so these class efficiently loops through blocks
- * of sites and caches the statistics on them.
+ * of sites and caches the statistics on them. Blocks are calculated ahead of
+ * requests on a dedicated thread pool, or all at once with precompute(). Each
+ * block stores major, minor, and third alleles and counts in primitive arrays.
+ * When storing all sites would use too much memory, only a bounded number of
+ * blocks are kept, oldest removed first.
  *
  * @author Terry Casstevens
  * @author Ed Buckler
  */
 public class AlleleFreqCache {
 
-    private static final int DEFAULT_MAX_NUM_ALLELES = 6;
-    private static final int SHIFT_AMOUNT = 8;
+    private static final Logger myLogger = LogManager.getLogger(AlleleFreqCache.class);
+
+    static final int DEFAULT_MAX_NUM_ALLELES = 6;
+    private static final int SHIFT_AMOUNT = 10;
     private static final int NUM_SITES_TO_CACHE = 1 << SHIFT_AMOUNT;
     public static final int SITE_BLOCK_MASK = ~(NUM_SITES_TO_CACHE - 1);
+
+    // major, minor, and third allele bytes plus counts
+    private static final int BYTES_PER_SITE = 3 + 3 * Integer.BYTES;
+
+    // portion of max heap allele frequencies can use before only a bounded
+    // number of blocks are kept
+    private static final int DEFAULT_HEAP_FRACTION = 8;
+
+    // Shared by all caches, so look ahead calculations don't compete with
+    // parallel streams on the common pool.
+    private static final ForkJoinPool ALLELE_FREQ_POOL = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
     private final GenotypeCallTable myGenotype;
     private final int myMaxNumAlleles;
-    private final Cache<Integer, int[][][]> myCachedAlleleFreqs;
-    private final ForkJoinPool myThreadPool;
+    private final int myNumBlocks;
+    private final AtomicReferenceArray<SiteBlock> myBlocks;
+    private final AtomicIntegerArray myBlocksInProgress;
+
+    // Maximum blocks kept when memory bounded. Otherwise, -1.
+    private final int myMaxNumBlocks;
+    private final ConcurrentLinkedQueue<Integer> myResidentBlocks = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger myNumResidentBlocks = new AtomicInteger();
+
+    private final LongAdder myNumHits = new LongAdder();
+    private final LongAdder myNumSitesComputed = new LongAdder();
+    private final LongAdder myNumBlocksComputed = new LongAdder();
+    private final LongAdder myNumBlocksEvicted = new LongAdder();
 
     public AlleleFreqCache(GenotypeCallTable genotype, int maxNumAlleles) {
+        this(genotype, maxNumAlleles, Runtime.getRuntime().maxMemory() / DEFAULT_HEAP_FRACTION);
+    }
+
+    /**
+     * Allele frequency cache that is memory bounded if storing all sites would
+     * require more than maxBytes.
+     *
+     * @param genotype genotype
+     * @param maxNumAlleles max number of alleles
+     * @param maxBytes max bytes used for cached allele frequencies
+     */
+    public AlleleFreqCache(GenotypeCallTable genotype, int maxNumAlleles, long maxBytes) {
         myGenotype = genotype;
         myMaxNumAlleles = maxNumAlleles;
-        myCachedAlleleFreqs = CacheBuilder.newBuilder()
-                .initialCapacity(myGenotype.numberOfSites() / NUM_SITES_TO_CACHE)
-                .build();
-        myThreadPool = ForkJoinPool.commonPool();
+        myNumBlocks = (myGenotype.numberOfSites() + NUM_SITES_TO_CACHE - 1) >>> SHIFT_AMOUNT;
+        myBlocks = new AtomicReferenceArray<>(myNumBlocks);
+        myBlocksInProgress = new AtomicIntegerArray(myNumBlocks);
+        long bytesPerBlock = (long) NUM_SITES_TO_CACHE * BYTES_PER_SITE;
+        if (myNumBlocks * bytesPerBlock > maxBytes) {
+            myMaxNumBlocks = (int) Math.max(4, maxBytes / bytesPerBlock);
+            myLogger.info("AlleleFreqCache: sites: " + myGenotype.numberOfSites() + " memory bounded to: " + myMaxNumBlocks + " blocks of " + NUM_SITES_TO_CACHE + " sites");
+        } else {
+            myMaxNumBlocks = -1;
+        }
     }
 
     private static int getStartSite(int site) {
         return site & SITE_BLOCK_MASK;
     }
 
-    private int[][] getCachedAlleleFreq(int site) {
-        int startSite = getStartSite(site);
-        int[][][] result = myCachedAlleleFreqs.getIfPresent(startSite);
+    /**
+     * Returns the block containing site or null if not cached. Counts hits.
+     */
+    private SiteBlock getBlock(int site) {
+        SiteBlock result = myBlocks.get(site >>> SHIFT_AMOUNT);
         if (result == null) {
+            int startSite = getStartSite(site);
             startLookAhead(startSite);
             if (site == startSite) {
                 startLookAhead(startSite + NUM_SITES_TO_CACHE);
                 startLookAhead(startSite + NUM_SITES_TO_CACHE * 2);
                 startLookAhead(startSite + NUM_SITES_TO_CACHE * 3);
             }
-            return alleleFreq(site);
+        } else {
+            myNumHits.increment();
         }
-        return result[site - startSite];
+        return result;
     }
 
     public int[][] getAllelesSortedByFrequency(int site) {
-        return getCachedAlleleFreq(site);
+        SiteBlock block = getBlock(site);
+        if (block == null) {
+            return alleleFreq(site);
+        }
+        return block.allelesSortedByFrequency(site & ~SITE_BLOCK_MASK);
     }
 
-    private int[][][] calculateAlleleFreq(int site) {
+    /**
+     * Returns major (rank 0), minor (rank 1), or third (rank 2) allele for site
+     * or UNKNOWN_ALLELE if site doesn't have that many alleles.
+     */
+    public byte allele(int site, int rank) {
+        SiteBlock block = getBlock(site);
+        if (block == null) {
+            int[][] alleles = alleleFreq(site);
+            return alleles[0].length > rank ? (byte) alleles[0][rank] : GenotypeTable.UNKNOWN_ALLELE;
+        }
+        return block.myAlleles[rank][site & ~SITE_BLOCK_MASK];
+    }
+
+    /**
+     * Returns count of major (rank 0), minor (rank 1), or third (rank 2)
+     * allele for site.
+     */
+    public int alleleCount(int site, int rank) {
+        SiteBlock block = getBlock(site);
+        if (block == null) {
+            int[][] alleles = alleleFreq(site);
+            return alleles[0].length > rank ? alleles[1][rank] : 0;
+        }
+        return block.myCounts[rank][site & ~SITE_BLOCK_MASK];
+    }
+
+    /**
+     * Calculates allele frequencies for all sites in one parallel pass. Does
+     * nothing if this cache is memory bounded.
+     *
+     * @return true if all sites are cached
+     */
+    public boolean precompute() {
+        if (myMaxNumBlocks != -1) {
+            return false;
+        }
+        try {
+            ALLELE_FREQ_POOL.submit(() -> IntStream.range(0, myNumBlocks).parallel().forEach(block -> {
+                if (myBlocks.get(block) == null && myBlocksInProgress.compareAndSet(block, 0, 1)) {
+                    try {
+                        calculateAlleleFreq(block << SHIFT_AMOUNT);
+                    } finally {
+                        myBlocksInProgress.set(block, 0);
+                    }
+                }
+            })).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("AlleleFreqCache: precompute: interrupted");
+        } catch (ExecutionException e) {
+            myLogger.debug(e.getMessage(), e);
+            throw new IllegalStateException("AlleleFreqCache: precompute: " + e.getCause().getMessage());
+        }
+        // blocks being calculated by look ahead tasks are finished
+        // by those tasks
+        return true;
+    }
+
+    /**
+     * Number of requests answered from cached blocks.
+     */
+    public long numHits() {
+        return myNumHits.sum();
+    }
+
+    /**
+     * Number of sites calculated, either individually for requests not
+     * cached or as part of calculating blocks.
+     */
+    public long numSitesComputed() {
+        return myNumSitesComputed.sum();
+    }
+
+    /**
+     * Number of blocks calculated.
+     */
+    public long numBlocksComputed() {
+        return myNumBlocksComputed.sum();
+    }
+
+    /**
+     * Number of blocks removed to stay within memory bound.
+     */
+    public long numBlocksEvicted() {
+        return myNumBlocksEvicted.sum();
+    }
+
+    public boolean isMemoryBounded() {
+        return myMaxNumBlocks != -1;
+    }
+
+    @Override
+    public String toString() {
+        return "AlleleFreqCache: hits: " + numHits() + " sites computed: " + numSitesComputed()
+                + " blocks computed: " + numBlocksComputed() + " blocks evicted: " + numBlocksEvicted();
+    }
+
+    private void calculateAlleleFreq(int site) {
 
         int startSite = getStartSite(site);
         int numSites = Math.min(NUM_SITES_TO_CACHE, myGenotype.numberOfSites() - startSite);
-        int[][][] alleleCounts = new int[numSites][][];
+        int numTaxa = myGenotype.numberOfTaxa();
+        SiteBlock result = new SiteBlock(numSites);
+
+        // counts of each allele for each site
+        int[] alleleFreq = new int[numSites * myMaxNumAlleles];
+        if (myGenotype.isSiteOptimized()) {
+            for (int s = 0; s < numSites; s++) {
+                countAlleles(myGenotype.genotypeForAllTaxa(startSite + s), 0, numTaxa, alleleFreq, s * myMaxNumAlleles, 0, myMaxNumAlleles);
+            }
+        } else {
+            for (int t = 0; t < numTaxa; t++) {
+                countAlleles(myGenotype.genotypeRange(t, startSite, startSite + numSites), 0, numSites, alleleFreq, 0, myMaxNumAlleles, myMaxNumAlleles);
+            }
+        }
+
+        int[] sorted = new int[myMaxNumAlleles];
         for (int s = 0; s < numSites; s++) {
-            alleleCounts[s] = alleleFreq(startSite + s);
+            System.arraycopy(alleleFreq, s * myMaxNumAlleles, sorted, 0, myMaxNumAlleles);
+            result.set(s, sorted, myMaxNumAlleles);
         }
 
-        myCachedAlleleFreqs.put(startSite, alleleCounts);
-        return alleleCounts;
+        myNumSitesComputed.add(numSites);
+        myNumBlocksComputed.increment();
+        int block = startSite >>> SHIFT_AMOUNT;
+        if (myBlocks.getAndSet(block, result) == null && myMaxNumBlocks != -1) {
+            myResidentBlocks.add(block);
+            if (myNumResidentBlocks.incrementAndGet() > myMaxNumBlocks) {
+                Integer oldest = myResidentBlocks.poll();
+                if (oldest != null) {
+                    myBlocks.set(oldest, null);
+                    myNumResidentBlocks.decrementAndGet();
+                    myNumBlocksEvicted.increment();
+                }
+            }
+        }
+
+    }
+
+    /**
+     * Adds allele counts of genotypes data[start] to data[end - 1] to
+     * alleleFreq. The counts for genotype i start at offset + i * stride.
+     */
+    private static void countAlleles(byte[] data, int start, int end, int[] alleleFreq, int offset, int stride, int maxNumAlleles) {
+        for (int i = start; i < end; i++) {
+            int index = offset + (i - start) * stride;
+            int first = (data[i] >>> 4) & 0xf;
+            if (first < maxNumAlleles) {
+                alleleFreq[index + first]++;
+            }
+            int second = data[i] & 0xf;
+            if (second < maxNumAlleles) {
+                alleleFreq[index + second]++;
+            }
+        }
     }
 
     private int[][] alleleFreq(int site) {
+        myNumSitesComputed.increment();
         return alleleFreq(myGenotype.genotypeForAllTaxa(site), myMaxNumAlleles);
     }
 
+    /**
+     * Allele frequencies for a block of sites stored as arrays of major,
+     * minor, and third alleles and counts. Sites with more than three
+     * alleles also keep the full result.
+     */
+    private static final class SiteBlock {
+
+        private final byte[][] myAlleles = new byte[3][];
+        private final int[][] myCounts = new int[3][];
+        private final byte[] myNumAlleles;
+        private Map<Integer, int[][]> myMoreAlleles = null;
+
+        private SiteBlock(int numSites) {
+            for (int i = 0; i < 3; i++) {
+                myAlleles[i] = new byte[numSites];
+                Arrays.fill(myAlleles[i], GenotypeTable.UNKNOWN_ALLELE);
+                myCounts[i] = new int[numSites];
+            }
+            myNumAlleles = new byte[numSites];
+        }
+
+        /**
+         * Sets site from allele counts. Counts are changed by this.
+         */
+        private void set(int site, int[] alleleFreq, int maxNumAlleles) {
+
+            for (byte i = 0; i < maxNumAlleles; i++) {
+                // size | allele (the 5-i is to get the sort right, so if case of ties A is first)
+                alleleFreq[i] = (alleleFreq[i] << 4) | (maxNumAlleles - 1 - i);
+            }
+
+            int numAlleles = sort(alleleFreq, maxNumAlleles);
+            myNumAlleles[site] = (byte) numAlleles;
+            for (int i = 0; i < numAlleles && i < 3; i++) {
+                myAlleles[i][site] = (byte) (5 - (0xF & alleleFreq[i]));
+                myCounts[i][site] = alleleFreq[i] >>> 4;
+            }
+
+            if (numAlleles > 3) {
+                if (myMoreAlleles == null) {
+                    myMoreAlleles = new HashMap<>();
+                }
+                int[][] alleleCounts = new int[2][numAlleles];
+                for (int i = 0; i < numAlleles; i++) {
+                    alleleCounts[0][i] = (byte) (5 - (0xF & alleleFreq[i]));
+                    alleleCounts[1][i] = alleleFreq[i] >>> 4;
+                }
+                myMoreAlleles.put(site, alleleCounts);
+            }
+
+        }
+
+        private int[][] allelesSortedByFrequency(int site) {
+            int numAlleles = myNumAlleles[site];
+            if (numAlleles > 3) {
+                int[][] alleleCounts = myMoreAlleles.get(site);
+                return new int[][]{alleleCounts[0].clone(), alleleCounts[1].clone()};
+            }
+            int[][] alleleCounts = new int[2][numAlleles];
+            for (int i = 0; i < numAlleles; i++) {
+                alleleCounts[0][i] = myAlleles[i][site];
+                alleleCounts[1][i] = myCounts[i][site];
+            }
+            return alleleCounts;
+        }
+
+    }
+
     public static int[][] allelesSortedByFrequencyNucleotide(byte[] data) {
         return alleleFreq(data, DEFAULT_MAX_NUM_ALLELES);
     }
@@ -153,24 +430,43 @@ public class AlleleFreqCache {
         int[] alleleFreq = new int[maxNumAlleles];
         int[] otherCounts = new int[4];
         for (int i = 0; i < numGenotypes; i++) {
+            count(data[i], alleleFreq, 0, maxNumAlleles, otherCounts, 0);
+        }
 
-            int count = Byte.toUnsignedInt(data[i]);
-            otherCounts[UNKNOWN_COUNT] += OTHER_COUNTS[count] & UNKNOWN_COUNT_BIT;
-            // << 1 is times 2
-            otherCounts[UNKNOWN_GAMETE_COUNT] += (OTHER_COUNTS[count] & UNKNOWN_COUNT_BIT) << 1;
-            // this is zero if both gametes where Unknown
-            otherCounts[UNKNOWN_GAMETE_COUNT] += (OTHER_COUNTS[count] & UNKNOWN_SINGLE_GAMETE_COUNT_BIT) >>> 1;
-            otherCounts[HETEROZYGOUS_COUNT] += (OTHER_COUNTS[count] & HETEROZYGOUS_COUNT_BIT) >>> 2;
-            otherCounts[HOMOZYGOUS_COUNT] += (OTHER_COUNTS[count] & HOMOZYGOUS_COUNT_BIT) >>> 3;
-
-            if (((data[i] >>> 4) & 0xf) < maxNumAlleles) {
-                alleleFreq[((data[i] >>> 4) & 0xf)]++;
-            }
-            if ((data[i] & 0xf) < maxNumAlleles) {
-                alleleFreq[(data[i] & 0xf)]++;
-            }
+        return stats(index, alleleFreq, otherCounts, numGenotypes, maxNumAlleles);
+
+    }
 
+    /**
+     * Adds genotype to allele counts (maxNumAlleles starting at alleleOffset)
+     * and other counts (UNKNOWN_COUNT, UNKNOWN_GAMETE_COUNT,
+     * HETEROZYGOUS_COUNT, HOMOZYGOUS_COUNT starting at otherOffset).
+     */
+    static void count(byte genotype, int[] alleleFreq, int alleleOffset, int maxNumAlleles, int[] otherCounts, int otherOffset) {
+
+        int count = Byte.toUnsignedInt(genotype);
+        otherCounts[otherOffset + UNKNOWN_COUNT] += OTHER_COUNTS[count] & UNKNOWN_COUNT_BIT;
+        // << 1 is times 2
+        otherCounts[otherOffset + UNKNOWN_GAMETE_COUNT] += (OTHER_COUNTS[count] & UNKNOWN_COUNT_BIT) << 1;
+        // this is zero if both gametes where Unknown
+        otherCounts[otherOffset + UNKNOWN_GAMETE_COUNT] += (OTHER_COUNTS[count] & UNKNOWN_SINGLE_GAMETE_COUNT_BIT) >>> 1;
+        otherCounts[otherOffset + HETEROZYGOUS_COUNT] += (OTHER_COUNTS[count] & HETEROZYGOUS_COUNT_BIT) >>> 2;
+        otherCounts[otherOffset + HOMOZYGOUS_COUNT] += (OTHER_COUNTS[count] & HOMOZYGOUS_COUNT_BIT) >>> 3;
+
+        if (((genotype >>> 4) & 0xf) < maxNumAlleles) {
+            alleleFreq[alleleOffset + ((genotype >>> 4) & 0xf)]++;
         }
+        if ((genotype & 0xf) < maxNumAlleles) {
+            alleleFreq[alleleOffset + (genotype & 0xf)]++;
+        }
+
+    }
+
+    /**
+     * Creates Stats from counts accumulated by count(). The alleleFreq array
+     * is modified.
+     */
+    static Stats stats(int index, int[] alleleFreq, int[] otherCounts, int numIndices, int maxNumAlleles) {
 
         for (byte i = 0; i < maxNumAlleles; i++) {
             // size | allele (the 5-i is to get the sort right, so if case of ties A is first)
@@ -184,7 +480,7 @@ public class AlleleFreqCache {
             alleleCounts[1][i] = alleleFreq[i] >>> 4;
         }
 
-        return Stats.getInstance(alleleCounts, otherCounts, numGenotypes, index);
+        return Stats.getInstance(alleleCounts, otherCounts, numIndices, index);
 
     }
 
@@ -289,13 +585,12 @@ public class AlleleFreqCache {
         }
     }
 
-    private final CopyOnWriteArraySet<Integer> myCurrentlyProcessingBlocks = new CopyOnWriteArraySet<>();
-
     private void startLookAhead(int site) {
         int startSite = getStartSite(site);
-        if ((startSite < myGenotype.numberOfSites()) && (myCachedAlleleFreqs.getIfPresent(startSite) == null)) {
-            if (myCurrentlyProcessingBlocks.add(startSite)) {
-                myThreadPool.execute(new LookAheadSiteStats(startSite));
+        if (startSite < myGenotype.numberOfSites()) {
+            int block = startSite >>> SHIFT_AMOUNT;
+            if (myBlocks.get(block) == null && myBlocksInProgress.compareAndSet(block, 0, 1)) {
+                ALLELE_FREQ_POOL.execute(new LookAheadSiteStats(startSite));
             }
         }
     }
@@ -313,7 +608,7 @@ public class AlleleFreqCache {
             try {
                 calculateAlleleFreq(myStartSite);
             } finally {
-                myCurrentlyProcessingBlocks.remove(myStartSite);
+                myBlocksInProgress.set(myStartSite >>> SHIFT_AMOUNT, 0);
             }
         }
     }
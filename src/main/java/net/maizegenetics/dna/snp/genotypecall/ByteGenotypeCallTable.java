@@ -54,6 +54,11 @@ class ByteGenotypeCallTable extends AbstractGenotypeCallTable {
         return myGenotype.get(taxon, site);
     }
 
+    @Override
+    public byte[] genotypeRange(int taxon, int startSite, int endSite) {
+        return myGenotype.getColumnRange(taxon, startSite, endSite);
+    }
+
     @Override
     public byte[] genotypeForAllSites(int taxon) {
         return myGenotype.getAllColumns(taxon);
@@ -5,6 +5,8 @@
  */
 package net.maizegenetics.dna.snp.genotypecall;
 
+import java.util.Arrays;
+
 /**
  *
  * @author Terry Casstevens
@@ -106,6 +108,48 @@ public class CombineGenotypeCallTable extends AbstractGenotypeCallTable {
         return myGenotypeCallTables[translate].genotype(taxon, site - mySiteOffsets[translate]);
     }
 
+    /**
+     * Copies the range from each sub table it spans with one request per
+     * table.
+     */
+    @Override
+    public byte[] genotypeRange(int taxon, int startSite, int endSite) {
+        byte[] result = new byte[endSite - startSite];
+        int site = startSite;
+        int table = site < endSite ? translateSite(site) : 0;
+        while (site < endSite) {
+            int offset = mySiteOffsets[table];
+            int tableEnd = Math.min(endSite, mySiteOffsets[table + 1]);
+            if (tableEnd > site) {
+                System.arraycopy(myGenotypeCallTables[table].genotypeRange(taxon, site - offset, tableEnd - offset), 0, result, site - startSite, tableEnd - site);
+                site = tableEnd;
+            }
+            table++;
+        }
+        return result;
+    }
+
+    @Override
+    public byte[] genotypeAllSites(int taxon) {
+        return genotypeRange(taxon, 0, mySiteCount);
+    }
+
+    @Override
+    public byte[] genotypeForAllSites(int taxon) {
+        return genotypeRange(taxon, 0, mySiteCount);
+    }
+
+    @Override
+    public byte[] genotypeForSiteRange(int taxon, int start, int end) {
+        return genotypeRange(taxon, start, end);
+    }
+
+    @Override
+    public byte[] genotypeForAllTaxa(int site) {
+        int translate = translateSite(site);
+        return myGenotypeCallTables[translate].genotypeForAllTaxa(site - mySiteOffsets[translate]);
+    }
+
     @Override
     public String genotypeAsString(int taxon, int site) {
         int translate = translateSite(site);
@@ -125,12 +169,20 @@ public class CombineGenotypeCallTable extends AbstractGenotypeCallTable {
 
     private int translateSite(int site) {
 
-        for (int i = 1; i < mySiteOffsets.length; i++) {
-            if (mySiteOffsets[i] > site) {
-                return i - 1;
+        if (site < 0 || site >= mySiteCount) {
+            throw new IndexOutOfBoundsException("CombineGenotypeCallTable: translateSite: index out of range: " + site);
+        }
+
+        // offsets are ascending, so an exact match is the first site of that table
+        int result = Arrays.binarySearch(mySiteOffsets, site);
+        if (result >= 0) {
+            // skip tables with no sites
+            while (mySiteOffsets[result + 1] == site) {
+                result++;
             }
+            return result;
         }
-        throw new IndexOutOfBoundsException("CombineGenotypeCallTable: translateSite: index out of range: " + site);
+        return -result - 2;
 
     }
 
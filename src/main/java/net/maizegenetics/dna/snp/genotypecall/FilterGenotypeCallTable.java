@@ -0,0 +1,317 @@
+/*
+ *  FilterGenotypeCallTable
+ */
+package net.maizegenetics.dna.snp.genotypecall;
+
+import net.maizegenetics.dna.snp.GenotypeTable;
+import net.maizegenetics.dna.snp.Translate;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.IntStream;
+
+/**
+ * Filtered view of a GenotypeCallTable. Taxa and sites are translated to the
+ * base table with a Translate. Bulk reads (genotypeRange(),
+ * genotypeForAllSites(), genotypeForAllTaxa(), etc.) copy each run of sites
+ * that translate to consecutive base sites with one range request to the base
+ * table, rather than translating genotype by genotype.
+ *
+ * The view is copied once into its own table (see materialize()) when that is
+ * cheaper than continuing to translate. The cost of a read through the view
+ * grows with the number of runs, so a fragmented view (short average run) is
+ * copied after its genotypes have been read once, and other views after they
+ * have been read READS_BEFORE_MATERIALIZE times. Only range reads count toward
+ * this. Single genotype reads (genotype()) use the copy if it exists but are
+ * not counted, so they stay cheap. Views with long runs are nearly as fast as
+ * the base and are never copied automatically, nor are views too large for
+ * the heap budget.
+ */
+public class FilterGenotypeCallTable extends AbstractGenotypeCallTable {
+
+    private static final Logger myLogger = LogManager.getLogger(FilterGenotypeCallTable.class);
+
+    // average run length below which translating costs more than copying
+    private static final int MIN_AVERAGE_RUN_LENGTH = 16;
+
+    // average run length at which reads are nearly arraycopy speed
+    private static final int NO_MATERIALIZE_RUN_LENGTH = 1024;
+
+    private static final int READS_BEFORE_MATERIALIZE = 3;
+
+    // read counts are summed every this many range reads, or on any read of
+    // at least MIN_CHECKED_READ genotypes
+    private static final int READ_CHECK_INTERVAL_MASK = 63;
+    private static final int MIN_CHECKED_READ = 4096;
+
+    // materialized copy (1 byte per genotype) must fit in this fraction of heap
+    private static final long MAX_HEAP_FRACTION = 4;
+
+    final GenotypeCallTable myBase;
+    final Translate myTranslate;
+    private final int myNumSiteRuns;
+    private final long myMaterializeThreshold;
+    private final LongAdder myGenotypesRead = new LongAdder();
+    // racy, only decides when to sum myGenotypesRead
+    private int myNumRangeReads = 0;
+    private volatile GenotypeCallTable myMaterialized = null;
+
+    FilterGenotypeCallTable(GenotypeCallTable base, Translate translate) {
+        super(translate.numTaxa(), translate.numSites(), base.isPhased(), alleleEncodings(base, translate), base.maxNumAlleles());
+        myBase = base;
+        myTranslate = translate;
+        myNumSiteRuns = numSiteRuns(translate);
+        myMaterializeThreshold = materializeThreshold();
+    }
+
+    private static String[][] alleleEncodings(GenotypeCallTable base, Translate translate) {
+        String[][] encodings = base.alleleDefinitions();
+        if (encodings.length == 1 || !translate.hasSiteTranslations()) {
+            return encodings;
+        }
+        int numSites = translate.numSites();
+        String[][] result = new String[numSites][];
+        for (int s = 0; s < numSites; s++) {
+            int baseSite = translate.site(s);
+            result[s] = baseSite == -1 ? encodings[0] : encodings[baseSite];
+        }
+        return result;
+    }
+
+    private static int numSiteRuns(Translate translate) {
+        int numSites = translate.numSites();
+        int result = 0;
+        int site = 0;
+        while (site < numSites) {
+            site += translate.siteRun(site, numSites - site);
+            result++;
+        }
+        return result;
+    }
+
+    /**
+     * Number of genotypes read through this view before it's materialized.
+     */
+    private long materializeThreshold() {
+
+        long numGenotypes = (long) myTaxaCount * (long) mySiteCount;
+        if (numGenotypes == 0 || numGenotypes > Runtime.getRuntime().maxMemory() / MAX_HEAP_FRACTION) {
+            return Long.MAX_VALUE;
+        }
+
+        long averageRunLength = mySiteCount / Math.max(1, myNumSiteRuns);
+        if (averageRunLength >= NO_MATERIALIZE_RUN_LENGTH) {
+            return Long.MAX_VALUE;
+        } else if (averageRunLength < MIN_AVERAGE_RUN_LENGTH) {
+            return numGenotypes;
+        } else {
+            return numGenotypes * READS_BEFORE_MATERIALIZE;
+        }
+
+    }
+
+    /**
+     * Returns the materialized copy if there is one. Otherwise, records that
+     * a range of count genotypes is being read and materializes if the
+     * genotypes read reach the threshold. The total is only summed
+     * periodically, since LongAdder.sum() visits every cell.
+     */
+    private GenotypeCallTable materialized(int count) {
+        GenotypeCallTable result = myMaterialized;
+        if (result != null || myMaterializeThreshold == Long.MAX_VALUE) {
+            return result;
+        }
+        myGenotypesRead.add(count);
+        if ((count >= MIN_CHECKED_READ || (++myNumRangeReads & READ_CHECK_INTERVAL_MASK) == 0)
+                && myGenotypesRead.sum() >= myMaterializeThreshold) {
+            return materialize();
+        }
+        return null;
+    }
+
+    /**
+     * Copies this view into its own table, so further reads don't translate.
+     * The copy is packed when the genotypes allow (see
+     * GenotypeCallTableBuilder.build()).
+     *
+     * @return materialized genotypes
+     */
+    public GenotypeCallTable materialize() {
+
+        GenotypeCallTable result = myMaterialized;
+        if (result != null) {
+            return result;
+        }
+
+        synchronized (this) {
+            result = myMaterialized;
+            if (result == null) {
+                long start = System.nanoTime();
+                GenotypeCallTableBuilder builder = GenotypeCallTableBuilder.getInstance(myTaxaCount, mySiteCount)
+                        .isPhased(isPhased())
+                        .alleleEncodings(alleleDefinitions());
+                IntStream.range(0, myTaxaCount).parallel()
+                        .forEach(t -> builder.setBaseRangeForTaxon(t, 0, translatedRange(t, 0, mySiteCount)));
+                result = builder.build();
+                myMaterialized = result;
+                myLogger.debug("materialize: taxa: " + myTaxaCount + " sites: " + mySiteCount + " site runs: " + myNumSiteRuns + " time: " + ((System.nanoTime() - start) / 1e9) + " secs.");
+            }
+        }
+
+        return result;
+
+    }
+
+    /**
+     * Returns whether this view has been copied into its own table.
+     */
+    public boolean isMaterialized() {
+        return myMaterialized != null;
+    }
+
+    /**
+     * Copies sites startSite (inclusive) to endSite (exclusive) for taxon
+     * from base table, one run at a time.
+     */
+    private byte[] translatedRange(int taxon, int startSite, int endSite) {
+
+        byte[] result = new byte[endSite - startSite];
+        int baseTaxon = myTranslate.taxon(taxon);
+        if (baseTaxon == -1) {
+            Arrays.fill(result, GenotypeTable.UNKNOWN_GENOTYPE);
+            return result;
+        }
+
+        int site = startSite;
+        while (site < endSite) {
+            int length = myTranslate.siteRun(site, endSite - site);
+            int baseSite = myTranslate.site(site);
+            if (baseSite == -1) {
+                result[site - startSite] = GenotypeTable.UNKNOWN_GENOTYPE;
+            } else if (length == 1) {
+                result[site - startSite] = myBase.genotype(baseTaxon, baseSite);
+            } else {
+                System.arraycopy(myBase.genotypeRange(baseTaxon, baseSite, baseSite + length), 0, result, site - startSite, length);
+            }
+            site += length;
+        }
+
+        return result;
+
+    }
+
+    @Override
+    public byte genotype(int taxon, int site) {
+        GenotypeCallTable materialized = myMaterialized;
+        if (materialized != null) {
+            return materialized.genotype(taxon, site);
+        }
+        long taxonSite = myTranslate.taxonSite(taxon, site);
+        if (taxonSite == -1) {
+            return GenotypeTable.UNKNOWN_GENOTYPE;
+        }
+        return myBase.genotype((int) (taxonSite >>> 32), (int) (taxonSite & 0xFFFFFFFF));
+    }
+
+    @Override
+    public byte[] genotypeRange(int taxon, int startSite, int endSite) {
+        GenotypeCallTable materialized = materialized(endSite - startSite);
+        if (materialized != null) {
+            return materialized.genotypeRange(taxon, startSite, endSite);
+        }
+        return translatedRange(taxon, startSite, endSite);
+    }
+
+    @Override
+    public byte[] genotypeAllSites(int taxon) {
+        return genotypeRange(taxon, 0, mySiteCount);
+    }
+
+    @Override
+    public byte[] genotypeForAllSites(int taxon) {
+        return genotypeRange(taxon, 0, mySiteCount);
+    }
+
+    @Override
+    public byte[] genotypeForSiteRange(int taxon, int start, int end) {
+        return genotypeRange(taxon, start, end);
+    }
+
+    @Override
+    public byte[] genotypeForAllTaxa(int site) {
+
+        GenotypeCallTable materialized = materialized(myTaxaCount);
+        if (materialized != null) {
+            return materialized.genotypeForAllTaxa(site);
+        }
+
+        byte[] result = new byte[myTaxaCount];
+        int baseSite = myTranslate.site(site);
+        if (baseSite == -1) {
+            Arrays.fill(result, GenotypeTable.UNKNOWN_GENOTYPE);
+            return result;
+        }
+
+        byte[] baseTaxa = myBase.genotypeForAllTaxa(baseSite);
+        int taxon = 0;
+        while (taxon < myTaxaCount) {
+            int length = myTranslate.taxonRun(taxon, myTaxaCount - taxon);
+            int baseTaxon = myTranslate.taxon(taxon);
+            if (baseTaxon == -1) {
+                result[taxon] = GenotypeTable.UNKNOWN_GENOTYPE;
+            } else {
+                System.arraycopy(baseTaxa, baseTaxon, result, taxon, length);
+            }
+            taxon += length;
+        }
+
+        return result;
+
+    }
+
+    @Override
+    public String genotypeAsString(int taxon, int site) {
+        return diploidAsString(site, genotype(taxon, site));
+    }
+
+    @Override
+    public String genotypeAsStringRange(int taxon, int startSite, int endSite) {
+        byte[] genotypes = genotypeRange(taxon, startSite, endSite);
+        StringBuilder builder = new StringBuilder();
+        for (int i = startSite; i < endSite; i++) {
+            if (i != startSite) {
+                builder.append(";");
+            }
+            builder.append(diploidAsString(i, genotypes[i - startSite]));
+        }
+        return builder.toString();
+    }
+
+    @Override
+    public String diploidAsString(int site, byte value) {
+        int baseSite = myTranslate.site(site);
+        return myBase.diploidAsString(baseSite == -1 ? 0 : baseSite, value);
+    }
+
+    @Override
+    public boolean retainsRareAlleles() {
+        return myBase.retainsRareAlleles();
+    }
+
+    @Override
+    public void transposeData(boolean siteInnerLoop) {
+        myBase.transposeData(siteInnerLoop);
+    }
+
+    @Override
+    public boolean isSiteOptimized() {
+        GenotypeCallTable materialized = myMaterialized;
+        if (materialized != null) {
+            return materialized.isSiteOptimized();
+        }
+        return myBase.isSiteOptimized();
+    }
+
+}
@@ -0,0 +1,167 @@
+/*
+ *  GenotypeBlock
+ */
+package net.maizegenetics.dna.snp.genotypecall;
+
+import net.maizegenetics.dna.snp.GenotypeTable;
+import net.maizegenetics.dna.snp.MaskMatrix;
+
+import java.util.stream.IntStream;
+
+/**
+ * Tile of genotype calls for a range of sites and all taxa, copied from a
+ * GenotypeCallTable into a single byte array. The tile is laid out the same
+ * way as the table it came from (see GenotypeCallTable.isSiteOptimized()), so
+ * filling it reads the table sequentially.
+ *
+ * @see GenotypeCallTable#blockStream()
+ */
+public final class GenotypeBlock {
+
+    private final int myStartSite;
+    private final int myNumSites;
+    private final int myNumTaxa;
+    private final boolean mySiteMajor;
+    private final byte[] myData;
+
+    /**
+     * @param startSite first site (inclusive)
+     * @param numSites number of sites
+     * @param numTaxa number of taxa
+     * @param siteMajor true if data is all taxa for first site, followed by
+     * all taxa for next site, etc. false if data is all sites for first taxon,
+     * followed by all sites for next taxon, etc.
+     * @param data genotypes
+     */
+    GenotypeBlock(int startSite, int numSites, int numTaxa, boolean siteMajor, byte[] data) {
+        if (data.length != (long) numSites * numTaxa) {
+            throw new IllegalArgumentException("GenotypeBlock: init: data length: " + data.length + " doesn't match sites: " + numSites + " taxa: " + numTaxa);
+        }
+        myStartSite = startSite;
+        myNumSites = numSites;
+        myNumTaxa = numTaxa;
+        mySiteMajor = siteMajor;
+        myData = data;
+    }
+
+    /**
+     * First site in this block (inclusive)
+     */
+    public int startSite() {
+        return myStartSite;
+    }
+
+    /**
+     * Last site in this block (exclusive)
+     */
+    public int endSite() {
+        return myStartSite + myNumSites;
+    }
+
+    public int numberOfSites() {
+        return myNumSites;
+    }
+
+    public int numberOfTaxa() {
+        return myNumTaxa;
+    }
+
+    /**
+     * Returns true if genotypes for a site are consecutive in data().
+     */
+    public boolean isSiteMajor() {
+        return mySiteMajor;
+    }
+
+    /**
+     * Returns genotype for taxon and site. Site is the index in the
+     * GenotypeCallTable, not relative to this block.
+     */
+    public byte genotype(int taxon, int site) {
+        return myData[index(taxon, site - myStartSite)];
+    }
+
+    /**
+     * Copies genotypes for all taxa at site into dest starting at offset 0.
+     */
+    public void genotypesForSite(int site, byte[] dest) {
+        int siteOffset = site - myStartSite;
+        if (mySiteMajor) {
+            System.arraycopy(myData, siteOffset * myNumTaxa, dest, 0, myNumTaxa);
+        } else {
+            for (int t = 0; t < myNumTaxa; t++) {
+                dest[t] = myData[t * myNumSites + siteOffset];
+            }
+        }
+    }
+
+    /**
+     * Copies genotypes for all sites in this block for taxon into dest
+     * starting at offset 0.
+     */
+    public void genotypesForTaxon(int taxon, byte[] dest) {
+        if (mySiteMajor) {
+            for (int s = 0; s < myNumSites; s++) {
+                dest[s] = myData[s * myNumTaxa + taxon];
+            }
+        } else {
+            System.arraycopy(myData, taxon * myNumSites, dest, 0, myNumSites);
+        }
+    }
+
+    /**
+     * Returns copy of this block with genotypes masked by mask set to
+     * GenotypeTable.UNKNOWN_GENOTYPE. The mask is read a 64 bit word at a time
+     * in the orientation it's stored (see MaskMatrix.isSiteOptimized()).
+     *
+     * @param mask mask with same dimensions as the table this block came from
+     *
+     * @return masked block
+     */
+    public GenotypeBlock mask(MaskMatrix mask) {
+
+        if (mask.numTaxa() != myNumTaxa || mask.numSites() < endSite()) {
+            throw new IllegalArgumentException("GenotypeBlock: mask: mask dimensions: " + mask.numTaxa() + " taxa, " + mask.numSites() + " sites don't match this block");
+        }
+
+        byte[] result = myData.clone();
+        int siteStride = mySiteMajor ? myNumTaxa : 1;
+        int taxonStride = mySiteMajor ? 1 : myNumSites;
+        if (mask.isSiteOptimized()) {
+            for (int s = 0; s < myNumSites; s++) {
+                mask.maskSite(myStartSite + s, 0, myNumTaxa, result, s * siteStride, taxonStride, GenotypeTable.UNKNOWN_GENOTYPE);
+            }
+        } else {
+            for (int t = 0; t < myNumTaxa; t++) {
+                mask.maskTaxon(t, myStartSite, endSite(), result, t * taxonStride, siteStride, GenotypeTable.UNKNOWN_GENOTYPE);
+            }
+        }
+
+        return new GenotypeBlock(myStartSite, myNumSites, myNumTaxa, mySiteMajor, result);
+
+    }
+
+    /**
+     * Returns the genotypes backing this block. Layout is given by
+     * isSiteMajor(). Must not be modified.
+     */
+    public byte[] data() {
+        return myData;
+    }
+
+    /**
+     * Returns site indices of this block.
+     */
+    public IntStream sites() {
+        return IntStream.range(myStartSite, myStartSite + myNumSites);
+    }
+
+    private int index(int taxon, int siteOffset) {
+        if (mySiteMajor) {
+            return siteOffset * myNumTaxa + taxon;
+        } else {
+            return taxon * myNumSites + siteOffset;
+        }
+    }
+
+}
@@ -528,4 +528,35 @@ public interface GenotypeCallTable {
     public Stream<Byte> stream();
 
     public Stream<Byte> stream(int taxon);
+
+    /**
+     * Returns genotypes for sites from startSite (inclusive) to endSite
+     * (exclusive) and all taxa as a single tile.
+     *
+     * @param startSite start site
+     * @param endSite end site
+     *
+     * @return block of genotypes
+     */
+    public GenotypeBlock block(int startSite, int endSite);
+
+    /**
+     * Returns a parallel Stream of consecutive blocks of sites covering all
+     * sites. Block size is chosen based on number of taxa.
+     *
+     * @return Stream of genotype blocks
+     */
+    public Stream<GenotypeBlock> blockStream();
+
+    /**
+     * Returns a parallel Stream of consecutive blocks of sites covering all
+     * sites. Blocks are only filled as the Stream is consumed, and splitting
+     * follows block boundaries.
+     *
+     * @param sitesPerBlock number of sites per block (last block may be
+     * smaller)
+     *
+     * @return Stream of genotype blocks
+     */
+    public Stream<GenotypeBlock> blockStream(int sitesPerBlock);
 }
@@ -5,6 +5,8 @@ package net.maizegenetics.dna.snp.genotypecall;
 
 import net.maizegenetics.dna.snp.GenotypeTable;
 import net.maizegenetics.dna.snp.NucleotideAlignmentConstants;
+import net.maizegenetics.dna.snp.Translate;
+import net.maizegenetics.dna.snp.TranslateBuilder;
 import net.maizegenetics.util.SuperByteMatrix;
 import net.maizegenetics.util.SuperByteMatrixBuilder;
 import org.apache.logging.log4j.LogManager;
@@ -98,6 +100,24 @@ public class GenotypeCallTableBuilder {
         }
     }
 
+    /**
+     * This creates a filtered GenotypeCallTable. If base is already filtered,
+     * the translations are merged, so reads go directly to the original.
+     *
+     * @param base original GenotypeCallTable
+     * @param translate translate
+     *
+     * @return filtered GenotypeCallTable
+     */
+    public static GenotypeCallTable getFilteredInstance(GenotypeCallTable base, Translate translate) {
+        if (base instanceof FilterGenotypeCallTable) {
+            FilterGenotypeCallTable filter = (FilterGenotypeCallTable) base;
+            Translate merged = TranslateBuilder.getInstance(filter.myTranslate, translate);
+            return new FilterGenotypeCallTable(filter.myBase, merged);
+        }
+        return new FilterGenotypeCallTable(base, translate);
+    }
+
     private static class CopyAllSitesFromTaxa implements Runnable {
 
         private final GenotypeCallTable mySrc;
@@ -105,6 +125,8 @@ public class GenotypeCallTableBuilder {
         private final int myStartTaxon;
         private final int myNumTaxaToCopy;
         private final int myNumSites;
+        // packed tables decode a whole taxon faster than single genotypes
+        private final boolean myCopyWholeTaxa;
 
         public CopyAllSitesFromTaxa(GenotypeCallTable src, GenotypeCallTableBuilder dest, int startTaxon, int numTaxaToCopy) {
             mySrc = src;
@@ -112,11 +134,16 @@ public class GenotypeCallTableBuilder {
             myStartTaxon = startTaxon;
             myNumTaxaToCopy = numTaxaToCopy;
             myNumSites = src.numberOfSites();
+            myCopyWholeTaxa = src instanceof PackedNucleotideGenotypeCallTable;
         }
 
         @Override
         public void run() {
             for (int t = myStartTaxon, n = myStartTaxon + myNumTaxaToCopy; t < n; t++) {
+                if (myCopyWholeTaxa) {
+                    myDest.setBaseRangeForTaxon(t, 0, mySrc.genotypeForAllSites(t));
+                    continue;
+                }
                 for (int s = 0; s < myNumSites; s++) {
                     myDest.setBase(t, s, mySrc.genotype(t, s));
                 }
@@ -219,7 +246,14 @@ public class GenotypeCallTableBuilder {
         SuperByteMatrix temp = myGenotype;
         myGenotype = null;
         if (NucleotideAlignmentConstants.isNucleotideEncodings(myAlleleEncodings)) {
-            return new NucleotideGenotypeCallTable(temp, myIsPhased);
+            NucleotideGenotypeCallTable result = new NucleotideGenotypeCallTable(temp, myIsPhased);
+            // use 2 bits per call when all sites are biallelic
+            PackedNucleotideGenotypeCallTable packed = PackedNucleotideGenotypeCallTable.getInstance(result);
+            if (packed != null) {
+                temp.release();
+                return packed;
+            }
+            return result;
         } else {
             return new ByteGenotypeCallTable(temp, myIsPhased, myAlleleEncodings);
         }
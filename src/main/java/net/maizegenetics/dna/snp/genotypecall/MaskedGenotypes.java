@@ -5,14 +5,21 @@
  */
 package net.maizegenetics.dna.snp.genotypecall;
 
+import net.maizegenetics.dna.snp.MaskMatrix;
 import net.maizegenetics.util.BitSet;
 import net.maizegenetics.util.OpenBitSet;
+import net.maizegenetics.util.UnmodifiableBitSet;
+
+import java.util.stream.IntStream;
 
 /**
+ * Mutable mask with an OpenBitSet of sites for each taxon. Masks can be
+ * combined with other masks a 64 bit word at a time using and(), or(), and
+ * andNot().
  *
  * @author Terry Casstevens
  */
-public class MaskedGenotypes {
+public class MaskedGenotypes implements MaskMatrix {
 
     final private int myNumTaxa;
     final private int myNumSites;
@@ -27,12 +34,141 @@ public class MaskedGenotypes {
         }
     }
 
+    /**
+     * Copy of mask
+     *
+     * @param mask mask
+     */
+    public MaskedGenotypes(MaskMatrix mask) {
+        this(mask.numTaxa(), mask.numSites());
+        or(mask);
+    }
+
     public void set(int taxon, int site) {
         myMasks[taxon].fastSet(site);
     }
 
+    /**
+     * Masks sites startSite (inclusive) to endSite (exclusive) of taxon.
+     */
+    public void set(int taxon, int startSite, int endSite) {
+        myMasks[taxon].set(startSite, endSite);
+    }
+
+    @Override
     public boolean get(int taxon, int site) {
         return myMasks[taxon].fastGet(site);
     }
 
+    /**
+     * Keeps only genotypes masked in both this and other.
+     *
+     * @param other other mask
+     *
+     * @return this
+     */
+    public MaskedGenotypes and(MaskMatrix other) {
+        checkDimensions(other, "and");
+        IntStream.range(0, myNumTaxa).parallel().forEach(t -> myMasks[t].and(taxonMask(other, t)));
+        return this;
+    }
+
+    /**
+     * Adds genotypes masked in other.
+     *
+     * @param other other mask
+     *
+     * @return this
+     */
+    public MaskedGenotypes or(MaskMatrix other) {
+        checkDimensions(other, "or");
+        IntStream.range(0, myNumTaxa).parallel().forEach(t -> myMasks[t].or(taxonMask(other, t)));
+        return this;
+    }
+
+    /**
+     * Removes genotypes masked in other.
+     *
+     * @param other other mask
+     *
+     * @return this
+     */
+    public MaskedGenotypes andNot(MaskMatrix other) {
+        checkDimensions(other, "andNot");
+        IntStream.range(0, myNumTaxa).parallel().forEach(t -> myMasks[t].andNot(taxonMask(other, t)));
+        return this;
+    }
+
+    /**
+     * Avoids copying the bits of another MaskedGenotypes.
+     */
+    private static BitSet taxonMask(MaskMatrix mask, int taxon) {
+        if (mask instanceof MaskedGenotypes) {
+            return ((MaskedGenotypes) mask).myMasks[taxon];
+        }
+        return mask.maskForTaxon(taxon);
+    }
+
+    private void checkDimensions(MaskMatrix other, String method) {
+        if (other.numTaxa() != myNumTaxa || other.numSites() != myNumSites) {
+            throw new IllegalArgumentException("MaskedGenotypes: " + method + ": mask dimensions: " + other.numTaxa() + " taxa, " + other.numSites() + " sites don't match: " + myNumTaxa + " taxa, " + myNumSites + " sites");
+        }
+    }
+
+    @Override
+    public boolean isTaxonMaskedHint(int taxon) {
+        return !myMasks[taxon].isEmpty();
+    }
+
+    @Override
+    public BitSet maskForTaxon(int taxon) {
+        return UnmodifiableBitSet.getInstance(myMasks[taxon]);
+    }
+
+    @Override
+    public boolean isSiteMaskedHint(int site) {
+        for (int t = 0; t < myNumTaxa; t++) {
+            if (myMasks[t].fastGet(site)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public BitSet maskForSite(int site) {
+        BitSet result = new OpenBitSet(myNumTaxa);
+        for (int t = 0; t < myNumTaxa; t++) {
+            if (myMasks[t].fastGet(site)) {
+                result.fastSet(t);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public long numMaskedForTaxon(int taxon) {
+        return myMasks[taxon].cardinality();
+    }
+
+    @Override
+    public void maskTaxon(int taxon, int startSite, int endSite, byte[] dest, int destOffset, int destStride, byte value) {
+        MaskMatrix.apply(myMasks[taxon], startSite, endSite, dest, destOffset, destStride, value);
+    }
+
+    @Override
+    public int numTaxa() {
+        return myNumTaxa;
+    }
+
+    @Override
+    public int numSites() {
+        return myNumSites;
+    }
+
+    @Override
+    public boolean isSiteOptimized() {
+        return false;
+    }
+
 }
@@ -1,26 +1,41 @@
 package net.maizegenetics.dna.snp.genotypecall;
 
+import java.util.Arrays;
 import java.util.function.BiFunction;
+import java.util.stream.IntStream;
 
+import net.maizegenetics.dna.snp.GenotypeTable;
 import net.maizegenetics.dna.snp.GenotypeTableUtils;
 
 public class MergedGenotypeCallTable extends AbstractGenotypeCallTable {
 
+    // bulk merges shorter than this aren't worth splitting across threads
+    private static final int MIN_PARALLEL_MERGE = 1 << 15;
+
     private final GenotypeCallTable[] myGenotypeCallTables;
     private int[][] taxonMap;
     private int[][] positionMap;
     private BiFunction<Integer,Integer,Byte> mergeCallFunction;
+    private final GenotypeMergeRule myMergeRule;
+    private final int myNumMergedTables;
+    // index of each taxon / site in each table (-1 if not in that table)
+    private final int[][] myTableTaxa;
+    private final int[][] myTableSites;
     /*
     private HashMap<Integer,Integer[]> taxonMap;
     private HashMap<Integer,Integer[]> positionMap;
     */
     //private MergedGenotypeCallTable(GenotypeCallTable[] genotypeCallTables, int numTaxa, int numSites, boolean phased, String[][] alleleEncodings, int maxNumAlleles, HashMap<Integer,Integer[]> taxonMap, HashMap<Integer,Integer[]> positionMap) {
-    private MergedGenotypeCallTable(GenotypeCallTable[] genotypeCallTables, int numTaxa, int numSites, boolean phased, String[][] alleleEncodings, int maxNumAlleles, int[][] taxonMap, int[][] positionMap) {
+    private MergedGenotypeCallTable(GenotypeCallTable[] genotypeCallTables, int numTaxa, int numSites, boolean phased, String[][] alleleEncodings, int maxNumAlleles, int[][] taxonMap, int[][] positionMap, GenotypeMergeRule mergeRule) {
         super(numTaxa, numSites, phased, alleleEncodings, maxNumAlleles);
         
         myGenotypeCallTables = genotypeCallTables;
         this.taxonMap = taxonMap;
         this.positionMap = positionMap;
+        myMergeRule = mergeRule;
+        myNumMergedTables = mergeRule == null ? 1 : genotypeCallTables.length;
+        myTableTaxa = tableIndices(taxonMap, myNumMergedTables);
+        myTableSites = tableIndices(positionMap, myNumMergedTables);
         this.mergeCallFunction = (taxon,site) -> {
           return myGenotypeCallTables[0].genotype(taxonMap[taxon][0],positionMap[site][0]);  
         };
@@ -55,8 +70,39 @@ public class MergedGenotypeCallTable extends AbstractGenotypeCallTable {
         
     }
 
+    /**
+     * Transposes map (index by table) to index by table, then taxon or site,
+     * so bulk reads walk one array.
+     */
+    private static int[][] tableIndices(int[][] map, int numTables) {
+        int[][] result = new int[numTables][map.length];
+        for (int i = 0; i < map.length; i++) {
+            for (int table = 0; table < numTables; table++) {
+                result[table][i] = table < map[i].length ? map[i][table] : -1;
+            }
+        }
+        return result;
+    }
+
     //public static GenotypeCallTable getInstance(GenotypeCallTable[] genotypeCallTables, HashMap<Integer,Integer[]> taxonMap, HashMap<Integer,Integer[]> positionMap) {
     public static GenotypeCallTable getInstance(GenotypeCallTable[] genotypeCallTables, int[][] taxonMap, int[][] positionMap) {
+        return getInstance(genotypeCallTables, taxonMap, positionMap, null);
+    }
+
+    /**
+     * Merged genotype call table. Maps give the index of each taxon / site in
+     * each table (-1 if it isn't in that table). If mergeRule is null, calls
+     * come from the first table only. Otherwise, calls from every table
+     * containing the taxon and site are combined with mergeRule.
+     *
+     * @param genotypeCallTables genotype call tables
+     * @param taxonMap taxon indices [taxon][table]
+     * @param positionMap site indices [site][table]
+     * @param mergeRule merge rule or null
+     *
+     * @return merged genotype call table
+     */
+    public static GenotypeCallTable getInstance(GenotypeCallTable[] genotypeCallTables, int[][] taxonMap, int[][] positionMap, GenotypeMergeRule mergeRule) {
 
         if ((genotypeCallTables == null) || (genotypeCallTables.length == 0)) {
             throw new IllegalArgumentException("CombineGenotypeCallTable: getInstance: must provide genotype call tables.");
@@ -131,7 +177,7 @@ public class MergedGenotypeCallTable extends AbstractGenotypeCallTable {
             }
         }
 
-        return new MergedGenotypeCallTable(genotypeCallTables, numTaxa, totalSites, phased, alleleStates, maxNumAlleles,taxonMap, positionMap);
+        return new MergedGenotypeCallTable(genotypeCallTables, numTaxa, totalSites, phased, alleleStates, maxNumAlleles, taxonMap, positionMap, mergeRule);
     }
 
     @Override
@@ -145,15 +191,174 @@ public class MergedGenotypeCallTable extends AbstractGenotypeCallTable {
             genotypeCalls[i] = myGenotypeCallTables[i].genotype(taxonMap[taxon][i], positionMap[site][i]);
         }
         */
-        //Just Return the value of the first genotypeTable for now. This will change
-        return myGenotypeCallTables[0].genotype(taxonMap[taxon][0], positionMap[site][0]);
+        //Without a merge rule, return the value of the first genotypeTable
+        if (myMergeRule == null) {
+            int first = myTableTaxa[0][taxon];
+            int second = myTableSites[0][site];
+            if (first == -1 || second == -1) {
+                return GenotypeTable.UNKNOWN_GENOTYPE;
+            }
+            return myGenotypeCallTables[0].genotype(first, second);
+        }
+
+        byte result = GenotypeTable.UNKNOWN_GENOTYPE;
+        boolean found = false;
+        for (int table = 0; table < myNumMergedTables; table++) {
+            int tableTaxon = myTableTaxa[table][taxon];
+            int tableSite = myTableSites[table][site];
+            if (tableTaxon == -1 || tableSite == -1) {
+                continue;
+            }
+            byte current = myGenotypeCallTables[table].genotype(tableTaxon, tableSite);
+            result = found ? myMergeRule.mergeCalls(result, current) : current;
+            found = true;
+        }
+        return result;
         
     }
 
+    /**
+     * Reads each run of consecutive sites in a table with one range read,
+     * so sites of a table that don't map into this range aren't read.
+     */
+    @Override
+    public byte[] genotypeRange(int taxon, int startSite, int endSite) {
+
+        int numSites = endSite - startSite;
+        byte[] result = new byte[numSites];
+        Arrays.fill(result, GenotypeTable.UNKNOWN_GENOTYPE);
+        boolean[] found = myMergeRule == null ? null : new boolean[numSites];
+
+        for (int table = 0; table < myNumMergedTables; table++) {
+            int tableTaxon = myTableTaxa[table][taxon];
+            if (tableTaxon == -1) {
+                continue;
+            }
+            GenotypeCallTable current = myGenotypeCallTables[table];
+            int[] sites = myTableSites[table];
+            int site = startSite;
+            while (site < endSite) {
+                int tableSite = sites[site];
+                if (tableSite == -1) {
+                    site++;
+                    continue;
+                }
+                int length = 1;
+                while (site + length < endSite && sites[site + length] == tableSite + length) {
+                    length++;
+                }
+                int offset = site - startSite;
+                if (length == 1) {
+                    mergeCall(result, found, offset, current.genotype(tableTaxon, tableSite));
+                } else if (found == null) {
+                    System.arraycopy(current.genotypeRange(tableTaxon, tableSite, tableSite + length), 0, result, offset, length);
+                } else {
+                    byte[] values = current.genotypeRange(tableTaxon, tableSite, tableSite + length);
+                    for (int i = 0; i < length; i++) {
+                        mergeCall(result, found, offset + i, values[i]);
+                    }
+                }
+                site += length;
+            }
+        }
+
+        return result;
+
+    }
+
+    @Override
+    public byte[] genotypeAllSites(int taxon) {
+        return genotypeRange(taxon, 0, mySiteCount);
+    }
+
+    @Override
+    public byte[] genotypeForAllSites(int taxon) {
+        return genotypeRange(taxon, 0, mySiteCount);
+    }
+
+    @Override
+    public byte[] genotypeForSiteRange(int taxon, int start, int end) {
+        return genotypeRange(taxon, start, end);
+    }
+
+    /**
+     * Reads the site's column once from each table, then merges.
+     */
+    @Override
+    public byte[] genotypeForAllTaxa(int site) {
+
+        byte[] result = new byte[myTaxaCount];
+        Arrays.fill(result, GenotypeTable.UNKNOWN_GENOTYPE);
+        boolean[] found = myMergeRule == null ? null : new boolean[myTaxaCount];
+
+        for (int table = 0; table < myNumMergedTables; table++) {
+            int tableSite = myTableSites[table][site];
+            if (tableSite == -1) {
+                continue;
+            }
+            byte[] values = myGenotypeCallTables[table].genotypeForAllTaxa(tableSite);
+            merge(result, found, values, 0, myTableTaxa[table], 0);
+        }
+
+        return result;
+
+    }
+
+    /**
+     * Merges values from one table into result. Element i of result
+     * corresponds to values[indices[indicesStart + i] - valuesStart]. Found
+     * records which elements already have a call (null if no merge rule).
+     * Long arrays are merged in parallel chunks.
+     */
+    private void merge(byte[] result, boolean[] found, byte[] values, int valuesStart, int[] indices, int indicesStart) {
+        int length = result.length;
+        if (length < MIN_PARALLEL_MERGE) {
+            merge(result, found, values, valuesStart, indices, indicesStart, 0, length);
+        } else {
+            int numChunks = (length + MIN_PARALLEL_MERGE - 1) / MIN_PARALLEL_MERGE;
+            IntStream.range(0, numChunks).parallel().forEach(chunk -> {
+                int start = chunk * MIN_PARALLEL_MERGE;
+                merge(result, found, values, valuesStart, indices, indicesStart, start, Math.min(length, start + MIN_PARALLEL_MERGE));
+            });
+        }
+    }
+
+    private void merge(byte[] result, boolean[] found, byte[] values, int valuesStart, int[] indices, int indicesStart, int start, int end) {
+        for (int i = start; i < end; i++) {
+            int index = indices[indicesStart + i];
+            if (index == -1) {
+                continue;
+            }
+            mergeCall(result, found, i, values[index - valuesStart]);
+        }
+    }
+
+    /**
+     * Merges current into result[i]. Found records which elements already
+     * have a call (null if no merge rule).
+     */
+    private void mergeCall(byte[] result, boolean[] found, int i, byte current) {
+        if (found == null) {
+            result[i] = current;
+        } else if (found[i]) {
+            result[i] = myMergeRule.mergeCalls(result[i], current);
+        } else {
+            result[i] = current;
+            found[i] = true;
+        }
+    }
+
     @Override
     public String genotypeAsString(int taxon, int site) {
-        //TODO Add in GenotypeCall Logic
-        return myGenotypeCallTables[0].genotypeAsString(taxonMap[taxon][0], positionMap[site][0]);
+        if (myMergeRule != null) {
+            return diploidAsString(site, genotype(taxon, site));
+        }
+        int first = myTableTaxa[0][taxon];
+        int second = myTableSites[0][site];
+        if (first == -1 || second == -1) {
+            return diploidAsString(site, GenotypeTable.UNKNOWN_GENOTYPE);
+        }
+        return myGenotypeCallTables[0].genotypeAsString(first, second);
         
     }
 
@@ -0,0 +1,311 @@
+/*
+ *  PackedNucleotideGenotypeCallTable
+ */
+package net.maizegenetics.dna.snp.genotypecall;
+
+import net.maizegenetics.dna.snp.GenotypeTable;
+import net.maizegenetics.dna.snp.NucleotideAlignmentConstants;
+
+import java.util.Arrays;
+
+/**
+ * In memory GenotypeCallTable for nucleotide data where every site has at
+ * most two alleles, heterozygous calls at a site are always the same byte,
+ * and there are no half missing calls. Each call is stored in 2 bits (32 per
+ * long) as the number of minor alleles: 0 major homozygous, 1 heterozygous,
+ * 2 minor homozygous, and 3 missing. Each site has a four entry table to
+ * convert the 2 bit codes back to diploid values, so the stored genotypes are
+ * the same as the original.
+ *
+ * Created by GenotypeCallTableBuilder when all sites qualify.
+ */
+class PackedNucleotideGenotypeCallTable extends AbstractGenotypeCallTable {
+
+    private static final int CALLS_PER_WORD = 32;
+    private static final int WORD_SHIFT = 5;
+    private static final int WORD_MASK = 0x1F;
+    private static final int MISSING_CODE = 3;
+
+    // minimum taxa where 2 bits per call plus the 4 byte per site table is
+    // smaller than 1 byte per call
+    private static final int MIN_NUM_TAXA = 8;
+
+    private final long[][] myData;
+    private final byte[] myCodes;
+
+    private PackedNucleotideGenotypeCallTable(long[][] data, byte[] codes, int numSites, boolean phased) {
+        super(data.length, numSites, phased, NucleotideAlignmentConstants.NUCLEOTIDE_ALLELES);
+        myData = data;
+        myCodes = codes;
+    }
+
+    /**
+     * Returns packed copy of genotype or null if any site doesn't qualify.
+     * The sites are checked first, stopping at the first site that doesn't
+     * qualify, so nothing is allocated for tables that can't be packed.
+     *
+     * @param genotype nucleotide genotypes
+     *
+     * @return packed genotypes or null
+     */
+    static PackedNucleotideGenotypeCallTable getInstance(GenotypeCallTable genotype) {
+
+        int numTaxa = genotype.numberOfTaxa();
+        int numSites = genotype.numberOfSites();
+        if (numTaxa < MIN_NUM_TAXA || numSites == 0 || (long) numSites * 4L > Integer.MAX_VALUE) {
+            return null;
+        }
+
+        // blocks are whole words, so each block writes separate longs
+        int sitesPerBlock = Math.max(CALLS_PER_WORD, ((1 << 20) / numTaxa) & ~WORD_MASK);
+        if (!genotype.blockStream(sitesPerBlock).allMatch(PackedNucleotideGenotypeCallTable::qualifies)) {
+            return null;
+        }
+
+        int numWords = (numSites + CALLS_PER_WORD - 1) >>> WORD_SHIFT;
+        long[][] data = new long[numTaxa][numWords];
+        byte[] codes = new byte[numSites * 4];
+        genotype.blockStream(sitesPerBlock).forEach(block -> pack(block, data, codes));
+        return new PackedNucleotideGenotypeCallTable(data, codes, numSites, genotype.isPhased());
+
+    }
+
+    /**
+     * Whether every site of block qualifies.
+     */
+    private static boolean qualifies(GenotypeBlock block) {
+        int numTaxa = block.numberOfTaxa();
+        byte[] column = new byte[numTaxa];
+        int[] alleleCounts = new int[16];
+        int[] siteAlleles = new int[3];
+        for (int s = block.startSite(), end = s + block.numberOfSites(); s < end; s++) {
+            block.genotypesForSite(s, column);
+            if (!checkSite(column, alleleCounts, siteAlleles)) {
+                return false;
+            }
+            Arrays.fill(alleleCounts, 0);
+        }
+        return true;
+    }
+
+    /**
+     * Checks genotypes of one site and counts its alleles into alleleCounts.
+     * Sets siteAlleles to the heterozygous genotype (UNKNOWN_GENOTYPE if none)
+     * and the first and second alleles seen (-1 if none).
+     *
+     * @return false if site doesn't qualify
+     */
+    private static boolean checkSite(byte[] column, int[] alleleCounts, int[] siteAlleles) {
+
+        byte het = GenotypeTable.UNKNOWN_GENOTYPE;
+        int firstAllele = -1;
+        int secondAllele = -1;
+        for (byte current : column) {
+            if (current == GenotypeTable.UNKNOWN_GENOTYPE) {
+                continue;
+            }
+            int first = (current >>> 4) & 0xF;
+            int second = current & 0xF;
+            if (first == GenotypeTable.UNKNOWN_ALLELE || second == GenotypeTable.UNKNOWN_ALLELE) {
+                return false;
+            }
+            if (first != second) {
+                if (het == GenotypeTable.UNKNOWN_GENOTYPE) {
+                    het = current;
+                } else if (het != current) {
+                    return false;
+                }
+            }
+            if (firstAllele == -1) {
+                firstAllele = first;
+            }
+            if (first != firstAllele || second != firstAllele) {
+                if (secondAllele == -1) {
+                    secondAllele = first != firstAllele ? first : second;
+                }
+                if ((first != firstAllele && first != secondAllele) || (second != firstAllele && second != secondAllele)) {
+                    return false;
+                }
+            }
+            alleleCounts[first]++;
+            alleleCounts[second]++;
+        }
+
+        siteAlleles[0] = het;
+        siteAlleles[1] = firstAllele;
+        siteAlleles[2] = secondAllele;
+        return true;
+
+    }
+
+    /**
+     * Packs block into data and sets conversion tables for its sites. Sites
+     * must qualify (see qualifies()).
+     */
+    private static void pack(GenotypeBlock block, long[][] data, byte[] codes) {
+
+        int numTaxa = block.numberOfTaxa();
+        int numSites = block.numberOfSites();
+        int startSite = block.startSite();
+        byte[] column = new byte[numTaxa];
+        byte[] blockCodes = new byte[numSites * numTaxa];
+        int[] alleleCounts = new int[16];
+        int[] siteAlleles = new int[3];
+
+        for (int s = 0; s < numSites; s++) {
+
+            block.genotypesForSite(startSite + s, column);
+
+            if (!checkSite(column, alleleCounts, siteAlleles)) {
+                throw new IllegalStateException("PackedNucleotideGenotypeCallTable: pack: site doesn't qualify: " + (startSite + s));
+            }
+            byte het = (byte) siteAlleles[0];
+            int firstAllele = siteAlleles[1];
+            int secondAllele = siteAlleles[2];
+
+            // major is most frequent allele (lower allele value if tied)
+            int major = firstAllele;
+            int minor = secondAllele;
+            if (minor != -1 && (alleleCounts[minor] > alleleCounts[major] || (alleleCounts[minor] == alleleCounts[major] && minor < major))) {
+                major = secondAllele;
+                minor = firstAllele;
+            }
+            if (firstAllele != -1) {
+                alleleCounts[firstAllele] = 0;
+            }
+            if (secondAllele != -1) {
+                alleleCounts[secondAllele] = 0;
+            }
+
+            byte majorHomozygous = major == -1 ? GenotypeTable.UNKNOWN_GENOTYPE : (byte) ((major << 4) | major);
+            byte minorHomozygous = minor == -1 ? GenotypeTable.UNKNOWN_GENOTYPE : (byte) ((minor << 4) | minor);
+            int codeOffset = (startSite + s) << 2;
+            codes[codeOffset] = majorHomozygous;
+            codes[codeOffset + 1] = het;
+            codes[codeOffset + 2] = minorHomozygous;
+            codes[codeOffset + MISSING_CODE] = GenotypeTable.UNKNOWN_GENOTYPE;
+
+            int blockOffset = s * numTaxa;
+            for (int t = 0; t < numTaxa; t++) {
+                byte current = column[t];
+                if (current == GenotypeTable.UNKNOWN_GENOTYPE) {
+                    blockCodes[blockOffset + t] = MISSING_CODE;
+                } else if (current == majorHomozygous) {
+                    blockCodes[blockOffset + t] = 0;
+                } else if (current == het) {
+                    blockCodes[blockOffset + t] = 1;
+                } else {
+                    blockCodes[blockOffset + t] = 2;
+                }
+            }
+
+        }
+
+        int firstWord = startSite >>> WORD_SHIFT;
+        for (int t = 0; t < numTaxa; t++) {
+            long[] words = data[t];
+            for (int s = 0; s < numSites; s += CALLS_PER_WORD) {
+                long word = 0L;
+                int n = Math.min(CALLS_PER_WORD, numSites - s);
+                for (int i = n - 1; i >= 0; i--) {
+                    word = (word << 2) | blockCodes[(s + i) * numTaxa + t];
+                }
+                words[firstWord + (s >>> WORD_SHIFT)] = word;
+            }
+        }
+
+    }
+
+    private byte decode(int site, int code) {
+        return myCodes[(site << 2) | code];
+    }
+
+    @Override
+    public byte genotype(int taxon, int site) {
+        long word = myData[taxon][site >>> WORD_SHIFT];
+        return decode(site, (int) (word >>> ((site & WORD_MASK) << 1)) & 0x3);
+    }
+
+    @Override
+    public byte[] genotypeRange(int taxon, int startSite, int endSite) {
+        byte[] result = new byte[endSite - startSite];
+        long[] words = myData[taxon];
+        int site = startSite;
+        while (site < endSite) {
+            long word = words[site >>> WORD_SHIFT] >>> ((site & WORD_MASK) << 1);
+            int wordEnd = Math.min(endSite, (site | WORD_MASK) + 1);
+            for (; site < wordEnd; site++) {
+                result[site - startSite] = decode(site, (int) word & 0x3);
+                word >>>= 2;
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public byte[] genotypeForAllSites(int taxon) {
+        return genotypeRange(taxon, 0, mySiteCount);
+    }
+
+    @Override
+    public byte[] genotypeAllSites(int taxon) {
+        return genotypeRange(taxon, 0, mySiteCount);
+    }
+
+    @Override
+    public byte[] genotypeForSiteRange(int taxon, int start, int end) {
+        return genotypeRange(taxon, start, end);
+    }
+
+    @Override
+    public byte[] genotypeForAllTaxa(int site) {
+        int word = site >>> WORD_SHIFT;
+        int shift = (site & WORD_MASK) << 1;
+        int codeOffset = site << 2;
+        byte[] result = new byte[myTaxaCount];
+        for (int t = 0; t < myTaxaCount; t++) {
+            result[t] = myCodes[codeOffset | ((int) (myData[t][word] >>> shift) & 0x3)];
+        }
+        return result;
+    }
+
+    @Override
+    public String genotypeAsString(int taxon, int site) {
+        return NucleotideAlignmentConstants.getNucleotideIUPAC(genotype(taxon, site));
+    }
+
+    @Override
+    public String genotypeAsStringRange(int taxon, int startSite, int endSite) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = startSite; i < endSite; i++) {
+            builder.append(genotypeAsString(taxon, i));
+        }
+        return builder.toString();
+    }
+
+    @Override
+    public String diploidAsString(int site, byte value) {
+        return NucleotideAlignmentConstants.getNucleotideIUPAC(value);
+    }
+
+    @Override
+    public int maxNumAlleles() {
+        return NucleotideAlignmentConstants.NUMBER_NUCLEOTIDE_ALLELES;
+    }
+
+    @Override
+    public boolean retainsRareAlleles() {
+        return false;
+    }
+
+    @Override
+    public void transposeData(boolean siteInnerLoop) {
+        // only stored with sites inner loop
+    }
+
+    @Override
+    public boolean isSiteOptimized() {
+        return false;
+    }
+
+}
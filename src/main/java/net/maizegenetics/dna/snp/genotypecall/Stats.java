@@ -100,6 +100,36 @@ public class Stats {
         return result;
     }
 
+    /**
+     * Number of genotypes with both alleles known and different.
+     */
+    public int heterozygousCount() {
+        return myStats[HETEROZYGOUS_COUNT];
+    }
+
+    /**
+     * Number of genotypes whose two alleles differ, including genotypes with
+     * one unknown allele. Same as counting GenotypeCallTable.isHeterozygous().
+     */
+    public int unequalAllelesCount() {
+        int singleUnknown = myStats[AlleleFreqCache.UNKNOWN_GAMETE_COUNT] - 2 * myStats[AlleleFreqCache.UNKNOWN_COUNT];
+        return myStats[HETEROZYGOUS_COUNT] + singleUnknown;
+    }
+
+    /**
+     * Number of genotypes not completely unknown.
+     */
+    public int totalNonMissing() {
+        return myNumIndices - myStats[AlleleFreqCache.UNKNOWN_COUNT];
+    }
+
+    /**
+     * Number of known gametes (two per genotype).
+     */
+    public int totalGametesNonMissing() {
+        return myNumIndices * 2 - myStats[AlleleFreqCache.UNKNOWN_GAMETE_COUNT];
+    }
+
     public double proportionHeterozygous() {
         return (double) myStats[HETEROZYGOUS_COUNT] / (double) myNumIndices;
     }
@@ -0,0 +1,159 @@
+/*
+ *  StatsCache
+ */
+package net.maizegenetics.dna.snp.genotypecall;
+
+import java.util.Arrays;
+
+import static net.maizegenetics.dna.snp.genotypecall.AlleleFreqCache.DEFAULT_MAX_NUM_ALLELES;
+
+/**
+ * Site and taxon Stats for a GenotypeCallTable, computed together in one
+ * parallel pass over the genotype blocks. Only the raw counts are retained;
+ * Stats instances are created on request. Site counts are only kept if they
+ * fit in the memory budget (taxon counts always are), otherwise siteStats()
+ * returns null and callers should compute the site directly.
+ */
+final class StatsCache {
+
+    private static final int NUM_OTHER_COUNTS = 4;
+    private static final int BYTES_PER_INDEX = (DEFAULT_MAX_NUM_ALLELES + NUM_OTHER_COUNTS) * Integer.BYTES;
+    private static final long DEFAULT_HEAP_FRACTION = 8;
+
+    private final int myNumSites;
+    private final int myNumTaxa;
+    private final int[] mySiteAlleleCounts;
+    private final int[] mySiteOtherCounts;
+    private final int[] myTaxonAlleleCounts;
+    private final int[] myTaxonOtherCounts;
+
+    private StatsCache(int numSites, int numTaxa, int[] siteAlleleCounts, int[] siteOtherCounts, int[] taxonAlleleCounts, int[] taxonOtherCounts) {
+        myNumSites = numSites;
+        myNumTaxa = numTaxa;
+        mySiteAlleleCounts = siteAlleleCounts;
+        mySiteOtherCounts = siteOtherCounts;
+        myTaxonAlleleCounts = taxonAlleleCounts;
+        myTaxonOtherCounts = taxonOtherCounts;
+    }
+
+    static StatsCache instance(GenotypeCallTable genotype) {
+        return instance(genotype, Runtime.getRuntime().maxMemory() / DEFAULT_HEAP_FRACTION);
+    }
+
+    /**
+     * Sweeps all genotypes once.
+     *
+     * @param genotype genotype table
+     * @param maxBytes memory budget for retained site counts
+     */
+    static StatsCache instance(GenotypeCallTable genotype, long maxBytes) {
+
+        int numSites = genotype.numberOfSites();
+        int numTaxa = genotype.numberOfTaxa();
+        boolean keepSites = (long) numSites * BYTES_PER_INDEX <= maxBytes;
+        int[] siteAlleleCounts = keepSites ? new int[numSites * DEFAULT_MAX_NUM_ALLELES] : null;
+        int[] siteOtherCounts = keepSites ? new int[numSites * NUM_OTHER_COUNTS] : null;
+
+        TaxonCounts taxonCounts = genotype.blockStream().collect(
+                () -> new TaxonCounts(numTaxa),
+                (counts, block) -> counts.add(block, siteAlleleCounts, siteOtherCounts),
+                TaxonCounts::merge);
+
+        return new StatsCache(numSites, numTaxa, siteAlleleCounts, siteOtherCounts, taxonCounts.myAlleleCounts, taxonCounts.myOtherCounts);
+
+    }
+
+    /**
+     * Returns Stats for site or null if site counts were not retained.
+     */
+    Stats siteStats(int site) {
+        if (mySiteAlleleCounts == null) {
+            return null;
+        }
+        return stats(site, mySiteAlleleCounts, mySiteOtherCounts, myNumTaxa);
+    }
+
+    Stats taxonStats(int taxon) {
+        return stats(taxon, myTaxonAlleleCounts, myTaxonOtherCounts, myNumSites);
+    }
+
+    boolean hasSiteStats() {
+        return mySiteAlleleCounts != null;
+    }
+
+    private static Stats stats(int index, int[] alleleCounts, int[] otherCounts, int numIndices) {
+        int alleleOffset = index * DEFAULT_MAX_NUM_ALLELES;
+        int otherOffset = index * NUM_OTHER_COUNTS;
+        return AlleleFreqCache.stats(index,
+                Arrays.copyOfRange(alleleCounts, alleleOffset, alleleOffset + DEFAULT_MAX_NUM_ALLELES),
+                Arrays.copyOfRange(otherCounts, otherOffset, otherOffset + NUM_OTHER_COUNTS),
+                numIndices, DEFAULT_MAX_NUM_ALLELES);
+    }
+
+    /**
+     * Per taxon counts accumulated by one thread. Site counts for a block are
+     * complete once the block is processed, so they are written directly to
+     * the shared site arrays.
+     */
+    private static class TaxonCounts {
+
+        private final int[] myAlleleCounts;
+        private final int[] myOtherCounts;
+
+        TaxonCounts(int numTaxa) {
+            myAlleleCounts = new int[numTaxa * DEFAULT_MAX_NUM_ALLELES];
+            myOtherCounts = new int[numTaxa * NUM_OTHER_COUNTS];
+        }
+
+        void add(GenotypeBlock block, int[] siteAlleleCounts, int[] siteOtherCounts) {
+
+            int numSites = block.numberOfSites();
+            int numTaxa = block.numberOfTaxa();
+            byte[] data = block.data();
+            boolean keepSites = siteAlleleCounts != null;
+            int[] alleleCounts = keepSites ? new int[numSites * DEFAULT_MAX_NUM_ALLELES] : null;
+            int[] otherCounts = keepSites ? new int[numSites * NUM_OTHER_COUNTS] : null;
+
+            if (block.isSiteMajor()) {
+                int index = 0;
+                for (int s = 0; s < numSites; s++) {
+                    for (int t = 0; t < numTaxa; t++) {
+                        byte current = data[index++];
+                        if (keepSites) {
+                            AlleleFreqCache.count(current, alleleCounts, s * DEFAULT_MAX_NUM_ALLELES, DEFAULT_MAX_NUM_ALLELES, otherCounts, s * NUM_OTHER_COUNTS);
+                        }
+                        AlleleFreqCache.count(current, myAlleleCounts, t * DEFAULT_MAX_NUM_ALLELES, DEFAULT_MAX_NUM_ALLELES, myOtherCounts, t * NUM_OTHER_COUNTS);
+                    }
+                }
+            } else {
+                int index = 0;
+                for (int t = 0; t < numTaxa; t++) {
+                    for (int s = 0; s < numSites; s++) {
+                        byte current = data[index++];
+                        if (keepSites) {
+                            AlleleFreqCache.count(current, alleleCounts, s * DEFAULT_MAX_NUM_ALLELES, DEFAULT_MAX_NUM_ALLELES, otherCounts, s * NUM_OTHER_COUNTS);
+                        }
+                        AlleleFreqCache.count(current, myAlleleCounts, t * DEFAULT_MAX_NUM_ALLELES, DEFAULT_MAX_NUM_ALLELES, myOtherCounts, t * NUM_OTHER_COUNTS);
+                    }
+                }
+            }
+
+            if (keepSites) {
+                System.arraycopy(alleleCounts, 0, siteAlleleCounts, block.startSite() * DEFAULT_MAX_NUM_ALLELES, alleleCounts.length);
+                System.arraycopy(otherCounts, 0, siteOtherCounts, block.startSite() * NUM_OTHER_COUNTS, otherCounts.length);
+            }
+
+        }
+
+        void merge(TaxonCounts other) {
+            for (int i = 0; i < myAlleleCounts.length; i++) {
+                myAlleleCounts[i] += other.myAlleleCounts[i];
+            }
+            for (int i = 0; i < myOtherCounts.length; i++) {
+                myOtherCounts[i] += other.myOtherCounts[i];
+            }
+        }
+
+    }
+
+}
@@ -12,6 +12,7 @@ import htsjdk.variant.variantcontext.VariantContextBuilder;
 import net.maizegenetics.dna.map.Position;
 import net.maizegenetics.dna.snp.GenotypeTable;
 import net.maizegenetics.dna.snp.NucleotideAlignmentConstants;
+import net.maizegenetics.dna.snp.score.AlleleDepthUtil;
 import net.maizegenetics.util.Tuple;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -394,6 +395,47 @@ public class VCFUtil {
         return top2Depths;
     }
 
+    /**
+     * Finds the top 2 depths for every taxon (or site) in one pass over the
+     * byte encoded depths. The first dimension of depths is alleles and the
+     * second is taxa (or sites), as returned by AlleleDepth.valuesForSiteByte()
+     * or AlleleDepth.valuesForTaxonByte(). Ties are resolved the same as
+     * calcTop2Depths(int[]).
+     *
+     * @param depths byte encoded depths
+     *
+     * @return highest index, highest depth, second highest index, and second
+     * highest depth arrays (in that order)
+     */
+    public static int[][] calcTop2Depths(byte[][] depths) {
+        int numIndices = depths[0].length;
+        int[] highestIndex = new int[numIndices];
+        int[] highestDepth = new int[numIndices];
+        int[] secondHighestIndex = new int[numIndices];
+        int[] secondHighestDepth = new int[numIndices];
+        Arrays.fill(highestIndex, -1);
+        Arrays.fill(highestDepth, -1);
+        Arrays.fill(secondHighestIndex, -1);
+        Arrays.fill(secondHighestDepth, -1);
+        int[] decoded = new int[numIndices];
+        for (int allele = 0; allele < depths.length; allele++) {
+            AlleleDepthUtil.depthByteToInt(depths[allele], decoded);
+            for (int i = 0; i < numIndices; i++) {
+                int current = decoded[i];
+                if (current > highestDepth[i]) {
+                    secondHighestDepth[i] = highestDepth[i];
+                    secondHighestIndex[i] = highestIndex[i];
+                    highestDepth[i] = current;
+                    highestIndex[i] = allele;
+                } else if (current > secondHighestDepth[i]) {
+                    secondHighestDepth[i] = current;
+                    secondHighestIndex[i] = allele;
+                }
+            }
+        }
+        return new int[][]{highestIndex, highestDepth, secondHighestIndex, secondHighestDepth};
+    }
+
 
     /**
      * Method to convert a genotype table to a List of VariantContexts
@@ -4,8 +4,12 @@
 package net.maizegenetics.dna.snp.score;
 
 import net.maizegenetics.dna.snp.byte2d.Byte2D;
+import net.maizegenetics.dna.snp.genotypecall.MaskedGenotypes;
+import net.maizegenetics.util.BitSet;
+import net.maizegenetics.util.OpenBitSet;
 
 import java.util.*;
+import java.util.stream.IntStream;
 
 /**
  * @author Terry Casstevens
@@ -156,6 +160,13 @@ public class AlleleDepth implements SiteScore {
      * @return depths
      */
     public byte[][] valuesForTaxonByte(int taxon) {
+        if (myValues != null) {
+            byte[][] result = new byte[NUM_ALLELE_DEPTH_TYPES][];
+            for (int a = 0; a < NUM_ALLELE_DEPTH_TYPES; a++) {
+                result[a] = myValues.get(ALLELE_DEPTH_TYPES[a]).valuesForAllSites(taxon);
+            }
+            return result;
+        }
         byte[][] result = new byte[NUM_ALLELE_DEPTH_TYPES][numSites()];
         int count = 0;
         for (SITE_SCORE_TYPE current : ALLELE_DEPTH_TYPES) {
@@ -177,6 +188,13 @@ public class AlleleDepth implements SiteScore {
      * @return depths
      */
     public byte[][] valuesForSiteByte(int site) {
+        if (myValues != null) {
+            byte[][] result = new byte[NUM_ALLELE_DEPTH_TYPES][];
+            for (int a = 0; a < NUM_ALLELE_DEPTH_TYPES; a++) {
+                result[a] = myValues.get(ALLELE_DEPTH_TYPES[a]).valuesForAllTaxa(site);
+            }
+            return result;
+        }
         byte[][] result = new byte[NUM_ALLELE_DEPTH_TYPES][numTaxa()];
         int count = 0;
         for (SITE_SCORE_TYPE current : ALLELE_DEPTH_TYPES) {
@@ -213,8 +231,8 @@ public class AlleleDepth implements SiteScore {
      */
     public int depthForTaxon(int taxon) {
         int result = 0;
-        for (int site = 0; site < numSites(); site++) {
-            result += depth(taxon, site);
+        for (int current : depthsForTaxon(taxon)) {
+            result += current;
         }
         return result;
     }
@@ -228,12 +246,77 @@ public class AlleleDepth implements SiteScore {
      */
     public int depthForSite(int site) {
         int result = 0;
-        for (int taxon = 0; taxon < numTaxa(); taxon++) {
-            result += depth(taxon, site);
+        for (int current : depthsForSite(site)) {
+            result += current;
+        }
+        return result;
+    }
+
+    /**
+     * Returns sum of all nucleotide depths for each site at given taxon. Same
+     * as depth(taxon, site) for every site, but reads the taxon once.
+     *
+     * @param taxon taxon
+     *
+     * @return sum of depths for each site
+     */
+    public int[] depthsForTaxon(int taxon) {
+        return AlleleDepthUtil.sumDepths(valuesForTaxonByte(taxon));
+    }
+
+    /**
+     * Returns sum of all nucleotide depths for each taxon at given site. Same
+     * as depth(taxon, site) for every taxon, but reads the site once.
+     *
+     * @param site site
+     *
+     * @return sum of depths for each taxon
+     */
+    public int[] depthsForSite(int site) {
+        return AlleleDepthUtil.sumDepths(valuesForSiteByte(site));
+    }
+
+    /**
+     * Returns sites of given taxon where sum of all nucleotide depths is less
+     * than minDepth.
+     *
+     * @param taxon taxon
+     * @param minDepth minimum depth
+     *
+     * @return set bits for sites below minimum depth
+     */
+    public BitSet minDepthMaskForTaxon(int taxon, int minDepth) {
+        int[] depths = depthsForTaxon(taxon);
+        BitSet result = new OpenBitSet(depths.length);
+        for (int s = 0; s < depths.length; s++) {
+            if (depths[s] < minDepth) {
+                result.fastSet(s);
+            }
         }
         return result;
     }
 
+    /**
+     * Returns mask of genotypes where sum of all nucleotide depths is less
+     * than minDepth. Taxa are processed in parallel.
+     *
+     * @param minDepth minimum depth
+     *
+     * @return mask
+     */
+    public MaskedGenotypes minDepthMask(int minDepth) {
+        MaskedGenotypes result = new MaskedGenotypes(numTaxa(), numSites());
+        IntStream.range(0, numTaxa()).parallel().forEach(t -> {
+            int[] depths = depthsForTaxon(t);
+            for (int s = 0; s < depths.length; s++) {
+                if (depths[s] < minDepth) {
+                    result.set(t, s);
+                }
+            }
+        });
+        return result;
+    }
+
     Collection<Byte2D> byteStorage() {
         return myValues.values();
     }
@@ -9,6 +9,10 @@ import net.maizegenetics.dna.snp.TranslateBuilder;
 import net.maizegenetics.dna.snp.byte2d.Byte2D;
 import net.maizegenetics.dna.snp.byte2d.Byte2DBuilder;
 import net.maizegenetics.taxa.TaxaList;
+import net.maizegenetics.util.SuperByteMatrix;
+import net.maizegenetics.util.SuperByteMatrixBuilder;
+
+import java.util.stream.IntStream;
 
 /**
  * @author Terry Casstevens
@@ -16,6 +20,8 @@ import net.maizegenetics.taxa.TaxaList;
 public class AlleleDepthBuilder {
 
     private Byte2DBuilder[] myBuilders;
+    private SuperByteMatrix myCompact = null;
+    private final int myNumTaxa;
     private final int myNumSites;
 
     private AlleleDepthBuilder(int numTaxa, int numSites, TaxaList taxaList) {
@@ -23,6 +29,14 @@ public class AlleleDepthBuilder {
         for (int i = 0; i < AlleleDepth.NUM_ALLELE_DEPTH_TYPES; i++) {
             myBuilders[i] = Byte2DBuilder.getInstance(numTaxa, numSites, AlleleDepth.ALLELE_DEPTH_TYPES[i], taxaList);
         }
+        myNumTaxa = numTaxa;
+        myNumSites = numSites;
+    }
+
+    private AlleleDepthBuilder(SuperByteMatrix compact, int numTaxa, int numSites) {
+        myBuilders = null;
+        myCompact = compact;
+        myNumTaxa = numTaxa;
         myNumSites = numSites;
     }
 
@@ -39,6 +53,59 @@ public class AlleleDepthBuilder {
         return new AlleleDepthBuilder(numTaxa, numSites, taxaList);
     }
 
+    /**
+     * This returns an AlleleDepthBuilder that builds a CompactAlleleDepth. The
+     * depths are stored according to SuperByteMatrixBuilder.isOffHeap().
+     *
+     * @param numTaxa number of taxa
+     * @param numSites number of sites
+     *
+     * @return AlleleDepthBuilder
+     */
+    public static AlleleDepthBuilder getCompactInstance(int numTaxa, int numSites) {
+        checkCompactSize(numSites);
+        return new AlleleDepthBuilder(SuperByteMatrixBuilder.getInstance(numTaxa, numSites * AlleleDepth.NUM_ALLELE_DEPTH_TYPES), numTaxa, numSites);
+    }
+
+    /**
+     * This returns an AlleleDepthBuilder that builds a CompactAlleleDepth
+     * stored off the Java heap.
+     *
+     * @param numTaxa number of taxa
+     * @param numSites number of sites
+     * @param spillDirectory directory for memory mapped file or null for
+     * direct memory
+     *
+     * @return AlleleDepthBuilder
+     */
+    public static AlleleDepthBuilder getCompactInstance(int numTaxa, int numSites, String spillDirectory) {
+        checkCompactSize(numSites);
+        return new AlleleDepthBuilder(spillDirectory == null
+                ? SuperByteMatrixBuilder.getInstanceOffHeap(numTaxa, numSites * AlleleDepth.NUM_ALLELE_DEPTH_TYPES)
+                : SuperByteMatrixBuilder.getInstanceOffHeap(numTaxa, numSites * AlleleDepth.NUM_ALLELE_DEPTH_TYPES, spillDirectory), numTaxa, numSites);
+    }
+
+    /**
+     * Copies depths into a CompactAlleleDepth stored off the Java heap.
+     *
+     * @param base original AlleleDepth
+     * @param spillDirectory directory for memory mapped file or null for
+     * direct memory
+     *
+     * @return compact copy
+     */
+    public static AlleleDepth getCompactInstance(AlleleDepth base, String spillDirectory) {
+        AlleleDepthBuilder builder = getCompactInstance(base.numTaxa(), base.numSites(), spillDirectory);
+        IntStream.range(0, base.numTaxa()).parallel().forEach(t -> builder.addTaxon(t, base.valuesForTaxonByte(t)));
+        return builder.build();
+    }
+
+    private static void checkCompactSize(int numSites) {
+        if ((long) numSites * AlleleDepth.NUM_ALLELE_DEPTH_TYPES > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("AlleleDepthBuilder: getCompactInstance: too many sites: " + numSites);
+        }
+    }
+
     /**
      * This creates a filtered AlleleDepth.
      *
@@ -65,6 +132,13 @@ public class AlleleDepthBuilder {
             throw new IllegalArgumentException("AlleleDepthBuilder: addTaxon: number of values: " + values.length + " doesn't equal number of sites: " + myNumSites);
         }
         byte[] result = AlleleDepthUtil.depthIntToByte(values);
+        if (myCompact != null) {
+            int allele = type.getIndex();
+            for (int s = 0; s < myNumSites; s++) {
+                myCompact.set(taxon, s * AlleleDepth.NUM_ALLELE_DEPTH_TYPES + allele, result[s]);
+            }
+            return this;
+        }
         myBuilders[type.getIndex()].addTaxon(taxon, result);
         return this;
     }
@@ -76,6 +150,10 @@ public class AlleleDepthBuilder {
         if (myNumSites != values[0].length) {
             throw new IllegalArgumentException("AlleleDepthBuilder: addTaxon: number of values: " + values[0].length + " doesn't equal number of sites: " + myNumSites);
         }
+        if (myCompact != null) {
+            myCompact.arraycopy(taxon, interleave(values), 0);
+            return this;
+        }
         for (int i = 0; i < AlleleDepth.NUM_ALLELE_DEPTH_TYPES; i++) {
             myBuilders[i].addTaxon(taxon, values[i]);
         }
@@ -99,6 +177,10 @@ public class AlleleDepthBuilder {
         if (numAlleles != AlleleDepth.NUM_ALLELE_DEPTH_TYPES) {
             throw new IllegalArgumentException("AlleleDepthBuilder: setDepthRangeForTaxon: value number of alleles: " + numAlleles + " should be: " + AlleleDepth.NUM_ALLELE_DEPTH_TYPES);
         }
+        if (myCompact != null) {
+            myCompact.arraycopy(taxon, interleave(depths), siteOffset * AlleleDepth.NUM_ALLELE_DEPTH_TYPES);
+            return this;
+        }
         for (int a = 0; a < AlleleDepth.NUM_ALLELE_DEPTH_TYPES; a++) {
             myBuilders[a].setDepthRangeForTaxon(taxon, siteOffset, depths[a]);
         }
@@ -107,13 +189,43 @@ public class AlleleDepthBuilder {
 
     }
 
+    /**
+     * Converts [allele][site] depths to compact layout (site * 6 + allele).
+     */
+    private static byte[] interleave(byte[][] depths) {
+        int numSites = depths[0].length;
+        byte[] result = new byte[numSites * AlleleDepth.NUM_ALLELE_DEPTH_TYPES];
+        for (int a = 0; a < AlleleDepth.NUM_ALLELE_DEPTH_TYPES; a++) {
+            byte[] current = depths[a];
+            for (int s = 0, index = a; s < numSites; s++, index += AlleleDepth.NUM_ALLELE_DEPTH_TYPES) {
+                result[index] = current[s];
+            }
+        }
+        return result;
+    }
+
     public void reorderPositions(int[] newIndices) {
+        if (myCompact != null) {
+            int[] columns = new int[newIndices.length * AlleleDepth.NUM_ALLELE_DEPTH_TYPES];
+            for (int s = 0; s < newIndices.length; s++) {
+                for (int a = 0; a < AlleleDepth.NUM_ALLELE_DEPTH_TYPES; a++) {
+                    columns[s * AlleleDepth.NUM_ALLELE_DEPTH_TYPES + a] = newIndices[s] * AlleleDepth.NUM_ALLELE_DEPTH_TYPES + a;
+                }
+            }
+            myCompact.reorderColumns(columns);
+            return;
+        }
         for (int i = 0; i < AlleleDepth.NUM_ALLELE_DEPTH_TYPES; i++) {
             myBuilders[i].reorderPositions(newIndices);
         }
     }
 
     public AlleleDepth build() {
+        if (myCompact != null) {
+            SuperByteMatrix temp = myCompact;
+            myCompact = null;
+            return new CompactAlleleDepth(temp, myNumTaxa, myNumSites);
+        }
         Byte2D[] input = new Byte2D[AlleleDepth.NUM_ALLELE_DEPTH_TYPES];
         for (int a = 0; a < AlleleDepth.NUM_ALLELE_DEPTH_TYPES; a++) {
             input[a] = myBuilders[a].build();
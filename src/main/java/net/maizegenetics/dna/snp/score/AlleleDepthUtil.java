@@ -120,6 +120,36 @@ public class AlleleDepthUtil {
         return result;
     }
 
+    /**
+     * Converts byte depths to integers in dest, starting at offset 0.
+     */
+    public static void depthByteToInt(byte[] depth, int[] dest) {
+        for (int i = 0; i < depth.length; i++) {
+            dest[i] = BYTE_TO_INT[depth[i] & 0xFF];
+        }
+    }
+
+    /**
+     * Sums depths across alleles. First dimension of depths is alleles and
+     * second dimension is sites or taxa (as returned by
+     * AlleleDepth.valuesForTaxonByte() or AlleleDepth.valuesForSiteByte()).
+     * Missing depths count as DEPTH_MISSING, same as AlleleDepth.depth().
+     *
+     * @param depths byte depths [allele][index]
+     *
+     * @return total depth for each index
+     */
+    public static int[] sumDepths(byte[][] depths) {
+        int numIndices = depths[0].length;
+        int[] result = new int[numIndices];
+        for (byte[] current : depths) {
+            for (int i = 0; i < numIndices; i++) {
+                result[i] += BYTE_TO_INT[current[i] & 0xFF];
+            }
+        }
+        return result;
+    }
+
     private static int decode(byte bdepth) {
 
         if (bdepth == (byte) 0x80) {
@@ -0,0 +1,189 @@
+/*
+ *  CompactAlleleDepth
+ */
+package net.maizegenetics.dna.snp.score;
+
+import net.maizegenetics.dna.snp.byte2d.Byte2D;
+import net.maizegenetics.util.SuperByteMatrix;
+
+import java.util.Collection;
+import java.util.stream.IntStream;
+
+/**
+ * AlleleDepth stored in one SuperByteMatrix with a row for each taxon. The
+ * depths of all nucleotides at a site are adjacent (site * 6 + allele), so a
+ * taxon is one sequential read and a taxon / site is one six byte read. The
+ * matrix can be off heap or memory mapped (see
+ * AlleleDepthBuilder.getCompactInstance()). Total depths for every taxon and
+ * site are calculated once when created.
+ */
+public class CompactAlleleDepth extends AlleleDepth {
+
+    // index of each depth type in ALLELE_DEPTH_TYPES by ordinal
+    private static final int[] ALLELE_INDEX = new int[SITE_SCORE_TYPE.values().length];
+
+    static {
+        for (int a = 0; a < NUM_ALLELE_DEPTH_TYPES; a++) {
+            ALLELE_INDEX[ALLELE_DEPTH_TYPES[a].ordinal()] = a;
+        }
+    }
+
+    // sites summed together when calculating totals
+    private static final int SITES_PER_CHUNK = 1 << 14;
+
+    private final SuperByteMatrix myDepths;
+    private final int[] myTaxonTotals;
+    private final int[] mySiteTotals;
+
+    /**
+     * @param depths taxa by (sites * NUM_ALLELE_DEPTH_TYPES) byte depths
+     * @param numTaxa number of taxa
+     * @param numSites number of sites
+     */
+    CompactAlleleDepth(SuperByteMatrix depths, int numTaxa, int numSites) {
+        super(numTaxa, numSites);
+        if (depths.getNumRows() != numTaxa || depths.getNumColumns() != numSites * NUM_ALLELE_DEPTH_TYPES) {
+            throw new IllegalArgumentException("CompactAlleleDepth: init: matrix dimensions don't match taxa: " + numTaxa + " sites: " + numSites);
+        }
+        myDepths = depths;
+        myTaxonTotals = new int[numTaxa];
+        mySiteTotals = totals();
+    }
+
+    /**
+     * Sums chunks of sites in parallel. Each chunk adds every taxon to its
+     * own slice of the site totals, and its taxon totals are added together
+     * at the end of the chunk.
+     *
+     * @return site totals
+     */
+    private int[] totals() {
+        int numTaxa = numTaxa();
+        int numSites = numSites();
+        int[] siteTotals = new int[numSites];
+        int numChunks = (numSites + SITES_PER_CHUNK - 1) / SITES_PER_CHUNK;
+        IntStream.range(0, numChunks).parallel().forEach(chunk -> {
+            int startSite = chunk * SITES_PER_CHUNK;
+            int endSite = Math.min(startSite + SITES_PER_CHUNK, numSites);
+            int[] taxonTotals = new int[numTaxa];
+            for (int t = 0; t < numTaxa; t++) {
+                byte[] depths = myDepths.getColumnRange(t, startSite * NUM_ALLELE_DEPTH_TYPES, endSite * NUM_ALLELE_DEPTH_TYPES);
+                int index = 0;
+                for (int s = startSite; s < endSite; s++) {
+                    int total = 0;
+                    for (int a = 0; a < NUM_ALLELE_DEPTH_TYPES; a++) {
+                        total += AlleleDepthUtil.depthByteToInt(depths[index++]);
+                    }
+                    siteTotals[s] += total;
+                    taxonTotals[t] += total;
+                }
+            }
+            synchronized (myTaxonTotals) {
+                for (int t = 0; t < numTaxa; t++) {
+                    myTaxonTotals[t] += taxonTotals[t];
+                }
+            }
+        });
+        return siteTotals;
+    }
+
+    private static int column(int site, SITE_SCORE_TYPE scoreType) {
+        return site * NUM_ALLELE_DEPTH_TYPES + ALLELE_INDEX[scoreType.ordinal()];
+    }
+
+    @Override
+    public int value(int taxon, int site, SITE_SCORE_TYPE scoreType) {
+        return AlleleDepthUtil.depthByteToInt(myDepths.get(taxon, column(site, scoreType)));
+    }
+
+    @Override
+    public byte valueByte(int taxon, int site, SITE_SCORE_TYPE scoreType) {
+        return myDepths.get(taxon, column(site, scoreType));
+    }
+
+    @Override
+    public byte[] valuesByte(int taxon, int site) {
+        int start = site * NUM_ALLELE_DEPTH_TYPES;
+        return myDepths.getColumnRange(taxon, start, start + NUM_ALLELE_DEPTH_TYPES);
+    }
+
+    @Override
+    public byte[][] valuesForTaxonByte(int taxon) {
+        int numSites = numSites();
+        byte[] row = myDepths.getAllColumns(taxon);
+        byte[][] result = new byte[NUM_ALLELE_DEPTH_TYPES][numSites];
+        int index = 0;
+        for (int s = 0; s < numSites; s++) {
+            for (int a = 0; a < NUM_ALLELE_DEPTH_TYPES; a++) {
+                result[a][s] = row[index++];
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public byte[][] valuesForSiteByte(int site) {
+        int numTaxa = numTaxa();
+        int start = site * NUM_ALLELE_DEPTH_TYPES;
+        byte[][] result = new byte[NUM_ALLELE_DEPTH_TYPES][numTaxa];
+        for (int t = 0; t < numTaxa; t++) {
+            byte[] current = myDepths.getColumnRange(t, start, start + NUM_ALLELE_DEPTH_TYPES);
+            for (int a = 0; a < NUM_ALLELE_DEPTH_TYPES; a++) {
+                result[a][t] = current[a];
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public int depth(int taxon, int site) {
+        int result = 0;
+        for (byte current : valuesByte(taxon, site)) {
+            result += AlleleDepthUtil.depthByteToInt(current);
+        }
+        return result;
+    }
+
+    /**
+     * Decodes the taxon row directly without splitting it by nucleotide.
+     */
+    @Override
+    public int[] depthsForTaxon(int taxon) {
+        int numSites = numSites();
+        byte[] row = myDepths.getAllColumns(taxon);
+        int[] result = new int[numSites];
+        int index = 0;
+        for (int s = 0; s < numSites; s++) {
+            int total = 0;
+            for (int a = 0; a < NUM_ALLELE_DEPTH_TYPES; a++) {
+                total += AlleleDepthUtil.depthByteToInt(row[index++]);
+            }
+            result[s] = total;
+        }
+        return result;
+    }
+
+    @Override
+    public int depthForTaxon(int taxon) {
+        return myTaxonTotals[taxon];
+    }
+
+    @Override
+    public int depthForSite(int site) {
+        return mySiteTotals[site];
+    }
+
+    @Override
+    Collection<Byte2D> byteStorage() {
+        return null;
+    }
+
+    /**
+     * Frees the depth storage if off heap (see SuperByteMatrix.release()).
+     * This must not be used afterwards.
+     */
+    public void release() {
+        myDepths.release();
+    }
+
+}
@@ -8,6 +8,7 @@ package net.maizegenetics.dna.snp.score;
 import java.util.Collection;
 import net.maizegenetics.dna.snp.MaskMatrix;
 import net.maizegenetics.dna.snp.byte2d.Byte2D;
+import net.maizegenetics.util.BitSet;
 
 /**
  *
@@ -45,6 +46,38 @@ public class MaskAlleleDepth extends AlleleDepth {
         }
     }
 
+    /**
+     * Reads base depths for taxon in bulk, then clears masked sites a mask
+     * word at a time.
+     */
+    @Override
+    public byte[][] valuesForTaxonByte(int taxon) {
+        byte[][] result = myDepth.valuesForTaxonByte(taxon);
+        if (myMask.isTaxonMaskedHint(taxon)) {
+            BitSet mask = myMask.maskForTaxon(taxon);
+            for (byte[] current : result) {
+                MaskMatrix.apply(mask, 0, numSites(), current, 0, 1, (byte) 0);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Reads base depths for site in bulk, then clears masked taxa a mask word
+     * at a time.
+     */
+    @Override
+    public byte[][] valuesForSiteByte(int site) {
+        byte[][] result = myDepth.valuesForSiteByte(site);
+        if (myMask.isSiteMaskedHint(site)) {
+            BitSet mask = myMask.maskForSite(site);
+            for (byte[] current : result) {
+                MaskMatrix.apply(mask, 0, numTaxa(), current, 0, 1, (byte) 0);
+            }
+        }
+        return result;
+    }
+
     @Override
     Collection<Byte2D> byteStorage() {
         return null;
@@ -9,6 +9,7 @@ import net.maizegenetics.taxa.TaxaList;
 import net.maizegenetics.taxa.TaxaListUtils;
 import net.maizegenetics.taxa.Taxon;
 import net.maizegenetics.util.BitSet;
+import net.maizegenetics.util.FastNumberParser;
 import net.maizegenetics.util.OpenBitSet;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -53,6 +54,10 @@ public class PhenotypeBuilder {
 
     private boolean addSourceDataFactor = false;
 
+    private static final byte[][] MISSING_PHENOTYPE_TOKENS = FastNumberParser.tokens("NaN", "NA", ".");
+    private static final byte[][] MISSING_TRAIT_TOKENS = FastNumberParser.tokens("-99", "-999");
+    private static final byte[][] NO_TOKENS = new byte[0][];
+
     public PhenotypeBuilder() {
 
     }
@@ -350,84 +355,78 @@ public class PhenotypeBuilder {
         ArrayList<PhenotypeAttribute> attributes = new ArrayList<>();
         ArrayList<ATTRIBUTE_TYPE> types = new ArrayList<>();
 
-        BufferedReader phenotypeReader = new BufferedReader(new FileReader(phenotypeFile));
-        phenotypeReader.readLine();  //assumes the first line has been read to determine that this is indeed a Phenotype file
-        String[] typeString = whiteSpace.split(phenotypeReader.readLine());
-        String[] phenoNames = whiteSpace.split(phenotypeReader.readLine());
-
-        //find the taxa column
-        int taxaCol = 0;
-        while (!typeString[taxaCol].toLowerCase().equals("taxa")) taxaCol++;
+        String[] typeString;
+        String[] phenoNames;
+        try (BufferedReader phenotypeReader = new BufferedReader(new FileReader(phenotypeFile))) {
+            phenotypeReader.readLine();  //assumes the first line has been read to determine that this is indeed a Phenotype file
+            typeString = whiteSpace.split(phenotypeReader.readLine());
+            phenoNames = whiteSpace.split(phenotypeReader.readLine());
+        }
 
         int nPheno = typeString.length;
-        ArrayList<String[]> stringData = new ArrayList<String[]>();
-        String inputStr;
-        while ((inputStr = phenotypeReader.readLine()) != null) {
-            stringData.add(whiteSpace.split(inputStr));
+        PhenotypeColumnParser.COLUMN_TYPE[] columnTypes = new PhenotypeColumnParser.COLUMN_TYPE[nPheno];
+        int[] targetColumn = new int[nPheno];
+        int numNumeric = 0;
+        int numStrings = 0;
+        for (int pheno = 0; pheno < nPheno; pheno++) {
+            String type = typeString[pheno].toLowerCase();
+            if (type.startsWith("cov") || type.startsWith("dat")) {
+                columnTypes[pheno] = PhenotypeColumnParser.COLUMN_TYPE.numeric;
+                targetColumn[pheno] = numNumeric++;
+            } else if (type.startsWith("tax")) {
+                columnTypes[pheno] = PhenotypeColumnParser.COLUMN_TYPE.taxa;
+                targetColumn[pheno] = numStrings++;
+            } else if (type.startsWith("fac")) {
+                columnTypes[pheno] = PhenotypeColumnParser.COLUMN_TYPE.factor;
+                targetColumn[pheno] = numStrings++;
+            } else {
+                columnTypes[pheno] = PhenotypeColumnParser.COLUMN_TYPE.skip;
+            }
         }
 
-        int nObs = stringData.size();
+        PhenotypeColumnParser parser = PhenotypeColumnParser.phenotypeFileParser(phenotypeFile, 3);
+        int nObs = parser.numberOfDataLines();
+        float[][] numeric = new float[numNumeric][nObs];
+        String[][] strings = new String[numStrings][nObs];
+        parser.parse(columnTypes, targetColumn, null, numeric, strings, MISSING_PHENOTYPE_TOKENS, true);
+        BitSet[] missing = PhenotypeColumnParser.missingMasks(numeric);
+
         for (int pheno = 0; pheno < nPheno; pheno++) {
-            if (typeString[pheno].toLowerCase().startsWith("cov") || typeString[pheno].toLowerCase().startsWith("dat")) {
-                float[] dataArray = new float[nObs];
-                OpenBitSet missing = new OpenBitSet(nObs);
-                int obsCount = 0;
-                for (String[] inputLine : stringData) {
-                    if (inputLine[pheno].equalsIgnoreCase("NaN")
-                            || inputLine[pheno].equalsIgnoreCase("NA")
-                            || inputLine[pheno].equals(".")) {
-                        dataArray[obsCount] = Float.NaN;
-                        missing.fastSet(obsCount);
-                    } else {
-                        try {
-                            dataArray[obsCount] = Float.parseFloat(inputLine[pheno]);
-                        } catch (NumberFormatException nfe) {
-                            throw new IllegalArgumentException("PhenotypeBuilder: importPhenotypeFile: at observation " + obsCount + " Taxon: " + inputLine[taxaCol] + " Value: " + inputLine[pheno] + " is not allowed.");
-                        }
-                    }
-                    obsCount++;
-                }
-                attributes.add(new NumericAttribute(phenoNames[pheno], dataArray, missing));
-                if (typeString[pheno].toLowerCase().startsWith("cov")) types.add(ATTRIBUTE_TYPE.covariate);
-                else types.add(ATTRIBUTE_TYPE.data);
-            } else if (typeString[pheno].toLowerCase().startsWith("tax")) {
-                ArrayList<Taxon> taxa = new ArrayList<>();
-                for (String[] inputLine : stringData) {
-                    taxa.add(Taxon.instance(inputLine[pheno]));
-                }
-                attributes.add(new TaxaAttribute(taxa, phenoNames[pheno]));
-                types.add(ATTRIBUTE_TYPE.taxa);
-            } else if (typeString[pheno].toLowerCase().startsWith("fac")) {
-                String[] labelArray = new String[nObs];
-                int obsCount = 0;
-                for (String[] inputLine : stringData) {
-                    labelArray[obsCount++] = inputLine[pheno];
-                }
-                attributes.add(new CategoricalAttribute(phenoNames[pheno], labelArray));
-                types.add(ATTRIBUTE_TYPE.factor);
+            String type = typeString[pheno].toLowerCase();
+            switch (columnTypes[pheno]) {
+                case numeric:
+                    attributes.add(new NumericAttribute(phenoNames[pheno], numeric[targetColumn[pheno]], missing[targetColumn[pheno]]));
+                    if (type.startsWith("cov")) types.add(ATTRIBUTE_TYPE.covariate);
+                    else types.add(ATTRIBUTE_TYPE.data);
+                    break;
+                case taxa:
+                    attributes.add(new TaxaAttribute(taxaFromNames(strings[targetColumn[pheno]]), phenoNames[pheno]));
+                    types.add(ATTRIBUTE_TYPE.taxa);
+                    break;
+                case factor:
+                    attributes.add(new CategoricalAttribute(phenoNames[pheno], strings[targetColumn[pheno]]));
+                    types.add(ATTRIBUTE_TYPE.factor);
+                    break;
+                default:
+                    break;
             }
         }
-        phenotypeReader.close();
 
         return new CorePhenotype(attributes, types, phenotypeName);
     }
 
     private Phenotype importTraits(File phenotypeFile) throws IOException {
-        BufferedReader phenotypeReader = new BufferedReader(new FileReader(phenotypeFile));
+        PhenotypeColumnParser parser = PhenotypeColumnParser.traitFileParser(phenotypeFile);
 
-        int numberOfDataLines = 0;
-        String inputline = phenotypeReader.readLine();
+        int numberOfDataLines = parser.numberOfDataLines();
         ArrayList<String> headerLines = new ArrayList<>();
         boolean isFactor = false;
         boolean isCovariate = false;
         boolean hasHeaders = false;
         boolean isTrait = false;
         String[] traitnames = new String[0];
-        while (inputline != null) {
-            inputline = inputline.trim();
-            if (inputline.length() > 1 && !inputline.startsWith("<") && !inputline.startsWith("#")) {
-                numberOfDataLines++;
-            } else if (inputline.toLowerCase().startsWith("<trai")) {
+        for (String inputline : parser.directiveLines()) {
+            if (inputline.toLowerCase().startsWith("<trai")) {
                 isTrait = true;
                 String[] splitLine = inputline.split("[<>\\s]+");
                 traitnames = Arrays.copyOfRange(splitLine, 2, splitLine.length);
@@ -439,126 +438,87 @@ public class PhenotypeBuilder {
                 hasHeaders = true;
                 headerLines.add(inputline);
             }
-
-            inputline = phenotypeReader.readLine();
         }
-        phenotypeReader.close();
 
         if (hasHeaders) {
-            return processTraitsAndFactors(phenotypeFile, traitnames, numberOfDataLines, isCovariate, headerLines);
+            return processTraitsAndFactors(parser, traitnames, numberOfDataLines, isCovariate, headerLines);
         } else if (isFactor) {
-            return processFactors(phenotypeFile, traitnames, numberOfDataLines);
+            return processFactors(parser, traitnames, numberOfDataLines);
         } else if (isTrait) {
-            return processTraits(phenotypeFile, traitnames, numberOfDataLines, isCovariate);
+            return processTraits(parser, traitnames, numberOfDataLines, isCovariate);
         } else throw new IllegalArgumentException("Unrecognized format for a phenotype.");
 
     }
 
-    private Phenotype processTraits(File phenotypeFile, String[] traitnames, int numberOfDataLines, boolean isCovariate) throws IOException {
+    private Phenotype processTraits(PhenotypeColumnParser parser, String[] traitnames, int numberOfDataLines, boolean isCovariate) {
         int ntraits = traitnames.length;
         int nattributes = ntraits + 1;
         ArrayList<PhenotypeAttribute> attributes = new ArrayList<>(nattributes);
         ArrayList<ATTRIBUTE_TYPE> types = new ArrayList<>(nattributes);
-        ArrayList<float[]> traitValues = new ArrayList<>(ntraits);
-        ArrayList<BitSet> missingList = new ArrayList<>(ntraits);
-        ArrayList<Taxon> taxaList = new ArrayList<>();
 
         types.add(ATTRIBUTE_TYPE.taxa);
         ATTRIBUTE_TYPE myAttributeType;
         if (isCovariate) myAttributeType = ATTRIBUTE_TYPE.covariate;
         else myAttributeType = ATTRIBUTE_TYPE.data;
         for (int i = 0; i < ntraits; i++) {
-            traitValues.add(new float[numberOfDataLines]);
-            missingList.add(new OpenBitSet(numberOfDataLines));
             types.add(myAttributeType);
         }
 
-        BufferedReader phenotypeReader = new BufferedReader(new FileReader(phenotypeFile));
-        int dataCount = 0;
-        int lineCount = 1;
-        String inputline;
-        while ((inputline = phenotypeReader.readLine()) != null) {
-            inputline = inputline.trim();
-            if (inputline.length() > 1 && !inputline.startsWith("<") && !inputline.startsWith("#")) {
-                String[] values = inputline.split("\\s+");
-                if (values.length != ntraits + 1) {
-                    String msg = String.format("Incorrect number of values in line %d of %s", lineCount, phenotypeFile.getName());
-                    phenotypeReader.close();
-                    throw new IllegalArgumentException(msg);
-                }
-                taxaList.add(Taxon.instance(values[0]));
-                for (int i = 0; i < ntraits; i++) {
-                    float val;
-                    String inval = values[i + 1].trim();
-                    if (inval.equals("-99") || inval.equals("-999")) {
-                        val = Float.NaN;
-                    } else {
-                        try {
-                            val = Float.parseFloat(inval);
-                        } catch (NumberFormatException e) {
-                            val = Float.NaN;
-                        }
-                    }
-                    if (Double.isNaN(val)) missingList.get(i).fastSet(dataCount);
-                    traitValues.get(i)[dataCount] = val;
-                }
-                dataCount++;
-            }
+        PhenotypeColumnParser.COLUMN_TYPE[] columnTypes = traitColumnTypes(ntraits, PhenotypeColumnParser.COLUMN_TYPE.numeric);
+        int[] targetColumn = traitTargetColumns(ntraits);
+        float[][] traitValues = new float[ntraits][numberOfDataLines];
+        String[][] taxaNames = new String[1][numberOfDataLines];
+        parser.parse(columnTypes, targetColumn, null, traitValues, taxaNames, MISSING_TRAIT_TOKENS, false);
+        BitSet[] missingList = PhenotypeColumnParser.missingMasks(traitValues);
 
-            lineCount++;
-        }
-
-        phenotypeReader.close();
-
-        attributes.add(new TaxaAttribute(taxaList));
+        attributes.add(new TaxaAttribute(taxaFromNames(taxaNames[0])));
         for (int i = 0; i < ntraits; i++)
-            attributes.add(new NumericAttribute(traitnames[i], traitValues.get(i), missingList.get(i)));
+            attributes.add(new NumericAttribute(traitnames[i], traitValues[i], missingList[i]));
         return new CorePhenotype(attributes, types, phenotypeName);
     }
 
-    private Phenotype processFactors(File phenotypeFile, String[] traitnames, int numberOfDataLines) throws IOException {
+    private Phenotype processFactors(PhenotypeColumnParser parser, String[] traitnames, int numberOfDataLines) {
         int ntraits = traitnames.length;
         int nattributes = ntraits + 1;
         ArrayList<PhenotypeAttribute> attributes = new ArrayList<>(nattributes);
         ArrayList<ATTRIBUTE_TYPE> types = new ArrayList<>(nattributes);
-        ArrayList<String[]> traitValues = new ArrayList<>(ntraits);
-        ArrayList<Taxon> taxaList = new ArrayList<>();
 
         types.add(ATTRIBUTE_TYPE.taxa);
         ATTRIBUTE_TYPE myAttributeType = ATTRIBUTE_TYPE.factor;
         for (int i = 0; i < ntraits; i++) {
-            traitValues.add(new String[numberOfDataLines]);
             types.add(myAttributeType);
         }
 
-        BufferedReader phenotypeReader = new BufferedReader(new FileReader(phenotypeFile));
-        int dataCount = 0;
-        int lineCount = 1;
-        String inputline;
-        while ((inputline = phenotypeReader.readLine()) != null) {
-            inputline = inputline.trim();
-            if (inputline.length() > 1 && !inputline.startsWith("<") && !inputline.startsWith("#")) {
-                String[] values = inputline.split("\\s+");
-                if (values.length != ntraits + 1) {
-                    String msg = String.format("Incorrect number of values in line %d of %s", lineCount, phenotypeFile.getName());
-                    phenotypeReader.close();
-                    throw new IllegalArgumentException(msg);
-                }
-                taxaList.add(Taxon.instance(values[0]));
-                for (int i = 0; i < ntraits; i++) {
-                    traitValues.get(i)[dataCount] = values[i + 1];
-                }
-                dataCount++;
-            }
+        //string column 0 is taxa, factor i is column i + 1
+        PhenotypeColumnParser.COLUMN_TYPE[] columnTypes = traitColumnTypes(ntraits, PhenotypeColumnParser.COLUMN_TYPE.factor);
+        int[] targetColumn = new int[ntraits + 1];
+        for (int i = 0; i <= ntraits; i++) targetColumn[i] = i;
+        String[][] values = new String[ntraits + 1][numberOfDataLines];
+        parser.parse(columnTypes, targetColumn, null, new float[0][], values, MISSING_TRAIT_TOKENS, false);
 
-            lineCount++;
-        }
+        attributes.add(new TaxaAttribute(taxaFromNames(values[0])));
+        for (int i = 0; i < ntraits; i++) attributes.add(new CategoricalAttribute(traitnames[i], values[i + 1]));
+        return new CorePhenotype(attributes, types, phenotypeName);
+    }
 
-        phenotypeReader.close();
+    private static PhenotypeColumnParser.COLUMN_TYPE[] traitColumnTypes(int ntraits, PhenotypeColumnParser.COLUMN_TYPE traitType) {
+        PhenotypeColumnParser.COLUMN_TYPE[] result = new PhenotypeColumnParser.COLUMN_TYPE[ntraits + 1];
+        Arrays.fill(result, traitType);
+        result[0] = PhenotypeColumnParser.COLUMN_TYPE.taxa;
+        return result;
+    }
 
-        attributes.add(new TaxaAttribute(taxaList));
-        for (int i = 0; i < ntraits; i++) attributes.add(new CategoricalAttribute(traitnames[i], traitValues.get(i)));
-        return new CorePhenotype(attributes, types, phenotypeName);
+    //taxa to string column 0, trait i to numeric column i
+    private static int[] traitTargetColumns(int ntraits) {
+        int[] result = new int[ntraits + 1];
+        for (int i = 0; i < ntraits; i++) result[i + 1] = i;
+        return result;
+    }
+
+    private static List<Taxon> taxaFromNames(String[] names) {
+        ArrayList<Taxon> taxa = new ArrayList<>(names.length);
+        for (String name : names) taxa.add(Taxon.instance(name));
+        return taxa;
     }
 
 //	private void processHeader(String headerLine, Map<String, ArrayList<String>> headerMap) {
@@ -573,8 +533,7 @@ public class PhenotypeBuilder {
 //		} else throw new IllegalArgumentException("Improperly formatted Header: " + headerLine);
 //	}
 
-    private Phenotype processTraitsAndFactors(File phenotypeFile, String[] traitnames, int numberOfDataLines, boolean isCovariate, ArrayList<String> headerList)
-            throws IOException {
+    private Phenotype processTraitsAndFactors(PhenotypeColumnParser parser, String[] traitnames, int numberOfDataLines, boolean isCovariate, ArrayList<String> headerList) {
         TreeSet<String> traitSet = new TreeSet<>();
         for (String trait : traitnames) traitSet.add(trait);
         HashMap<String, Integer> traitMap = new HashMap<>();
@@ -623,52 +582,22 @@ public class PhenotypeBuilder {
             toIndex += numberOfDataLines;
         }
 
-        //create the trait arrays and temporary taxa list
-        ArrayList<float[]> traitAttributeArrays = new ArrayList<>();
-        ArrayList<BitSet> missingList = new ArrayList<>();
-        ArrayList<Taxon> tempTaxa = new ArrayList<>();
-
-        for (int i = 0; i < ntraits; i++) {  //initialize the trait arrays to NaN
-            float[] traitArray = new float[ndata];
-            Arrays.fill(traitArray, Float.NaN);
-            traitAttributeArrays.add(traitArray);
-            missingList.add(new OpenBitSet(ndata));
-        }
-
-        BufferedReader br = new BufferedReader(new FileReader(phenotypeFile));
-        int dataCount = 0;
-        int lineCount = 1;
-        String inputline;
-        while ((inputline = br.readLine()) != null) {
-            inputline = inputline.trim();
-            if (inputline.length() > 1 && !inputline.startsWith("<") && !inputline.startsWith("#")) {
-                String[] values = inputline.split("\\s+");
-                if (values.length != ntraitnames + 1) {
-                    String msg = String.format("Incorrect number of values in line %d of %s", lineCount, phenotypeFile.getName());
-                    br.close();
-                    throw new IllegalArgumentException(msg);
-                }
-                tempTaxa.add(Taxon.instance(values[0]));
-                for (int i = 0; i < ntraitnames; i++) {
-                    float val;
-                    int traitnum = traitMap.get(traitnames[i]);
-                    int factornum = factorMap.get(factorValues[i]);
-                    int dataIndex = factornum * numberOfDataLines + dataCount;
-                    try {
-                        val = Float.parseFloat(values[i + 1]);
-                    } catch (NumberFormatException e) {
-                        val = Float.NaN;
-                        missingList.get(traitnum).fastSet(dataIndex);
-                    }
-                    traitAttributeArrays.get(traitnum)[dataIndex] = val;
-                }
-                dataCount++;
-            }
-
-            lineCount++;
+        //create the trait arrays, initialized to NaN as not every taxon has a value for every composite factor
+        float[][] traitAttributeArrays = new float[ntraits][];
+        for (int i = 0; i < ntraits; i++) traitAttributeArrays[i] = PhenotypeColumnParser.missingArray(ndata);
+
+        //each trait column is parsed directly into its trait array at the block for its composite factor
+        PhenotypeColumnParser.COLUMN_TYPE[] columnTypes = traitColumnTypes(ntraitnames, PhenotypeColumnParser.COLUMN_TYPE.numeric);
+        int[] targetColumn = new int[ntraitnames + 1];
+        int[] targetBlock = new int[ntraitnames + 1];
+        for (int i = 0; i < ntraitnames; i++) {
+            targetColumn[i + 1] = traitMap.get(traitnames[i]);
+            targetBlock[i + 1] = factorMap.get(factorValues[i]);
         }
-
-        br.close();
+        String[][] taxaNames = new String[1][numberOfDataLines];
+        parser.parse(columnTypes, targetColumn, targetBlock, traitAttributeArrays, taxaNames, NO_TOKENS, false);
+        BitSet[] missingList = PhenotypeColumnParser.missingMasks(traitAttributeArrays);
+        List<Taxon> tempTaxa = taxaFromNames(taxaNames[0]);
 
         //create the taxa list
         ArrayList<Taxon> taxaList = new ArrayList<>(ndata);
@@ -692,7 +621,7 @@ public class PhenotypeBuilder {
 
         traitCount = 0;
         for (String trait : traitSet) {
-            attributes.add(new NumericAttribute(trait, traitAttributeArrays.get(traitCount), missingList.get(traitCount)));
+            attributes.add(new NumericAttribute(trait, traitAttributeArrays[traitCount], missingList[traitCount]));
             types.add(myAttributeType);
             traitCount++;
         }
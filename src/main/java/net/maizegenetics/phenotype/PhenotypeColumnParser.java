@@ -0,0 +1,460 @@
+package net.maizegenetics.phenotype;
+
+import net.maizegenetics.util.BitSet;
+import net.maizegenetics.util.FastNumberParser;
+import net.maizegenetics.util.OpenBitSet;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.IntStream;
+
+/**
+ * Multi-threaded column parser for phenotype files. The file is split into
+ * chunks of whole lines. A first parallel pass counts the data lines in each
+ * chunk, so that every chunk knows the row index of its first observation. A
+ * second parallel pass tokenizes each line in place and parses the numeric
+ * values directly into preallocated column arrays. No intermediate String
+ * tables are created, which matters for wide files (i.e. expression data with
+ * tens of thousands of traits).
+ */
+class PhenotypeColumnParser {
+
+    private static final Logger myLogger = LogManager.getLogger(PhenotypeColumnParser.class);
+
+    public enum COLUMN_TYPE {
+        taxa, factor, numeric, skip
+    }
+
+    private static final int CHUNK_SIZE = 8 << 20;
+    private static final int SEEK_BUFFER_SIZE = 1 << 16;
+
+    private final File myFile;
+    private final boolean myTraitFormat;
+    private final int myNumThreads;
+
+    // byte offset of each chunk, length is number of chunks + 1
+    private final long[] myChunkStarts;
+    // index of first observation in each chunk
+    private final int[] myChunkFirstRow;
+    // number of lines (1-based file line number) preceding each chunk
+    private final int[] myChunkFirstLine;
+    private final int myNumRows;
+    private final List<String> myDirectiveLines = new ArrayList<>();
+
+    private PhenotypeColumnParser(File file, int numHeaderLines, boolean traitFormat) throws IOException {
+
+        myFile = file;
+        myTraitFormat = traitFormat;
+        myNumThreads = Runtime.getRuntime().availableProcessors();
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+
+            long fileSize = channel.size();
+            long dataStart = 0;
+            for (int i = 0; i < numHeaderLines; i++) {
+                dataStart = nextLineStart(channel, dataStart, fileSize);
+            }
+
+            List<Long> starts = new ArrayList<>();
+            starts.add(dataStart);
+            long nominal = dataStart + CHUNK_SIZE;
+            while (nominal < fileSize) {
+                long boundary = nextLineStart(channel, nominal - 1, fileSize);
+                if (boundary > starts.get(starts.size() - 1) && boundary < fileSize) {
+                    starts.add(boundary);
+                }
+                nominal = Math.max(boundary, nominal) + CHUNK_SIZE;
+            }
+            starts.add(fileSize);
+
+            int numChunks = starts.size() - 1;
+            myChunkStarts = new long[numChunks + 1];
+            for (int i = 0; i <= numChunks; i++) {
+                myChunkStarts[i] = starts.get(i);
+            }
+
+            List<Callable<CountChunk>> counters = new ArrayList<>();
+            for (int i = 0; i < numChunks; i++) {
+                counters.add(new CountChunk(channel, i));
+            }
+            List<CountChunk> counts = runAll(counters);
+
+            myChunkFirstRow = new int[numChunks];
+            myChunkFirstLine = new int[numChunks];
+            int rows = 0;
+            int lines = numHeaderLines;
+            for (int i = 0; i < numChunks; i++) {
+                CountChunk current = counts.get(i);
+                myChunkFirstRow[i] = rows;
+                myChunkFirstLine[i] = lines;
+                rows += current.myNumDataLines;
+                lines += current.myNumLines;
+                myDirectiveLines.addAll(current.myDirectives);
+            }
+            myNumRows = rows;
+
+        }
+
+    }
+
+    /**
+     * Parser for trait files (i.e. &lt;Trait&gt; header). Data lines are any
+     * lines longer than one character that don't start with &lt; or #.
+     */
+    static PhenotypeColumnParser traitFileParser(File file) throws IOException {
+        return new PhenotypeColumnParser(file, 0, true);
+    }
+
+    /**
+     * Parser for &lt;Phenotype&gt; files. The first numHeaderLines lines are
+     * skipped and all non-blank lines after that are data.
+     */
+    static PhenotypeColumnParser phenotypeFileParser(File file, int numHeaderLines) throws IOException {
+        return new PhenotypeColumnParser(file, numHeaderLines, false);
+    }
+
+    /**
+     * Number of data lines (observations) in file.
+     */
+    int numberOfDataLines() {
+        return myNumRows;
+    }
+
+    /**
+     * Trimmed lines starting with &lt; in file order. Only collected for
+     * trait files.
+     */
+    List<String> directiveLines() {
+        return myDirectiveLines;
+    }
+
+    /**
+     * Parses all data lines. Each line must have exactly types.length tokens.
+     * Token t of observation row is stored in numeric[targetColumn[t]] or
+     * strings[targetColumn[t]] at index targetBlock[t] * numberOfDataLines() +
+     * row. Numeric cells not written (if any) keep their preallocated values.
+     *
+     * @param types type of each token
+     * @param targetColumn destination column of each token
+     * @param targetBlock destination block of each token (null for all zero)
+     * @param numeric preallocated numeric destination arrays
+     * @param strings preallocated string destination arrays (taxa and factors)
+     * @param missingTokens numeric tokens that mean missing (stored as NaN),
+     * compared ignoring case
+     * @param strictNumbers if true, throw IllegalArgumentException for
+     * unparsable numbers. Otherwise, they are stored as NaN.
+     */
+    void parse(COLUMN_TYPE[] types, int[] targetColumn, int[] targetBlock, float[][] numeric, String[][] strings, byte[][] missingTokens, boolean strictNumbers) {
+
+        int taxaToken = -1;
+        for (int t = 0; t < types.length; t++) {
+            if (types[t] == COLUMN_TYPE.taxa) {
+                taxaToken = t;
+                break;
+            }
+        }
+
+        LineSpec spec = new LineSpec(types, targetColumn, targetBlock, numeric, strings, missingTokens, strictNumbers, taxaToken);
+
+        try (FileChannel channel = FileChannel.open(myFile.toPath(), StandardOpenOption.READ)) {
+            List<Callable<ParseChunk>> parsers = new ArrayList<>();
+            for (int i = 0, n = myChunkFirstRow.length; i < n; i++) {
+                parsers.add(new ParseChunk(channel, i, spec));
+            }
+            runAll(parsers);
+        } catch (IOException e) {
+            myLogger.debug(e.getMessage(), e);
+            throw new IllegalStateException("PhenotypeColumnParser: parse: problem reading: " + myFile.getPath() + ": " + e.getMessage());
+        }
+
+    }
+
+    /**
+     * Creates the missing value BitSets (set where value is NaN) for the given
+     * columns in parallel.
+     */
+    static BitSet[] missingMasks(float[][] columns) {
+        BitSet[] result = new BitSet[columns.length];
+        IntStream.range(0, columns.length).parallel().forEach(c -> {
+            float[] values = columns[c];
+            OpenBitSet missing = new OpenBitSet(values.length);
+            for (int i = 0; i < values.length; i++) {
+                if (Float.isNaN(values[i])) {
+                    missing.fastSet(i);
+                }
+            }
+            result[c] = missing;
+        });
+        return result;
+    }
+
+    private <T> List<T> runAll(List<Callable<T>> tasks) {
+
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(myNumThreads, tasks.size())));
+        try {
+            List<Future<T>> futures = new ArrayList<>();
+            for (Callable<T> task : tasks) {
+                futures.add(pool.submit(task));
+            }
+            List<T> result = new ArrayList<>(futures.size());
+            for (Future<T> future : futures) {
+                result.add(future.get());
+            }
+            return result;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IllegalArgumentException) {
+                throw (IllegalArgumentException) cause;
+            }
+            myLogger.debug(cause.getMessage(), cause);
+            throw new IllegalStateException("PhenotypeColumnParser: problem reading: " + myFile.getPath() + ": " + cause.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("PhenotypeColumnParser: interrupted reading: " + myFile.getPath());
+        } finally {
+            pool.shutdownNow();
+        }
+
+    }
+
+    private byte[] readChunk(FileChannel channel, int chunk) throws IOException {
+
+        long start = myChunkStarts[chunk];
+        long length = myChunkStarts[chunk + 1] - start;
+        if (length > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("PhenotypeColumnParser: line too long in: " + myFile.getPath());
+        }
+
+        byte[] result = new byte[(int) length];
+        ByteBuffer buffer = ByteBuffer.wrap(result);
+        long position = start;
+        while (buffer.hasRemaining()) {
+            int numRead = channel.read(buffer, position);
+            if (numRead < 0) {
+                throw new IOException("unexpected end of file");
+            }
+            position += numRead;
+        }
+        return result;
+
+    }
+
+    /**
+     * Returns offset of the byte following the first newline at or after
+     * position, or fileSize if there is none.
+     */
+    private static long nextLineStart(FileChannel channel, long position, long fileSize) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(SEEK_BUFFER_SIZE);
+        long current = position;
+        while (current < fileSize) {
+            buffer.clear();
+            int numRead = channel.read(buffer, current);
+            if (numRead <= 0) {
+                break;
+            }
+            byte[] bytes = buffer.array();
+            for (int i = 0; i < numRead; i++) {
+                if (bytes[i] == '\n') {
+                    return current + i + 1;
+                }
+            }
+            current += numRead;
+        }
+        return fileSize;
+    }
+
+    private static int lineEnd(byte[] bytes, int start) {
+        for (int i = start; i < bytes.length; i++) {
+            if (bytes[i] == '\n') {
+                return i;
+            }
+        }
+        return bytes.length;
+    }
+
+    private boolean isDataLine(byte[] bytes, int start, int end) {
+        if (myTraitFormat) {
+            return end - start > 1 && bytes[start] != '<' && bytes[start] != '#';
+        } else {
+            return end > start;
+        }
+    }
+
+    private class CountChunk implements Callable<CountChunk> {
+
+        private final FileChannel myChannel;
+        private final int myChunk;
+        private int myNumLines = 0;
+        private int myNumDataLines = 0;
+        private final List<String> myDirectives = new ArrayList<>();
+
+        CountChunk(FileChannel channel, int chunk) {
+            myChannel = channel;
+            myChunk = chunk;
+        }
+
+        @Override
+        public CountChunk call() throws Exception {
+            byte[] bytes = readChunk(myChannel, myChunk);
+            int pos = 0;
+            while (pos < bytes.length) {
+                int end = lineEnd(bytes, pos);
+                myNumLines++;
+                int start = pos;
+                int trimmedEnd = end;
+                while (start < trimmedEnd && bytes[start] <= ' ') start++;
+                while (trimmedEnd > start && bytes[trimmedEnd - 1] <= ' ') trimmedEnd--;
+                if (isDataLine(bytes, start, trimmedEnd)) {
+                    myNumDataLines++;
+                } else if (myTraitFormat && trimmedEnd > start && bytes[start] == '<') {
+                    myDirectives.add(new String(bytes, start, trimmedEnd - start, StandardCharsets.UTF_8));
+                }
+                pos = end + 1;
+            }
+            return this;
+        }
+    }
+
+    private static class LineSpec {
+
+        private final COLUMN_TYPE[] myTypes;
+        private final int[] myTargetColumn;
+        private final int[] myTargetBlock;
+        private final float[][] myNumeric;
+        private final String[][] myStrings;
+        private final byte[][] myMissingTokens;
+        private final boolean myStrictNumbers;
+        private final int myTaxaToken;
+
+        LineSpec(COLUMN_TYPE[] types, int[] targetColumn, int[] targetBlock, float[][] numeric, String[][] strings, byte[][] missingTokens, boolean strictNumbers, int taxaToken) {
+            myTypes = types;
+            myTargetColumn = targetColumn;
+            myTargetBlock = targetBlock;
+            myNumeric = numeric;
+            myStrings = strings;
+            myMissingTokens = missingTokens;
+            myStrictNumbers = strictNumbers;
+            myTaxaToken = taxaToken;
+        }
+    }
+
+    private class ParseChunk implements Callable<ParseChunk> {
+
+        private final FileChannel myChannel;
+        private final int myChunk;
+        private final LineSpec mySpec;
+        private final int[] myTokenStarts;
+        private final int[] myTokenEnds;
+
+        ParseChunk(FileChannel channel, int chunk, LineSpec spec) {
+            myChannel = channel;
+            myChunk = chunk;
+            mySpec = spec;
+            myTokenStarts = new int[spec.myTypes.length];
+            myTokenEnds = new int[spec.myTypes.length];
+        }
+
+        @Override
+        public ParseChunk call() throws Exception {
+            byte[] bytes = readChunk(myChannel, myChunk);
+            int row = myChunkFirstRow[myChunk];
+            int line = myChunkFirstLine[myChunk];
+            int pos = 0;
+            while (pos < bytes.length) {
+                int end = lineEnd(bytes, pos);
+                line++;
+                int start = pos;
+                int trimmedEnd = end;
+                while (start < trimmedEnd && bytes[start] <= ' ') start++;
+                while (trimmedEnd > start && bytes[trimmedEnd - 1] <= ' ') trimmedEnd--;
+                if (isDataLine(bytes, start, trimmedEnd)) {
+                    parseLine(bytes, start, trimmedEnd, row, line);
+                    row++;
+                }
+                pos = end + 1;
+            }
+            return this;
+        }
+
+        private void parseLine(byte[] bytes, int start, int end, int row, int line) {
+
+            int numTokens = mySpec.myTypes.length;
+            int count = 0;
+            int index = start;
+            while (index < end) {
+                while (index < end && bytes[index] <= ' ') index++;
+                if (index >= end) {
+                    break;
+                }
+                int tokenStart = index;
+                while (index < end && bytes[index] > ' ') index++;
+                if (count < numTokens) {
+                    myTokenStarts[count] = tokenStart;
+                    myTokenEnds[count] = index;
+                }
+                count++;
+            }
+
+            if (count != numTokens) {
+                throw new IllegalArgumentException(String.format("Incorrect number of values in line %d of %s", line, myFile.getName()));
+            }
+
+            for (int t = 0; t < numTokens; t++) {
+                int s = myTokenStarts[t];
+                int e = myTokenEnds[t];
+                int block = mySpec.myTargetBlock == null ? 0 : mySpec.myTargetBlock[t];
+                int dest = block * myNumRows + row;
+                switch (mySpec.myTypes[t]) {
+                    case numeric:
+                        float value;
+                        if (FastNumberParser.matchesAnyIgnoreCase(bytes, s, e, mySpec.myMissingTokens)) {
+                            value = Float.NaN;
+                        } else {
+                            try {
+                                value = FastNumberParser.parseFloat(bytes, s, e);
+                            } catch (NumberFormatException nfe) {
+                                if (mySpec.myStrictNumbers) {
+                                    String taxon = mySpec.myTaxaToken < 0 ? "" : new String(bytes, myTokenStarts[mySpec.myTaxaToken], myTokenEnds[mySpec.myTaxaToken] - myTokenStarts[mySpec.myTaxaToken], StandardCharsets.UTF_8);
+                                    throw new IllegalArgumentException("PhenotypeBuilder: importPhenotypeFile: at observation " + row + " Taxon: " + taxon + " Value: " + new String(bytes, s, e - s, StandardCharsets.UTF_8) + " is not allowed.");
+                                }
+                                value = Float.NaN;
+                            }
+                        }
+                        mySpec.myNumeric[mySpec.myTargetColumn[t]][dest] = value;
+                        break;
+                    case taxa:
+                    case factor:
+                        mySpec.myStrings[mySpec.myTargetColumn[t]][dest] = new String(bytes, s, e - s, StandardCharsets.UTF_8);
+                        break;
+                    default:
+                        break;
+                }
+            }
+
+        }
+    }
+
+    /**
+     * Returns new float array of given size filled with NaN.
+     */
+    static float[] missingArray(int size) {
+        float[] result = new float[size];
+        Arrays.fill(result, Float.NaN);
+        return result;
+    }
+
+}
@@ -7,6 +7,7 @@ import net.maizegenetics.dna.snp.GenotypeTable;
 import net.maizegenetics.dna.snp.genotypecall.GenotypeCallTableBuilder;
 
 import java.util.*;
+import java.util.stream.IntStream;
 
 /**
  * A builder for creating immutable {@link TaxaList} instances.
@@ -26,6 +27,10 @@ import java.util.*;
  * @author Ed Buckler
  */
 public class TaxaListBuilder {
+
+    // number of names at which addAll(String[]) interns in parallel
+    private static final int MIN_PARALLEL_NAMES = 10000;
+
     //TODO need to move union and intersection utils to the builder
     private List<Taxon> myTaxaList;
     private final HashMap<Taxon, Integer> tempLookup;
@@ -94,11 +99,34 @@ public class TaxaListBuilder {
         return this;
     }
 
+    /**
+     * Adds taxa by name (see Taxon.instance()). Large arrays (i.e. VCF
+     * headers) are interned in parallel and then indexed in one pass.
+     *
+     * @param taxa taxa names
+     *
+     * @return this builder
+     */
     public TaxaListBuilder addAll(String[] taxa) {
-        for (int i = 0, n = taxa.length; i < n; i++) {
-            add(taxa[i]);
+
+        if (taxa.length < MIN_PARALLEL_NAMES) {
+            for (int i = 0, n = taxa.length; i < n; i++) {
+                add(taxa[i]);
+            }
+            return this;
+        }
+
+        Taxon[] interned = new Taxon[taxa.length];
+        IntStream.range(0, taxa.length).parallel().forEach(i -> interned[i] = Taxon.instance(taxa[i]));
+
+        if (myTaxaList instanceof ArrayList) {
+            ((ArrayList<Taxon>) myTaxaList).ensureCapacity(myTaxaList.size() + interned.length);
+        }
+        for (Taxon taxon : interned) {
+            add(taxon);
         }
         return this;
+
     }
 
     public TaxaListBuilder addAll(List<String> taxa) {
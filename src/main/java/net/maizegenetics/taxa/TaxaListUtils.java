@@ -3,12 +3,15 @@
  */
 package net.maizegenetics.taxa;
 
+import net.maizegenetics.util.GeneralAnnotation;
+import net.maizegenetics.util.GeneralAnnotationStorage;
 import net.maizegenetics.util.Tuple;
 
 import java.util.ArrayList;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.stream.Collectors;
 
 /**
  * @author Terry Casstevens
@@ -19,6 +22,20 @@ public class TaxaListUtils {
         // utility class
     }
 
+    /**
+     * Returns average value of annotation for each taxon (see
+     * GeneralAnnotationStorage.getAverageAnnotations()).
+     *
+     * @param taxa taxa list
+     * @param annoName annotation key
+     *
+     * @return average value for each taxon (Double.NaN where not present)
+     */
+    public static double[] averageAnnotations(TaxaList taxa, String annoName) {
+        List<GeneralAnnotation> annotations = taxa.stream().map(Taxon::getAnnotation).collect(Collectors.toList());
+        return GeneralAnnotationStorage.getAverageAnnotations(annotations, annoName);
+    }
+
     /**
      * Intersect joins the specified taxa.
      *
@@ -6,10 +6,12 @@
 // terms of the Lesser GNU General Public License (LGPL)
 package net.maizegenetics.taxa;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
 import net.maizegenetics.util.GeneralAnnotation;
 import net.maizegenetics.util.GeneralAnnotationStorage;
 
-import java.util.HashMap;
 import java.util.Map;
 
 /**
@@ -26,7 +28,13 @@ import java.util.Map;
  */
 public class Taxon implements Comparable<Taxon> {
 
-    private static final Map<String, Taxon> TAXON_CACHE = new HashMap();
+    // Interned taxa by name. Values are weakly referenced, so taxa no longer
+    // used by any list are evicted.
+    private static final Cache<String, Taxon> TAXON_CACHE = CacheBuilder.newBuilder()
+            .concurrencyLevel(Runtime.getRuntime().availableProcessors())
+            .weakValues()
+            .recordStats()
+            .build();
 
     public static final String DELIMITER = ":";
     public static Taxon ANONYMOUS = Taxon.instance("");
@@ -89,15 +97,45 @@ public class Taxon implements Comparable<Taxon> {
         myAnno = anno;
     }
 
+    /**
+     * Returns the interned taxon with given name and no annotations. This is
+     * thread safe.
+     *
+     * @param name taxon name
+     *
+     * @return taxon
+     */
     public static Taxon instance(String name) {
-        Taxon result = TAXON_CACHE.get(name);
+        Taxon result = TAXON_CACHE.getIfPresent(name);
         if (result == null) {
-            result = new Taxon(name);
-            TAXON_CACHE.put(name, result);
+            Taxon created = new Taxon(name);
+            result = TAXON_CACHE.asMap().putIfAbsent(name, created);
+            if (result == null) {
+                result = created;
+            }
         }
         return result;
     }
 
+    /**
+     * Returns hit / miss statistics of instance().
+     *
+     * @return cache statistics
+     */
+    public static CacheStats cacheStats() {
+        return TAXON_CACHE.stats();
+    }
+
+    /**
+     * Returns approximate number of interned taxa. Taxa no longer referenced
+     * may be counted until they are collected.
+     *
+     * @return number of interned taxa
+     */
+    public static long cacheSize() {
+        return TAXON_CACHE.size();
+    }
+
     @Override
     public String toString() {
         return getName();
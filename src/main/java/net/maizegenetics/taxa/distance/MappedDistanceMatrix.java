@@ -0,0 +1,142 @@
+/*
+ *  MappedDistanceMatrix
+ */
+package net.maizegenetics.taxa.distance;
+
+import net.maizegenetics.taxa.TaxaList;
+import net.maizegenetics.util.GeneralAnnotation;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Distance matrix backed by a memory mapped TASSEL binary matrix file (see
+ * WriteDistanceMatrix.saveBinTasselMatrix()). Distances are read directly from
+ * the mapped file, so opening a matrix does not copy it onto the heap. The
+ * lower triangular matrix (including diagonal) is stored row by row as little
+ * endian floats. Since a single mapping is limited to 2GB, the rows are split
+ * into multiple mapped segments.
+ *
+ * @see ReadDistanceMatrix#readBinTasselMatrix(String)
+ */
+public class MappedDistanceMatrix extends DistanceMatrix {
+
+    static final byte[] MAGIC = "TASSELDM".getBytes(StandardCharsets.US_ASCII);
+    static final int VERSION = 1;
+
+    // max bytes per mapped segment. Segments always start at a row.
+    private static final long MAX_SEGMENT_BYTES = 1L << 30;
+
+    private final MappedByteBuffer[] myMappedSegments;
+    private final FloatBuffer[] mySegments;
+    private final long[] mySegmentFirstElement;
+    private final int[] myRowSegment;
+
+    MappedDistanceMatrix(FileChannel channel, long dataOffset, TaxaList taxa, GeneralAnnotation annotations) throws IOException {
+        this(channel, dataOffset, taxa, annotations, FileChannel.MapMode.READ_ONLY);
+    }
+
+    /**
+     * Maps matrix values with given mode. READ_WRITE is used by
+     * MappedDistanceMatrixBuilder to fill the matrix in place.
+     */
+    MappedDistanceMatrix(FileChannel channel, long dataOffset, TaxaList taxa, GeneralAnnotation annotations, FileChannel.MapMode mode) throws IOException {
+
+        super(taxa, annotations);
+
+        int numTaxa = taxa.numberOfTaxa();
+        long expectedSize = dataOffset + numberOfElements(numTaxa) * Float.BYTES;
+        if (channel.size() < expectedSize) {
+            throw new IllegalStateException("MappedDistanceMatrix: file is truncated. Expected size: " + expectedSize + " actual: " + channel.size());
+        }
+
+        myRowSegment = new int[numTaxa];
+        List<MappedByteBuffer> segments = new ArrayList<>();
+        List<Long> firstElements = new ArrayList<>();
+        int row = 0;
+        while (row < numTaxa) {
+            int startRow = row;
+            long startElement = rowStart(startRow);
+            while (row < numTaxa && (rowStart(row + 1) - startElement) * Float.BYTES <= MAX_SEGMENT_BYTES) {
+                myRowSegment[row] = segments.size();
+                row++;
+            }
+            if (row == startRow) {
+                throw new IllegalStateException("MappedDistanceMatrix: row too large to map: " + row);
+            }
+            long numBytes = (rowStart(row) - startElement) * Float.BYTES;
+            segments.add(channel.map(mode, dataOffset + startElement * Float.BYTES, numBytes));
+            firstElements.add(startElement);
+        }
+
+        myMappedSegments = segments.toArray(new MappedByteBuffer[0]);
+        mySegments = new FloatBuffer[myMappedSegments.length];
+        for (int i = 0; i < mySegments.length; i++) {
+            mySegments[i] = myMappedSegments[i].order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+        }
+        mySegmentFirstElement = new long[firstElements.size()];
+        for (int i = 0; i < mySegmentFirstElement.length; i++) {
+            mySegmentFirstElement[i] = firstElements.get(i);
+        }
+
+    }
+
+    /**
+     * Index of the first element of row in the lower triangular storage.
+     */
+    static long rowStart(int row) {
+        return (long) row * (row + 1) / 2;
+    }
+
+    /**
+     * Number of stored elements (lower triangle including diagonal).
+     */
+    static long numberOfElements(int numTaxa) {
+        return rowStart(numTaxa);
+    }
+
+    /**
+     * Sets distances of row from firstColumn (inclusive) to firstColumn +
+     * length (exclusive) in the lower triangle. The matrix must have been
+     * mapped READ_WRITE.
+     */
+    void setDistances(int row, int firstColumn, float[] values, int offset, int length) {
+        if (firstColumn < 0 || length < 0 || firstColumn + length > row + 1) {
+            throw new IllegalArgumentException("MappedDistanceMatrix: setDistances: columns: " + firstColumn + " to " + (firstColumn + length) + " not in lower triangle of row: " + row);
+        }
+        int segment = myRowSegment[row];
+        FloatBuffer buffer = mySegments[segment];
+        int index = (int) (rowStart(row) + firstColumn - mySegmentFirstElement[segment]);
+        for (int i = 0; i < length; i++) {
+            buffer.put(index + i, values[offset + i]);
+        }
+    }
+
+    /**
+     * Writes changes to the mapped file to storage.
+     */
+    void force() {
+        for (MappedByteBuffer segment : myMappedSegments) {
+            segment.force();
+        }
+    }
+
+    @Override
+    public float getDistance(final int row, final int col) {
+        int r = row;
+        int c = col;
+        if (c > r) {
+            r = col;
+            c = row;
+        }
+        int segment = myRowSegment[r];
+        return mySegments[segment].get((int) (rowStart(r) + c - mySegmentFirstElement[segment]));
+    }
+
+}
@@ -0,0 +1,178 @@
+/*
+ *  MappedDistanceMatrixBuilder
+ */
+package net.maizegenetics.taxa.distance;
+
+import net.maizegenetics.taxa.TaxaList;
+import net.maizegenetics.util.GeneralAnnotation;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Builds a distance matrix directly in a memory mapped TASSEL binary matrix
+ * file (see WriteDistanceMatrix.saveBinTasselMatrix()), so the matrix is
+ * never held on the heap. The header (taxa and annotations) is written when
+ * the builder is created, and values are written in place as they are set.
+ * If the file already exists with the same header and size, it is opened
+ * without clearing, so values written by an earlier run are kept. Callers
+ * track which values are complete.
+ *
+ * @see MappedDistanceMatrix
+ */
+public class MappedDistanceMatrixBuilder {
+
+    private static final Logger myLogger = LogManager.getLogger(MappedDistanceMatrixBuilder.class);
+
+    private final String myFilename;
+    private final MappedDistanceMatrix myMatrix;
+    private final boolean myIsExisting;
+    private boolean myIsBuilt = false;
+
+    private MappedDistanceMatrixBuilder(String filename, TaxaList taxa, GeneralAnnotation annotations) {
+
+        myFilename = filename;
+        Path path = Paths.get(filename);
+        byte[] header = WriteDistanceMatrix.binTasselHeader(taxa, annotations);
+        long size = header.length + MappedDistanceMatrix.numberOfElements(taxa.numberOfTaxa()) * Float.BYTES;
+
+        try {
+
+            myIsExisting = isExisting(path, header, size);
+
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+
+                if (!myIsExisting) {
+                    channel.truncate(0);
+                    ByteBuffer buffer = ByteBuffer.wrap(header);
+                    long position = 0;
+                    while (buffer.hasRemaining()) {
+                        position += channel.write(buffer, position);
+                    }
+                    // extends file to full size. Values not yet set are zero.
+                    channel.write(ByteBuffer.wrap(new byte[1]), size - 1);
+                }
+
+                myMatrix = new MappedDistanceMatrix(channel, header.length, taxa, annotations, FileChannel.MapMode.READ_WRITE);
+
+            }
+
+        } catch (IOException e) {
+            myLogger.debug(e.getMessage(), e);
+            throw new IllegalStateException("MappedDistanceMatrixBuilder: problem opening: " + filename + ".  " + e.getMessage());
+        }
+
+        if (myIsExisting) {
+            myLogger.info("MappedDistanceMatrixBuilder: reusing existing file: " + filename);
+        }
+
+    }
+
+    /**
+     * Returns builder for matrix of given taxa and annotations stored in
+     * filename.
+     *
+     * @param filename TASSEL binary matrix filename
+     * @param taxa taxa
+     * @param annotations annotations
+     *
+     * @return builder
+     */
+    public static MappedDistanceMatrixBuilder getInstance(String filename, TaxaList taxa, GeneralAnnotation annotations) {
+        if ((filename == null) || (filename.isEmpty())) {
+            throw new IllegalArgumentException("MappedDistanceMatrixBuilder: getInstance: No file specified.");
+        }
+        return new MappedDistanceMatrixBuilder(filename, taxa, annotations);
+    }
+
+    /**
+     * Whether the file existed with the same taxa and annotations, in which
+     * case previously written values were kept.
+     */
+    public boolean isExisting() {
+        return myIsExisting;
+    }
+
+    public String filename() {
+        return myFilename;
+    }
+
+    public void set(int x, int y, float value) {
+        checkNotBuilt();
+        if (x > y) {
+            myMatrix.setDistances(x, y, new float[]{value}, 0, 1);
+        } else {
+            myMatrix.setDistances(y, x, new float[]{value}, 0, 1);
+        }
+    }
+
+    /**
+     * Sets distances of row to columns firstColumn (inclusive) through
+     * firstColumn + length (exclusive). Columns must not be greater than row.
+     * Different rows can be set concurrently.
+     */
+    public void setRow(int row, int firstColumn, float[] values, int offset, int length) {
+        checkNotBuilt();
+        myMatrix.setDistances(row, firstColumn, values, offset, length);
+    }
+
+    /**
+     * Writes values set so far to storage. When this returns, those values
+     * survive the process ending.
+     */
+    public void force() {
+        myMatrix.force();
+    }
+
+    /**
+     * Writes values to storage and returns the matrix backed by the file.
+     * Values can't be set after this.
+     *
+     * @return distance matrix
+     */
+    public DistanceMatrix build() {
+        checkNotBuilt();
+        myMatrix.force();
+        myIsBuilt = true;
+        return myMatrix;
+    }
+
+    private void checkNotBuilt() {
+        if (myIsBuilt) {
+            throw new IllegalStateException("MappedDistanceMatrixBuilder: matrix already built: " + myFilename);
+        }
+    }
+
+    /**
+     * Whether file exists with same header and size.
+     */
+    private static boolean isExisting(Path path, byte[] header, long size) throws IOException {
+
+        if (!Files.isRegularFile(path) || Files.size(path) != size) {
+            return false;
+        }
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer existing = ByteBuffer.allocate(header.length);
+            long position = 0;
+            while (existing.hasRemaining()) {
+                int numRead = channel.read(existing, position);
+                if (numRead < 0) {
+                    return false;
+                }
+                position += numRead;
+            }
+            return Arrays.equals(existing.array(), header);
+        }
+
+    }
+
+}
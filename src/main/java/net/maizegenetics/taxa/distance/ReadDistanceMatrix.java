@@ -6,6 +6,7 @@ package net.maizegenetics.taxa.distance;
 import net.maizegenetics.taxa.TaxaList;
 import net.maizegenetics.taxa.TaxaListBuilder;
 import net.maizegenetics.taxa.Taxon;
+import net.maizegenetics.util.FastNumberParser;
 import net.maizegenetics.util.GeneralAnnotationStorage;
 import net.maizegenetics.util.Utils;
 import org.apache.logging.log4j.LogManager;
@@ -17,7 +18,16 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.util.regex.Pattern;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * @author Terry Casstevens
@@ -26,17 +36,25 @@ public class ReadDistanceMatrix {
 
     private static final Logger myLogger = LogManager.getLogger(ReadDistanceMatrix.class);
 
-    private static final Pattern WHITESPACE_PATTERN = Pattern.compile("\\s+");
-
     private ReadDistanceMatrix() {
     }
 
+    /**
+     * Reads tab (or whitespace) delimited square matrix. Blocks of lines are
+     * parsed in parallel while the file is being read.
+     *
+     * @param filename filename (may be gzip / BGZF compressed)
+     *
+     * @return distance matrix
+     */
     public static DistanceMatrix readDistanceMatrix(String filename) {
 
         String[] grmFilenames = DistanceMatrixUtils.getGRMFilenames(filename);
         String grmNBinFilename = grmFilenames[2];
 
-        try (BufferedReader reader = Utils.getBufferedReader(filename)) {
+        try (InputStream input = Utils.getInputStream(filename)) {
+
+            LineChunkReader reader = new LineChunkReader(input);
 
             GeneralAnnotationStorage.Builder annotations = GeneralAnnotationStorage.getBuilder();
             boolean notFinished = true;
@@ -67,46 +85,265 @@ public class ReadDistanceMatrix {
             DistanceMatrixBuilder builder = DistanceMatrixBuilder.getInstance(numTaxa);
             builder.annotation(annotations.build());
 
-            String current = reader.readLine();
-            int index = 0;
-            while (current != null) {
+            String[] taxaNames = new String[numTaxa];
+            int numLines = parseMatrixLines(reader, numTaxa, builder, taxaNames);
+
+            if (numLines != numTaxa) {
+                throw new IllegalArgumentException("ReadDistanceMatrix: There are too few lines in this file.  Expected: " + (numTaxa + 1) + " counting the first line (number of taxa)");
+            }
+
+            for (String name : taxaNames) {
+                builder.addTaxon(Taxon.instance(name));
+            }
+
+            if (new File(grmNBinFilename).exists()) {
+                readBinMultiBlupCounts(grmNBinFilename, builder);
+            }
 
-                if (index >= numTaxa) {
+            return builder.build();
+
+        } catch (IOException ioex) {
+            myLogger.debug(ioex.getMessage(), ioex);
+            throw new IllegalStateException("ReadDistanceMatrix: Problem reading file: " + filename);
+        }
+
+    }
+
+    // number of bytes read before handing lines to a parsing task
+    private static final int CHUNK_SIZE = 1 << 23;
+
+    private static final int NUM_THREADS = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Reads remaining lines in chunks and parses each chunk on a thread pool.
+     * Only values on or below the diagonal are kept, which is the value the
+     * sequential reader ended up with.
+     *
+     * @return number of lines
+     */
+    private static int parseMatrixLines(LineChunkReader reader, int numTaxa, DistanceMatrixBuilder builder, String[] taxaNames) throws IOException {
+
+        ExecutorService pool = Executors.newFixedThreadPool(NUM_THREADS);
+        try {
+
+            ArrayDeque<Future<?>> pending = new ArrayDeque<>();
+            int numLines = 0;
+            byte[] chunk = reader.nextChunk();
+            while (chunk != null) {
+
+                int firstLine = numLines;
+                numLines += numberOfLines(chunk);
+                if (numLines > numTaxa) {
                     throw new IllegalArgumentException("ReadDistancMatrix: There are too many lines in this file.  Expected: " + (numTaxa + 1) + " counting the first line (number of taxa)");
                 }
 
-                String[] tokens = WHITESPACE_PATTERN.split(current);
-                if (tokens.length != numTaxa + 1) {
-                    throw new IllegalStateException("ReadDistanceMatrix: Incorrect number of values on line number: " + (index + 2) + " expected: " + (numTaxa + 1) + " counting taxon name. actual: " + tokens.length);
+                // limits number of chunks held in memory
+                if (pending.size() >= NUM_THREADS * 2) {
+                    waitFor(pending.poll());
                 }
-                builder.addTaxon(Taxon.instance(tokens[0]));
+                byte[] current = chunk;
+                pending.add(pool.submit(() -> parseLines(current, firstLine, numTaxa, builder, taxaNames)));
+
+                chunk = reader.nextChunk();
 
-                for (int i = 0; i < numTaxa; i++) {
+            }
+
+            while (!pending.isEmpty()) {
+                waitFor(pending.poll());
+            }
+
+            return numLines;
+
+        } finally {
+            pool.shutdownNow();
+        }
+
+    }
+
+    private static void waitFor(Future<?> future) {
+        try {
+            future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("ReadDistanceMatrix: interrupted");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            myLogger.debug(e.getMessage(), e);
+            throw new IllegalStateException("ReadDistanceMatrix: " + e.getCause().getMessage());
+        }
+    }
+
+    private static int numberOfLines(byte[] chunk) {
+        int result = 0;
+        for (byte current : chunk) {
+            if (current == '\n') {
+                result++;
+            }
+        }
+        if (chunk.length != 0 && chunk[chunk.length - 1] != '\n') {
+            result++;
+        }
+        return result;
+    }
+
+    private static boolean isWhitespace(byte value) {
+        return value == ' ' || value == '\t' || value == '\r' || value == '\f' || value == 0x0B;
+    }
+
+    private static void parseLines(byte[] chunk, int firstLine, int numTaxa, DistanceMatrixBuilder builder, String[] taxaNames) {
+
+        int index = 0;
+        int row = firstLine;
+        while (index < chunk.length) {
+
+            int lineEnd = index;
+            while (lineEnd < chunk.length && chunk[lineEnd] != '\n') {
+                lineEnd++;
+            }
+
+            int numTokens = 0;
+            int pos = index;
+            while (true) {
+                while (pos < lineEnd && isWhitespace(chunk[pos])) {
+                    pos++;
+                }
+                if (pos == lineEnd) {
+                    break;
+                }
+                int tokenStart = pos;
+                while (pos < lineEnd && !isWhitespace(chunk[pos])) {
+                    pos++;
+                }
+                if (numTokens == 0) {
+                    taxaNames[row] = new String(chunk, tokenStart, pos - tokenStart, StandardCharsets.UTF_8);
+                } else if (numTokens <= numTaxa) {
+                    int col = numTokens - 1;
+                    double value;
                     try {
-                        builder.set(index, i, Double.parseDouble(tokens[i + 1]));
+                        value = FastNumberParser.parseDouble(chunk, tokenStart, pos);
                     } catch (NumberFormatException nfex) {
                         myLogger.debug(nfex.getMessage(), nfex);
-                        throw new IllegalArgumentException("ReadDistanceMatrix: Incorrectly formatted number: " + tokens[i + 1] + " on line number: " + (index + 2));
+                        throw new IllegalArgumentException("ReadDistanceMatrix: Incorrectly formatted number: " + new String(chunk, tokenStart, pos - tokenStart, StandardCharsets.UTF_8) + " on line number: " + (row + 2));
+                    }
+                    if (col <= row) {
+                        builder.set(row, col, value);
                     }
                 }
+                numTokens++;
+            }
 
-                current = reader.readLine();
-                index++;
+            if (numTokens != numTaxa + 1) {
+                throw new IllegalStateException("ReadDistanceMatrix: Incorrect number of values on line number: " + (row + 2) + " expected: " + (numTaxa + 1) + " counting taxon name. actual: " + numTokens);
             }
 
-            if (index != numTaxa) {
-                throw new IllegalArgumentException("ReadDistanceMatrix: There are too few lines in this file.  Expected: " + (numTaxa + 1) + " counting the first line (number of taxa)");
+            index = lineEnd + 1;
+            row++;
+
+        }
+
+    }
+
+    /**
+     * Reads stream in large chunks that end on line boundaries.
+     */
+    private static class LineChunkReader {
+
+        private final InputStream myInput;
+        private byte[] myBuffer = new byte[CHUNK_SIZE];
+        private int myStart = 0;
+        private int myEnd = 0;
+        private boolean myEndOfStream = false;
+
+        LineChunkReader(InputStream input) {
+            myInput = input;
+        }
+
+        /**
+         * Moves unconsumed bytes to the front of the buffer and fills the
+         * rest from the stream.
+         */
+        private void fill() throws IOException {
+            if (myStart > 0) {
+                System.arraycopy(myBuffer, myStart, myBuffer, 0, myEnd - myStart);
+                myEnd -= myStart;
+                myStart = 0;
+            }
+            if (myEnd == myBuffer.length) {
+                // line longer than buffer
+                myBuffer = Arrays.copyOf(myBuffer, myBuffer.length * 2);
+            }
+            while (!myEndOfStream && myEnd < myBuffer.length) {
+                int numRead = myInput.read(myBuffer, myEnd, myBuffer.length - myEnd);
+                if (numRead < 0) {
+                    myEndOfStream = true;
+                } else {
+                    myEnd += numRead;
+                }
             }
+        }
 
-            if (new File(grmNBinFilename).exists()) {
-                readBinMultiBlupCounts(grmNBinFilename, builder);
+        private int indexOfNewline(int from) {
+            for (int i = from; i < myEnd; i++) {
+                if (myBuffer[i] == '\n') {
+                    return i;
+                }
             }
+            return -1;
+        }
 
-            return builder.build();
+        /**
+         * Returns next line without line terminator, or null at end of stream.
+         */
+        String readLine() throws IOException {
+            int newline = indexOfNewline(myStart);
+            while (newline < 0 && !myEndOfStream) {
+                int searched = myEnd - myStart;
+                fill();
+                newline = indexOfNewline(myStart + searched);
+            }
+            if (newline < 0) {
+                if (myStart == myEnd) {
+                    return null;
+                }
+                newline = myEnd;
+            }
+            int lineEnd = newline;
+            if (lineEnd > myStart && myBuffer[lineEnd - 1] == '\r') {
+                lineEnd--;
+            }
+            String result = new String(myBuffer, myStart, lineEnd - myStart, StandardCharsets.UTF_8);
+            myStart = Math.min(newline + 1, myEnd);
+            return result;
+        }
 
-        } catch (IOException ioex) {
-            myLogger.debug(ioex.getMessage(), ioex);
-            throw new IllegalStateException("ReadDistanceMatrix: Problem reading file: " + filename);
+        /**
+         * Returns copy of the next complete lines, or null at end of stream.
+         */
+        byte[] nextChunk() throws IOException {
+            fill();
+            if (myStart == myEnd) {
+                return null;
+            }
+            int chunkEnd = myEnd;
+            if (!myEndOfStream) {
+                int lastNewline = myEnd - 1;
+                while (lastNewline >= myStart && myBuffer[lastNewline] != '\n') {
+                    lastNewline--;
+                }
+                while (lastNewline < myStart && !myEndOfStream) {
+                    fill();
+                    lastNewline = myEnd - 1;
+                    while (lastNewline >= myStart && myBuffer[lastNewline] != '\n') {
+                        lastNewline--;
+                    }
+                }
+                chunkEnd = lastNewline < myStart ? myEnd : lastNewline + 1;
+            }
+            byte[] result = Arrays.copyOfRange(myBuffer, myStart, chunkEnd);
+            myStart = chunkEnd;
+            return result;
         }
 
     }
@@ -148,6 +385,85 @@ public class ReadDistanceMatrix {
 
     }
 
+    /**
+     * Opens matrix written by WriteDistanceMatrix.saveBinTasselMatrix(). The
+     * matrix values are memory mapped, not copied onto the heap.
+     *
+     * @param filename filename
+     *
+     * @return distance matrix
+     */
+    public static DistanceMatrix readBinTasselMatrix(String filename) {
+
+        try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+
+            int fixedSize = MappedDistanceMatrix.MAGIC.length + Integer.BYTES + Integer.BYTES + Long.BYTES;
+            ByteBuffer fixed = readFully(channel, 0, fixedSize);
+            byte[] magic = new byte[MappedDistanceMatrix.MAGIC.length];
+            fixed.get(magic);
+            if (!Arrays.equals(magic, MappedDistanceMatrix.MAGIC)) {
+                throw new IllegalArgumentException("ReadDistanceMatrix: readBinTasselMatrix: not a TASSEL binary matrix: " + filename);
+            }
+            int version = fixed.getInt();
+            if (version != MappedDistanceMatrix.VERSION) {
+                throw new IllegalArgumentException("ReadDistanceMatrix: readBinTasselMatrix: unsupported version: " + version + " in: " + filename);
+            }
+            int numTaxa = fixed.getInt();
+            long dataOffset = fixed.getLong();
+
+            ByteBuffer header = readFully(channel, fixedSize, (int) (dataOffset - fixedSize));
+            GeneralAnnotationStorage.Builder annotations = GeneralAnnotationStorage.getBuilder();
+            int numAnnotations = header.getInt();
+            for (int i = 0; i < numAnnotations; i++) {
+                annotations.addAnnotation(readString(header), readString(header));
+            }
+
+            TaxaListBuilder taxa = new TaxaListBuilder();
+            for (int t = 0; t < numTaxa; t++) {
+                taxa.add(Taxon.instance(readString(header)));
+            }
+
+            return new MappedDistanceMatrix(channel, dataOffset, taxa.build(), annotations.build());
+
+        } catch (IOException e) {
+            myLogger.debug(e.getMessage(), e);
+            throw new IllegalStateException("ReadDistanceMatrix: readBinTasselMatrix: Problem reading: " + filename + ".  " + e.getMessage());
+        }
+
+    }
+
+    /**
+     * Returns whether file starts with the TASSEL binary matrix signature.
+     */
+    public static boolean isBinTasselMatrix(String filename) {
+        try (InputStream input = Utils.getInputStream(filename)) {
+            byte[] magic = new byte[MappedDistanceMatrix.MAGIC.length];
+            return input.read(magic) == magic.length && Arrays.equals(magic, MappedDistanceMatrix.MAGIC);
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    private static ByteBuffer readFully(FileChannel channel, long position, int numBytes) throws IOException {
+        ByteBuffer result = ByteBuffer.allocate(numBytes).order(ByteOrder.LITTLE_ENDIAN);
+        long current = position;
+        while (result.hasRemaining()) {
+            int numRead = channel.read(result, current);
+            if (numRead < 0) {
+                throw new IOException("unexpected end of file");
+            }
+            current += numRead;
+        }
+        result.flip();
+        return result;
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
     public static TaxaList readBinMultiBlupID(String filename) {
 
         TaxaListBuilder builder = new TaxaListBuilder();
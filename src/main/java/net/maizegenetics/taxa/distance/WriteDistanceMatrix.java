@@ -2,16 +2,28 @@ package net.maizegenetics.taxa.distance;
 
 import net.maizegenetics.taxa.TaxaList;
 import net.maizegenetics.taxa.Taxon;
+import net.maizegenetics.util.FastNumberFormatter;
 import net.maizegenetics.util.GeneralAnnotation;
+import net.maizegenetics.util.OrderedByteChannel;
 import net.maizegenetics.util.Utils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import java.io.BufferedOutputStream;
 import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.function.IntFunction;
+import java.util.function.IntUnaryOperator;
 
 /**
  * @author Terry Casstevens
@@ -25,38 +37,39 @@ public class WriteDistanceMatrix {
         //utility
     }
 
+    /**
+     * Writes matrix as tab delimited text. Rows are formatted in parallel.
+     * If saveFile ends with .gz, output is BGZF compressed.
+     *
+     * @param matrix matrix
+     * @param saveFile output filename
+     */
     public static void saveDelimitedDistanceMatrix(DistanceMatrix matrix, String saveFile) {
 
         if ((saveFile == null) || (saveFile.isEmpty())) {
             throw new IllegalArgumentException("WriteDistanceMatrix: saveDelimitedDistanceMatrix: No file specified.");
         }
 
-        try (BufferedWriter bw = Utils.getBufferedWriter(saveFile)) {
+        try (OrderedByteChannel channel = new OrderedByteChannel(saveFile)) {
 
+            StringBuilder builder = new StringBuilder();
             GeneralAnnotation annotations = matrix.annotations();
             if (annotations != null) {
                 for (Map.Entry<String, String> current : annotations.getAllAnnotationEntries()) {
-                    bw.write("##");
-                    bw.write(current.getKey());
-                    bw.write("=");
-                    bw.write(current.getValue());
-                    bw.write("\n");
+                    builder.append("##");
+                    builder.append(current.getKey());
+                    builder.append("=");
+                    builder.append(current.getValue());
+                    builder.append("\n");
                 }
             }
 
-            bw.write(String.valueOf(matrix.getRowCount()));
-            bw.write("\n");
+            int numTaxa = matrix.numberOfTaxa();
+            builder.append(numTaxa);
+            builder.append("\n");
+            channel.write(builder.toString().getBytes(StandardCharsets.UTF_8));
 
-            for (long r = 0, n = matrix.getRowCount(); r < n; r++) {
-                Object[] theRow = matrix.getRow(r);
-                for (int i = 0; i < theRow.length; i++) {
-                    if (i != 0) {
-                        bw.write("\t");
-                    }
-                    bw.write(theRow[i].toString());
-                }
-                bw.write("\n");
-            }
+            writeRows(channel, matrix, 0, numTaxa, row -> matrix.getTaxon(row).toString(), row -> numTaxa);
 
         } catch (Exception e) {
             myLogger.debug(e.getMessage(), e);
@@ -84,19 +97,10 @@ public class WriteDistanceMatrix {
 
         saveMultiBlupIDs(taxaFile, matrix.getTaxaList());
 
-        try (BufferedWriter bw = Utils.getBufferedWriter(matrixFile)) {
-
-            for (long r = 0, n = matrix.getRowCount(); r < n; r++) {
-                Object[] theRow = matrix.getRow(r);
+        try (OrderedByteChannel channel = new OrderedByteChannel(matrixFile)) {
 
-                for (int i = 1; i < theRow.length; i++) {
-                    if (i != 1) {
-                        bw.write("\t");
-                    }
-                    bw.write(theRow[i].toString());
-                }
-                bw.write("\n");
-            }
+            int numTaxa = matrix.numberOfTaxa();
+            writeRows(channel, matrix, 0, numTaxa, null, row -> numTaxa);
 
         } catch (Exception e) {
             myLogger.debug(e.getMessage(), e);
@@ -141,6 +145,172 @@ public class WriteDistanceMatrix {
 
     }
 
+    /**
+     * Writes matrix in the TASSEL binary format. The header holds the taxa
+     * names and annotations, followed by the lower triangular matrix (including
+     * diagonal) as little endian floats, row by row. Blocks of rows are
+     * formatted and written in parallel directly to their file offsets. The
+     * result can be opened without copying with
+     * ReadDistanceMatrix.readBinTasselMatrix().
+     *
+     * @param matrix matrix
+     * @param filename output filename
+     */
+    public static void saveBinTasselMatrix(DistanceMatrix matrix, String filename) {
+
+        if ((filename == null) || (filename.isEmpty())) {
+            throw new IllegalArgumentException("WriteDistanceMatrix: saveBinTasselMatrix: No file specified.");
+        }
+
+        int numTaxa = matrix.numberOfTaxa();
+        byte[] header = binTasselHeader(matrix.getTaxaList(), matrix.annotations());
+        long dataOffset = header.length;
+
+        try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+
+            writeFully(channel, ByteBuffer.wrap(header), 0);
+
+            // each block is start row (inclusive) and end row (exclusive)
+            List<int[]> blocks = new ArrayList<>();
+            int startRow = 0;
+            while (startRow < numTaxa) {
+                int endRow = startRow + 1;
+                while (endRow < numTaxa && MappedDistanceMatrix.rowStart(endRow + 1) - MappedDistanceMatrix.rowStart(startRow) <= BIN_TASSEL_BLOCK_ELEMENTS) {
+                    endRow++;
+                }
+                blocks.add(new int[]{startRow, endRow});
+                startRow = endRow;
+            }
+
+            blocks.parallelStream().forEach(block -> {
+                long firstElement = MappedDistanceMatrix.rowStart(block[0]);
+                int numBytes = (int) ((MappedDistanceMatrix.rowStart(block[1]) - firstElement) * Float.BYTES);
+                ByteBuffer buffer = ByteBuffer.allocate(numBytes).order(ByteOrder.LITTLE_ENDIAN);
+                for (int r = block[0]; r < block[1]; r++) {
+                    for (int c = 0; c <= r; c++) {
+                        buffer.putFloat(matrix.getDistance(r, c));
+                    }
+                }
+                buffer.flip();
+                try {
+                    writeFully(channel, buffer, dataOffset + firstElement * Float.BYTES);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+
+        } catch (Exception e) {
+            myLogger.debug(e.getMessage(), e);
+            throw new IllegalStateException("WriteDistanceMatrix: saveBinTasselMatrix: problem writing file: " + filename + ".  " + e.getMessage());
+        }
+
+        myLogger.info("saveBinTasselMatrix: wrote file: " + filename);
+
+    }
+
+    // approximate number of matrix values formatted by each parallel text task
+    private static final int TEXT_BLOCK_VALUES = 1 << 18;
+
+    /**
+     * Submits rows from startRow (inclusive) to endRow (exclusive) to be
+     * formatted as tab delimited text in blocks of rows. Each line has the
+     * row label (if rowLabel not null) followed by distances to the first
+     * numColumns(row) columns.
+     */
+    private static void writeRows(OrderedByteChannel channel, DistanceMatrix matrix, int startRow, int endRow, IntFunction<String> rowLabel, IntUnaryOperator numColumns) throws IOException {
+        int rowsPerBlock = Math.max(1, TEXT_BLOCK_VALUES / Math.max(1, matrix.numberOfTaxa()));
+        for (int row = startRow; row < endRow; row += rowsPerBlock) {
+            int blockStart = row;
+            int blockEnd = Math.min(endRow, row + rowsPerBlock);
+            channel.submit(() -> formatRows(matrix, blockStart, blockEnd, rowLabel, numColumns));
+        }
+    }
+
+    private static ByteBuffer formatRows(DistanceMatrix matrix, int startRow, int endRow, IntFunction<String> rowLabel, IntUnaryOperator numColumns) {
+
+        byte[][] labels = new byte[endRow - startRow][];
+        int size = 0;
+        for (int r = startRow; r < endRow; r++) {
+            if (rowLabel != null) {
+                labels[r - startRow] = rowLabel.apply(r).getBytes(StandardCharsets.UTF_8);
+                size += labels[r - startRow].length;
+            }
+            size += numColumns.applyAsInt(r) * (FastNumberFormatter.MAX_FLOAT_LENGTH + 1) + 1;
+        }
+
+        byte[] result = new byte[size];
+        int index = 0;
+        for (int r = startRow; r < endRow; r++) {
+            byte[] label = labels[r - startRow];
+            if (label != null) {
+                System.arraycopy(label, 0, result, index, label.length);
+                index += label.length;
+            }
+            for (int c = 0, n = numColumns.applyAsInt(r); c < n; c++) {
+                if (label != null || c != 0) {
+                    result[index++] = '\t';
+                }
+                index = FastNumberFormatter.formatFloat(matrix.getDistance(r, c), result, index);
+            }
+            result[index++] = '\n';
+        }
+
+        return ByteBuffer.wrap(result, 0, index);
+
+    }
+
+    // approximate number of matrix values formatted per parallel write
+    private static final long BIN_TASSEL_BLOCK_ELEMENTS = 1L << 22;
+
+    /**
+     * Returns header of TASSEL binary matrix with given taxa and annotations.
+     * Matrix values start at the returned length.
+     */
+    static byte[] binTasselHeader(TaxaList taxa, GeneralAnnotation annotations) {
+
+        List<byte[]> strings = new ArrayList<>();
+        Map.Entry<String, String>[] entries = annotations == null ? null : annotations.getAllAnnotationEntries();
+        int numAnnotations = entries == null ? 0 : entries.length;
+        for (int i = 0; i < numAnnotations; i++) {
+            strings.add(entries[i].getKey().getBytes(StandardCharsets.UTF_8));
+            strings.add(entries[i].getValue().getBytes(StandardCharsets.UTF_8));
+        }
+        for (Taxon taxon : taxa) {
+            strings.add(taxon.getName().getBytes(StandardCharsets.UTF_8));
+        }
+
+        // magic, version, number of taxa, data offset, number of annotations
+        long size = MappedDistanceMatrix.MAGIC.length + Integer.BYTES + Integer.BYTES + Long.BYTES + Integer.BYTES;
+        for (byte[] current : strings) {
+            size += Integer.BYTES + current.length;
+        }
+        // data starts 8 byte aligned
+        long dataOffset = (size + 7) & ~7L;
+        if (dataOffset > Integer.MAX_VALUE) {
+            throw new IllegalStateException("WriteDistanceMatrix: saveBinTasselMatrix: header too large.");
+        }
+
+        ByteBuffer result = ByteBuffer.allocate((int) dataOffset).order(ByteOrder.LITTLE_ENDIAN);
+        result.put(MappedDistanceMatrix.MAGIC);
+        result.putInt(MappedDistanceMatrix.VERSION);
+        result.putInt(taxa.numberOfTaxa());
+        result.putLong(dataOffset);
+        result.putInt(numAnnotations);
+        for (byte[] current : strings) {
+            result.putInt(current.length);
+            result.put(current);
+        }
+        return result.array();
+
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        long current = position;
+        while (buffer.hasRemaining()) {
+            current += channel.write(buffer, current);
+        }
+    }
+
     public static void saveMultiBlupIDs(String filename, TaxaList taxa) {
 
         try (BufferedWriter writer = Utils.getBufferedWriter(filename)) {
@@ -215,26 +385,21 @@ public class WriteDistanceMatrix {
 
         int numTaxa = matrix.numberOfTaxa();
 
-        try (BufferedWriter writer = Utils.getBufferedWriter(disFile)) {
+        try (OrderedByteChannel channel = new OrderedByteChannel(disFile)) {
 
-            writer.write("@DARwin 5.0 - DIS\n");
-            writer.write(String.valueOf(numTaxa));
-            writer.write("\n");
+            StringBuilder builder = new StringBuilder();
+            builder.append("@DARwin 5.0 - DIS\n");
+            builder.append(numTaxa);
+            builder.append("\n");
 
             for (int t = 0; t < numTaxa - 1; t++) {
-                writer.write("\t");
-                writer.write(String.valueOf(t + 1));
+                builder.append("\t");
+                builder.append(t + 1);
             }
-            writer.write("\n");
+            builder.append("\n");
+            channel.write(builder.toString().getBytes(StandardCharsets.UTF_8));
 
-            for (int t = 1; t < numTaxa; t++) {
-                writer.write(String.valueOf(t + 1));
-                for (int t2 = 0; t2 < t; t2++) {
-                    writer.write("\t");
-                    writer.write(String.valueOf(matrix.getDistance(t, t2)));
-                }
-                writer.write("\n");
-            }
+            writeRows(channel, matrix, 1, numTaxa, row -> String.valueOf(row + 1), row -> row);
 
         } catch (Exception e) {
             myLogger.debug(e.getMessage(), e);
@@ -0,0 +1,214 @@
+package net.maizegenetics.util;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Formats floats directly into byte arrays using the shortest decimal that
+ * parses back to the same float. The layout follows {@link Float#toString(float)}
+ * (i.e. 0.25, 1234.0, 1.5E-4), so output can be read by anything that reads
+ * TASSEL text files. Values outside roughly 1e-12 to 1e13, NaN and Infinity
+ * fall back to {@link Float#toString(float)}.
+ */
+public final class FastNumberFormatter {
+
+    /**
+     * Maximum number of bytes written by formatFloat()
+     */
+    public static final int MAX_FLOAT_LENGTH = 16;
+
+    // powers of ten exactly representable in a double
+    private static final double[] DOUBLE_POW10 = {1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+
+    private static final long[] LONG_POW10 = {1L, 10L, 100L, 1000L, 10000L, 100000L, 1000000L, 10000000L,
+            100000000L, 1000000000L, 10000000000L, 100000000000L, 1000000000000L};
+
+    private static final double LOG10_2 = Math.log10(2.0);
+
+    // nine significant digits always identify a float. Plus one in case
+    // decimal exponent is off by one.
+    private static final int MAX_SCALE_RANGE = 10;
+
+    private static final float MIN_FAST_VALUE = 1e-12f;
+    private static final float MAX_FAST_VALUE = 1e13f;
+
+    // range where Float.toString() doesn't use computerized scientific notation
+    private static final float MIN_PLAIN_VALUE = 1e-3f;
+    private static final float MAX_PLAIN_VALUE = 1e7f;
+
+    private FastNumberFormatter() {
+        // utility
+    }
+
+    /**
+     * Writes value to dest starting at offset. Dest must have at least
+     * MAX_FLOAT_LENGTH bytes available.
+     *
+     * @return offset after the last byte written
+     */
+    public static int formatFloat(float value, byte[] dest, int offset) {
+
+        float abs = Math.abs(value);
+        if (abs == 0.0f) {
+            int index = offset;
+            if (Float.floatToRawIntBits(value) != 0) {
+                dest[index++] = '-';
+            }
+            dest[index++] = '0';
+            dest[index++] = '.';
+            dest[index++] = '0';
+            return index;
+        }
+
+        if (!(abs >= MIN_FAST_VALUE && abs < MAX_FAST_VALUE)) {
+            return fallback(value, dest, offset);
+        }
+
+        // Smallest scale (number of decimal places) with an integer that
+        // rounds back to abs gives the fewest significant digits. If a scale
+        // works, so does every larger scale. Candidates are checked with a
+        // single double operation on exact operands, which rounded to float
+        // equals the correctly rounded float of the decimal value. Most
+        // floats need eight or nine significant digits, so the search starts
+        // there.
+        int log10 = (int) Math.floor(Math.getExponent(abs) * LOG10_2);
+        if (log10 + 1 >= 0 ? abs >= DOUBLE_POW10[log10 + 1] : abs * DOUBLE_POW10[-log10 - 1] >= 1.0) {
+            log10++;
+        }
+        // scale giving one significant digit
+        int low = -log10 - 1;
+        int scale = low + 7;
+        long digits = digitsForScale(abs, scale);
+        if (digits >= 0) {
+            long fewer = digitsForScale(abs, scale - 1);
+            if (fewer >= 0) {
+                int high = scale - 1;
+                digits = fewer;
+                while (low < high) {
+                    int middle = (low + high) >> 1;
+                    long current = digitsForScale(abs, middle);
+                    if (current < 0) {
+                        low = middle + 1;
+                    } else {
+                        high = middle;
+                        digits = current;
+                    }
+                }
+                scale = high;
+            }
+        } else {
+            int maxScale = low + MAX_SCALE_RANGE;
+            while (digits < 0) {
+                scale++;
+                if (scale > maxScale) {
+                    return fallback(value, dest, offset);
+                }
+                digits = digitsForScale(abs, scale);
+            }
+        }
+
+        int numDigits = 1;
+        while (numDigits < LONG_POW10.length && digits >= LONG_POW10[numDigits]) {
+            numDigits++;
+        }
+        // decimal exponent of the first digit
+        int exponent = numDigits - 1 - scale;
+
+        int index = offset;
+        if (value < 0.0f) {
+            dest[index++] = '-';
+        }
+
+        if (abs >= MIN_PLAIN_VALUE && abs < MAX_PLAIN_VALUE) {
+            if (exponent >= 0) {
+                int fractionDigits = numDigits - exponent - 1;
+                if (fractionDigits <= 0) {
+                    index = writeDigits(digits, numDigits, dest, index);
+                    for (int i = fractionDigits; i < 0; i++) {
+                        dest[index++] = '0';
+                    }
+                    dest[index++] = '.';
+                    dest[index++] = '0';
+                } else {
+                    index = writeDigits(digits / LONG_POW10[fractionDigits], exponent + 1, dest, index);
+                    dest[index++] = '.';
+                    index = writeDigits(digits % LONG_POW10[fractionDigits], fractionDigits, dest, index);
+                }
+            } else {
+                dest[index++] = '0';
+                dest[index++] = '.';
+                for (int i = -1; i > exponent; i--) {
+                    dest[index++] = '0';
+                }
+                index = writeDigits(digits, numDigits, dest, index);
+            }
+        } else {
+            index = writeDigits(digits / LONG_POW10[numDigits - 1], 1, dest, index);
+            dest[index++] = '.';
+            if (numDigits > 1) {
+                index = writeDigits(digits % LONG_POW10[numDigits - 1], numDigits - 1, dest, index);
+            } else {
+                dest[index++] = '0';
+            }
+            dest[index++] = 'E';
+            int absExponent = exponent;
+            if (exponent < 0) {
+                dest[index++] = '-';
+                absExponent = -exponent;
+            }
+            if (absExponent >= 10) {
+                dest[index++] = (byte) ('0' + absExponent / 10);
+            }
+            dest[index++] = (byte) ('0' + absExponent % 10);
+        }
+
+        return index;
+
+    }
+
+    /**
+     * Writes value zero padded to numDigits.
+     */
+    private static int writeDigits(long value, int numDigits, byte[] dest, int offset) {
+        long current = value;
+        for (int i = offset + numDigits - 1; i >= offset; i--) {
+            dest[i] = (byte) ('0' + (current % 10));
+            current /= 10;
+        }
+        return offset + numDigits;
+    }
+
+    /**
+     * Returns integer closest to abs * 10^scale that rounds back to abs, or -1
+     * if there is none.
+     */
+    private static long digitsForScale(float abs, int scale) {
+        double scaled = scale >= 0 ? (double) abs * DOUBLE_POW10[scale] : (double) abs / DOUBLE_POW10[-scale];
+        long lower = (long) scaled;
+        double fraction = scaled - lower;
+        long nearest = lower;
+        long other = lower + 1;
+        if (fraction > 0.5 || (fraction == 0.5 && (lower & 1) == 1)) {
+            nearest = lower + 1;
+            other = lower;
+        }
+        if (nearest != 0 && toFloat(nearest, scale) == abs) {
+            return nearest;
+        } else if (other != 0 && toFloat(other, scale) == abs) {
+            return other;
+        } else {
+            return -1;
+        }
+    }
+
+    private static float toFloat(long digits, int scale) {
+        return (float) (scale >= 0 ? digits / DOUBLE_POW10[scale] : digits * DOUBLE_POW10[-scale]);
+    }
+
+    private static int fallback(float value, byte[] dest, int offset) {
+        byte[] bytes = Float.toString(value).getBytes(StandardCharsets.ISO_8859_1);
+        System.arraycopy(bytes, 0, dest, offset, bytes.length);
+        return offset + bytes.length;
+    }
+
+}
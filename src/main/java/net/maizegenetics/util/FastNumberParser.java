@@ -0,0 +1,205 @@
+package net.maizegenetics.util;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Parses decimal numbers directly from byte ranges without creating
+ * intermediate Strings or using regular expressions. Simple decimal values
+ * (i.e. 12.345, -0.5, 1e-3) are converted with exact IEEE arithmetic. Anything
+ * else (long mantissas, large exponents, NaN, Infinity, hex floats) falls back
+ * to {@link Float#parseFloat(String)} / {@link Double#parseDouble(String)}, so
+ * results always match the JDK.
+ */
+public final class FastNumberParser {
+
+    // powers of ten exactly representable in a float
+    private static final float[] FLOAT_POW10 = {1e0f, 1e1f, 1e2f, 1e3f, 1e4f, 1e5f, 1e6f, 1e7f, 1e8f, 1e9f, 1e10f};
+
+    // powers of ten exactly representable in a double
+    private static final double[] DOUBLE_POW10 = {1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+
+    private static final long MAX_FLOAT_MANTISSA = 1L << 24;
+    private static final long MAX_DOUBLE_MANTISSA = 1L << 53;
+
+    // max decimal digits accumulated before falling back to JDK
+    private static final int MAX_DIGITS = 18;
+
+    private FastNumberParser() {
+        // utility
+    }
+
+    /**
+     * Parses float from bytes[start] (inclusive) to bytes[end] (exclusive).
+     *
+     * @throws NumberFormatException if value not a valid number
+     */
+    public static float parseFloat(byte[] bytes, int start, int end) {
+        double result = fastPath(bytes, start, end, true);
+        if (Double.isNaN(result)) {
+            return Float.parseFloat(new String(bytes, start, end - start, StandardCharsets.ISO_8859_1));
+        }
+        return (float) result;
+    }
+
+    /**
+     * Parses double from bytes[start] (inclusive) to bytes[end] (exclusive).
+     *
+     * @throws NumberFormatException if value not a valid number
+     */
+    public static double parseDouble(byte[] bytes, int start, int end) {
+        double result = fastPath(bytes, start, end, false);
+        if (Double.isNaN(result)) {
+            return Double.parseDouble(new String(bytes, start, end - start, StandardCharsets.ISO_8859_1));
+        }
+        return result;
+    }
+
+    /**
+     * Returns whether bytes[start] to bytes[end] (exclusive) equals any of the
+     * given tokens, ignoring ASCII case.
+     */
+    public static boolean matchesAnyIgnoreCase(byte[] bytes, int start, int end, byte[][] tokens) {
+        int length = end - start;
+        for (byte[] token : tokens) {
+            if (token.length != length) {
+                continue;
+            }
+            boolean match = true;
+            for (int i = 0; i < length; i++) {
+                if (toLowerCase(bytes[start + i]) != toLowerCase(token[i])) {
+                    match = false;
+                    break;
+                }
+            }
+            if (match) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Converts tokens to their ISO-8859-1 byte representation for use with
+     * {@link #matchesAnyIgnoreCase(byte[], int, int, byte[][])}.
+     */
+    public static byte[][] tokens(String... tokens) {
+        byte[][] result = new byte[tokens.length][];
+        for (int i = 0; i < tokens.length; i++) {
+            result[i] = tokens[i].getBytes(StandardCharsets.ISO_8859_1);
+        }
+        return result;
+    }
+
+    private static byte toLowerCase(byte value) {
+        return (value >= 'A' && value <= 'Z') ? (byte) (value + ('a' - 'A')) : value;
+    }
+
+    /**
+     * Converts simple decimal numbers using exact arithmetic. For floats, the
+     * multiplication or division is done in float precision, so the single
+     * rounding step matches Float.parseFloat(). Returns NaN if the value
+     * doesn't qualify, in which case the caller falls back to the JDK.
+     */
+    private static double fastPath(byte[] bytes, int start, int end, boolean isFloat) {
+
+        int index = start;
+        if (index >= end) {
+            return Double.NaN;
+        }
+
+        boolean negative = false;
+        if (bytes[index] == '-') {
+            negative = true;
+            index++;
+        } else if (bytes[index] == '+') {
+            index++;
+        }
+
+        long mantissa = 0;
+        int exponent = 0;
+        int numDigits = 0;
+        int significantDigits = 0;
+
+        while (index < end && bytes[index] >= '0' && bytes[index] <= '9') {
+            if (mantissa != 0 || bytes[index] != '0') {
+                if (++significantDigits > MAX_DIGITS) {
+                    return Double.NaN;
+                }
+            }
+            mantissa = mantissa * 10 + (bytes[index] - '0');
+            numDigits++;
+            index++;
+        }
+
+        if (index < end && bytes[index] == '.') {
+            index++;
+            while (index < end && bytes[index] >= '0' && bytes[index] <= '9') {
+                if (mantissa != 0 || bytes[index] != '0') {
+                    if (++significantDigits > MAX_DIGITS) {
+                        return Double.NaN;
+                    }
+                }
+                mantissa = mantissa * 10 + (bytes[index] - '0');
+                exponent--;
+                numDigits++;
+                index++;
+            }
+        }
+
+        if (numDigits == 0) {
+            return Double.NaN;
+        }
+
+        if (index < end && (bytes[index] == 'e' || bytes[index] == 'E')) {
+            index++;
+            boolean negativeExponent = false;
+            if (index < end && bytes[index] == '-') {
+                negativeExponent = true;
+                index++;
+            } else if (index < end && bytes[index] == '+') {
+                index++;
+            }
+            int expValue = 0;
+            int expDigits = 0;
+            while (index < end && bytes[index] >= '0' && bytes[index] <= '9') {
+                expValue = expValue * 10 + (bytes[index] - '0');
+                if (expValue > 1000) {
+                    return Double.NaN;
+                }
+                expDigits++;
+                index++;
+            }
+            if (expDigits == 0) {
+                return Double.NaN;
+            }
+            exponent += negativeExponent ? -expValue : expValue;
+        }
+
+        if (index != end) {
+            return Double.NaN;
+        }
+
+        if (mantissa == 0) {
+            return negative ? -0.0 : 0.0;
+        }
+
+        if (isFloat) {
+            if (mantissa > MAX_FLOAT_MANTISSA || exponent < -10 || exponent > 10) {
+                return Double.NaN;
+            }
+            float result = (float) mantissa;
+            result = exponent < 0 ? result / FLOAT_POW10[-exponent] : result * FLOAT_POW10[exponent];
+            return negative ? -result : result;
+        } else {
+            if (mantissa > MAX_DOUBLE_MANTISSA || exponent < -22 || exponent > 22) {
+                return Double.NaN;
+            }
+            double result = (double) mantissa;
+            result = exponent < 0 ? result / DOUBLE_POW10[-exponent] : result * DOUBLE_POW10[exponent];
+            return negative ? -result : result;
+        }
+
+    }
+
+}
@@ -1,26 +1,32 @@
 /*
  *  GeneralAnnotationStorage
- * 
+ *
  *  Created on Feb. 2, 2015
  */
 package net.maizegenetics.util;
 
 import com.google.common.collect.ImmutableSetMultimap;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
 import com.google.common.collect.Ordering;
 import com.google.common.collect.SetMultimap;
 
 import java.util.AbstractMap;
-import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.IntStream;
 
 /**
+ * Annotations are dictionary encoded. Keys are shared by all instances and
+ * stored as small integers. Values are interned, so equal values are stored
+ * once no matter how many taxa or positions have them, and numeric values are
+ * parsed once, the first time a value is used as a number. Values no longer
+ * used by any annotation are garbage collected.
  *
  * @author Ed Buckler
  * @author Terry Casstevens
@@ -31,90 +37,229 @@ public class GeneralAnnotationStorage implements GeneralAnnotation {
 
     private static final double[] EMPTY_DOUBLE_ARRAY = new double[0];
 
-    private static final int MAX_CACHE_SIZE = 1_000_000;
+    private static final String[] EMPTY_STRING_ARRAY = new String[0];
 
-    private static final Map<Map.Entry<String, String>, Map.Entry<String, String>> CACHE = Collections.synchronizedMap(new LinkedHashMap<Map.Entry<String, String>, Map.Entry<String, String>>((3 * MAX_CACHE_SIZE) / 2) {
+    private static final int[] EMPTY_INT_ARRAY = new int[0];
 
-        @Override
-        protected boolean removeEldestEntry(Map.Entry<Map.Entry<String, String>, Map.Entry<String, String>> eldest) {
-            return size() > MAX_CACHE_SIZE;
+    private static final AnnotationValue[] EMPTY_VALUE_ARRAY = new AnnotationValue[0];
+
+    // key dictionary: name to id and id to name
+    private static final Map<String, Integer> KEY_IDS = new ConcurrentHashMap<>();
+    private static volatile String[] KEYS = new String[16];
+    private static int NUM_KEYS = 0;
+
+    private static final Interner<AnnotationValue> VALUES = Interners.newWeakInterner();
+
+    /**
+     * Returns id of key, adding it to the dictionary if needed.
+     */
+    private static int keyId(String key) {
+        Integer result = KEY_IDS.get(key);
+        if (result != null) {
+            return result;
+        }
+        synchronized (KEY_IDS) {
+            result = KEY_IDS.get(key);
+            if (result != null) {
+                return result;
+            }
+            String[] keys = KEYS;
+            if (NUM_KEYS == keys.length) {
+                keys = Arrays.copyOf(keys, keys.length * 2);
+            }
+            keys[NUM_KEYS] = key;
+            KEYS = keys;
+            KEY_IDS.put(key, NUM_KEYS);
+            return NUM_KEYS++;
         }
+    }
 
-    });
+    /**
+     * Returns id of key, or -1 if no annotation has the key.
+     */
+    private static int existingKeyId(String key) {
+        if (key == null) {
+            return -1;
+        }
+        Integer result = KEY_IDS.get(key);
+        return result == null ? -1 : result;
+    }
 
-    private static Map.Entry<String, String> getCanonicalAnnotation(String key, String value) {
-        Map.Entry<String, String> temp = new AbstractMap.SimpleImmutableEntry<>(key, value);
-        Map.Entry<String, String> entry = CACHE.putIfAbsent(temp, temp);
-        return (entry == null) ? temp : entry;
+    private static String key(int id) {
+        return KEYS[id];
     }
 
-    private final Map.Entry<String, String>[] myAnnotations;
+    private static AnnotationValue value(String value) {
+        return VALUES.intern(new AnnotationValue(value));
+    }
+
+    // sorted by key name, then value
+    private final int[] myKeys;
+    private final AnnotationValue[] myValues;
 
     private GeneralAnnotationStorage(Builder builder) {
-        myAnnotations = (Map.Entry<String, String>[]) new Map.Entry<?, ?>[builder.myAnnotations.size()];
-        for (int i = 0; i < builder.myAnnotations.size(); i++) {
-            myAnnotations[i] = builder.myAnnotations.get(i);
+        int numAnnotations = builder.myNumAnnotations;
+        Integer[] order = new Integer[numAnnotations];
+        for (int i = 0; i < numAnnotations; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (Integer a1, Integer a2) -> {
+            int keyComp = key(builder.myKeys[a1]).compareTo(key(builder.myKeys[a2]));
+            if (keyComp != 0) {
+                return keyComp;
+            }
+            return builder.myValues[a1].myText.compareTo(builder.myValues[a2].myText);
+        });
+        myKeys = new int[numAnnotations];
+        myValues = new AnnotationValue[numAnnotations];
+        for (int i = 0; i < numAnnotations; i++) {
+            myKeys[i] = builder.myKeys[order[i]];
+            myValues[i] = builder.myValues[order[i]];
         }
     }
 
+    // EMPTY_ANNOTATION_STORAGE is created before the empty arrays
     private GeneralAnnotationStorage() {
-        myAnnotations = (Map.Entry<String, String>[]) new Map.Entry<?, ?>[0];
+        myKeys = new int[0];
+        myValues = new AnnotationValue[0];
     }
 
     public static Builder getBuilder() {
         return new Builder();
     }
 
-    @Override
-    public String[] getTextAnnotation(String annoName) {
-        List<String> result = new ArrayList<>(1);
-        for (Map.Entry<String, String> me : myAnnotations) {
-            if (me.getKey().equals(annoName)) {
-                result.add(me.getValue());
-            }
+    /**
+     * Builds annotations for many objects (i.e. every taxon of a VCF header
+     * or every position of a PositionList) in parallel. Each key is added to
+     * the dictionary once. Null values are skipped.
+     *
+     * @param keys annotation keys (columns)
+     * @param values values for each object (rows) by key
+     *
+     * @return annotations for each object
+     */
+    public static GeneralAnnotationStorage[] getInstances(String[] keys, String[][] values) {
+        int[] keyIds = new int[keys.length];
+        for (int k = 0; k < keys.length; k++) {
+            keyIds[k] = keyId(keys[k]);
         }
-        return result.toArray(new String[result.size()]);
+        GeneralAnnotationStorage[] result = new GeneralAnnotationStorage[values.length];
+        IntStream.range(0, values.length).parallel().forEach(i -> {
+            String[] current = values[i];
+            if (current.length != keys.length) {
+                throw new IllegalArgumentException("GeneralAnnotationStorage: getInstances: number of values: " + current.length + " doesn't match number of keys: " + keys.length);
+            }
+            Builder builder = new Builder();
+            for (int k = 0; k < keys.length; k++) {
+                if (current[k] != null) {
+                    builder.add(keyIds[k], value(current[k]));
+                }
+            }
+            result[i] = builder.build();
+        });
+        return result;
     }
 
-    @Override
-    public Map<String, String> getConcatenatedTextAnnotations() {
-        Map<String, String> result = new HashMap<>();
-        for (Map.Entry<String, String> me : myAnnotations) {
-            String value = result.get(me.getKey());
-            if (value == null) {
-                result.put(me.getKey(), me.getValue());
+    /**
+     * Returns average value of annotation for each of the given annotations
+     * (see getAverageAnnotation()). The key is looked up once.
+     *
+     * @param annotations annotations
+     * @param annoName annotation key
+     *
+     * @return average values (Double.NaN where not present)
+     */
+    public static double[] getAverageAnnotations(List<? extends GeneralAnnotation> annotations, String annoName) {
+        double[] result = new double[annotations.size()];
+        int key = existingKeyId(annoName);
+        IntStream.range(0, result.length).parallel().forEach(i -> {
+            GeneralAnnotation current = annotations.get(i);
+            if (current == null) {
+                result[i] = Double.NaN;
+            } else if (current instanceof GeneralAnnotationStorage) {
+                result[i] = key == -1 ? Double.NaN : ((GeneralAnnotationStorage) current).average(key);
             } else {
-                result.put(me.getKey(), value + "," + me.getValue());
+                result[i] = current.getAverageAnnotation(annoName);
             }
-        }
+        });
         return result;
     }
 
-    @Override
-    public double[] getQuantAnnotation(String annoName) {
-        try {
-            ArrayList<Double> result = new ArrayList<>(1);
-            for (Map.Entry<String, String> me : myAnnotations) {
-                if (me.getKey().equals(annoName)) {
-                    result.add(Double.parseDouble(me.getValue()));
-                }
-            }
-            if (result.isEmpty()) {
-                return EMPTY_DOUBLE_ARRAY;
+    /**
+     * Returns values of annotation for each of the given annotations (see
+     * getTextAnnotation()). The key is looked up once.
+     *
+     * @param annotations annotations
+     * @param annoName annotation key
+     *
+     * @return values
+     */
+    public static String[][] getTextAnnotations(List<? extends GeneralAnnotation> annotations, String annoName) {
+        String[][] result = new String[annotations.size()][];
+        int key = existingKeyId(annoName);
+        IntStream.range(0, result.length).parallel().forEach(i -> {
+            GeneralAnnotation current = annotations.get(i);
+            if (current == null) {
+                result[i] = EMPTY_STRING_ARRAY;
+            } else if (current instanceof GeneralAnnotationStorage) {
+                result[i] = key == -1 ? EMPTY_STRING_ARRAY : ((GeneralAnnotationStorage) current).text(key);
+            } else {
+                result[i] = current.getTextAnnotation(annoName);
             }
-            double[] d = new double[result.size()];
-            for (int i = 0; i < result.size(); i++) {
-                d[i] = result.get(i);
+        });
+        return result;
+    }
+
+    /**
+     * Returns index of first annotation with key, or -1 if none.
+     */
+    private int first(int key) {
+        for (int i = 0; i < myKeys.length; i++) {
+            if (myKeys[i] == key) {
+                return i;
             }
-            return d;
-        } catch (Exception e) {
+        }
+        return -1;
+    }
+
+    private String[] text(int key) {
+        int first = first(key);
+        if (first == -1) {
+            return EMPTY_STRING_ARRAY;
+        }
+        int end = first + 1;
+        while (end < myKeys.length && myKeys[end] == key) {
+            end++;
+        }
+        String[] result = new String[end - first];
+        for (int i = first; i < end; i++) {
+            result[i - first] = myValues[i].myText;
+        }
+        return result;
+    }
+
+    private double[] quant(int key) {
+        int first = first(key);
+        if (first == -1) {
             return EMPTY_DOUBLE_ARRAY;
         }
+        int end = first + 1;
+        while (end < myKeys.length && myKeys[end] == key) {
+            end++;
+        }
+        double[] result = new double[end - first];
+        for (int i = first; i < end; i++) {
+            double number = myValues[i].number();
+            if (Double.isNaN(number) && !myValues[i].isNumber()) {
+                return EMPTY_DOUBLE_ARRAY;
+            }
+            result[i - first] = number;
+        }
+        return result;
     }
 
-    @Override
-    public double getAverageAnnotation(String annoName) {
-        double[] values = getQuantAnnotation(annoName);
+    private double average(int key) {
+        double[] values = quant(key);
         if (values.length == 0) {
             return Double.NaN;
         } else if (values.length == 1) {
@@ -128,10 +273,56 @@ public class GeneralAnnotationStorage implements GeneralAnnotation {
         }
     }
 
+    @Override
+    public String[] getTextAnnotation(String annoName) {
+        int key = existingKeyId(annoName);
+        if (key == -1) {
+            return EMPTY_STRING_ARRAY;
+        }
+        return text(key);
+    }
+
+    @Override
+    public Map<String, String> getConcatenatedTextAnnotations() {
+        Map<String, String> result = new HashMap<>();
+        for (int i = 0; i < myKeys.length; i++) {
+            String key = key(myKeys[i]);
+            String value = result.get(key);
+            if (value == null) {
+                result.put(key, myValues[i].myText);
+            } else {
+                result.put(key, value + "," + myValues[i].myText);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public double[] getQuantAnnotation(String annoName) {
+        int key = existingKeyId(annoName);
+        if (key == -1) {
+            return EMPTY_DOUBLE_ARRAY;
+        }
+        return quant(key);
+    }
+
+    @Override
+    public double getAverageAnnotation(String annoName) {
+        int key = existingKeyId(annoName);
+        if (key == -1) {
+            return Double.NaN;
+        }
+        return average(key);
+    }
+
     @Override
     public boolean isAnnotatedWithValue(String annoName, String annoValue) {
-        for (Map.Entry<String, String> me : myAnnotations) {
-            if (me.getKey().equals(annoName) && me.getValue().equals(annoValue)) {
+        int key = existingKeyId(annoName);
+        if (key == -1) {
+            return false;
+        }
+        for (int i = 0; i < myKeys.length; i++) {
+            if (myKeys[i] == key && myValues[i].myText.equals(annoValue)) {
                 return true;
             }
         }
@@ -140,14 +331,18 @@ public class GeneralAnnotationStorage implements GeneralAnnotation {
 
     @Override
     public Map.Entry<String, String>[] getAllAnnotationEntries() {
-        return Arrays.copyOf(myAnnotations, myAnnotations.length);
+        Map.Entry<String, String>[] result = (Map.Entry<String, String>[]) new Map.Entry<?, ?>[myKeys.length];
+        for (int i = 0; i < myKeys.length; i++) {
+            result[i] = new AbstractMap.SimpleImmutableEntry<>(key(myKeys[i]), myValues[i].myText);
+        }
+        return result;
     }
 
     @Override
     public Set<String> getAnnotationKeys() {
         Set<String> result = new HashSet<>();
-        for (Map.Entry<String, String> me : myAnnotations) {
-            result.add(me.getKey());
+        for (int key : myKeys) {
+            result.add(key(key));
         }
         return result;
     }
@@ -156,31 +351,102 @@ public class GeneralAnnotationStorage implements GeneralAnnotation {
     public SetMultimap<String, String> getAnnotationAsMap() {
         ImmutableSetMultimap.Builder<String, String> result = new ImmutableSetMultimap.Builder<String, String>()
                 .orderKeysBy(Ordering.natural()).orderValuesBy(Ordering.natural());
-        for (Map.Entry<String, String> en : myAnnotations) {
-            result.put(en.getKey(), en.getValue());
+        for (int i = 0; i < myKeys.length; i++) {
+            result.put(key(myKeys[i]), myValues[i].myText);
         }
         return result.build();
     }
 
     @Override
     public int numAnnotations() {
-        return myAnnotations.length;
+        return myKeys.length;
+    }
+
+    /**
+     * Interned annotation value. Text is parsed as a number the first time
+     * number() is called, so interning an existing value doesn't parse it.
+     */
+    private static final class AnnotationValue {
+
+        private static final byte NOT_PARSED = 0;
+        private static final byte NUMBER = 1;
+        private static final byte NOT_NUMBER = 2;
+
+        private final String myText;
+        private double myNumber = Double.NaN;
+        // written after myNumber, so myNumber is visible when this is set
+        private volatile byte myParsed = NOT_PARSED;
+
+        private AnnotationValue(String text) {
+            myText = text;
+        }
+
+        /**
+         * Numeric value, or NaN if not numeric.
+         */
+        private double number() {
+            if (myParsed == NOT_PARSED) {
+                parse();
+            }
+            return myNumber;
+        }
+
+        private boolean isNumber() {
+            if (myParsed == NOT_PARSED) {
+                parse();
+            }
+            return myParsed == NUMBER;
+        }
+
+        // Threads racing here compute the same result
+        private void parse() {
+            try {
+                myNumber = Double.parseDouble(myText);
+                myParsed = NUMBER;
+            } catch (NumberFormatException e) {
+                myParsed = NOT_NUMBER;
+            }
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof AnnotationValue && myText.equals(((AnnotationValue) obj).myText);
+        }
+
+        @Override
+        public int hashCode() {
+            return myText.hashCode();
+        }
+
     }
 
     public static class Builder {
 
-        private final List<Map.Entry<String, String>> myAnnotations = new ArrayList<>(0);
+        private int[] myKeys = EMPTY_INT_ARRAY;
+        private AnnotationValue[] myValues = EMPTY_VALUE_ARRAY;
+        private int myNumAnnotations = 0;
 
         private Builder() {
         }
 
+        private void add(int key, AnnotationValue value) {
+            if (myNumAnnotations == myKeys.length) {
+                int capacity = Math.max(4, myNumAnnotations * 2);
+                myKeys = Arrays.copyOf(myKeys, capacity);
+                myValues = Arrays.copyOf(myValues, capacity);
+            }
+            myKeys[myNumAnnotations] = key;
+            myValues[myNumAnnotations] = value;
+            myNumAnnotations++;
+        }
+
         public Builder addAnnotation(String key, String value) {
-            myAnnotations.add(getCanonicalAnnotation(key, value));
+            add(keyId(key), value(value));
             return this;
         }
 
         public Builder addAnnotation(String key, Number value) {
-            myAnnotations.add(getCanonicalAnnotation(key, value.toString()));
+            add(keyId(key), value(value.toString()));
             return this;
         }
 
@@ -188,21 +454,23 @@ public class GeneralAnnotationStorage implements GeneralAnnotation {
             if (existing == null) {
                 return this;
             }
-            myAnnotations.addAll(Arrays.asList(existing.getAllAnnotationEntries()));
+            if (existing instanceof GeneralAnnotationStorage) {
+                GeneralAnnotationStorage storage = (GeneralAnnotationStorage) existing;
+                for (int i = 0; i < storage.myKeys.length; i++) {
+                    add(storage.myKeys[i], storage.myValues[i]);
+                }
+                return this;
+            }
+            for (Map.Entry<String, String> entry : existing.getAllAnnotationEntries()) {
+                addAnnotation(entry.getKey(), entry.getValue());
+            }
             return this;
         }
 
         public GeneralAnnotationStorage build() {
-            if (myAnnotations.isEmpty()) {
+            if (myNumAnnotations == 0) {
                 return EMPTY_ANNOTATION_STORAGE;
             }
-            Collections.sort(myAnnotations, (Map.Entry<String, String> s1, Map.Entry<String, String> s2) -> {
-                int keyComp = s1.getKey().compareTo(s2.getKey());
-                if (keyComp != 0) {
-                    return keyComp;
-                }
-                return s1.getValue().compareTo(s2.getValue());
-            });
             return new GeneralAnnotationStorage(this);
         }
     }
@@ -0,0 +1,193 @@
+package net.maizegenetics.util;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.Closeable;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import static htsjdk.samtools.util.BlockCompressedStreamConstants.*;
+
+/**
+ * Writes blocks of bytes produced by tasks running in parallel to a file in
+ * the order the tasks were submitted. The submitting thread writes finished
+ * blocks while later tasks are still running, and only a bounded number of
+ * blocks are held in memory at once.
+ * <p>
+ * When compressing (default for filenames ending with .gz), each task also
+ * compresses its own block into BGZF blocks, so compression runs in parallel
+ * too. BGZF is a series of gzip members, so the result can be read by
+ * {@link java.util.zip.GZIPInputStream} as well as htsjdk / tabix.
+ */
+public class OrderedByteChannel implements Closeable {
+
+    private static final Logger myLogger = LogManager.getLogger(OrderedByteChannel.class);
+
+    private static final int NUM_THREADS = Runtime.getRuntime().availableProcessors();
+
+    private final OutputStream myOutput;
+    private final boolean myCompress;
+    private final ExecutorService myPool = Executors.newFixedThreadPool(NUM_THREADS);
+    private final ArrayDeque<Future<ByteBuffer>> myPending = new ArrayDeque<>();
+    private final int myMaxPending = NUM_THREADS * 2;
+
+    public OrderedByteChannel(String filename) {
+        this(filename, filename.endsWith(".gz"));
+    }
+
+    public OrderedByteChannel(String filename, boolean compress) {
+        try {
+            myOutput = new FileOutputStream(filename);
+        } catch (IOException e) {
+            myPool.shutdown();
+            myLogger.debug(e.getMessage(), e);
+            throw new IllegalStateException("OrderedByteChannel: problem opening: " + filename + ".  " + e.getMessage());
+        }
+        myCompress = compress;
+    }
+
+    /**
+     * Submits task to produce the next block of bytes.
+     */
+    public void submit(Callable<ByteBuffer> task) throws IOException {
+        if (myPending.size() >= myMaxPending) {
+            writeNext();
+        }
+        if (myCompress) {
+            myPending.add(myPool.submit(() -> compress(task.call())));
+        } else {
+            myPending.add(myPool.submit(task));
+        }
+    }
+
+    /**
+     * Adds bytes already formatted, in order with submitted tasks.
+     */
+    public void write(byte[] bytes) throws IOException {
+        submit(() -> ByteBuffer.wrap(bytes));
+    }
+
+    private void writeNext() throws IOException {
+        ByteBuffer block;
+        try {
+            block = myPending.poll().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("OrderedByteChannel: interrupted");
+        } catch (ExecutionException e) {
+            myLogger.debug(e.getMessage(), e);
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            } else if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IllegalStateException("OrderedByteChannel: " + e.getCause().getMessage());
+        }
+        myOutput.write(block.array(), block.arrayOffset() + block.position(), block.remaining());
+    }
+
+    /**
+     * Writes remaining blocks and closes file.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            while (!myPending.isEmpty()) {
+                writeNext();
+            }
+            if (myCompress) {
+                myOutput.write(EMPTY_GZIP_BLOCK);
+            }
+        } finally {
+            myPool.shutdownNow();
+            myOutput.close();
+        }
+    }
+
+    /**
+     * Compresses bytes into BGZF blocks.
+     */
+    private static ByteBuffer compress(ByteBuffer input) {
+
+        int numBytes = input.remaining();
+        int numBlocks = (numBytes + DEFAULT_UNCOMPRESSED_BLOCK_SIZE - 1) / DEFAULT_UNCOMPRESSED_BLOCK_SIZE;
+        ByteBuffer result = ByteBuffer.allocate(numBlocks * MAX_COMPRESSED_BLOCK_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        byte[] source = input.array();
+        int offset = input.arrayOffset() + input.position();
+        int end = offset + numBytes;
+
+        Deflater deflater = new Deflater(DEFAULT_COMPRESSION_LEVEL, true);
+        Deflater noCompression = null;
+        CRC32 crc = new CRC32();
+        try {
+            while (offset < end) {
+
+                int length = Math.min(DEFAULT_UNCOMPRESSED_BLOCK_SIZE, end - offset);
+                int maxCompressed = MAX_COMPRESSED_BLOCK_SIZE - BLOCK_HEADER_LENGTH - BLOCK_FOOTER_LENGTH;
+
+                deflater.reset();
+                deflater.setInput(source, offset, length);
+                deflater.finish();
+                int compressedLength = deflater.deflate(result.array(), result.position() + BLOCK_HEADER_LENGTH, maxCompressed);
+                if (!deflater.finished()) {
+                    // incompressible data
+                    if (noCompression == null) {
+                        noCompression = new Deflater(Deflater.NO_COMPRESSION, true);
+                    }
+                    noCompression.reset();
+                    noCompression.setInput(source, offset, length);
+                    noCompression.finish();
+                    compressedLength = noCompression.deflate(result.array(), result.position() + BLOCK_HEADER_LENGTH, maxCompressed);
+                    if (!noCompression.finished()) {
+                        throw new IllegalStateException("OrderedByteChannel: compress: block too large");
+                    }
+                }
+
+                crc.reset();
+                crc.update(source, offset, length);
+
+                int blockSize = BLOCK_HEADER_LENGTH + compressedLength + BLOCK_FOOTER_LENGTH;
+                result.put(GZIP_ID1);
+                result.put((byte) GZIP_ID2);
+                result.put(GZIP_CM_DEFLATE);
+                result.put((byte) GZIP_FLG);
+                result.putInt(0); // modification time
+                result.put((byte) GZIP_XFL);
+                result.put((byte) GZIP_OS_UNKNOWN);
+                result.putShort(GZIP_XLEN);
+                result.put(BGZF_ID1);
+                result.put(BGZF_ID2);
+                result.putShort(BGZF_LEN);
+                result.putShort((short) (blockSize - 1));
+                result.position(result.position() + compressedLength);
+                result.putInt((int) crc.getValue());
+                result.putInt(length);
+
+                offset += length;
+
+            }
+        } finally {
+            deflater.end();
+            if (noCompression != null) {
+                noCompression.end();
+            }
+        }
+
+        result.flip();
+        return result;
+
+    }
+
+}
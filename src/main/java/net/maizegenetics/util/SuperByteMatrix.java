@@ -130,4 +130,12 @@ public interface SuperByteMatrix {
     public Stream<Byte> stream();
     
     public Stream<Byte> stream(int row);
+
+    /**
+     * Frees storage held by this matrix, if it's not managed by the garbage
+     * collector (i.e. off-heap). The matrix must not be used afterwards.
+     */
+    public default void release() {
+        // nothing to release for heap storage
+    }
 }
@@ -3,9 +3,10 @@
  */
 package net.maizegenetics.util;
 
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.stream.IntStream;
 
 /**
  *
@@ -15,12 +16,36 @@ public class SuperByteMatrixBuilder {
 
     private static final int TRANSPOSE_BLOCK_SIZE = 64;
 
+    private static volatile boolean myUseOffHeap = false;
+    private static volatile Path mySpillDirectory = null;
+
     private SuperByteMatrixBuilder() {
     }
 
+    /**
+     * Sets whether matrices created by getInstance() and
+     * getInstanceTranspose() are stored off heap.
+     *
+     * @param offHeap true to store off heap
+     * @param spillDirectory directory for memory-mapped temporary files, or
+     * null to use direct buffers
+     */
+    public static void setOffHeap(boolean offHeap, String spillDirectory) {
+        if (spillDirectory != null && !Files.isDirectory(Paths.get(spillDirectory))) {
+            throw new IllegalArgumentException("SuperByteMatrixBuilder: setOffHeap: spill directory doesn't exist: " + spillDirectory);
+        }
+        mySpillDirectory = spillDirectory == null ? null : Paths.get(spillDirectory);
+        myUseOffHeap = offHeap;
+    }
+
+    public static boolean isOffHeap() {
+        return myUseOffHeap;
+    }
+
     /**
      * This returns a SuperByteMatrix designed for better performance when
-     * column iteration loop inside row iteration loop.
+     * column iteration loop inside row iteration loop. Stored off heap if
+     * set by setOffHeap().
      *
      * @param numRows number of rows
      * @param numColumns number of columns
@@ -28,6 +53,9 @@ public class SuperByteMatrixBuilder {
      * @return SuperByteMatrix (double dimension byte array)
      */
     public static SuperByteMatrix getInstance(int numRows, int numColumns) {
+        if (myUseOffHeap) {
+            return new SuperByteMatrixOffHeap(numRows, numColumns, mySpillDirectory);
+        }
         long numElements = (long) numRows * (long) numColumns;
         if (numElements > (long) (Integer.MAX_VALUE - 10)) {
             return new SuperByteMatrixMultiple(numRows, numColumns);
@@ -36,6 +64,35 @@ public class SuperByteMatrixBuilder {
         }
     }
     
+    /**
+     * This returns a SuperByteMatrix stored off heap in direct buffers.
+     * Better performance when column iteration loop inside row iteration
+     * loop. Call SuperByteMatrix.release() when finished.
+     *
+     * @param numRows number of rows
+     * @param numColumns number of columns
+     *
+     * @return SuperByteMatrix (double dimension byte array)
+     */
+    public static SuperByteMatrix getInstanceOffHeap(int numRows, int numColumns) {
+        return new SuperByteMatrixOffHeap(numRows, numColumns, null);
+    }
+
+    /**
+     * This returns a SuperByteMatrix stored in a temporary file in the given
+     * directory, which is memory-mapped. The file is deleted by
+     * SuperByteMatrix.release() or on exit.
+     *
+     * @param numRows number of rows
+     * @param numColumns number of columns
+     * @param spillDirectory directory for temporary file
+     *
+     * @return SuperByteMatrix (double dimension byte array)
+     */
+    public static SuperByteMatrix getInstanceOffHeap(int numRows, int numColumns, String spillDirectory) {
+        return new SuperByteMatrixOffHeap(numRows, numColumns, Paths.get(spillDirectory));
+    }
+
     public static SuperByteMatrix getInstanceSingleValue(int numRows, int numColumns, byte value) {
         return new SuperByteMatrixSingleValue(numRows, numColumns, value);
     }
@@ -52,8 +109,14 @@ public class SuperByteMatrixBuilder {
                 }
             }
             return result;
+        } else if (matrix instanceof SuperByteMatrixOffHeap) {
+            SuperByteMatrix result = getInstanceLike(matrix, numRows, numColumns);
+            for (int r = 0; r < numRows; r++) {
+                result.arraycopy(r, matrix.getAllColumns(r), 0);
+            }
+            return result;
         } else if (matrix instanceof SuperByteMatrixTranspose) {
-            SuperByteMatrix result = getInstanceTranspose(numRows, numColumns);
+            SuperByteMatrix result = getInstanceTransposeLike(matrix, numRows, numColumns);
             for (int c = 0; c < numColumns; c++) {
                 for (int r = 0; r < numRows; r++) {
                     result.set(r, c, matrix.get(r, c));
@@ -81,7 +144,8 @@ public class SuperByteMatrixBuilder {
 
     /**
      * This returns a SuperByteMatrix that performs better in the reverse row /
-     * column iteration nesting than the given matrix.
+     * column iteration nesting than the given matrix. The given matrix is not
+     * changed.
      *
      * @param matrix input matrix
      *
@@ -89,139 +153,195 @@ public class SuperByteMatrixBuilder {
      */
     public static SuperByteMatrix getInstanceTranspose(SuperByteMatrix matrix) {
 
-
         int numRows = matrix.getNumRows();
         int numColumns = matrix.getNumColumns();
-        SuperByteMatrix result;
-        int numThreads = Runtime.getRuntime().availableProcessors();
-        ExecutorService pool = Executors.newFixedThreadPool(numThreads);
 
-        if ((matrix instanceof SuperByteMatrixSingle) || (matrix instanceof SuperByteMatrixMultiple)) {
-            result = getInstanceTranspose(numRows, numColumns);
-            int rowBlockSize = TRANSPOSE_BLOCK_SIZE;
-            for (int rowOffset = 0; rowOffset < numRows; rowOffset += TRANSPOSE_BLOCK_SIZE) {
-                if (numRows - rowOffset < TRANSPOSE_BLOCK_SIZE) {
-                    rowBlockSize = numRows - rowOffset;
-                }
+        if (matrix instanceof SuperByteMatrixRowMajor) {
+            SuperByteMatrixTranspose result = (SuperByteMatrixTranspose) getInstanceTransposeLike(matrix, numRows, numColumns);
+            transpose((SuperByteMatrixRowMajor) matrix, (SuperByteMatrixRowMajor) result.matrix());
+            return result;
+        } else if ((matrix instanceof SuperByteMatrixTranspose) && (((SuperByteMatrixTranspose) matrix).matrix() instanceof SuperByteMatrixRowMajor)) {
+            SuperByteMatrix result = getInstanceLike(matrix, numRows, numColumns);
+            transpose((SuperByteMatrixRowMajor) ((SuperByteMatrixTranspose) matrix).matrix(), (SuperByteMatrixRowMajor) result);
+            return result;
+        } else {
+            throw new IllegalArgumentException("SuperByteMatrixBuilder: getInstanceTranspose: Don't Know how to Transpose: " + matrix.getClass().getName());
+        }
 
-                pool.execute(new TransposeColumnToRowProcess(matrix, result, numColumns, rowBlockSize, rowOffset));
-            }
+    }
 
-            try {
-                pool.shutdown();
-                if (!pool.awaitTermination(60, TimeUnit.SECONDS)) {
-                    throw new IllegalStateException("SuperByteMatrixBuilder: getInstanceTranspose: processing threads timed out.");
-                }
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
+    /**
+     * Same as getInstanceTranspose(matrix) except square matrices are
+     * transposed within their existing storage, so no second copy is
+     * allocated. The given matrix must not be used afterwards. Matrices that
+     * aren't square are copied.
+     *
+     * @param matrix input matrix
+     *
+     * @return SuperByteMatrix (double dimension byte array)
+     */
+    public static SuperByteMatrix getInstanceTransposeInPlace(SuperByteMatrix matrix) {
 
-        } else if (matrix instanceof SuperByteMatrixTranspose) {
-            result = getInstance(numRows, numColumns);
-            int columnBlockSize = TRANSPOSE_BLOCK_SIZE;
-            for (int columnOffset = 0; columnOffset < numColumns; columnOffset += TRANSPOSE_BLOCK_SIZE) {
-                if (numColumns - columnOffset < TRANSPOSE_BLOCK_SIZE) {
-                    columnBlockSize = numColumns - columnOffset;
-                }
+        if (matrix.getNumRows() != matrix.getNumColumns()) {
+            return getInstanceTranspose(matrix);
+        }
 
-                pool.execute(new TransposeRowToColumnProcess(matrix, result, numRows, columnBlockSize, columnOffset));
-            }
+        if (matrix instanceof SuperByteMatrixRowMajor) {
+            transposeSquare((SuperByteMatrixRowMajor) matrix);
+            return new SuperByteMatrixTranspose(matrix);
+        } else if ((matrix instanceof SuperByteMatrixTranspose) && (((SuperByteMatrixTranspose) matrix).matrix() instanceof SuperByteMatrixRowMajor)) {
+            SuperByteMatrixRowMajor result = (SuperByteMatrixRowMajor) ((SuperByteMatrixTranspose) matrix).matrix();
+            transposeSquare(result);
+            return result;
+        } else {
+            return getInstanceTranspose(matrix);
+        }
 
-            try {
-                pool.shutdown();
-                if (!pool.awaitTermination(60, TimeUnit.SECONDS)) {
-                    throw new IllegalStateException("SuperByteMatrixBuilder: getInstanceTranspose: processing threads timed out.");
-                }
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
+    }
 
+    /**
+     * Returns the off heap storage of matrix, or null if stored on heap.
+     */
+    private static SuperByteMatrixOffHeap offHeapStorage(SuperByteMatrix matrix) {
+        if (matrix instanceof SuperByteMatrixOffHeap) {
+            return (SuperByteMatrixOffHeap) matrix;
+        } else if (matrix instanceof SuperByteMatrixTranspose) {
+            return offHeapStorage(((SuperByteMatrixTranspose) matrix).matrix());
         } else {
-            throw new IllegalArgumentException("SuperByteMatrixBuilder: getInstanceTranspose: Don't Know how to Transpose: " + matrix.getClass().getName());
+            return null;
         }
+    }
 
-        return result;
+    /**
+     * Returns new matrix (column loop inside row loop) stored the same way
+     * (heap or off heap) as the given matrix.
+     */
+    private static SuperByteMatrix getInstanceLike(SuperByteMatrix matrix, int numRows, int numColumns) {
+        SuperByteMatrixOffHeap offHeap = offHeapStorage(matrix);
+        if (offHeap != null) {
+            return new SuperByteMatrixOffHeap(numRows, numColumns, offHeap.spillDirectory());
+        } else {
+            return getInstance(numRows, numColumns);
+        }
     }
 
-    private static class TransposeRowToColumnProcess implements Runnable {
+    /**
+     * Returns new matrix (row loop inside column loop) stored the same way
+     * (heap or off heap) as the given matrix.
+     */
+    private static SuperByteMatrix getInstanceTransposeLike(SuperByteMatrix matrix, int numRows, int numColumns) {
+        SuperByteMatrixOffHeap offHeap = offHeapStorage(matrix);
+        if (offHeap != null) {
+            return new SuperByteMatrixTranspose(new SuperByteMatrixOffHeap(numColumns, numRows, offHeap.spillDirectory()));
+        } else {
+            return getInstanceTranspose(numRows, numColumns);
+        }
+    }
 
-        private final int myColumnBlockSize;
-        private final int myColumnOffset;
-        private final SuperByteMatrix mySourceMatrix;
-        private final SuperByteMatrix myDestMatrix;
-        private final int myNumRows;
+    /**
+     * Copies transpose of src into dest (dest rows are src columns). Work is
+     * done in TRANSPOSE_BLOCK_SIZE x TRANSPOSE_BLOCK_SIZE tiles so both reads
+     * and writes are sequential runs within a row. Strips of tiles along the
+     * longer dimension are processed in parallel.
+     */
+    private static void transpose(SuperByteMatrixRowMajor src, SuperByteMatrixRowMajor dest) {
 
-        public TransposeRowToColumnProcess(SuperByteMatrix srcMatrix, SuperByteMatrix destMatrix, int numRows, int columnBlockSize, int columnOffset) {
-            myColumnBlockSize = columnBlockSize;
-            myColumnOffset = columnOffset;
-            mySourceMatrix = srcMatrix;
-            myDestMatrix = destMatrix;
-            myNumRows = numRows;
+        int numRows = src.getNumRows();
+        int numColumns = src.getNumColumns();
+        if (dest.getNumRows() != numColumns || dest.getNumColumns() != numRows) {
+            throw new IllegalArgumentException("SuperByteMatrixBuilder: transpose: destination dimensions don't match source transposed.");
         }
 
-        @Override
-        public void run() {
-            byte[][] temp = new byte[TRANSPOSE_BLOCK_SIZE][myColumnBlockSize];
+        int numRowTiles = (numRows + TRANSPOSE_BLOCK_SIZE - 1) / TRANSPOSE_BLOCK_SIZE;
+        int numColumnTiles = (numColumns + TRANSPOSE_BLOCK_SIZE - 1) / TRANSPOSE_BLOCK_SIZE;
 
-            int rowBlockSize = TRANSPOSE_BLOCK_SIZE;
-            for (int rowOffset = 0; rowOffset < myNumRows; rowOffset += TRANSPOSE_BLOCK_SIZE) {
-                if (myNumRows - rowOffset < TRANSPOSE_BLOCK_SIZE) {
-                    rowBlockSize = myNumRows - rowOffset;
+        if (numRowTiles >= numColumnTiles) {
+            IntStream.range(0, numRowTiles).parallel().forEach(rowTile -> {
+                byte[] in = new byte[TRANSPOSE_BLOCK_SIZE * TRANSPOSE_BLOCK_SIZE];
+                byte[] out = new byte[TRANSPOSE_BLOCK_SIZE * TRANSPOSE_BLOCK_SIZE];
+                for (int columnTile = 0; columnTile < numColumnTiles; columnTile++) {
+                    transposeTile(src, dest, rowTile * TRANSPOSE_BLOCK_SIZE, columnTile * TRANSPOSE_BLOCK_SIZE, in, out);
                 }
-
-                for (int c = 0; c < myColumnBlockSize; c++) {
-                    for (int r = 0; r < rowBlockSize; r++) {
-                        temp[r][c] = mySourceMatrix.get(r + rowOffset, c + myColumnOffset);
-                    }
+            });
+        } else {
+            IntStream.range(0, numColumnTiles).parallel().forEach(columnTile -> {
+                byte[] in = new byte[TRANSPOSE_BLOCK_SIZE * TRANSPOSE_BLOCK_SIZE];
+                byte[] out = new byte[TRANSPOSE_BLOCK_SIZE * TRANSPOSE_BLOCK_SIZE];
+                for (int rowTile = 0; rowTile < numRowTiles; rowTile++) {
+                    transposeTile(src, dest, rowTile * TRANSPOSE_BLOCK_SIZE, columnTile * TRANSPOSE_BLOCK_SIZE, in, out);
                 }
+            });
+        }
 
-                for (int r = 0; r < rowBlockSize; r++) {
-                    for (int c = 0; c < myColumnBlockSize; c++) {
-                        myDestMatrix.set(r + rowOffset, c + myColumnOffset, temp[r][c]);
-                    }
+    }
+
+    /**
+     * Transposes square matrix within its own storage. Tiles on the diagonal
+     * are transposed in place and each pair of tiles mirrored across the
+     * diagonal is swapped and transposed.
+     */
+    private static void transposeSquare(SuperByteMatrixRowMajor matrix) {
+
+        int size = matrix.getNumRows();
+        int numTiles = (size + TRANSPOSE_BLOCK_SIZE - 1) / TRANSPOSE_BLOCK_SIZE;
+
+        IntStream.range(0, numTiles).parallel().forEach(rowTile -> {
+            byte[] in = new byte[TRANSPOSE_BLOCK_SIZE * TRANSPOSE_BLOCK_SIZE];
+            byte[] out = new byte[TRANSPOSE_BLOCK_SIZE * TRANSPOSE_BLOCK_SIZE];
+            byte[] mirrorIn = new byte[TRANSPOSE_BLOCK_SIZE * TRANSPOSE_BLOCK_SIZE];
+            byte[] mirrorOut = new byte[TRANSPOSE_BLOCK_SIZE * TRANSPOSE_BLOCK_SIZE];
+            int rowOffset = rowTile * TRANSPOSE_BLOCK_SIZE;
+            int numTileRows = Math.min(TRANSPOSE_BLOCK_SIZE, size - rowOffset);
+            for (int columnTile = rowTile; columnTile < numTiles; columnTile++) {
+                int columnOffset = columnTile * TRANSPOSE_BLOCK_SIZE;
+                int numTileColumns = Math.min(TRANSPOSE_BLOCK_SIZE, size - columnOffset);
+                readTile(matrix, rowOffset, columnOffset, numTileRows, numTileColumns, in);
+                transposeTile(in, out, numTileRows, numTileColumns);
+                if (columnTile == rowTile) {
+                    writeTile(matrix, rowOffset, columnOffset, numTileRows, numTileColumns, out);
+                } else {
+                    readTile(matrix, columnOffset, rowOffset, numTileColumns, numTileRows, mirrorIn);
+                    transposeTile(mirrorIn, mirrorOut, numTileColumns, numTileRows);
+                    writeTile(matrix, columnOffset, rowOffset, numTileColumns, numTileRows, out);
+                    writeTile(matrix, rowOffset, columnOffset, numTileRows, numTileColumns, mirrorOut);
                 }
             }
-        }
-    }
+        });
 
-    private static class TransposeColumnToRowProcess implements Runnable {
+    }
 
-        private final int myRowBlockSize;
-        private final int myRowOffset;
-        private final SuperByteMatrix mySourceMatrix;
-        private final SuperByteMatrix myDestMatrix;
-        private final int myNumColumns;
+    /**
+     * Transposes tile starting at rowOffset, columnOffset of src into dest.
+     */
+    private static void transposeTile(SuperByteMatrixRowMajor src, SuperByteMatrixRowMajor dest, int rowOffset, int columnOffset, byte[] in, byte[] out) {
+        int numTileRows = Math.min(TRANSPOSE_BLOCK_SIZE, src.getNumRows() - rowOffset);
+        int numTileColumns = Math.min(TRANSPOSE_BLOCK_SIZE, src.getNumColumns() - columnOffset);
+        readTile(src, rowOffset, columnOffset, numTileRows, numTileColumns, in);
+        transposeTile(in, out, numTileRows, numTileColumns);
+        writeTile(dest, columnOffset, rowOffset, numTileColumns, numTileRows, out);
+    }
 
-        public TransposeColumnToRowProcess(SuperByteMatrix srcMatrix, SuperByteMatrix destMatrix, int numColumns, int rowBlockSize, int rowOffset) {
-            myRowBlockSize = rowBlockSize;
-            myRowOffset = rowOffset;
-            mySourceMatrix = srcMatrix;
-            myDestMatrix = destMatrix;
-            myNumColumns = numColumns;
+    private static void readTile(SuperByteMatrixRowMajor matrix, int rowOffset, int columnOffset, int numTileRows, int numTileColumns, byte[] tile) {
+        for (int r = 0; r < numTileRows; r++) {
+            matrix.getRow(rowOffset + r, columnOffset, tile, r * TRANSPOSE_BLOCK_SIZE, numTileColumns);
         }
+    }
 
-        @Override
-        public void run() {
-            byte[][] temp = new byte[myRowBlockSize][TRANSPOSE_BLOCK_SIZE];
-
-            int columnBlockSize = TRANSPOSE_BLOCK_SIZE;
-            for (int columnOffset = 0; columnOffset < myNumColumns; columnOffset += TRANSPOSE_BLOCK_SIZE) {
-                if (myNumColumns - columnOffset < TRANSPOSE_BLOCK_SIZE) {
-                    columnBlockSize = myNumColumns - columnOffset;
-                }
-
-                for (int r = 0; r < myRowBlockSize; r++) {
-                    for (int c = 0; c < columnBlockSize; c++) {
-                        temp[r][c] = mySourceMatrix.get(r + myRowOffset, c + columnOffset);
-                    }
-                }
-
-                for (int c = 0; c < columnBlockSize; c++) {
-                    for (int r = 0; r < myRowBlockSize; r++) {
-                        myDestMatrix.set(r + myRowOffset, c + columnOffset, temp[r][c]);
-                    }
-                }
+    private static void writeTile(SuperByteMatrixRowMajor matrix, int rowOffset, int columnOffset, int numTileRows, int numTileColumns, byte[] tile) {
+        for (int r = 0; r < numTileRows; r++) {
+            matrix.setRow(rowOffset + r, columnOffset, tile, r * TRANSPOSE_BLOCK_SIZE, numTileColumns);
+        }
+    }
 
+    /**
+     * Transposes numRows x numColumns tile (row stride TRANSPOSE_BLOCK_SIZE)
+     * from in to out.
+     */
+    private static void transposeTile(byte[] in, byte[] out, int numRows, int numColumns) {
+        for (int r = 0; r < numRows; r++) {
+            int inOffset = r * TRANSPOSE_BLOCK_SIZE;
+            for (int c = 0; c < numColumns; c++) {
+                out[c * TRANSPOSE_BLOCK_SIZE + r] = in[inOffset + c];
             }
         }
     }
@@ -17,7 +17,7 @@ import java.util.stream.StreamSupport;
  *
  * @author Terry Casstevens
  */
-public class SuperByteMatrixMultiple implements SuperByteMatrix {
+public class SuperByteMatrixMultiple implements SuperByteMatrixRowMajor {
 
     private final byte[][] myData;
     private final int myNumRows;
@@ -56,6 +56,16 @@ public class SuperByteMatrixMultiple implements SuperByteMatrix {
         myData[getFirstIndex(row)][getSecondIndex(row, column)] = value;
     }
 
+    @Override
+    public void getRow(int row, int startColumn, byte[] dest, int destOffset, int length) {
+        System.arraycopy(myData[getFirstIndex(row)], getSecondIndex(row, startColumn), dest, destOffset, length);
+    }
+
+    @Override
+    public void setRow(int row, int startColumn, byte[] src, int srcOffset, int length) {
+        System.arraycopy(src, srcOffset, myData[getFirstIndex(row)], getSecondIndex(row, startColumn), length);
+    }
+
     @Override
     public void setAll(byte value) {
         int numSingleDimArrays = myData.length;
@@ -94,7 +104,7 @@ public class SuperByteMatrixMultiple implements SuperByteMatrix {
             throw new IndexOutOfBoundsException("SuperByteMatrixMultiple: getColumnRange: start: " + start);
         }
 
-        if ((end < 0) || (end >= myNumColumns)) {
+        if ((end < 0) || (end > myNumColumns)) {
             throw new IndexOutOfBoundsException("SuperByteMatrixMultiple: getColumnRange: end: " + end);
         }
 
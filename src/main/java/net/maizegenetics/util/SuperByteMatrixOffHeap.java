@@ -0,0 +1,368 @@
+/*
+ *  SuperByteMatrixOffHeap
+ */
+package net.maizegenetics.util;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+import java.util.stream.LongStream;
+import java.util.stream.Stream;
+
+/**
+ * SuperByteMatrix stored outside the Java heap. Rows are stored in direct
+ * ByteBuffer segments, or in segments memory-mapped from a temporary file
+ * when a spill directory is given. Neither counts against -Xmx, although
+ * direct buffers are limited by -XX:MaxDirectMemorySize. Call release() when
+ * done to free the storage (and delete the spill file) without waiting on
+ * garbage collection. The matrix must not be used after release().
+ *
+ * Performs best when column loop inside row loop.
+ */
+public class SuperByteMatrixOffHeap implements SuperByteMatrixRowMajor {
+
+    private static final Logger myLogger = LogManager.getLogger(SuperByteMatrixOffHeap.class);
+
+    private static final int MAX_SEGMENT_SIZE = 1 << 30;
+
+    private final ByteBuffer[] myData;
+    private final int myNumRows;
+    private final int myNumColumns;
+    private final int myNumRowsPerSegment;
+    private final Path mySpillFile;
+    private volatile boolean myIsReleased = false;
+
+    /**
+     * @param rows number of rows
+     * @param columns number of columns
+     * @param spillDir directory for temporary file or null for direct buffers
+     */
+    SuperByteMatrixOffHeap(int rows, int columns, Path spillDir) {
+
+        myNumRows = rows;
+        myNumColumns = columns;
+        myNumRowsPerSegment = Math.max(1, MAX_SEGMENT_SIZE / Math.max(1, columns));
+        int numSegments = (rows + myNumRowsPerSegment - 1) / myNumRowsPerSegment;
+        myData = new ByteBuffer[numSegments];
+
+        if (spillDir == null) {
+            mySpillFile = null;
+            for (int s = 0; s < numSegments; s++) {
+                myData[s] = ByteBuffer.allocateDirect(segmentSize(s));
+            }
+        } else {
+            try {
+                mySpillFile = Files.createTempFile(spillDir, "SuperByteMatrix", ".bin");
+                mySpillFile.toFile().deleteOnExit();
+                try (RandomAccessFile file = new RandomAccessFile(mySpillFile.toFile(), "rw");
+                     FileChannel channel = file.getChannel()) {
+                    file.setLength((long) rows * (long) columns);
+                    long offset = 0;
+                    for (int s = 0; s < numSegments; s++) {
+                        int size = segmentSize(s);
+                        myData[s] = channel.map(FileChannel.MapMode.READ_WRITE, offset, size);
+                        offset += size;
+                    }
+                }
+            } catch (Exception e) {
+                myLogger.debug(e.getMessage(), e);
+                throw new IllegalStateException("SuperByteMatrixOffHeap: init: problem creating spill file in: " + spillDir + ": " + e.getMessage());
+            }
+        }
+
+    }
+
+    /**
+     * Returns directory of spill file or null if using direct buffers.
+     */
+    Path spillDirectory() {
+        return mySpillFile == null ? null : mySpillFile.getParent();
+    }
+
+    private int segmentSize(int segment) {
+        int numRows = Math.min(myNumRowsPerSegment, myNumRows - segment * myNumRowsPerSegment);
+        return numRows * myNumColumns;
+    }
+
+    private ByteBuffer segment(int row) {
+        return myData[row / myNumRowsPerSegment];
+    }
+
+    private int index(int row, int column) {
+        return (row % myNumRowsPerSegment) * myNumColumns + column;
+    }
+
+    /**
+     * Returns view of segment containing row positioned at given column.
+     * Views keep bulk transfers thread safe.
+     */
+    private ByteBuffer view(int row, int column) {
+        ByteBuffer result = segment(row).duplicate();
+        result.position(index(row, column));
+        return result;
+    }
+
+    @Override
+    public int getNumRows() {
+        return myNumRows;
+    }
+
+    @Override
+    public int getNumColumns() {
+        return myNumColumns;
+    }
+
+    @Override
+    public void set(int row, int column, byte value) {
+        segment(row).put(index(row, column), value);
+    }
+
+    @Override
+    public void arraycopy(int row, byte[] src, int startColumn) {
+        view(row, startColumn).put(src);
+    }
+
+    @Override
+    public void getRow(int row, int startColumn, byte[] dest, int destOffset, int length) {
+        view(row, startColumn).get(dest, destOffset, length);
+    }
+
+    @Override
+    public void setRow(int row, int startColumn, byte[] src, int srcOffset, int length) {
+        view(row, startColumn).put(src, srcOffset, length);
+    }
+
+    @Override
+    public void setAll(byte value) {
+        byte[] temp = new byte[myNumColumns];
+        Arrays.fill(temp, value);
+        IntStream.range(0, myNumRows).parallel().forEach(row -> arraycopy(row, temp, 0));
+    }
+
+    @Override
+    public byte get(int row, int column) {
+        return segment(row).get(index(row, column));
+    }
+
+    @Override
+    public byte[] getAllColumns(int row) {
+
+        if ((row < 0) || (row >= myNumRows)) {
+            throw new IndexOutOfBoundsException("SuperByteMatrixOffHeap: getAllColumns: row: " + row);
+        }
+
+        byte[] result = new byte[myNumColumns];
+        view(row, 0).get(result);
+        return result;
+
+    }
+
+    @Override
+    public byte[] getColumnRange(int row, int start, int end) {
+
+        if ((row < 0) || (row >= myNumRows)) {
+            throw new IndexOutOfBoundsException("SuperByteMatrixOffHeap: getColumnRange: row: " + row);
+        }
+
+        if ((start < 0) || (start >= myNumColumns)) {
+            throw new IndexOutOfBoundsException("SuperByteMatrixOffHeap: getColumnRange: start: " + start);
+        }
+
+        if ((end < 0) || (end > myNumColumns)) {
+            throw new IndexOutOfBoundsException("SuperByteMatrixOffHeap: getColumnRange: end: " + end);
+        }
+
+        if (end < start) {
+            throw new IllegalArgumentException("SuperByteMatrixOffHeap: getColumnRange: end: " + end + " less than start: " + start);
+        }
+
+        byte[] result = new byte[end - start];
+        view(row, start).get(result);
+        return result;
+
+    }
+
+    @Override
+    public byte[] getAllRows(int column) {
+
+        if ((column < 0) || (column >= myNumColumns)) {
+            throw new IndexOutOfBoundsException("SuperByteMatrixOffHeap: getAllRows: column: " + column);
+        }
+
+        byte[] result = new byte[myNumRows];
+        for (int row = 0; row < myNumRows; row++) {
+            result[row] = get(row, column);
+        }
+        return result;
+
+    }
+
+    @Override
+    public boolean isColumnInnerLoop() {
+        return true;
+    }
+
+    @Override
+    public void reorderRows(int[] newIndices) {
+
+        if (newIndices.length != myNumRows) {
+            throw new IllegalArgumentException("SuperByteMatrixOffHeap: reorderRows: index array size: " + newIndices.length + " doesn't equal num rows in matrix: " + myNumRows);
+        }
+
+        int[] tempIndices = new int[newIndices.length];
+        System.arraycopy(newIndices, 0, tempIndices, 0, myNumRows);
+
+        int currentRow = 0;
+        byte[] temp = new byte[myNumColumns];
+        byte[] moving = new byte[myNumColumns];
+
+        while (currentRow < myNumRows) {
+
+            while (currentRow < myNumRows) {
+                if ((tempIndices[currentRow] == currentRow) || (tempIndices[currentRow] == -1)) {
+                    tempIndices[currentRow] = -1;
+                } else {
+                    break;
+                }
+                currentRow++;
+            }
+
+            if (currentRow < myNumRows) {
+
+                view(currentRow, 0).get(temp);
+
+                int srcRow = tempIndices[currentRow];
+                int destRow = currentRow;
+                while (srcRow != currentRow) {
+                    view(srcRow, 0).get(moving);
+                    view(destRow, 0).put(moving);
+                    tempIndices[destRow] = -1;
+                    destRow = srcRow;
+                    srcRow = tempIndices[destRow];
+                }
+
+                view(destRow, 0).put(temp);
+                tempIndices[destRow] = -1;
+
+            }
+
+        }
+
+    }
+
+    @Override
+    public void reorderColumns(int[] newIndices) {
+
+        if (newIndices.length != myNumColumns) {
+            throw new IllegalArgumentException("SuperByteMatrixOffHeap: reorderColumns: index array size: " + newIndices.length + " doesn't equal num columns in matrix: " + myNumColumns);
+        }
+
+        // each row is permuted independently
+        IntStream.range(0, myNumRows).parallel().forEach(row -> {
+            byte[] original = getAllColumns(row);
+            byte[] reordered = new byte[myNumColumns];
+            for (int c = 0; c < myNumColumns; c++) {
+                reordered[c] = original[newIndices[c]];
+            }
+            arraycopy(row, reordered, 0);
+        });
+
+    }
+
+    @Override
+    public void setHetsTo(byte value) {
+        IntStream.range(0, myNumRows).parallel().forEach(row -> {
+            byte[] current = getAllColumns(row);
+            boolean changed = false;
+            for (int i = 0; i < myNumColumns; i++) {
+                if (((current[i] >>> 4) & 0xf) != (current[i] & 0xf)) {
+                    current[i] = value;
+                    changed = true;
+                }
+            }
+            if (changed) {
+                arraycopy(row, current, 0);
+            }
+        });
+    }
+
+    @Override
+    public Stream<Byte> stream() {
+        return LongStream.range(0, (long) myNumRows * (long) myNumColumns).parallel()
+                .mapToObj(i -> get((int) (i / myNumColumns), (int) (i % myNumColumns)));
+    }
+
+    @Override
+    public Stream<Byte> stream(int row) {
+        return IntStream.range(0, myNumColumns).parallel().mapToObj(c -> get(row, c));
+    }
+
+    @Override
+    public void release() {
+
+        if (myIsReleased) {
+            return;
+        }
+        myIsReleased = true;
+
+        for (int s = 0; s < myData.length; s++) {
+            ByteBuffer current = myData[s];
+            myData[s] = null;
+            freeBuffer(current);
+        }
+
+        if (mySpillFile != null) {
+            try {
+                Files.deleteIfExists(mySpillFile);
+            } catch (Exception e) {
+                myLogger.debug(e.getMessage(), e);
+                myLogger.warn("SuperByteMatrixOffHeap: release: couldn't delete: " + mySpillFile);
+            }
+        }
+
+    }
+
+    private static final Object UNSAFE;
+    private static final Method INVOKE_CLEANER;
+
+    static {
+        Object unsafe = null;
+        Method invokeCleaner = null;
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            unsafe = field.get(null);
+            invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+        } catch (Exception e) {
+            myLogger.debug("SuperByteMatrixOffHeap: buffers will be freed by garbage collection: " + e.getMessage());
+        }
+        UNSAFE = unsafe;
+        INVOKE_CLEANER = invokeCleaner;
+    }
+
+    /**
+     * Frees direct or mapped buffer immediately if the JVM allows it.
+     * Otherwise it's freed when garbage collected.
+     */
+    private static void freeBuffer(ByteBuffer buffer) {
+        if (buffer == null || INVOKE_CLEANER == null) {
+            return;
+        }
+        try {
+            INVOKE_CLEANER.invoke(UNSAFE, buffer);
+        } catch (Exception e) {
+            myLogger.debug(e.getMessage(), e);
+        }
+    }
+
+}
@@ -0,0 +1,25 @@
+/*
+ *  SuperByteMatrixRowMajor
+ */
+package net.maizegenetics.util;
+
+/**
+ * SuperByteMatrix stored row by row (column loop inside row loop) that can
+ * copy parts of rows to and from its backing storage without creating new
+ * arrays. Used by SuperByteMatrixBuilder to transpose tile by tile.
+ */
+interface SuperByteMatrixRowMajor extends SuperByteMatrix {
+
+    /**
+     * Copies length values of row starting at startColumn into dest starting
+     * at destOffset.
+     */
+    public void getRow(int row, int startColumn, byte[] dest, int destOffset, int length);
+
+    /**
+     * Copies length values from src starting at srcOffset into row starting at
+     * startColumn.
+     */
+    public void setRow(int row, int startColumn, byte[] src, int srcOffset, int length);
+
+}
@@ -13,7 +13,7 @@ import java.util.stream.StreamSupport;
  *
  * @author Terry Casstevens
  */
-public class SuperByteMatrixSingle implements SuperByteMatrix {
+public class SuperByteMatrixSingle implements SuperByteMatrixRowMajor {
 
     private final byte[] myData;
     private int myNumRows;
@@ -45,6 +45,16 @@ public class SuperByteMatrixSingle implements SuperByteMatrix {
         System.arraycopy(src, 0, myData, start, src.length);
     }
 
+    @Override
+    public void getRow(int row, int startColumn, byte[] dest, int destOffset, int length) {
+        System.arraycopy(myData, getIndex(row, startColumn), dest, destOffset, length);
+    }
+
+    @Override
+    public void setRow(int row, int startColumn, byte[] src, int srcOffset, int length) {
+        System.arraycopy(src, srcOffset, myData, getIndex(row, startColumn), length);
+    }
+
     @Override
     public void setAll(byte value) {
         Arrays.fill(myData, value);
@@ -80,7 +90,7 @@ public class SuperByteMatrixSingle implements SuperByteMatrix {
             throw new IndexOutOfBoundsException("SuperByteMatrixSingle: getColumnRange: start: " + start);
         }
 
-        if ((end < 0) || (end >= myNumColumns)) {
+        if ((end < 0) || (end > myNumColumns)) {
             throw new IndexOutOfBoundsException("SuperByteMatrixSingle: getColumnRange: end: " + end);
         }
 
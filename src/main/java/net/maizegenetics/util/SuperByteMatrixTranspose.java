@@ -17,6 +17,20 @@ public class SuperByteMatrixTranspose implements SuperByteMatrix {
         myMatrix = SuperByteMatrixBuilder.getInstance(columns, rows);
     }
 
+    /**
+     * @param matrix underlying matrix with rows and columns swapped
+     */
+    SuperByteMatrixTranspose(SuperByteMatrix matrix) {
+        myMatrix = matrix;
+    }
+
+    /**
+     * Returns underlying matrix (rows and columns swapped).
+     */
+    SuperByteMatrix matrix() {
+        return myMatrix;
+    }
+
     @Override
     public int getNumRows() {
         return myMatrix.getNumColumns();
@@ -52,7 +66,7 @@ public class SuperByteMatrixTranspose implements SuperByteMatrix {
         int length = end - start;
         byte[] result = new byte[length];
         for (int i = 0; i < length; i++) {
-            result[i] = get(row, i);
+            result[i] = get(row, start + i);
         }
         return result;
     }
@@ -98,4 +112,9 @@ public class SuperByteMatrixTranspose implements SuperByteMatrix {
     public Stream<Byte> stream(int row) {
         return myMatrix.stream(row);
     }
+
+    @Override
+    public void release() {
+        myMatrix.release();
+    }
 }
@@ -125,6 +125,7 @@ class ExportPlugin(isInteractive: Boolean = false) : AbstractPlugin(isInteractiv
                 PluginParameter(myFileType,
                         listOf(TasselFileType.SqrMatrix,
                                 TasselFileType.SqrMatrixBin,
+                                TasselFileType.SqrMatrixTasselBin,
                                 TasselFileType.SqrMatrixRaw,
                                 TasselFileType.SqrMatrixDARwinDIS))
             }
@@ -206,6 +207,10 @@ class ExportPlugin(isInteractive: Boolean = false) : AbstractPlugin(isInteractiv
             val grmFiles = DistanceMatrixUtils.getGRMFilenames(saveFile)
             WriteDistanceMatrix.saveBinMultiBlupMatrix(input, grmFiles[0], grmFiles[1], grmFiles[2])
             grmFiles[1]
+        } else if (fileType == TasselFileType.SqrMatrixTasselBin) {
+            val filename = Utils.addSuffixIfNeeded(saveFile, FileLoadPlugin.FILE_EXT_TASSEL_BIN_MATRIX)
+            WriteDistanceMatrix.saveBinTasselMatrix(input, filename)
+            filename
         } else if (fileType == TasselFileType.SqrMatrixDARwinDIS) {
             val filename = Utils.addSuffixIfNeeded(saveFile, ".dis")
             WriteDistanceMatrix.saveDARwinMatrix(input, filename)
@@ -4,7 +4,6 @@
 package net.maizegenetics.analysis.data
 
 import net.maizegenetics.dna.snp.GenotypeTable
-import net.maizegenetics.dna.snp.GenotypeTableUtils
 import net.maizegenetics.dna.snp.genotypecall.AlleleFreqCache
 import net.maizegenetics.plugindef.*
 import net.maizegenetics.util.SimpleTableReport
@@ -96,11 +95,13 @@ class GenotypeSummaryPlugin(isInteractive: Boolean = false) : AbstractPlugin(isI
 
         if (!siteSummary) {
             val totalGametes = numTaxa.toInt() * 2
+            val genotypes = alignment.genotypeMatrix()
             for (i in 0 until numSites) {
-                val totalGametesNotMissing = alignment.totalGametesNonMissingForSite(i)
+                val stats = genotypes.siteStats(i)
+                val totalGametesNotMissing = stats.totalGametesNonMissing()
                 val totalGametesMissing = totalGametes - totalGametesNotMissing
                 myNumGametesMissing = myNumGametesMissing + totalGametesMissing.toLong()
-                val numHeterozygous = alignment.heterozygousCount(i)
+                val numHeterozygous = stats.unequalAllelesCount()
                 myNumHeterozygous = myNumHeterozygous + numHeterozygous.toLong()
                 myAveMinorAlleleFreq += alignment.minorAlleleFrequency(i)
             }
@@ -221,6 +222,7 @@ class GenotypeSummaryPlugin(isInteractive: Boolean = false) : AbstractPlugin(isI
         val numTaxa = alignment.numberOfTaxa()
         val data = Array(numSites) { Array<Any?>(columnNames.size) { null } }
         val totalGametes = numTaxa * 2
+        val genotypes = alignment.genotypeMatrix()
 
         for (i in 0 until numSites) {
 
@@ -236,7 +238,8 @@ class GenotypeSummaryPlugin(isInteractive: Boolean = false) : AbstractPlugin(isI
 
             val alleles = alignment.allelesSortedByFrequency(i)
             val numAlleles = alleles[0].size
-            val totalNotMissing = alignment.totalNonMissingForSite(i)
+            val stats = genotypes.siteStats(i)
+            val totalNotMissing = stats.totalNonMissing()
             val totalGametesNotMissing = AlleleFreqCache.totalGametesNonMissingForSite(alleles)
 
             for (a in 0 until numAlleles) {
@@ -262,7 +265,7 @@ class GenotypeSummaryPlugin(isInteractive: Boolean = false) : AbstractPlugin(isI
             data[i][count++] = totalGametesMissing
             data[i][count++] = totalGametesMissing.toDouble() / totalGametes.toDouble()
 
-            val numHeterozygous = alignment.heterozygousCount(i)
+            val numHeterozygous = stats.unequalAllelesCount()
             myNumHeterozygous += numHeterozygous.toLong()
             data[i][count++] = numHeterozygous
             data[i][count++] = numHeterozygous.toDouble() / totalNotMissing.toDouble()
@@ -285,36 +288,14 @@ class GenotypeSummaryPlugin(isInteractive: Boolean = false) : AbstractPlugin(isI
         val numTaxa = alignment.numberOfTaxa()
         val totalGametes = numSites * 2
 
-        val gametesNotMissing = IntArray(numTaxa)
-        val sitesNotMissing = IntArray(numTaxa)
-        val heterozygous = IntArray(numTaxa)
-        for (s in 0 until numSites) {
-            val genotypes = alignment.genotypeAllTaxa(s)
-            for (t in 0 until numTaxa) {
-                val alleles = GenotypeTableUtils.getDiploidValues(genotypes[t])
-                if (alleles[0] != GenotypeTable.UNKNOWN_ALLELE) {
-                    if (alleles[1] != GenotypeTable.UNKNOWN_ALLELE) {
-                        gametesNotMissing[t] += 2
-                        sitesNotMissing[t]++
-                    } else {
-                        gametesNotMissing[t]++
-                        sitesNotMissing[t]++
-                    }
-                } else if (alleles[1] != GenotypeTable.UNKNOWN_ALLELE) {
-                    gametesNotMissing[t]++
-                    sitesNotMissing[t]++
-                }
-
-                if (alleles[0] != alleles[1]) {
-                    heterozygous[t]++
-                }
-            }
-        }
+        val genotypes = alignment.genotypeMatrix()
 
         val data = Array(numTaxa) { Array<Any?>(columnNames.size) { null } }
         for (i in 0 until numTaxa) {
 
-            val totalGametesMissing = totalGametes - gametesNotMissing[i]
+            val stats = genotypes.taxonStats(i)
+            val heterozygous = stats.unequalAllelesCount()
+            val totalGametesMissing = totalGametes - stats.totalGametesNonMissing()
 
             var count = 0
             data[i][count++] = i
@@ -322,8 +303,8 @@ class GenotypeSummaryPlugin(isInteractive: Boolean = false) : AbstractPlugin(isI
             data[i][count++] = numSites
             data[i][count++] = totalGametesMissing
             data[i][count++] = totalGametesMissing.toDouble() / totalGametes.toDouble()
-            data[i][count++] = heterozygous[i]
-            data[i][count++] = heterozygous[i].toDouble() / sitesNotMissing[i].toDouble()
+            data[i][count++] = heterozygous
+            data[i][count++] = heterozygous.toDouble() / stats.totalNonMissing().toDouble()
             data[i][count++] = "Inbreeding Coefficient"
             data[i][count++] = "ICSBM"
         }
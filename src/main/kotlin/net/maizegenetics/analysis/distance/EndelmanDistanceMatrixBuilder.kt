@@ -7,26 +7,79 @@ import net.maizegenetics.dna.factor.UNKNOWN_ALLELE
 import net.maizegenetics.dna.factor.site.FeatureSite
 import net.maizegenetics.taxa.distance.DistanceMatrix
 import net.maizegenetics.taxa.distance.DistanceMatrixBuilder
+import net.maizegenetics.taxa.distance.MappedDistanceMatrixBuilder
+import net.maizegenetics.util.GeneralAnnotation
 import net.maizegenetics.util.GeneralAnnotationStorage
 import net.maizegenetics.util.ProgressListener
 import org.apache.logging.log4j.LogManager
+import java.io.File
 import java.util.*
+import java.util.concurrent.atomic.AtomicInteger
 import kotlin.math.roundToLong
 import kotlin.system.measureNanoTime
 
-class EndelmanDistanceMatrixBuilder(val table: FeatureTable, val maxAlleles: Int = 255, private val listener: ProgressListener? = null) {
+/**
+ * Centered_IBS (Endelman) kinship. The upper triangle of the taxa x taxa
+ * result is stored once and divided into disjoint tiles. Pseudo-sites are
+ * read in chunks, and each chunk is applied to every tile, with threads
+ * taking tiles. A tile's distances stay in cache while all blocks of the
+ * chunk are added to it, and no thread needs its own copy of the result.
+ *
+ * When dominance is specified, this calculates Dominance_Centered_IBS
+ * instead. Each site is one pseudo-site coded heterozygous or homozygous,
+ * centered by the site's heterozygosity H (expected from allele
+ * frequencies or observed proportion heterozygous), and the sums are divided
+ * by the sum of H(1 - H).
+ *
+ * build(filename) calculates the matrix out-of-core for taxa counts whose
+ * result doesn't fit on the heap. Tiles are processed in bands that fit
+ * within the given memory, with the genotypes streamed once per band. Each
+ * finished band is written to a memory mapped TASSEL binary matrix file
+ * (see MappedDistanceMatrixBuilder) and recorded in a progress file
+ * (filename.progress) with a fingerprint of the genotypes. If the job is
+ * restarted with the same genotypes and filename, tiles already recorded
+ * are skipped. The returned matrix is
+ * backed by the file.
+ *
+ * A matrix can be updated instead of recalculated. state() returns the
+ * pseudo-site allele frequencies and sumPk to save with a matrix (see
+ * EndelmanKinshipState). addSites() adds this table's sites to an existing
+ * matrix by combining unnormalized sums. When created with a state,
+ * pseudo-sites use the saved frequencies, and appendTaxa() calculates only
+ * the rows of taxa not in the existing matrix.
+ */
+class EndelmanDistanceMatrixBuilder(val table: FeatureTable, val maxAlleles: Int = 255, private val listener: ProgressListener? = null, private val dominance: KinshipPlugin.ALGORITHM_VARIATION? = null, private val state: EndelmanKinshipState? = null) {
 
     private val logger = LogManager.getLogger(EndelmanDistanceMatrixBuilder::class.java)
 
-    private val psuedoSiteChannel = Channel<List<List<PsuedoSite>>>(1000)
-
-    private val resultsChannel = Channel<CountersDistances>(30)
-
     private var numProcessingThreads: Int = 1
 
     data class PsuedoSite(val site: FeatureSite, val allele: Byte, val alleleFreq: Float)
 
+    //
+    // Pre-calculated allele counts and answers for one block of
+    // fifteen pseudo-sites (three sub-blocks of five).
+    //
+    private class BlockOfSites(val alleleCount1: ShortArray, val alleleCount2: ShortArray, val alleleCount3: ShortArray,
+                               val answer1: FloatArray, val answer2: FloatArray, val answer3: FloatArray, val sumPi: Double)
+
+    // number of taxa on each side of a tile
+    private val tileSize = 256
+
+    init {
+        require(state == null || state.dominance == dominance) { "EndelmanDistanceMatrixBuilder: kinship state is ${state?.method()} (${state?.dominance}) not ${if (dominance == null) KinshipPlugin.KINSHIP_METHOD.Centered_IBS else KinshipPlugin.KINSHIP_METHOD.Dominance_Centered_IBS} ($dominance)" }
+    }
+
     fun build(): DistanceMatrix {
+        accumulate()
+        return createMatrix()
+    }
+
+    //
+    // Calculates the unnormalized distance sums of all taxa pairs
+    // in memory.
+    //
+    private fun accumulate() {
 
         val time = measureNanoTime {
 
@@ -34,37 +87,372 @@ class EndelmanDistanceMatrixBuilder(val table: FeatureTable, val maxAlleles: Int
             numProcessingThreads = (Runtime.getRuntime().availableProcessors() - 2).coerceAtLeast(1)
             logger.debug("EndelmanDistanceMatrixBuilder: numProcessingThreads: $numProcessingThreads")
 
-            CoroutineScope(Dispatchers.IO).launch { createPsuedoSites() }
+            val psuedoSiteChannel = Channel<List<List<PsuedoSite>>>(1000)
+            CoroutineScope(Dispatchers.IO).launch { createPsuedoSites(psuedoSiteChannel) }
+
+            val allTiles = tiles.indices.toList()
+            sumPi = runBlocking {
+                processPsuedoSites(psuedoSiteChannel, allTiles, { tile, blocks ->
+                    val rowTile = tiles[tile].first
+                    val columnTile = tiles[tile].second
+                    val firstStart = rowTile * tileSize
+                    val rowBases = IntArray(minOf(tileSize, numTaxa - firstStart)) { rowStarts[firstStart + it] - (firstStart + it) }
+                    processTile(firstStart, columnTile * tileSize, blocks, distances, rowBases)
+                }, { fraction -> fireProgress((fraction * 100.0).toInt(), listener) })
+            }
+
+        }
+
+        logActualTime(time)
 
-            runBlocking {
-                val jobs = List(numProcessingThreads) {
-                    launch(Dispatchers.Default) {
-                        processPsuedoSites()
-                    }
+    }
+
+    /**
+     * Returns the allele frequency of each pseudo-site of this table and
+     * sumPk, to be saved with the matrix for later updates.
+     */
+    fun state(): EndelmanKinshipState {
+        val bySite = table.map { Pair(it, psuedoSites(it)) }
+        val psuedoSites = bySite.flatMap { it.second }
+        val frequencies = psuedoSites.map {
+            val feature = it.site.feature
+            EndelmanKinshipState.PsuedoSiteFrequency(feature.startChr.name, feature.startPos, feature.endPos, it.allele, it.alleleFreq)
+        }
+        val otherSites = bySite.filter { it.second.isEmpty() }.map { EndelmanKinshipState.SitePosition(it.first) }
+        return EndelmanKinshipState(dominance, sumPk(sumPi(psuedoSites.asSequence())), frequencies, otherSites)
+    }
+
+    /**
+     * Adds the sites of this table to existing matrix. Existing must have
+     * the same taxa, and existingState must be its saved state. Since the
+     * matrix times sumPk is the unnormalized sums, the result is the
+     * existing sums plus the sums of these sites, divided by the combined
+     * sumPk. The state of the result is existingState + state(). This
+     * builder must be created without a state, so frequencies of the new
+     * sites come from the table.
+     *
+     * @param existing existing matrix
+     * @param existingState state saved with existing
+     *
+     * @return matrix of existing and new sites
+     */
+    fun addSites(existing: DistanceMatrix, existingState: EndelmanKinshipState): DistanceMatrix {
+
+        require(state == null) { "EndelmanDistanceMatrixBuilder: addSites: must be created without a state, so new site frequencies come from genotype" }
+        require(existingState.dominance == dominance) { "EndelmanDistanceMatrixBuilder: addSites: existing matrix is ${existingState.method()} (${existingState.dominance})" }
+        val existingIndex = existingIndices(existing)
+        require(existing.numberOfTaxa() == numTaxa && existingIndex.all { it >= 0 }) { "EndelmanDistanceMatrixBuilder: addSites: genotype must have the same taxa as existing matrix" }
+        require(table.none { it in existingState }) { "EndelmanDistanceMatrixBuilder: addSites: genotype has sites already in existing matrix" }
+
+        accumulate()
+
+        val existingSumPk = existingState.sumPk
+        val sumpk = existingSumPk + sumPk(sumPi)
+
+        val builder: DistanceMatrixBuilder = DistanceMatrixBuilder.getInstance(table.taxa)
+        builder.annotation(annotations(sumpk))
+        var index = 0
+        for (t in 0 until numTaxa) {
+            for (u in t until numTaxa) {
+                builder[t, u] = (existing.getDistance(existingIndex[t], existingIndex[u]) * existingSumPk + distances[index]) / sumpk
+                index++
+            }
+        }
+
+        return builder.build()
+
+    }
+
+    /**
+     * Appends taxa of this table not in existing matrix. This builder must
+     * have been created with the state saved with existing, so new rows use
+     * the same allele frequencies and sumPk, and existing distances are
+     * copied unchanged. Only pairs with a new taxon are calculated, so the
+     * cost is proportional to the number of new taxa, wherever they are in
+     * the taxa order. The table must have all taxa of existing and exactly
+     * the sites of the state, so new rows have the same scale as existing.
+     *
+     * @param existing existing matrix
+     *
+     * @return matrix of existing and new taxa
+     */
+    fun appendTaxa(existing: DistanceMatrix): DistanceMatrix {
+
+        val state = requireNotNull(state) { "EndelmanDistanceMatrixBuilder: appendTaxa: must be created with state of existing matrix" }
+        val existingIndex = existingIndices(existing)
+        require(existingIndex.count { it >= 0 } == existing.numberOfTaxa()) { "EndelmanDistanceMatrixBuilder: appendTaxa: genotype must have all taxa of existing matrix" }
+        require(table.sumOf { state.frequencies(it).size } == state.frequencies.size) { "EndelmanDistanceMatrixBuilder: appendTaxa: genotype must have all sites of the state" }
+        require(table.all { it in state }) { "EndelmanDistanceMatrixBuilder: appendTaxa: genotype has sites not in the state" }
+
+        val isNew = BooleanArray(numTaxa) { existingIndex[it] < 0 }
+        val numNew = isNew.count { it }
+        logger.info("EndelmanDistanceMatrixBuilder: appendTaxa: existing taxa: ${existing.numberOfTaxa()}  new taxa: $numNew")
+        if (numNew == 0) return existing
+
+        numProcessingThreads = (Runtime.getRuntime().availableProcessors() - 2).coerceAtLeast(1)
+
+        //
+        // Existing taxa are ordered first and new taxa last, so the pairs
+        // with a new taxon are the strips of columns from numExisting.
+        // Strips are divided into tiles, and only these are calculated.
+        //
+        val numExisting = numTaxa - numNew
+        val order = (0 until numTaxa).filter { !isNew[it] }.plus((0 until numTaxa).filter { isNew[it] }).toIntArray()
+        val newTiles = (numExisting until numTaxa step tileSize).flatMap { secondStart ->
+            val secondEnd = minOf(secondStart + tileSize, numTaxa)
+            (0 until secondEnd step tileSize).map { firstStart -> Pair(firstStart, secondStart) }
+        }
+        val tileElements = tileSize * tileSize
+        val sums = Array(newTiles.size) { FloatArray(tileElements) }
+
+        val time = measureNanoTime {
+
+            taxaOrder = order
+            try {
+
+                val psuedoSiteChannel = Channel<List<List<PsuedoSite>>>(1000)
+                CoroutineScope(Dispatchers.IO).launch { createPsuedoSites(psuedoSiteChannel) }
+
+                runBlocking {
+                    processPsuedoSites(psuedoSiteChannel, newTiles.indices.toList(), { index, blocks ->
+                        val secondStart = newTiles[index].second
+                        val rowBases = IntArray(tileSize) { it * tileSize - secondStart }
+                        processTile(newTiles[index].first, secondStart, blocks, sums[index], rowBases)
+                    }, { fraction -> fireProgress((fraction * 100.0).toInt(), listener) })
                 }
-                jobs.forEach { it.join() }
 
-                resultsChannel.close()
+            } finally {
+                taxaOrder = null
             }
 
         }
 
+        logActualTime(time)
+
+        val sumpk = state.sumPk
+        val builder: DistanceMatrixBuilder = DistanceMatrixBuilder.getInstance(table.taxa)
+        builder.annotation(annotations(sumpk))
+
+        for (t in 0 until numExisting) {
+            for (u in t until numExisting) {
+                builder[order[t], order[u]] = existing.getDistance(existingIndex[order[t]], existingIndex[order[u]])
+            }
+        }
+
+        newTiles.forEachIndexed { index, (firstStart, secondStart) ->
+            for (firstTaxa in firstStart until minOf(firstStart + tileSize, numTaxa)) {
+                for (secondTaxa in maxOf(firstTaxa, secondStart) until minOf(secondStart + tileSize, numTaxa)) {
+                    builder[order[firstTaxa], order[secondTaxa]] = sums[index][(firstTaxa - firstStart) * tileSize + secondTaxa - secondStart] / sumpk
+                }
+            }
+        }
+
+        return builder.build()
+
+    }
+
+    //
+    // Index of each taxon of table in existing matrix, or -1 if not
+    // in existing.
+    //
+    private fun existingIndices(existing: DistanceMatrix): IntArray {
+        val existingTaxa = existing.getTaxaList()
+        return IntArray(numTaxa) { existingTaxa.indexOf(table.taxa[it]) }
+    }
+
+    /**
+     * Calculates the matrix out-of-core, writing it to filename as a TASSEL
+     * binary matrix. Tile sums are held on the heap for at most maxMemory
+     * bytes at a time. If filename was partially written by an earlier run
+     * with the same genotypes, the tiles it completed are reused.
+     *
+     * @param filename output TASSEL binary matrix
+     * @param maxMemory max bytes of tile sums held at once
+     *
+     * @return matrix backed by filename
+     */
+    fun build(filename: String, maxMemory: Long = DEFAULT_OUT_OF_CORE_MEMORY): DistanceMatrix {
+
+        numProcessingThreads = (Runtime.getRuntime().availableProcessors() - 2).coerceAtLeast(1)
+        logger.debug("EndelmanDistanceMatrixBuilder: factor table num taxa: ${table.numTaxa()}  num factors: ${table.numFeatures()}  out-of-core file: $filename")
+
+        //
+        // Final divisor is needed before any tile can be written,
+        // and is part of the file header, so is calculated first.
+        //
+        val sumpk = state?.sumPk ?: sumPk(sumPi(table.asSequence().flatMap { psuedoSites(it) }))
+
+        val writer = MappedDistanceMatrixBuilder.getInstance(filename, table.taxa, annotations(sumpk))
+        val progress = TileProgress(File("$filename.progress"), writer.isExisting, "sumPk: $sumpk ${genotypeFingerprint()}")
+        val remaining = tiles.indices.filter { !progress.isComplete(it) }
+        logger.info("EndelmanDistanceMatrixBuilder: out-of-core: ${tiles.size - remaining.size} of ${tiles.size} tiles already complete")
+
+        val tileElements = tileSize * tileSize
+        val tilesPerBand = (maxMemory / (tileElements.toLong() * Float.SIZE_BYTES)).coerceIn(1L, Int.MAX_VALUE.toLong()).toInt()
+        var numComplete = tiles.size - remaining.size
+
+        val time = measureNanoTime {
+
+            remaining.chunked(tilesPerBand).forEach { band ->
+
+                val sums = Array(band.size) { FloatArray(tileElements) }
+
+                val psuedoSiteChannel = Channel<List<List<PsuedoSite>>>(1000)
+                CoroutineScope(Dispatchers.IO).launch { createPsuedoSites(psuedoSiteChannel) }
+
+                runBlocking {
+                    processPsuedoSites(psuedoSiteChannel, band.indices.toList(), { index, blocks ->
+                        val columnStart = tiles[band[index]].second * tileSize
+                        val rowBases = IntArray(tileSize) { it * tileSize - columnStart }
+                        processTile(tiles[band[index]].first * tileSize, columnStart, blocks, sums[index], rowBases)
+                    }, { fraction ->
+                        fireProgress(((numComplete + fraction * band.size) / tiles.size * 100.0).toInt(), listener)
+                    })
+                }
+
+                band.indices.toList().parallelStream().forEach { index -> writeTile(writer, band[index], sums[index], sumpk) }
+                writer.force()
+                progress.complete(band)
+                numComplete += band.size
+
+            }
+
+        }
+
+        logActualTime(time)
+
+        val result = writer.build()
+        progress.delete()
+        return result
+
+    }
+
+    //
+    // Writes tile sums divided by sumpk. Upper triangle (first taxon <=
+    // second taxon) of tile is lower triangle in file, so each second
+    // taxon is a row of the file.
+    //
+    private fun writeTile(writer: MappedDistanceMatrixBuilder, tile: Int, sums: FloatArray, sumpk: Double) {
+
+        val firstStart = tiles[tile].first * tileSize
+        val firstEnd = minOf(firstStart + tileSize, numTaxa)
+        val secondStart = tiles[tile].second * tileSize
+        val secondEnd = minOf(secondStart + tileSize, numTaxa)
+
+        val row = FloatArray(tileSize)
+        for (secondTaxa in secondStart until secondEnd) {
+            val length = minOf(firstEnd - 1, secondTaxa) - firstStart + 1
+            val column = secondTaxa - secondStart
+            for (i in 0 until length) {
+                row[i] = (sums[i * tileSize + column] / sumpk).toFloat()
+            }
+            writer.setRow(secondTaxa, firstStart, row, 0, length)
+        }
+
+    }
+
+    //
+    // Tiles completed by out-of-core build(), one tile number per line
+    // after a line identifying the tile layout. Lines are appended after
+    // the tiles are written to storage, so a partial last line from a job
+    // that died is ignored.
+    //
+    private inner class TileProgress(private val file: File, matrixExisting: Boolean, fingerprint: String) {
+
+        private val layout = "tileSize: $tileSize numTaxa: $numTaxa numTiles: ${tiles.size} $fingerprint"
+
+        private val complete = BitSet(tiles.size)
+
+        init {
+            if (matrixExisting && file.isFile) {
+                val lines = file.readLines()
+                if (lines.firstOrNull() == layout) {
+                    lines.drop(1).forEach { line ->
+                        val tile = line.toIntOrNull()
+                        if (tile != null && tile in tiles.indices) complete.set(tile)
+                    }
+                }
+            }
+            if (complete.isEmpty) file.writeText(layout + "\n")
+        }
+
+        fun isComplete(tile: Int) = complete[tile]
+
+        fun complete(band: List<Int>) {
+            file.appendText(band.joinToString(separator = "\n", postfix = "\n"))
+            band.forEach { complete.set(it) }
+        }
+
+        fun delete() {
+            file.delete()
+        }
+
+    }
+
+    //
+    // Identifies the genotypes, so tiles from an earlier out-of-core run
+    // are only reused for the same data: number of sites, first and last
+    // sites, and a hash (64-bit FNV-1a) of every site and genotype.
+    //
+    private fun genotypeFingerprint(): String {
+
+        var hash = -0x340d631b7bdddcdbL
+        fun mix(value: Int) {
+            hash = (hash xor value.toLong()) * 0x100000001b3L
+        }
+
+        table.forEach { site ->
+            mix(site.feature.startChr.name.hashCode())
+            mix(site.feature.startPos)
+            mix(site.feature.endPos)
+            for (taxon in 0 until numTaxa) {
+                site.genotype(taxon).forEach { mix(it.toInt()) }
+            }
+        }
+
+        fun position(site: FeatureSite) = "${site.feature.startChr.name}:${site.feature.startPos}"
+        val first = table.firstOrNull()?.let { position(it) }
+        val last = table.lastOrNull()?.let { position(it) }
+        return "sites: ${table.numFeatures()} first: $first last: $last genotypes: ${java.lang.Long.toHexString(hash)}"
+
+    }
+
+    private fun logActualTime(time: Long) {
         val estimatedNumMinutesToRun = (time.toDouble() / 1e9 / 60.0).roundToLong()
         if (estimatedNumMinutesToRun < 60L) {
             logger.info("EndelmanDistanceMatrixBuilder: actual time to complete: $estimatedNumMinutesToRun minutes")
         } else {
             logger.info("EndelmanDistanceMatrixBuilder: actual time to complete: ${estimatedNumMinutesToRun / 60} hours ${estimatedNumMinutesToRun % 60} minutes")
         }
-
-        return runBlocking { accumulateResults() }
-
     }
 
     private val numPsuedoSitesPerBlock = 15
     private val numBlocksPerChunk = 200
     private var aveAllelesPerSite = 0.0
 
-    private suspend fun createPsuedoSites() = withContext(Dispatchers.IO) {
+    private fun psuedoSites(site: FeatureSite): List<PsuedoSite> {
+
+        return if (state != null) {
+            state.frequencies(site).map { PsuedoSite(site, it.allele, it.frequency) }
+        } else if (dominance != null) {
+            //
+            // One pseudo-site per site. Allele frequency
+            // holds heterozygosity of site.
+            //
+            val heterozygosity = heterozygosity(site, dominance)
+            if (heterozygosity > 0.0f) listOf(PsuedoSite(site, UNKNOWN_ALLELE, heterozygosity)) else emptyList()
+        } else {
+            val siteStats = site.alleleStats
+            siteStats.alleleCounts
+                    .dropLast(1)
+                    .map { alleleCount ->
+                        PsuedoSite(site, alleleCount.allele, alleleCount.count.toFloat() / siteStats.totalNonMissingAlleles.toFloat())
+                    }
+        }
+
+    }
+
+    private suspend fun createPsuedoSites(psuedoSiteChannel: Channel<List<List<PsuedoSite>>>) = withContext(Dispatchers.IO) {
 
         var numSitesProcessed = 0
         var totalNumAllelesToEvaluate = 0
@@ -72,14 +460,10 @@ class EndelmanDistanceMatrixBuilder(val table: FeatureTable, val maxAlleles: Int
         table
                 .map { site ->
                     numSitesProcessed++
-                    val siteStats = site.alleleStats
-                    totalNumAllelesToEvaluate += siteStats.numAlleles - 1
+                    val result = psuedoSites(site)
+                    totalNumAllelesToEvaluate += result.size
                     aveAllelesPerSite = totalNumAllelesToEvaluate.toDouble() / numSitesProcessed.toDouble()
-                    siteStats.alleleCounts
-                            .dropLast(1)
-                            .map { alleleCount ->
-                                PsuedoSite(site, alleleCount.allele, alleleCount.count.toFloat() / siteStats.totalNonMissingAlleles.toFloat())
-                            }
+                    result
                 }
                 .flatten()
                 .chunked(numPsuedoSitesPerBlock)
@@ -103,112 +487,174 @@ class EndelmanDistanceMatrixBuilder(val table: FeatureTable, val maxAlleles: Int
 
     }
 
-    private var numPsuedoSitesProcessed = 0
+    private val numTaxa = table.numTaxa()
+
+    //
+    // Table taxon at each position of the allele counts, or null if
+    // same as table. Set by appendTaxa() to order new taxa last.
+    //
+    @Volatile
+    private var taxaOrder: IntArray? = null
 
-    private suspend fun processPsuedoSites() {
+    // upper triangle of taxa x taxa by rows. Not used out-of-core.
+    private val distances by lazy { FloatArray(numTaxa * (numTaxa + 1) / 2) }
 
-        val result = CountersDistances(table.numTaxa())
-        val distances: FloatArray = result.distances
+    // index into distances of each row's diagonal
+    private val rowStarts by lazy { IntArray(numTaxa) { t -> t * numTaxa - t * (t - 1) / 2 } }
+
+    private var sumPi = 0.0
+
+    //
+    // Tiles in upper triangle: (row tile, column tile) with
+    // column tile >= row tile.
+    //
+    private val tiles: List<Pair<Int, Int>> = run {
+        val numTiles = (numTaxa + tileSize - 1) / tileSize
+        (0 until numTiles).flatMap { row -> (row until numTiles).map { column -> Pair(row, column) } }
+    }
+
+    //
+    // Applies each chunk of pseudo-sites to the given tiles by calling
+    // processTileAt with each tile number. Returns sum of p(1 - p) over
+    // all pseudo-sites.
+    //
+    private suspend fun processPsuedoSites(psuedoSiteChannel: Channel<List<List<PsuedoSite>>>, tileNumbers: List<Int>,
+                                           processTileAt: (Int, List<BlockOfSites>) -> Unit, progress: (Double) -> Unit): Double = coroutineScope {
+
+        var sumPi = 0.0
+        var numPsuedoSitesProcessed = 0
+
+        for (psuedoSitesBlock in psuedoSiteChannel) {
+
+            //
+            // Pre-calculates counts and answers for every block
+            // of the chunk once. These are shared by all tiles.
+            //
+            val blocks = psuedoSitesBlock
+                    .map { psuedoSites -> async(Dispatchers.Default) { blockOfSites(psuedoSites) } }
+                    .map { it.await() }
+
+            blocks.forEach { sumPi += it.sumPi }
+
+            //
+            // Each thread takes the next tile until all are done.
+            // Tiles are disjoint, so no synchronization is needed.
+            //
+            val nextTile = AtomicInteger(0)
+            List(numProcessingThreads) {
+                launch(Dispatchers.Default) {
+                    var tile = nextTile.getAndIncrement()
+                    while (tile < tileNumbers.size) {
+                        processTileAt(tileNumbers[tile], blocks)
+                        tile = nextTile.getAndIncrement()
+                    }
+                }
+            }.joinAll()
+
+            numPsuedoSitesProcessed += numPsuedoSitesPerBlock * psuedoSitesBlock.size
+            progress(minOf(1.0, numPsuedoSitesProcessed.toDouble() / aveAllelesPerSite / table.numFeatures().toDouble()))
+
+        }
+
+        sumPi
+
+    }
+
+    private fun blockOfSites(psuedoSites: List<PsuedoSite>): BlockOfSites {
+
+        //
+        // Pre-calculates possible terms and gets counts for
+        // three blocks for five (pseudo-)sites.
+        //
         val sumpi = DoubleArray(1)
+        val blocksOfSites = getBlocksOfSites(psuedoSites, sumpi, numTaxa)
+
+        val possibleTerms = blocksOfSites.second[0]
+        val possibleTerms2 = blocksOfSites.second[1]
+        val possibleTerms3 = blocksOfSites.second[2]
 
         val answer1 = FloatArray(32768)
         val answer2 = FloatArray(32768)
         val answer3 = FloatArray(32768)
 
-        for (psuedoSitesBlock in psuedoSiteChannel) {
+        //
+        // Using possible terms, calculates all possible answers
+        // for each site block.
+        //
+        for (i in 0..32767) {
+            answer1[i] = possibleTerms[i and 0x7000 ushr 12] + possibleTerms[i and 0xE00 ushr 9 or 0x8] + possibleTerms[i and 0x1C0 ushr 6 or 0x10] + possibleTerms[i and 0x38 ushr 3 or 0x18] + possibleTerms[i and 0x7 or 0x20]
+            answer2[i] = possibleTerms2[i and 0x7000 ushr 12] + possibleTerms2[i and 0xE00 ushr 9 or 0x8] + possibleTerms2[i and 0x1C0 ushr 6 or 0x10] + possibleTerms2[i and 0x38 ushr 3 or 0x18] + possibleTerms2[i and 0x7 or 0x20]
+            answer3[i] = possibleTerms3[i and 0x7000 ushr 12] + possibleTerms3[i and 0xE00 ushr 9 or 0x8] + possibleTerms3[i and 0x1C0 ushr 6 or 0x10] + possibleTerms3[i and 0x38 ushr 3 or 0x18] + possibleTerms3[i and 0x7 or 0x20]
+        }
 
-            for (psuedoSites in psuedoSitesBlock) {
+        return BlockOfSites(blocksOfSites.first[0], blocksOfSites.first[1], blocksOfSites.first[2], answer1, answer2, answer3, sumpi[0])
 
-                //
-                // Pre-calculates possible terms and gets counts for
-                // three blocks for five (pseudo-)sites.
-                //
-                val blocksOfSites = getBlocksOfSites(psuedoSites, sumpi, table.numTaxa())
+    }
 
-                val possibleTerms = blocksOfSites.second[0]
-                val alleleCount1 = blocksOfSites.first[0]
+    //
+    // Adds all blocks to the distances of one tile, starting at first
+    // taxon firstStart and second taxon secondStart. Distance of first
+    // and second taxa is at index rowBases[first - firstStart] + second
+    // of target.
+    //
+    private fun processTile(firstStart: Int, secondStart: Int, blocks: List<BlockOfSites>, target: FloatArray, rowBases: IntArray) {
 
-                val possibleTerms2 = blocksOfSites.second[1]
-                val alleleCount2 = blocksOfSites.first[1]
+        val firstEnd = minOf(firstStart + tileSize, numTaxa)
+        val secondEnd = minOf(secondStart + tileSize, numTaxa)
 
-                val possibleTerms3 = blocksOfSites.second[2]
-                val alleleCount3 = blocksOfSites.first[2]
+        for (block in blocks) {
 
-                //
-                // Using possible terms, calculates all possible answers
-                // for each site block.
-                //
-                for (i in 0..32767) {
-                    answer1[i] = possibleTerms[i and 0x7000 ushr 12] + possibleTerms[i and 0xE00 ushr 9 or 0x8] + possibleTerms[i and 0x1C0 ushr 6 or 0x10] + possibleTerms[i and 0x38 ushr 3 or 0x18] + possibleTerms[i and 0x7 or 0x20]
-                    answer2[i] = possibleTerms2[i and 0x7000 ushr 12] + possibleTerms2[i and 0xE00 ushr 9 or 0x8] + possibleTerms2[i and 0x1C0 ushr 6 or 0x10] + possibleTerms2[i and 0x38 ushr 3 or 0x18] + possibleTerms2[i and 0x7 or 0x20]
-                    answer3[i] = possibleTerms3[i and 0x7000 ushr 12] + possibleTerms3[i and 0xE00 ushr 9 or 0x8] + possibleTerms3[i and 0x1C0 ushr 6 or 0x10] + possibleTerms3[i and 0x38 ushr 3 or 0x18] + possibleTerms3[i and 0x7 or 0x20]
-                }
+            val alleleCount1 = block.alleleCount1
+            val alleleCount2 = block.alleleCount2
+            val alleleCount3 = block.alleleCount3
+            val answer1 = block.answer1
+            val answer2 = block.answer2
+            val answer3 = block.answer3
 
+            //
+            // Iterates through pair-wise combinations of taxa in this
+            // tile adding distance comparisons.
+            //
+            for (firstTaxa in firstStart until firstEnd) {
                 //
-                // Iterates through all pair-wise combinations of taxa adding
-                // distance comparisons and site counts.
+                // Can skip inter-loop if all fifteen sites for first
+                // taxon is Unknown diploid allele values
                 //
-                var index = 0
-                for (firstTaxa in 0 until table.numTaxa()) {
+                val count1 = alleleCount1[firstTaxa].toInt()
+                val count2 = alleleCount2[firstTaxa].toInt()
+                val count3 = alleleCount3[firstTaxa].toInt()
+                if (count1 == 0x7FFF && count2 == 0x7FFF && count3 == 0x7FFF) continue
+                val start = maxOf(secondStart, firstTaxa)
+                var index = rowBases[firstTaxa - firstStart] + start
+                for (secondTaxa in start until secondEnd) {
                     //
-                    // Can skip inter-loop if all fifteen sites for first
-                    // taxon is Unknown diploid allele values
+                    // Combine first taxon's allele counts with
+                    // second taxon's major allele counts to
+                    // create index into pre-calculated answers
                     //
-                    if (alleleCount1[firstTaxa] != 0x7FFF.toShort() || alleleCount2[firstTaxa] != 0x7FFF.toShort() || alleleCount3[firstTaxa] != 0x7FFF.toShort()) {
-                        for (secondTaxa in firstTaxa until table.numTaxa()) {
-                            //
-                            // Combine first taxon's allele counts with
-                            // second taxon's major allele counts to
-                            // create index into pre-calculated answers
-                            //
-                            distances[index] += answer1[(alleleCount1[firstTaxa].toInt() or alleleCount1[secondTaxa].toInt()) and 0xFFFF] + answer2[(alleleCount2[firstTaxa].toInt() or alleleCount2[secondTaxa].toInt()) and 0xFFFF] + answer3[(alleleCount3[firstTaxa].toInt() or alleleCount3[secondTaxa].toInt()) and 0xFFFF]
-                            index++
-                        }
-                    } else {
-                        index += table.numTaxa() - firstTaxa
-                    }
+                    target[index] += answer1[(count1 or alleleCount1[secondTaxa].toInt()) and 0xFFFF] + answer2[(count2 or alleleCount2[secondTaxa].toInt()) and 0xFFFF] + answer3[(count3 or alleleCount3[secondTaxa].toInt()) and 0xFFFF]
+                    index++
                 }
             }
 
-            numPsuedoSitesProcessed += numPsuedoSitesPerBlock * numBlocksPerChunk
-            val percent = (numPsuedoSitesProcessed.toDouble() / aveAllelesPerSite / table.numFeatures().toDouble() * 100.0).toInt()
-            fireProgress(percent, listener)
-
         }
 
-        result.sumPi = sumpi[0]
-
-        resultsChannel.send(result)
-
     }
 
-    private suspend fun accumulateResults(): DistanceMatrix {
-
-        val result = resultsChannel.receive()
-
-        for (intermediateResult in resultsChannel) {
-            result.addAll(intermediateResult)
-        }
-
-        var sumpk = result.sumPi
-        val distances = result.distances
+    private fun createMatrix(): DistanceMatrix {
 
         //
         // This does the final division of the frequency sum into
         // the distance sums.
         //
-        sumpk *= 2.0
-
-        val annotations = GeneralAnnotationStorage.getBuilder()
-        annotations.addAnnotation(DistanceMatrixBuilder.MATRIX_TYPE, KinshipPlugin.KINSHIP_METHOD.Centered_IBS.toString())
-        annotations.addAnnotation(DistanceMatrixBuilder.CENTERED_IBS_SUMPK, sumpk)
+        val sumpk = sumPk(sumPi)
 
         val builder: DistanceMatrixBuilder = DistanceMatrixBuilder.getInstance(table.taxa)
-        builder.annotation(annotations.build())
+        builder.annotation(annotations(sumpk))
         var index = 0
-        for (t in 0 until table.numTaxa()) {
+        for (t in 0 until numTaxa) {
             var i = 0
-            val n: Int = table.numTaxa() - t
+            val n: Int = numTaxa - t
             while (i < n) {
                 builder[t, t + i] = distances[index] / sumpk
                 index++
@@ -220,10 +666,35 @@ class EndelmanDistanceMatrixBuilder(val table: FeatureTable, val maxAlleles: Int
 
     }
 
+    //
+    // Sum of p(1 - p) over pseudo-sites, in the same order as
+    // processPsuedoSites() sums blocks.
+    //
+    private fun sumPi(psuedoSites: Sequence<PsuedoSite>): Double {
+        return psuedoSites
+                .chunked(numPsuedoSitesPerBlock)
+                .sumOf { block -> block.sumOf { it.alleleFreq * (1.0 - it.alleleFreq) } }
+    }
+
+    private fun sumPk(sumPi: Double) = if (dominance == null) sumPi * 2.0 else sumPi
+
+    private fun annotations(sumpk: Double): GeneralAnnotation {
+        val annotations = GeneralAnnotationStorage.getBuilder()
+        if (dominance == null) {
+            annotations.addAnnotation(DistanceMatrixBuilder.MATRIX_TYPE, KinshipPlugin.KINSHIP_METHOD.Centered_IBS.toString())
+            annotations.addAnnotation(DistanceMatrixBuilder.CENTERED_IBS_SUMPK, sumpk)
+        } else {
+            annotations.addAnnotation(DistanceMatrixBuilder.MATRIX_TYPE, KinshipPlugin.KINSHIP_METHOD.Dominance_Centered_IBS.toString())
+            annotations.addAnnotation(DistanceMatrixBuilder.MATRIX_ALGORITHM_VARIATION, dominance.toString())
+        }
+        return annotations.build()
+    }
+
     private fun getBlocksOfSites(psuedoSites: List<PsuedoSite>, sumpi: DoubleArray, numTaxa: Int): Pair<Array<ShortArray>, Array<FloatArray>> {
 
         val numBlocks = 3
         val numSitesPerBlock = 5
+        val order = taxaOrder
         var currentBlock = 0
         var currentSiteNum = 0
 
@@ -256,12 +727,17 @@ class EndelmanDistanceMatrixBuilder(val table: FeatureTable, val maxAlleles: Int
 
                     val allele = psuedoSite.allele
                     val alleleFreq = psuedoSite.alleleFreq
-                    val alleleFreqTimes2 = alleleFreq * 2.0f
                     sumpi[0] += alleleFreq * (1.0 - alleleFreq)
 
-                    val term0 = 0.0f - alleleFreqTimes2
-                    val term1 = 1.0f - alleleFreqTimes2
-                    val term2 = 2.0f - alleleFreqTimes2
+                    //
+                    // Additive terms are allele count (0, 1, 2) minus
+                    // 2p. Dominance terms are homozygous (0) or
+                    // heterozygous (1) minus heterozygosity.
+                    //
+                    val center = if (dominance == null) alleleFreq * 2.0f else alleleFreq
+                    val term0 = 0.0f - center
+                    val term1 = 1.0f - center
+                    val term2 = 2.0f - center
 
                     //
                     // Pre-calculates all possible terms of the summation
@@ -283,8 +759,9 @@ class EndelmanDistanceMatrixBuilder(val table: FeatureTable, val maxAlleles: Int
                     val shift = (numSitesPerBlock - currentSiteNum - 1) * 3
                     val mask = (0x7 shl shift).inv() and 0x7FFF
                     for (i in 0 until numTaxa) {
-                        val taxonAlleles = psuedoSite.site.genotype(i)
-                        alleleCount[currentBlock][i] = (alleleCount[currentBlock][i].toInt() and (mask or (calculateCount(allele, taxonAlleles[0], taxonAlleles[1]) shl shift))).toShort()
+                        val taxonAlleles = psuedoSite.site.genotype(if (order == null) i else order[i])
+                        val count = if (dominance == null) calculateCount(allele, taxonAlleles[0], taxonAlleles[1]) else calculateHeterozygous(taxonAlleles[0], taxonAlleles[1])
+                        alleleCount[currentBlock][i] = (alleleCount[currentBlock][i].toInt() and (mask or (count shl shift))).toShort()
                     }
 
                     currentSiteNum++
@@ -316,31 +793,51 @@ class EndelmanDistanceMatrixBuilder(val table: FeatureTable, val maxAlleles: Int
 
     }
 
-    private fun fireProgress(percent: Int, listener: ProgressListener?) {
-        listener?.progress(if (percent > 100) 100 else percent, null)
+    //
+    // Returns encoding 2 if heterozygous, 1 if homozygous, and 7 if
+    // either allele is unknown.
+    //
+    private fun calculateHeterozygous(value1: Byte, value2: Byte): Int {
+        if (value1 == UNKNOWN_ALLELE || value2 == UNKNOWN_ALLELE) return 7
+        return if (value1 == value2) 1 else 2
     }
 
     //
-    // Each CPU thread (process) creates an instance of this class
-    // to acculate terms of the Endelman equation. These are
-    // combined with addAll() to result in one instance at the end.
+    // Expected heterozygosity (1 - sum of squared allele frequencies) or
+    // proportion of non-missing taxa that are heterozygous.
     //
-    private class CountersDistances(numTaxa: Int) {
-
-        var sumPi = 0.0
-        val distances: FloatArray = FloatArray(numTaxa * (numTaxa + 1) / 2)
-
-        fun addAll(counters: CountersDistances) {
-            val otherDistances = counters.distances
-            var t = 0
-            val n = distances.size
-            while (t < n) {
-                distances[t] += otherDistances[t]
-                t++
+    private fun heterozygosity(site: FeatureSite, variation: KinshipPlugin.ALGORITHM_VARIATION): Float {
+
+        return when (variation) {
+            KinshipPlugin.ALGORITHM_VARIATION.Observed_Allele_Freq -> {
+                val siteStats = site.alleleStats
+                if (siteStats.totalNonMissingAlleles == 0) return 0.0f
+                val total = siteStats.totalNonMissingAlleles.toDouble()
+                (1.0 - siteStats.alleleCounts.sumOf { (it.count / total) * (it.count / total) }).toFloat()
+            }
+            KinshipPlugin.ALGORITHM_VARIATION.Proportion_Heterozygous -> {
+                var numHeterozygous = 0
+                var numNonMissing = 0
+                for (taxon in 0 until numTaxa) {
+                    val alleles = site.genotype(taxon)
+                    if (alleles[0] != UNKNOWN_ALLELE && alleles[1] != UNKNOWN_ALLELE) {
+                        numNonMissing++
+                        if (alleles[0] != alleles[1]) numHeterozygous++
+                    }
+                }
+                if (numNonMissing == 0) 0.0f else numHeterozygous.toFloat() / numNonMissing.toFloat()
             }
-            sumPi += counters.sumPi
         }
 
     }
 
+    private fun fireProgress(percent: Int, listener: ProgressListener?) {
+        listener?.progress(if (percent > 100) 100 else percent, null)
+    }
+
+    companion object {
+        // default max bytes of tile sums held by out-of-core build
+        const val DEFAULT_OUT_OF_CORE_MEMORY = 4L shl 30
+    }
+
 }
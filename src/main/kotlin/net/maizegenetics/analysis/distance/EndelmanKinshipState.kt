@@ -0,0 +1,142 @@
+package net.maizegenetics.analysis.distance
+
+import net.maizegenetics.dna.factor.site.FeatureSite
+import net.maizegenetics.util.Utils
+
+/**
+ * State of a Centered_IBS (or Dominance_Centered_IBS) calculation needed to
+ * update the matrix later: the allele frequency of each pseudo-site and the
+ * sum the distance sums were divided by (sumPk). The matrix times sumPk
+ * gives the unnormalized sums. New sites are added by combining sums and
+ * sumPk (see EndelmanDistanceMatrixBuilder.addSites()). New taxa are
+ * appended using these frequencies, so existing rows don't change (see
+ * EndelmanDistanceMatrixBuilder.appendTaxa()). Sites without pseudo-sites
+ * (i.e. monomorphic) are also listed, so the state knows every site of the
+ * calculation.
+ *
+ * Saved as tab delimited text. Header lines start with '#'. Sites without
+ * pseudo-sites have empty allele and frequency.
+ */
+class EndelmanKinshipState(val dominance: KinshipPlugin.ALGORITHM_VARIATION?, val sumPk: Double, val frequencies: List<PsuedoSiteFrequency>, val otherSites: List<SitePosition> = emptyList()) {
+
+    /**
+     * Frequency of allele at site identified by chromosome and start and
+     * end positions. Allele is UNKNOWN_ALLELE for dominance, where
+     * frequency is the site's heterozygosity.
+     */
+    data class PsuedoSiteFrequency(val chromosome: String, val startPos: Int, val endPos: Int, val allele: Byte, val frequency: Float)
+
+    /**
+     * Site identified by chromosome and start and end positions.
+     */
+    data class SitePosition(val chromosome: String, val startPos: Int, val endPos: Int) {
+        constructor(site: FeatureSite) : this(site.feature.startChr.name, site.feature.startPos, site.feature.endPos)
+    }
+
+    private val bySite: Map<SitePosition, List<PsuedoSiteFrequency>> by lazy {
+        frequencies.groupBy { SitePosition(it.chromosome, it.startPos, it.endPos) }
+    }
+
+    private val otherSiteSet: Set<SitePosition> by lazy { otherSites.toSet() }
+
+    /**
+     * Pseudo-site frequencies of site, or empty list if site isn't part
+     * of this state.
+     */
+    fun frequencies(site: FeatureSite): List<PsuedoSiteFrequency> {
+        return bySite[SitePosition(site)] ?: emptyList()
+    }
+
+    /**
+     * Whether site is part of this state, with or without pseudo-sites.
+     */
+    operator fun contains(site: FeatureSite): Boolean {
+        val position = SitePosition(site)
+        return bySite.containsKey(position) || otherSiteSet.contains(position)
+    }
+
+    fun method(): KinshipPlugin.KINSHIP_METHOD {
+        return if (dominance == null) KinshipPlugin.KINSHIP_METHOD.Centered_IBS else KinshipPlugin.KINSHIP_METHOD.Dominance_Centered_IBS
+    }
+
+    /**
+     * State after adding sites of other.
+     */
+    operator fun plus(other: EndelmanKinshipState): EndelmanKinshipState {
+        require(dominance == other.dominance) { "EndelmanKinshipState: plus: can't combine ${method()} (${dominance}) with ${other.method()} (${other.dominance})" }
+        return EndelmanKinshipState(dominance, sumPk + other.sumPk, frequencies + other.frequencies, otherSites + other.otherSites)
+    }
+
+    fun write(filename: String) {
+
+        Utils.getBufferedWriter(filename).use { writer ->
+            writer.write("$METHOD_HEADER\t${method()}\n")
+            if (dominance != null) writer.write("$VARIATION_HEADER\t$dominance\n")
+            writer.write("$SUMPK_HEADER\t$sumPk\n")
+            writer.write("Chromosome\tStartPosition\tEndPosition\tAllele\tFrequency\n")
+            frequencies.forEach {
+                writer.write("${it.chromosome}\t${it.startPos}\t${it.endPos}\t${it.allele.toInt() and 0xFF}\t${it.frequency}\n")
+            }
+            otherSites.forEach {
+                writer.write("${it.chromosome}\t${it.startPos}\t${it.endPos}\t\t\n")
+            }
+        }
+
+    }
+
+    companion object {
+
+        private const val METHOD_HEADER = "#Kinship_Method"
+        private const val VARIATION_HEADER = "#Algorithm_Variation"
+        private const val SUMPK_HEADER = "#SumPk"
+
+        fun read(filename: String): EndelmanKinshipState {
+
+            try {
+
+                var method: KinshipPlugin.KINSHIP_METHOD? = null
+                var dominance: KinshipPlugin.ALGORITHM_VARIATION? = null
+                var sumPk: Double? = null
+                val frequencies = mutableListOf<PsuedoSiteFrequency>()
+                val otherSites = mutableListOf<SitePosition>()
+
+                Utils.getBufferedReader(filename).use { reader ->
+                    val methodLine = reader.readLine()?.split("\t")
+                    require(methodLine != null && methodLine[0] == METHOD_HEADER) { "not a kinship state file" }
+                    method = KinshipPlugin.KINSHIP_METHOD.valueOf(methodLine[1])
+                    var line = reader.readLine()
+                    while (line != null && line.startsWith("#")) {
+                        val tokens = line.split("\t")
+                        when (tokens[0]) {
+                            VARIATION_HEADER -> dominance = KinshipPlugin.ALGORITHM_VARIATION.valueOf(tokens[1])
+                            SUMPK_HEADER -> sumPk = tokens[1].toDouble()
+                        }
+                        line = reader.readLine()
+                    }
+                    // line is column names
+                    line = reader.readLine()
+                    while (line != null) {
+                        val tokens = line.split("\t")
+                        if (tokens[3].isEmpty()) {
+                            otherSites.add(SitePosition(tokens[0], tokens[1].toInt(), tokens[2].toInt()))
+                        } else {
+                            frequencies.add(PsuedoSiteFrequency(tokens[0], tokens[1].toInt(), tokens[2].toInt(), tokens[3].toInt().toByte(), tokens[4].toFloat()))
+                        }
+                        line = reader.readLine()
+                    }
+                }
+
+                require(method == KinshipPlugin.KINSHIP_METHOD.Centered_IBS || (method == KinshipPlugin.KINSHIP_METHOD.Dominance_Centered_IBS && dominance != null)) { "unsupported kinship method: $method" }
+                require(sumPk != null) { "missing $SUMPK_HEADER" }
+
+                return EndelmanKinshipState(if (method == KinshipPlugin.KINSHIP_METHOD.Centered_IBS) null else dominance, sumPk!!, frequencies, otherSites)
+
+            } catch (e: Exception) {
+                throw IllegalArgumentException("EndelmanKinshipState: read: problem reading: $filename.  ${e.message}", e)
+            }
+
+        }
+
+    }
+
+}
@@ -0,0 +1,425 @@
+package net.maizegenetics.analysis.distance
+
+import kotlinx.coroutines.*
+import kotlinx.coroutines.channels.Channel
+import net.maizegenetics.analysis.distance.EndelmanDistanceMatrixBuilder.PsuedoSite
+import net.maizegenetics.dna.factor.FeatureTable
+import net.maizegenetics.dna.factor.UNKNOWN_ALLELE
+import net.maizegenetics.dna.factor.site.FeatureSite
+import net.maizegenetics.matrixalgebra.Matrix.BlasDoubleMatrix
+import net.maizegenetics.matrixalgebra.Matrix.DoubleMatrixFactory
+import net.maizegenetics.taxa.distance.DistanceMatrix
+import net.maizegenetics.taxa.distance.DistanceMatrixBuilder
+import net.maizegenetics.util.GeneralAnnotationStorage
+import net.maizegenetics.util.ProgressListener
+import org.apache.logging.log4j.LogManager
+import java.util.concurrent.atomic.AtomicInteger
+import kotlin.math.roundToLong
+import kotlin.math.sqrt
+import kotlin.system.measureNanoTime
+
+/**
+ * Normalized_IBS (GCTA) kinship. http://www.ncbi.nlm.nih.gov/pmc/articles/PMC3014363/pdf/main.pdf
+ *
+ * Pseudo-sites (each allele of a site except the last) are read in blocks.
+ * Each block is a sites x taxa matrix Z of allele counts centered by 2p and
+ * scaled by sqrt(2p(1-p)), with missing values 0, and the off-diagonal sums
+ * are the rank-k update Z'Z. Pairs are divided by the number of sites where
+ * both taxa are non-missing, which is the rank-k update M'M of the
+ * non-missing indicators. This is only calculated for blocks with missing
+ * values. Diagonals are calculated directly from each taxon's values.
+ *
+ * When DoubleMatrixFactory uses BLAS (TasselBlas library found), Z'Z is
+ * done by the BLAS matrix multiply (dgemm, as the binding has no dsyrk) into
+ * a full taxa x taxa matrix. Otherwise, a parallel kernel updates disjoint
+ * tiles of the upper triangle. Pair counts are whole numbers, so they are
+ * always kept in the upper triangle by the tile kernel.
+ *
+ * When dominance is true, this calculates Dominance_Normalized_IBS (GCTA
+ * dominance). Each site is one pseudo-site for the major allele with
+ * frequency p, coded -2q^2, 2pq, -2p^2 for 2, 1, 0 copies, and divided by
+ * 2pq. Diagonals are the same products as off-diagonals.
+ */
+class GCTADistanceMatrixBuilder(val table: FeatureTable, private val listener: ProgressListener? = null, private val dominance: Boolean = false) {
+
+    private val logger = LogManager.getLogger(GCTADistanceMatrixBuilder::class.java)
+
+    //
+    // Standardized values (Z) and non-missing indicators for a
+    // block of pseudo-sites. Both are column major sites x taxa, so
+    // each taxon's values are contiguous. Missing bits are set for
+    // missing values, one long per 64 sites for each taxon.
+    //
+    private class BlockOfSites(val numSites: Int, val values: DoubleArray, val missing: LongArray?, val diagonal: DoubleArray, val nonMissing: IntArray)
+
+    private val numTaxa = table.numTaxa()
+
+    // number of pseudo-sites per block (k of rank-k update)
+    private val numSitesPerBlock = 256
+
+    // number of taxa on each side of a tile
+    private val tileSize = 128
+
+    private val numWordsPerTaxon = (numSitesPerBlock + 63) / 64
+
+    private val useBlas = DoubleMatrixFactory.DEFAULT.type == DoubleMatrixFactory.FactoryType.blas
+
+    private val numProcessingThreads = (Runtime.getRuntime().availableProcessors() - 1).coerceAtLeast(1)
+
+    // off-diagonal sums, full column major if BLAS, otherwise upper
+    // triangle by rows. Pair counts are of sites where neither taxon is
+    // missing, always upper triangle by rows, and only allocated once a
+    // block has missing values.
+    private val sums: DoubleArray
+    private var counts: IntArray? = null
+
+    // sites without missing values, added to every pair count
+    private var numCompleteSites = 0
+
+    private val diagonal = DoubleArray(numTaxa)
+    private val nonMissing = IntArray(numTaxa)
+
+    private val rowStarts = IntArray(numTaxa) { t -> t * numTaxa - t * (t - 1) / 2 }
+
+    private val tiles: List<Pair<Int, Int>> = run {
+        val numTiles = (numTaxa + tileSize - 1) / tileSize
+        (0 until numTiles).flatMap { row -> (row until numTiles).map { column -> Pair(row, column) } }
+    }
+
+    private var numSitesProcessed = 0
+
+    init {
+        if (useBlas && numTaxa.toLong() * numTaxa.toLong() > Int.MAX_VALUE) {
+            throw IllegalArgumentException("GCTADistanceMatrixBuilder: init: too many taxa for BLAS: $numTaxa")
+        }
+        sums = if (useBlas) DoubleArray(numTaxa * numTaxa) else DoubleArray(numTaxa * (numTaxa + 1) / 2)
+    }
+
+    fun build(): DistanceMatrix {
+
+        logger.debug("GCTADistanceMatrixBuilder: factor table num taxa: $numTaxa  num factors: ${table.numFeatures()}  BLAS: $useBlas")
+
+        val time = measureNanoTime {
+
+            runBlocking {
+
+                val blocks = Channel<BlockOfSites>(2)
+
+                launch(Dispatchers.Default) {
+                    table
+                            .asSequence()
+                            .flatMap { site -> psuedoSites(site) }
+                            .chunked(numSitesPerBlock)
+                            .forEach { blocks.send(blockOfSites(it)) }
+                    blocks.close()
+                }
+
+                for (block in blocks) {
+                    addBlock(block)
+                }
+
+            }
+
+        }
+
+        logger.info("GCTADistanceMatrixBuilder: time to complete: ${(time.toDouble() / 1e9).roundToLong()} secs.")
+
+        return createMatrix()
+
+    }
+
+    private fun psuedoSites(site: FeatureSite): Sequence<PsuedoSite> {
+        val siteStats = site.alleleStats
+        if (dominance) {
+            if (siteStats.numAlleles < 2) return emptySequence()
+            val major = siteStats.alleleCounts.first()
+            return sequenceOf(PsuedoSite(site, major.allele, major.count.toFloat() / siteStats.totalNonMissingAlleles.toFloat()))
+        }
+        return siteStats.alleleCounts
+                .dropLast(1)
+                .map { alleleCount ->
+                    PsuedoSite(site, alleleCount.allele, alleleCount.count.toFloat() / siteStats.totalNonMissingAlleles.toFloat())
+                }
+                .asSequence()
+    }
+
+    //
+    // Creates standardized values of block. Taxa are filled in
+    // parallel.
+    //
+    private suspend fun blockOfSites(psuedoSites: List<PsuedoSite>): BlockOfSites = coroutineScope {
+
+        val numSites = psuedoSites.size
+        val values = DoubleArray(numSitesPerBlock * numTaxa)
+        val missing = LongArray(numWordsPerTaxon * numTaxa)
+        val diagonal = DoubleArray(numTaxa)
+        val nonMissing = IntArray(numTaxa)
+
+        val alleles = ByteArray(numSites) { psuedoSites[it].allele }
+        val p = DoubleArray(numSites) { psuedoSites[it].alleleFreq.toDouble() }
+
+        //
+        // Standardized value and diagonal term for each allele
+        // count (0, 1, 2) at each site.
+        //
+        val valueTerms: Array<DoubleArray>
+        val diagonalTerms: Array<DoubleArray>
+        if (dominance) {
+            valueTerms = Array(3) { count ->
+                DoubleArray(numSites) { s ->
+                    val q = 1.0 - p[s]
+                    when (count) {
+                        2 -> -2.0 * q * q
+                        1 -> 2.0 * p[s] * q
+                        else -> -2.0 * p[s] * p[s]
+                    } / (2.0 * p[s] * q)
+                }
+            }
+            diagonalTerms = Array(3) { count -> DoubleArray(numSites) { s -> valueTerms[count][s] * valueTerms[count][s] } }
+        } else {
+            val scale = DoubleArray(numSites) { s -> 1.0 / sqrt(2.0 * p[s] * (1.0 - p[s])) }
+            valueTerms = Array(3) { count -> DoubleArray(numSites) { s -> (count - 2.0 * p[s]) * scale[s] } }
+            diagonalTerms = Array(3) { count -> DoubleArray(numSites) { s -> (count * count - (1.0 + 2.0 * p[s]) * count + 2.0 * p[s] * p[s]) * scale[s] * scale[s] } }
+        }
+
+        val taxaPerJob = (numTaxa + numProcessingThreads - 1) / numProcessingThreads
+        (0 until numTaxa step taxaPerJob.coerceAtLeast(1)).map { start ->
+            launch(Dispatchers.Default) {
+                for (taxon in start until minOf(start + taxaPerJob, numTaxa)) {
+                    val offset = taxon * numSitesPerBlock
+                    for (s in 0 until numSites) {
+                        val count = alleleCount(alleles[s], psuedoSites[s].site.genotype(taxon))
+                        if (count == -1) {
+                            missing[taxon * numWordsPerTaxon + (s ushr 6)] = missing[taxon * numWordsPerTaxon + (s ushr 6)] or (1L shl (s and 63))
+                        } else {
+                            values[offset + s] = valueTerms[count][s]
+                            diagonal[taxon] += diagonalTerms[count][s]
+                            nonMissing[taxon]++
+                        }
+                    }
+                }
+            }
+        }.joinAll()
+
+        val hasMissing = nonMissing.any { it != numSites }
+        BlockOfSites(numSites, values, if (hasMissing) missing else null, diagonal, nonMissing)
+
+    }
+
+    //
+    // Returns copies of allele (0, 1, 2) or -1 if missing. For
+    // dominance, either allele unknown is missing.
+    //
+    private fun alleleCount(allele: Byte, genotype: ByteArray): Int {
+        if (genotype[0] == UNKNOWN_ALLELE && genotype[1] == UNKNOWN_ALLELE) return -1
+        if (dominance && (genotype[0] == UNKNOWN_ALLELE || genotype[1] == UNKNOWN_ALLELE)) return -1
+        var result = 0
+        if (genotype[0] == allele) result++
+        if (genotype[1] == allele) result++
+        return result
+    }
+
+    private suspend fun addBlock(block: BlockOfSites) {
+
+        for (t in 0 until numTaxa) {
+            diagonal[t] += block.diagonal[t]
+            nonMissing[t] += block.nonMissing[t]
+        }
+
+        if (block.missing == null) {
+            numCompleteSites += block.numSites
+        } else if (counts == null) {
+            counts = IntArray(numTaxa * (numTaxa + 1) / 2)
+        }
+
+        if (useBlas) {
+            // values are padded to numSitesPerBlock with zeros
+            BlasDoubleMatrix.multMatrices(block.values, numSitesPerBlock, numTaxa, block.values, numSitesPerBlock, numTaxa, sums, 1.0, 1.0, true, false)
+            if (block.missing != null) {
+                forEachTile { rowTile, columnTile -> countTile(rowTile, columnTile, block) }
+            }
+        } else {
+            forEachTile { rowTile, columnTile -> processTile(rowTile, columnTile, block) }
+        }
+
+        numSitesProcessed += block.numSites
+        fireProgress((numSitesProcessed.toDouble() / table.numFeatures().toDouble() * 100.0).toInt(), listener)
+
+    }
+
+    //
+    // Runs process on every tile of the upper triangle in parallel.
+    //
+    private suspend fun forEachTile(process: (Int, Int) -> Unit) {
+        coroutineScope {
+            val nextTile = AtomicInteger(0)
+            List(numProcessingThreads) {
+                launch(Dispatchers.Default) {
+                    var tile = nextTile.getAndIncrement()
+                    while (tile < tiles.size) {
+                        process(tiles[tile].first, tiles[tile].second)
+                        tile = nextTile.getAndIncrement()
+                    }
+                }
+            }.joinAll()
+        }
+    }
+
+    //
+    // Adds the block's products for pairs (first < second) in one tile
+    // of the upper triangle. Two rows by two columns are calculated
+    // together, so each value loaded is used twice.
+    //
+    private fun processTile(rowTile: Int, columnTile: Int, block: BlockOfSites) {
+
+        val firstStart = rowTile * tileSize
+        val firstEnd = minOf(firstStart + tileSize, numTaxa)
+        val secondStart = columnTile * tileSize
+        val secondEnd = minOf(secondStart + tileSize, numTaxa)
+
+        val values = block.values
+        val numSites = block.numSites
+        val products = DoubleArray(4)
+
+        var first = firstStart
+        while (first < firstEnd) {
+
+            val hasSecondRow = first + 1 < firstEnd
+            var second = maxOf(secondStart, first + 1)
+
+            //
+            // Pair (first, first + 1) is only in the first row.
+            //
+            if (second == first + 1 && second < secondEnd) {
+                addPair(first, second, dot(values, first * numSitesPerBlock, second * numSitesPerBlock, numSites), block)
+                second++
+            }
+
+            while (second < secondEnd) {
+                val hasSecondColumn = second + 1 < secondEnd
+                if (hasSecondRow && hasSecondColumn) {
+                    dot2x2(values, first * numSitesPerBlock, second * numSitesPerBlock, numSites, products)
+                    addPair(first, second, products[0], block)
+                    addPair(first, second + 1, products[1], block)
+                    addPair(first + 1, second, products[2], block)
+                    addPair(first + 1, second + 1, products[3], block)
+                } else {
+                    addPair(first, second, dot(values, first * numSitesPerBlock, second * numSitesPerBlock, numSites), block)
+                    if (hasSecondColumn) {
+                        addPair(first, second + 1, dot(values, first * numSitesPerBlock, (second + 1) * numSitesPerBlock, numSites), block)
+                    }
+                    if (hasSecondRow) {
+                        addPair(first + 1, second, dot(values, (first + 1) * numSitesPerBlock, second * numSitesPerBlock, numSites), block)
+                    }
+                }
+                second += 2
+            }
+
+            first += 2
+
+        }
+
+    }
+
+    private fun addPair(first: Int, second: Int, product: Double, block: BlockOfSites) {
+        val index = rowStarts[first] + second - first
+        sums[index] += product
+        val missing = block.missing ?: return
+        addCount(index, first, second, missing, block.numSites)
+    }
+
+    //
+    // Adds the block's pair counts for one tile of the upper triangle.
+    // Used with BLAS, where the products are already added.
+    //
+    private fun countTile(rowTile: Int, columnTile: Int, block: BlockOfSites) {
+        val missing = block.missing ?: return
+        val firstStart = rowTile * tileSize
+        val firstEnd = minOf(firstStart + tileSize, numTaxa)
+        val secondStart = columnTile * tileSize
+        val secondEnd = minOf(secondStart + tileSize, numTaxa)
+        for (first in firstStart until firstEnd) {
+            for (second in maxOf(secondStart, first + 1) until secondEnd) {
+                addCount(rowStarts[first] + second - first, first, second, missing, block.numSites)
+            }
+        }
+    }
+
+    private fun addCount(index: Int, first: Int, second: Int, missing: LongArray, numSites: Int) {
+        var numBoth = 0
+        for (w in 0 until numWordsPerTaxon) {
+            numBoth += java.lang.Long.bitCount(missing[first * numWordsPerTaxon + w] or missing[second * numWordsPerTaxon + w])
+        }
+        counts!![index] += numSites - numBoth
+    }
+
+    private fun dot(values: DoubleArray, offset1: Int, offset2: Int, numSites: Int): Double {
+        var sum0 = 0.0
+        var sum1 = 0.0
+        var s = 0
+        while (s + 1 < numSites) {
+            sum0 += values[offset1 + s] * values[offset2 + s]
+            sum1 += values[offset1 + s + 1] * values[offset2 + s + 1]
+            s += 2
+        }
+        if (s < numSites) {
+            sum0 += values[offset1 + s] * values[offset2 + s]
+        }
+        return sum0 + sum1
+    }
+
+    //
+    // Products of rows (first, first + 1) with columns
+    // (second, second + 1).
+    //
+    private fun dot2x2(values: DoubleArray, firstOffset: Int, secondOffset: Int, numSites: Int, result: DoubleArray) {
+        val first2 = firstOffset + numSitesPerBlock
+        val second2 = secondOffset + numSitesPerBlock
+        var sum00 = 0.0
+        var sum01 = 0.0
+        var sum10 = 0.0
+        var sum11 = 0.0
+        for (s in 0 until numSites) {
+            val a0 = values[firstOffset + s]
+            val a1 = values[first2 + s]
+            val b0 = values[secondOffset + s]
+            val b1 = values[second2 + s]
+            sum00 += a0 * b0
+            sum01 += a0 * b1
+            sum10 += a1 * b0
+            sum11 += a1 * b1
+        }
+        result[0] = sum00
+        result[1] = sum01
+        result[2] = sum10
+        result[3] = sum11
+    }
+
+    private fun createMatrix(): DistanceMatrix {
+
+        val annotations = GeneralAnnotationStorage.getBuilder()
+        val method = if (dominance) KinshipPlugin.KINSHIP_METHOD.Dominance_Normalized_IBS else KinshipPlugin.KINSHIP_METHOD.Normalized_IBS
+        annotations.addAnnotation(DistanceMatrixBuilder.MATRIX_TYPE, method.toString())
+
+        val builder: DistanceMatrixBuilder = DistanceMatrixBuilder.getInstance(table.taxa)
+        builder.annotation(annotations.build())
+
+        val counts = counts
+        for (first in 0 until numTaxa) {
+            builder[first, first] = (if (dominance) 0.0 else 1.0) + diagonal[first] / nonMissing[first].toDouble()
+            for (second in first + 1 until numTaxa) {
+                val index = rowStarts[first] + second - first
+                val numSites = numCompleteSites + (counts?.get(index) ?: 0)
+                builder[first, second] = sums[if (useBlas) second * numTaxa + first else index] / numSites
+            }
+        }
+
+        return builder.build()
+
+    }
+
+    private fun fireProgress(percent: Int, listener: ProgressListener?) {
+        listener?.progress(if (percent > 100) 100 else percent, null)
+    }
+
+}
@@ -28,6 +28,10 @@ class KinshipPlugin(isInteractive: Boolean = false) : AbstractPlugin(isInteracti
         Observed_Allele_Freq, Proportion_Heterozygous
     }
 
+    enum class UPDATE {
+        None, Add_Sites, Add_Taxa
+    }
+
     private var myMethod = PluginParameter.Builder("method", KINSHIP_METHOD.Centered_IBS, KINSHIP_METHOD::class.java)
             .guiName("Kinship method")
             .range(KINSHIP_METHOD.values())
@@ -51,9 +55,55 @@ class KinshipPlugin(isInteractive: Boolean = false) : AbstractPlugin(isInteracti
             .build()
     var algorithmVariation by Parameter<ALGORITHM_VARIATION>()
 
+    private var myOutOfCoreFile = PluginParameter.Builder("outOfCoreFile", null, String::class.java)
+            .description("If specified, the kinship matrix is calculated out-of-core and stored in this TASSEL binary matrix file, "
+                    + "for numbers of taxa whose matrix doesn't fit in memory. If the job dies, running again with the same "
+                    + "genotype and file reuses the completed parts.")
+            .outFile()
+            .dependentOnParameter(myMethod, arrayOf<Any>(KINSHIP_METHOD.Centered_IBS, KINSHIP_METHOD.Dominance_Centered_IBS))
+            .build()
+    var outOfCoreFile by Parameter<String?>()
+
+    private var myOutOfCoreMemory = PluginParameter.Builder("outOfCoreMemory", 4096, Int::class.java)
+            .description("Max memory (MB) used to hold parts of the kinship matrix when calculated out-of-core.")
+            .range(Range.atLeast<Comparable<Int>>(1))
+            .dependentOnParameter(myMethod, arrayOf<Any>(KINSHIP_METHOD.Centered_IBS, KINSHIP_METHOD.Dominance_Centered_IBS))
+            .build()
+    var outOfCoreMemory by Parameter<Int>()
+
+    private var myKinshipState = PluginParameter.Builder("kinshipState", null, String::class.java)
+            .description("File with the allele frequencies and sum of 2pq (sumPk) of the kinship calculation. "
+                    + "When creating a matrix, these are written to this file, so the matrix can be updated later. "
+                    + "When updating, these are read from this file, and for Add_Sites, replaced with the updated values.")
+            .outFile()
+            .dependentOnParameter(myMethod, arrayOf<Any>(KINSHIP_METHOD.Centered_IBS, KINSHIP_METHOD.Dominance_Centered_IBS))
+            .build()
+    var kinshipState by Parameter<String?>()
+
+    private var myUpdate = PluginParameter.Builder("update", UPDATE.None, UPDATE::class.java)
+            .description("Updates the selected kinship matrix instead of calculating a new one. Add_Sites adds the sites of the "
+                    + "selected genotype, which must have the same taxa. Add_Taxa calculates rows for the taxa of the selected genotype "
+                    + "not in the matrix, using the allele frequencies of the kinship state. Requires kinshipState.")
+            .range(UPDATE.values())
+            .dependentOnParameter(myMethod, arrayOf<Any>(KINSHIP_METHOD.Centered_IBS, KINSHIP_METHOD.Dominance_Centered_IBS))
+            .build()
+    var update by Parameter<UPDATE>()
+
     override fun preProcessParameters(input: DataSet) {
         val alignInList = input.getDataOfType(FeatureTable::class.java)
         require(!(alignInList == null || alignInList.isEmpty())) { "KinshipPlugin: Nothing selected. Please select a genotype." }
+        if (!outOfCoreFile.isNullOrEmpty()) {
+            require(method == KINSHIP_METHOD.Centered_IBS || method == KINSHIP_METHOD.Dominance_Centered_IBS) { "KinshipPlugin: out-of-core is only supported for Centered_IBS and Dominance_Centered_IBS." }
+            require(alignInList.size == 1) { "KinshipPlugin: out-of-core requires one genotype to be selected." }
+        }
+        if (update != UPDATE.None) {
+            require(method == KINSHIP_METHOD.Centered_IBS || method == KINSHIP_METHOD.Dominance_Centered_IBS) { "KinshipPlugin: update is only supported for Centered_IBS and Dominance_Centered_IBS." }
+            require(!kinshipState.isNullOrEmpty()) { "KinshipPlugin: update requires kinshipState." }
+            require(outOfCoreFile.isNullOrEmpty()) { "KinshipPlugin: update can't be out-of-core." }
+            require(alignInList.size == 1) { "KinshipPlugin: update requires one genotype to be selected." }
+            val matrices = input.getDataOfType(DistanceMatrix::class.java)
+            require(matrices != null && matrices.size == 1) { "KinshipPlugin: update requires one kinship matrix to be selected." }
+        }
     }
 
     override fun processData(input: DataSet): DataSet {
@@ -63,36 +113,47 @@ class KinshipPlugin(isInteractive: Boolean = false) : AbstractPlugin(isInteracti
         while (itr.hasNext()) {
             val current = itr.next()
             val datasetName = current.name
-            var kin: DistanceMatrix? = null
-            if (current.data is FeatureTable) {
-                val myGenotype = current.data as FeatureTable
-                if (method == KINSHIP_METHOD.Centered_IBS) {
-                    kin = EndelmanDistanceMatrixBuilder(myGenotype, maxAlleles, this).build()
-                } else if (method == KINSHIP_METHOD.Normalized_IBS) {
-                    //kin = GCTADistanceMatrix.getInstance(myGenotype, this);
-                } else if (method == KINSHIP_METHOD.Dominance_Centered_IBS) {
-                    //kin = DominanceRelationshipMatrix.getInstance(myGenotype, maxAlleles(), algorithmVariation(), this);
-                } else if (method == KINSHIP_METHOD.Dominance_Normalized_IBS) {
-                    //kin = DominanceNormalizedIBSMatrix.getInstance(myGenotype, this);
+            if (current.data !is FeatureTable) {
+                throw IllegalArgumentException("Invalid selection. Can't create kinship matrix from: $datasetName")
+            }
+            val myGenotype = current.data as FeatureTable
+            val outOfCore = outOfCoreFile
+            val stateFile = kinshipState
+            val variation = if (method == KINSHIP_METHOD.Dominance_Centered_IBS) algorithmVariation else null
+            val kin: DistanceMatrix = if (update != UPDATE.None) {
+                val existing = input.getDataOfType(DistanceMatrix::class.java)[0].data as DistanceMatrix
+                val state = EndelmanKinshipState.read(stateFile!!)
+                if (update == UPDATE.Add_Sites) {
+                    val builder = EndelmanDistanceMatrixBuilder(myGenotype, maxAlleles, this, variation)
+                    val updated = builder.addSites(existing, state)
+                    (state + builder.state()).write(stateFile)
+                    updated
                 } else {
-                    throw IllegalArgumentException("Unknown method to calculate kinship: $method")
+                    EndelmanDistanceMatrixBuilder(myGenotype, maxAlleles, this, variation, state).appendTaxa(existing)
                 }
+            } else if (method == KINSHIP_METHOD.Centered_IBS || method == KINSHIP_METHOD.Dominance_Centered_IBS) {
+                val builder = EndelmanDistanceMatrixBuilder(myGenotype, maxAlleles, this, variation)
+                val matrix = if (outOfCore.isNullOrEmpty()) builder.build() else builder.build(outOfCore, outOfCoreMemory * 1048576L)
+                if (!stateFile.isNullOrEmpty()) builder.state().write(stateFile)
+                matrix
+            } else if (method == KINSHIP_METHOD.Normalized_IBS) {
+                GCTADistanceMatrixBuilder(myGenotype, this).build()
+            } else if (method == KINSHIP_METHOD.Dominance_Normalized_IBS) {
+                GCTADistanceMatrixBuilder(myGenotype, this, true).build()
             } else {
-                throw IllegalArgumentException("Invalid selection. Can't create kinship matrix from: $datasetName")
+                throw IllegalArgumentException("Unknown method to calculate kinship: $method")
             }
-            if (kin != null) {
-                val comment = StringBuilder()
-                comment.append(method)
-                if (method == KINSHIP_METHOD.Dominance_Centered_IBS) {
-                    comment.append("(variation: ")
-                    comment.append(algorithmVariation)
-                    comment.append(")")
-                }
-                comment.append(" matrix created from ")
-                comment.append(datasetName)
-                val ds = Datum(method.toString() + "_" + datasetName, kin, comment.toString())
-                result.add(ds)
+            val comment = StringBuilder()
+            comment.append(method)
+            if (method == KINSHIP_METHOD.Dominance_Centered_IBS) {
+                comment.append("(variation: ")
+                comment.append(algorithmVariation)
+                comment.append(")")
             }
+            comment.append(" matrix created from ")
+            comment.append(datasetName)
+            val ds = Datum(method.toString() + "_" + datasetName, kin, comment.toString())
+            result.add(ds)
         }
         return DataSet(result, this)
     }